@@ -19,21 +19,32 @@
 package net.sf.eps2pgf;
 
 import java.io.BufferedInputStream;
-import java.io.BufferedWriter;
+import java.io.BufferedOutputStream;
+import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileWriter;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
 import java.text.ParseException;
+import java.util.logging.Logger;
 
+import net.sf.eps2pgf.io.ChannelWriter;
 import net.sf.eps2pgf.io.LimitedSectionInputStream;
 import net.sf.eps2pgf.io.TextReplacements;
 import net.sf.eps2pgf.ps.DSCHeader;
 import net.sf.eps2pgf.ps.Header;
 import net.sf.eps2pgf.ps.Interpreter;
 import net.sf.eps2pgf.ps.errors.PSError;
+import net.sf.eps2pgf.ps.errors.PSErrorIOError;
 import net.sf.eps2pgf.ps.objects.PSObjectFile;
+import net.sf.eps2pgf.ps.resources.outputdevices.DisplayListFile;
+import net.sf.eps2pgf.ps.resources.outputdevices.DisplayListWriter;
+import net.sf.eps2pgf.ps.resources.outputdevices.OutputBackend;
+import net.sf.eps2pgf.ps.resources.outputdevices.SVGDevice;
 
 /**
  * Object that converts Encapsulated PostScript (EPS) to Portable Graphics
@@ -43,6 +54,10 @@ import net.sf.eps2pgf.ps.objects.PSObjectFile;
  */
 public class Converter {
     
+    /** The log. */
+    private static final Logger LOG
+                                  = Logger.getLogger("net.sourceforge.eps2pgf");
+    
     /** Options describing behavior of program. */
     private Options opts;
     
@@ -56,7 +71,8 @@ public class Converter {
     }
     
     /**
-     * Starts the actual conversion.
+     * Starts the actual conversion. The output is written to the output file
+     * from the options.
      * 
      * @throws IOException Signals that an I/O exception has occurred.
      * @throws PSError A PostScript error occurred.
@@ -65,6 +81,58 @@ public class Converter {
      */
     public final void convert() throws IOException, PSError, ProgramError,
             ParseException {
+        FileOutputStream outStream =
+            new FileOutputStream(opts.getOutputFile());
+        try {
+            convert(outStream.getChannel());
+        } finally {
+            outStream.close();
+        }
+    }
+    
+    /**
+     * Starts the actual conversion, and writes the output to a stream
+     * instead of the output file, e.g. to a ByteArrayOutputStream. The
+     * stream is not closed. Bitmap images are still written to separate
+     * files next to the output file from the options.
+     * 
+     * @param outStream The output is written to this stream.
+     * 
+     * @throws IOException Signals that an I/O exception has occurred.
+     * @throws PSError A PostScript error occurred.
+     * @throws ProgramError This shouldn't happen, it indicates a bug.
+     * @throws ParseException There was an error parsing a file.
+     */
+    public final void convert(final OutputStream outStream)
+            throws IOException, PSError, ProgramError, ParseException {
+        convert(Channels.newChannel(outStream));
+    }
+    
+    /**
+     * Starts the actual conversion, and writes the output to a channel. The
+     * channel is not closed.
+     * 
+     * @param channel The output is written to this channel.
+     * 
+     * @throws IOException Signals that an I/O exception has occurred.
+     * @throws PSError A PostScript error occurred.
+     * @throws ProgramError This shouldn't happen, it indicates a bug.
+     * @throws ParseException There was an error parsing a file.
+     */
+    private void convert(final WritableByteChannel channel)
+            throws IOException, PSError, ProgramError, ParseException {
+        // A stored display list is rendered without interpreting it again
+        if (DisplayListFile.isDisplayList(opts.getInputFile())) {
+            Writer out = new ChannelWriter(channel,
+                    opts.getOutputBufferSize());
+            try {
+                replay(opts.getInputFile(), out);
+            } finally {
+                out.flush();
+            }
+            return;
+        }
+        
         // Check for a binary header
         int[] dim = Header.getPostScriptSection(opts.getInputFile());
         
@@ -87,28 +155,80 @@ public class Converter {
             textReplace = new TextReplacements(opts.getTextreplacefile());
         }
         
-        Writer out = new BufferedWriter(
-                new FileWriter(opts.getOutputFile()));
+        Writer out = new ChannelWriter(channel, opts.getOutputBufferSize());
         
-        // Create PostScript interpreter and add file to execution stack
-        Interpreter interp = new Interpreter(out, opts, header, textReplace);
+        // Create PostScript interpreter and add file to execution stack. If
+        // the display list is stored, the interpreter writes it to the file,
+        // which is rendered afterwards.
+        File listFile = opts.getDisplayListFile();
+        if ((listFile != null)
+                && (opts.getOutputType() == Options.OutputType.LOL)) {
+            LOG.warning("The display list is not stored for LOL output.");
+            listFile = null;
+        }
+        OutputStream listOut = null;
+        Interpreter interp;
+        if (listFile != null) {
+            listOut = new BufferedOutputStream(new FileOutputStream(listFile));
+            DisplayListFile.writeHeader(listOut, opts.getOutputType(),
+                    header.getBoundingBox());
+            interp = new Interpreter(new DisplayListWriter(listOut), opts,
+                    header, textReplace);
+        } else {
+            interp = new Interpreter(out, opts, header, textReplace);
+        }
         interp.getExecStack().push(new PSObjectFile(in, interp));
         
         // Run the interpreter
         try {
             interp.start();
-        } catch (PSError e) {
+            if (listOut != null) {
+                listOut.close();
+                replay(listFile, out);
+            }
+        } finally {
             in.close();
-            out.close();
-            throw e;
-        } catch (ProgramError e) {
-            in.close();
-            out.close();
-            throw e;
+            if (listOut != null) {
+                listOut.close();
+            }
+            out.flush();
+        }
+    }
+    
+    /**
+     * Renders a stored display list to the output.
+     * 
+     * @param listFile The display list file.
+     * @param out The output is written to this writer.
+     * 
+     * @throws IOException Unable to read the display list file.
+     * @throws PSError The display list can't be rendered to the output type
+     * in the options, or a PostScript error occurred.
+     * @throws ProgramError This shouldn't happen, it indicates a bug.
+     */
+    private void replay(final File listFile, final Writer out)
+            throws IOException, PSError, ProgramError {
+        InputStream listIn = new BufferedInputStream(
+                new FileInputStream(listFile));
+        try {
+            DisplayListFile list = new DisplayListFile(listIn);
+            if (!list.canRenderTo(opts.getOutputType())) {
+                LOG.severe("A display list for " + list.getOutputType()
+                        + " output can't be converted to "
+                        + opts.getOutputType() + " output.");
+                throw new PSErrorIOError();
+            }
+            OutputBackend backend = Interpreter.createBackend(out, opts,
+                    list.getBoundingBox());
+            if (backend instanceof SVGDevice) {
+                // The display list refers to the image files, keep them such
+                // that it can be rendered again.
+                ((SVGDevice) backend).setKeepImageFiles(true);
+            }
+            list.replay(backend, opts.getPathSpillThreshold());
+        } finally {
+            listIn.close();
         }
-
-        in.close();
-        out.close();
     }
 
     /**
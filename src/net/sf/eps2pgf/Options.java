@@ -30,6 +30,7 @@ import com.martiansoftware.jsap.UnflaggedOption;
 import com.martiansoftware.jsap.stringparsers.EnumeratedStringParser;
 import com.martiansoftware.jsap.stringparsers.FileStringParser;
 
+import net.sf.eps2pgf.io.ChannelWriter;
 
 /**
  * Parses command line arguments and manages settings and options by the user.
@@ -51,7 +52,7 @@ public class Options extends JSAP {
     private TextMode textMode;
     
     /** The enum for different output types. */
-    public enum OutputType { PGF, LOL };
+    public enum OutputType { PGF, TIKZ, SVG, LOL };
     
     /** The type of output. */
     private OutputType outputType;
@@ -68,6 +69,76 @@ public class Options extends JSAP {
     /** Indicates whether verbose flag is set. */
     private boolean verboseFlagSet;
     
+    /** Skip painting operations that are outside the clipping path. */
+    private boolean cullingEnabled = true;
+    
+    /** The enum for different path simplification methods. */
+    public enum PathSimplification { NONE, COLLINEAR, RDP };
+    
+    /** Simplification applied to polylines before they are written. */
+    private PathSimplification pathSimplification = PathSimplification.NONE;
+    
+    /** Maximum deviation (in cm) of points removed by path simplification. */
+    private double pathTolerance = 0.001;
+    
+    /**
+     * Number of path sections that is kept in memory. Sections beyond this
+     * number are spilled to a temporary file. Zero disables spilling.
+     */
+    private int pathSpillThreshold = 0;
+    
+    /**
+     * Minimum number of sections of paths that are drawn with a macro when
+     * they are repeated. Zero disables path macros.
+     */
+    private int pathMacroSize = 0;
+    
+    /** Merge consecutive paths that are painted in the same way. */
+    private boolean mergePathsEnabled = false;
+    
+    /** Size (in bytes) of the buffer of the output file. */
+    private int outputBufferSize = ChannelWriter.DEFAULT_BUFFER_SIZE;
+    
+    /**
+     * Size (in bytes) of bitmap image data above which it is stored in a
+     * temporary file, if it can't be written while it is read. Zero disables
+     * spilling.
+     */
+    private long imageSpillThreshold = 0;
+    
+    /** The enum for different file formats of bitmap images. */
+    public enum ImageFormat { EPS, PNG };
+    
+    /** File format of bitmap images in PGF and TikZ output. */
+    private ImageFormat imageFormat = ImageFormat.EPS;
+    
+    /**
+     * Resolution (in pixels per inch) to which bitmap images are
+     * downsampled. Zero disables downsampling.
+     */
+    private double imageResolution = 0.0;
+    
+    /** Compression level (0-9) of bitmap images. */
+    private int compressionLevel = 9;
+    
+    /**
+     * Number of threads that compress bitmap images, zero means one thread
+     * per processor.
+     */
+    private int deflateThreads = 1;
+    
+    /** Directory of the image cache, or null if images are not cached. */
+    private File imageCacheDir = null;
+    
+    /** Maximum size (in bytes) of the image cache, zero means no limit. */
+    private long imageCacheSize = 100L * 1024 * 1024;
+    
+    /** Write the output on a separate thread. */
+    private boolean pipelineEnabled = false;
+    
+    /** File in which the display list is stored, or null. */
+    private File displayListFile = null;
+    
     /**
      * Creates a new instance of Options.
      */
@@ -116,18 +187,164 @@ public class Options extends JSAP {
                     + "replacements.");
             registerParameter(optPsfrag);
 
-            StringParser outputtypeParser =
-                EnumeratedStringParser.getParser("pgf; lol", false, false); 
+            StringParser outputtypeParser = EnumeratedStringParser
+                    .getParser("pgf; tikz; svg; lol", false, false);
             FlaggedOption optOutputType = new FlaggedOption("outputtype")
                                        .setShortFlag('t')
                                        .setLongFlag("output-type")
                                        .setStringParser(outputtypeParser)
                                        .setDefault("pgf");
-            optOutputType.setHelp("Type of output file. Accepted values: 'pgf' "
-                    + "or 'lol'.");
+            optOutputType.setHelp("Type of output file. Accepted values: "
+                    + "'pgf', 'tikz', 'svg' or 'lol'.");
             registerParameter(optOutputType);
             
-            Switch sw = new Switch("verbose").setLongFlag("verbose");
+            StringParser simplifyParser = EnumeratedStringParser
+                    .getParser("none; collinear; rdp", false, false);
+            FlaggedOption optSimplify = new FlaggedOption("simplifypaths")
+                                        .setLongFlag("simplify-paths")
+                                        .setStringParser(simplifyParser)
+                                        .setDefault("none");
+            optSimplify.setHelp("Simplification of polylines. Accepted values:"
+                    + " 'none', 'collinear' (remove points that are duplicates"
+                    + " after rounding or lie on a straight line), or 'rdp' "
+                    + "(Ramer-Douglas-Peucker).");
+            registerParameter(optSimplify);
+            
+            FlaggedOption optTolerance = new FlaggedOption("pathtolerance")
+                                        .setLongFlag("path-tolerance")
+                                        .setStringParser(JSAP.DOUBLE_PARSER)
+                                        .setDefault("0.001");
+            optTolerance.setHelp("Maximum deviation (in cm) of points that are"
+                    + " removed by path simplification.");
+            registerParameter(optTolerance);
+            
+            FlaggedOption optSpill = new FlaggedOption("pathspill")
+                                        .setLongFlag("path-spill")
+                                        .setStringParser(JSAP.INTEGER_PARSER)
+                                        .setDefault("0");
+            optSpill.setHelp("Number of sections of a path that is kept in "
+                    + "memory. Further sections are stored in a temporary file."
+                    + " Use 0 to keep all sections in memory.");
+            registerParameter(optSpill);
+            
+            FlaggedOption optMacros = new FlaggedOption("pathmacros")
+                                        .setLongFlag("path-macros")
+                                        .setStringParser(JSAP.INTEGER_PARSER)
+                                        .setDefault("0");
+            optMacros.setHelp("Paths with at least this number of sections "
+                    + "that are drawn more than once, at different positions,"
+                    + " are written once as a macro. Use 0 to disable.");
+            registerParameter(optMacros);
+            
+            Switch swMerge = new Switch("mergepaths")
+                                    .setLongFlag("merge-paths");
+            swMerge.setHelp("Write consecutive fills and strokes with the same"
+                    + " style as a single path.");
+            registerParameter(swMerge);
+            
+            FlaggedOption optBuffer = new FlaggedOption("outputbuffer")
+                                        .setLongFlag("output-buffer")
+                                        .setStringParser(JSAP.INTEGER_PARSER)
+                                        .setDefault("64");
+            optBuffer.setHelp("Size (in kB) of the buffer that is used to "
+                    + "write the output file.");
+            registerParameter(optBuffer);
+            
+            FlaggedOption optImageSpill = new FlaggedOption("imagespill")
+                                        .setLongFlag("image-spill")
+                                        .setStringParser(JSAP.INTEGER_PARSER)
+                                        .setDefault("0");
+            optImageSpill.setHelp("Size (in kB) of bitmap images that are kept"
+                    + " in memory when they can't be written while they are"
+                    + " read, e.g. rotated images. Larger images are stored"
+                    + " in a temporary file. Use 0 to keep all images in"
+                    + " memory.");
+            registerParameter(optImageSpill);
+            
+            StringParser imageFormatParser = EnumeratedStringParser
+                    .getParser("eps; png", false, false);
+            FlaggedOption optImageFormat = new FlaggedOption("imageformat")
+                                        .setLongFlag("image-format")
+                                        .setStringParser(imageFormatParser)
+                                        .setDefault("eps");
+            optImageFormat.setHelp("File format of bitmap images in PGF and"
+                    + " TikZ output. Accepted values: 'eps' (an EPS and a PDF"
+                    + " file per image), or 'png' (a PNG file per image, for"
+                    + " pdfLaTeX only).");
+            registerParameter(optImageFormat);
+            
+            FlaggedOption optResolution = new FlaggedOption("imageresolution")
+                                        .setLongFlag("image-resolution")
+                                        .setStringParser(JSAP.DOUBLE_PARSER)
+                                        .setDefault("0");
+            optResolution.setHelp("Downsample bitmap images with a resolution"
+                    + " (in pixels per inch) of at least twice this"
+                    + " resolution. Use 0 to keep the original resolution.");
+            registerParameter(optResolution);
+            
+            FlaggedOption optLevel = new FlaggedOption("compressionlevel")
+                                        .setLongFlag("compression-level")
+                                        .setStringParser(JSAP.INTEGER_PARSER)
+                                        .setDefault("9");
+            optLevel.setHelp("Compression level of bitmap images, from 0 (no"
+                    + " compression) to 9 (best compression).");
+            registerParameter(optLevel);
+            
+            FlaggedOption optThreads = new FlaggedOption("deflatethreads")
+                                        .setLongFlag("deflate-threads")
+                                        .setStringParser(JSAP.INTEGER_PARSER)
+                                        .setDefault("1");
+            optThreads.setHelp("Number of threads that compress bitmap"
+                    + " images. Use 0 for one thread per processor. Multiple"
+                    + " threads require Java 7 or newer.");
+            registerParameter(optThreads);
+            
+            FlaggedOption optImageCache = new FlaggedOption("imagecache")
+                                        .setLongFlag("image-cache")
+                                        .setStringParser(
+                                                FileStringParser.getParser())
+                                        .setRequired(false);
+            optImageCache.setHelp("Directory in which encoded bitmap images"
+                    + " are cached, such that images that occur in several"
+                    + " figures are encoded only once. The data of each image"
+                    + " is stored (see --image-spill) to look it up in the"
+                    + " cache.");
+            registerParameter(optImageCache);
+            
+            FlaggedOption optImageCacheSize = new FlaggedOption(
+                                                "imagecachesize")
+                                        .setLongFlag("image-cache-size")
+                                        .setStringParser(JSAP.INTEGER_PARSER)
+                                        .setDefault("100");
+            optImageCacheSize.setHelp("Maximum size (in MB) of the image"
+                    + " cache. The least recently used images are removed"
+                    + " when it is exceeded. Use 0 for no limit.");
+            registerParameter(optImageCacheSize);
+            
+            Switch sw = new Switch("pipeline").setLongFlag("pipeline");
+            sw.setHelp("Write the output on a separate thread, in parallel "
+                    + "with interpreting the input. Only used if more than one"
+                    + " processor is available.");
+            registerParameter(sw);
+            
+            FlaggedOption optDisplayList = new FlaggedOption("displaylist")
+                                        .setLongFlag("save-display-list")
+                                        .setStringParser(
+                                                FileStringParser.getParser())
+                                        .setRequired(false);
+            optDisplayList.setHelp("Also store the painting operations in this"
+                    + " file. It can be converted again, without interpreting"
+                    + " the PostScript code, by passing it as input file."
+                    + " Display lists for PGF and TikZ output can be converted"
+                    + " to PGF and TikZ, those for SVG output only to SVG.");
+            registerParameter(optDisplayList);
+            
+            sw = new Switch("nocull").setLongFlag("no-culling");
+            sw.setHelp("Write all painting operations to the output, including"
+                    + " those that are completely outside the clipping path.");
+            registerParameter(sw);
+            
+            sw = new Switch("verbose").setLongFlag("verbose");
             sw.setHelp("Display more information during the conversion.");
             registerParameter(sw);
             
@@ -172,6 +389,10 @@ public class Options extends JSAP {
         
         if (args.getString("outputtype").equals("pgf")) {
             setOutputType(OutputType.PGF);
+        } else if (args.getString("outputtype").equals("tikz")) {
+            setOutputType(OutputType.TIKZ);
+        } else if (args.getString("outputtype").equals("svg")) {
+            setOutputType(OutputType.SVG);
         } else {
             setOutputType(OutputType.LOL);
         }
@@ -208,6 +429,48 @@ public class Options extends JSAP {
         setVersionFlag(args.getBoolean("version"));
         
         setVerboseFlag(args.getBoolean("verbose"));
+        
+        setCullingEnabled(!args.getBoolean("nocull"));
+        
+        String simplify = args.getString("simplifypaths", "none");
+        if (simplify.equals("collinear")) {
+            setPathSimplification(PathSimplification.COLLINEAR);
+        } else if (simplify.equals("rdp")) {
+            setPathSimplification(PathSimplification.RDP);
+        } else {
+            setPathSimplification(PathSimplification.NONE);
+        }
+        
+        setPathTolerance(args.getDouble("pathtolerance", 0.001));
+        
+        setPathSpillThreshold(args.getInt("pathspill", 0));
+        
+        setPathMacroSize(args.getInt("pathmacros", 0));
+        
+        setMergePathsEnabled(args.getBoolean("mergepaths"));
+        
+        setOutputBufferSize(1024 * args.getInt("outputbuffer", 64));
+        
+        setImageSpillThreshold(1024L * args.getInt("imagespill", 0));
+        
+        if (args.getString("imageformat", "eps").equals("png")) {
+            setImageFormat(ImageFormat.PNG);
+        } else {
+            setImageFormat(ImageFormat.EPS);
+        }
+        
+        setImageResolution(Math.max(0.0,
+                args.getDouble("imageresolution", 0.0)));
+        setCompressionLevel(Math.max(0, Math.min(9,
+                args.getInt("compressionlevel", 9))));
+        setDeflateThreads(Math.max(0, args.getInt("deflatethreads", 1)));
+        
+        setImageCacheDir(args.getFile("imagecache"));
+        setImageCacheSize(1024L * 1024 * args.getInt("imagecachesize", 100));
+        
+        setPipelineEnabled(args.getBoolean("pipeline"));
+        
+        setDisplayListFile(args.getFile("displaylist"));
     }
 
     /**
@@ -329,5 +592,255 @@ public class Options extends JSAP {
     public boolean isVerboseFlagSet() {
         return verboseFlagSet;
     }
+
+    /**
+     * @param pCullingEnabled Indicates whether painting operations outside
+     * the clipping path are skipped.
+     */
+    public void setCullingEnabled(final boolean pCullingEnabled) {
+        cullingEnabled = pCullingEnabled;
+    }
+
+    /**
+     * @return True if painting operations outside the clipping path are
+     * skipped.
+     */
+    public boolean isCullingEnabled() {
+        return cullingEnabled;
+    }
+
+    /**
+     * @param pPathSimplification the path simplification to set
+     */
+    public void setPathSimplification(
+            final PathSimplification pPathSimplification) {
+        pathSimplification = pPathSimplification;
+    }
+
+    /**
+     * @return the path simplification
+     */
+    public PathSimplification getPathSimplification() {
+        return pathSimplification;
+    }
+
+    /**
+     * @param pPathTolerance Maximum deviation (in cm) of points removed by
+     * path simplification.
+     */
+    public void setPathTolerance(final double pPathTolerance) {
+        pathTolerance = pPathTolerance;
+    }
+
+    /**
+     * @return Maximum deviation (in cm) of points removed by path
+     * simplification.
+     */
+    public double getPathTolerance() {
+        return pathTolerance;
+    }
+
+    /**
+     * @param pPathSpillThreshold Number of path sections that is kept in
+     * memory, zero disables spilling.
+     */
+    public void setPathSpillThreshold(final int pPathSpillThreshold) {
+        pathSpillThreshold = pPathSpillThreshold;
+    }
+
+    /**
+     * @return Number of path sections that is kept in memory, zero disables
+     * spilling.
+     */
+    public int getPathSpillThreshold() {
+        return pathSpillThreshold;
+    }
+
+    /**
+     * @param pPathMacroSize Minimum number of sections of paths that are
+     * drawn with a macro, zero disables path macros.
+     */
+    public void setPathMacroSize(final int pPathMacroSize) {
+        pathMacroSize = pPathMacroSize;
+    }
+
+    /**
+     * @return Minimum number of sections of paths that are drawn with a
+     * macro, zero disables path macros.
+     */
+    public int getPathMacroSize() {
+        return pathMacroSize;
+    }
+
+    /**
+     * @param pMergePathsEnabled Indicates whether consecutive paths that are
+     * painted in the same way are merged.
+     */
+    public void setMergePathsEnabled(final boolean pMergePathsEnabled) {
+        mergePathsEnabled = pMergePathsEnabled;
+    }
+
+    /**
+     * @return True if consecutive paths that are painted in the same way are
+     * merged.
+     */
+    public boolean isMergePathsEnabled() {
+        return mergePathsEnabled;
+    }
+
+    /**
+     * @param pOutputBufferSize Size (in bytes) of the buffer of the output
+     * file.
+     */
+    public void setOutputBufferSize(final int pOutputBufferSize) {
+        outputBufferSize = pOutputBufferSize;
+    }
+
+    /**
+     * @return Size (in bytes) of the buffer of the output file.
+     */
+    public int getOutputBufferSize() {
+        return outputBufferSize;
+    }
+
+    /**
+     * @param pImageSpillThreshold Size (in bytes) of bitmap image data above
+     * which it is stored in a temporary file, zero disables spilling.
+     */
+    public void setImageSpillThreshold(final long pImageSpillThreshold) {
+        imageSpillThreshold = pImageSpillThreshold;
+    }
+
+    /**
+     * @return Size (in bytes) of bitmap image data above which it is stored
+     * in a temporary file, zero disables spilling.
+     */
+    public long getImageSpillThreshold() {
+        return imageSpillThreshold;
+    }
+
+    /**
+     * @param pImageFormat File format of bitmap images in PGF and TikZ
+     * output.
+     */
+    public void setImageFormat(final ImageFormat pImageFormat) {
+        imageFormat = pImageFormat;
+    }
+
+    /**
+     * @return File format of bitmap images in PGF and TikZ output.
+     */
+    public ImageFormat getImageFormat() {
+        return imageFormat;
+    }
+
+    /**
+     * @param pImageResolution Resolution (in pixels per inch) to which
+     * bitmap images are downsampled, zero disables downsampling.
+     */
+    public void setImageResolution(final double pImageResolution) {
+        imageResolution = pImageResolution;
+    }
+
+    /**
+     * @return Resolution (in pixels per inch) to which bitmap images are
+     * downsampled, zero disables downsampling.
+     */
+    public double getImageResolution() {
+        return imageResolution;
+    }
+
+    /**
+     * @param pCompressionLevel Compression level (0-9) of bitmap images.
+     */
+    public void setCompressionLevel(final int pCompressionLevel) {
+        compressionLevel = pCompressionLevel;
+    }
+
+    /**
+     * @return Compression level (0-9) of bitmap images.
+     */
+    public int getCompressionLevel() {
+        return compressionLevel;
+    }
+
+    /**
+     * @param pDeflateThreads Number of threads that compress bitmap images,
+     * zero means one thread per processor.
+     */
+    public void setDeflateThreads(final int pDeflateThreads) {
+        deflateThreads = pDeflateThreads;
+    }
+
+    /**
+     * @return Number of threads that compress bitmap images, zero means one
+     * thread per processor.
+     */
+    public int getDeflateThreads() {
+        return deflateThreads;
+    }
+
+    /**
+     * @param pImageCacheDir Directory of the image cache, or null if images
+     * are not cached.
+     */
+    public void setImageCacheDir(final File pImageCacheDir) {
+        imageCacheDir = pImageCacheDir;
+    }
+
+    /**
+     * @return Directory of the image cache, or null if images are not
+     * cached.
+     */
+    public File getImageCacheDir() {
+        return imageCacheDir;
+    }
+
+    /**
+     * @param pImageCacheSize Maximum size (in bytes) of the image cache, zero
+     * means no limit.
+     */
+    public void setImageCacheSize(final long pImageCacheSize) {
+        imageCacheSize = pImageCacheSize;
+    }
+
+    /**
+     * @return Maximum size (in bytes) of the image cache, zero means no
+     * limit.
+     */
+    public long getImageCacheSize() {
+        return imageCacheSize;
+    }
+
+    /**
+     * @param pPipelineEnabled Indicates whether the output is written on a
+     * separate thread.
+     */
+    public void setPipelineEnabled(final boolean pPipelineEnabled) {
+        pipelineEnabled = pPipelineEnabled;
+    }
+
+    /**
+     * @return True if the output is written on a separate thread.
+     */
+    public boolean isPipelineEnabled() {
+        return pipelineEnabled;
+    }
+
+    /**
+     * @param pDisplayListFile File in which the display list is stored, or
+     * null if it is not stored.
+     */
+    public void setDisplayListFile(final File pDisplayListFile) {
+        displayListFile = pDisplayListFile;
+    }
+
+    /**
+     * @return File in which the display list is stored, or null if it is not
+     * stored.
+     */
+    public File getDisplayListFile() {
+        return displayListFile;
+    }
     
 }
@@ -0,0 +1,333 @@
+/*
+ * This file is part of Eps2pgf.
+ *
+ * Copyright 2007-2009 Paul Wagenaars
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sf.eps2pgf.io;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * Writer that encodes characters into a large byte buffer, which is written
+ * to a channel when it is full. ASCII characters, which is nearly all of the
+ * output, are copied directly into the buffer. Only other characters go
+ * through the character set encoder. Unlike a BufferedWriter around a
+ * FileWriter, this writer is not synchronized.
+ *
+ * @author Paul Wagenaars
+ */
+public class ChannelWriter extends Writer {
+
+    /** Default size (in bytes) of the buffer. */
+    public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Minimum size of the buffer. It must be able to hold any encoded
+     * character.
+     */
+    static final int MIN_BUFFER_SIZE = 16;
+
+    /** Replacement for a lone surrogate character. */
+    private static final byte REPLACEMENT = '?';
+
+    /** The buffer is written to this channel. */
+    private WritableByteChannel channel;
+
+    /** Buffer with encoded characters. */
+    private byte[] bytes;
+
+    /** Number of bytes in the buffer. */
+    private int count = 0;
+
+    /** Encodes characters that are not ASCII. */
+    private CharsetEncoder encoder;
+
+    /**
+     * Indicates whether the character set encodes the ASCII characters as
+     * single bytes with the same value.
+     */
+    private boolean asciiCompatible;
+
+    /**
+     * High surrogate at the end of the previous write, whose low surrogate
+     * has not been written yet. Zero if there is none.
+     */
+    private char pendingHigh = 0;
+
+    /**
+     * Creates a new writer that uses the platform's default character set,
+     * just like FileWriter.
+     *
+     * @param pChannel The output is written to this channel.
+     * @param bufferSize Size (in bytes) of the buffer.
+     */
+    public ChannelWriter(final WritableByteChannel pChannel,
+            final int bufferSize) {
+        this(pChannel, bufferSize, Charset.defaultCharset());
+    }
+
+    /**
+     * Creates a new writer.
+     *
+     * @param pChannel The output is written to this channel.
+     * @param bufferSize Size (in bytes) of the buffer.
+     * @param charset Character set used to encode the characters.
+     */
+    public ChannelWriter(final WritableByteChannel pChannel,
+            final int bufferSize, final Charset charset) {
+        channel = pChannel;
+        bytes = new byte[Math.max(bufferSize, MIN_BUFFER_SIZE)];
+        encoder = charset.newEncoder();
+        encoder.onMalformedInput(CodingErrorAction.REPLACE);
+        encoder.onUnmappableCharacter(CodingErrorAction.REPLACE);
+        asciiCompatible = isAsciiCompatible(charset);
+    }
+
+    /**
+     * Checks whether a character set encodes all ASCII characters as single
+     * bytes with the same value.
+     *
+     * @param charset The character set.
+     *
+     * @return True if the ASCII characters can be copied into the buffer.
+     */
+    private static boolean isAsciiCompatible(final Charset charset) {
+        char[] ascii = new char[128];
+        for (int i = 0; i < ascii.length; i++) {
+            ascii[i] = (char) i;
+        }
+        ByteBuffer encoded = charset.encode(CharBuffer.wrap(ascii));
+        if (encoded.remaining() != ascii.length) {
+            return false;
+        }
+        for (int i = 0; i < ascii.length; i++) {
+            if (encoded.get() != i) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Writes a single character.
+     *
+     * @param c The character to write.
+     *
+     * @throws IOException Unable to write to the channel.
+     */
+    @Override
+    public void write(final int c) throws IOException {
+        if ((c < 0x80) && asciiCompatible && (pendingHigh == 0)) {
+            if (count == bytes.length) {
+                writeBuffer();
+            }
+            bytes[count++] = (byte) c;
+        } else {
+            char[] chars = {(char) c};
+            write(chars, 0, 1);
+        }
+    }
+
+    /**
+     * Writes a part of a string.
+     *
+     * @param str The string.
+     * @param off Index of the first character to write.
+     * @param len Number of characters to write.
+     *
+     * @throws IOException Unable to write to the channel.
+     */
+    @Override
+    @SuppressWarnings("deprecation")
+    public void write(final String str, final int off, final int len)
+            throws IOException {
+        int end = off + len;
+        int i = off;
+        while (i < end) {
+            // Copy ASCII characters directly into the buffer. The deprecated
+            // String.getBytes() copies the lower eight bits of each
+            // character, which is exactly right for ASCII.
+            if (asciiCompatible && (pendingHigh == 0)) {
+                if (count == bytes.length) {
+                    writeBuffer();
+                }
+                int n = Math.min(end - i, bytes.length - count);
+                int k = 0;
+                while ((k < n) && (str.charAt(i + k) < 0x80)) {
+                    k++;
+                }
+                str.getBytes(i, i + k, bytes, count);
+                count += k;
+                i += k;
+                if (k == n) {
+                    continue;
+                }
+            }
+
+            // Encode the following run of other characters
+            int j = i + 1;
+            while ((j < end)
+                    && (!asciiCompatible || (str.charAt(j) >= 0x80))) {
+                j++;
+            }
+            encode(CharBuffer.wrap(str, i, j));
+            i = j;
+        }
+    }
+
+    /**
+     * Writes a part of an array of characters.
+     *
+     * @param cbuf The characters.
+     * @param off Index of the first character to write.
+     * @param len Number of characters to write.
+     *
+     * @throws IOException Unable to write to the channel.
+     */
+    @Override
+    public void write(final char[] cbuf, final int off, final int len)
+            throws IOException {
+        int end = off + len;
+        int i = off;
+        while (i < end) {
+            // Copy ASCII characters directly into the buffer
+            if (asciiCompatible && (pendingHigh == 0)) {
+                if (count == bytes.length) {
+                    writeBuffer();
+                }
+                int n = Math.min(end - i, bytes.length - count);
+                int k = 0;
+                while ((k < n) && (cbuf[i + k] < 0x80)) {
+                    bytes[count + k] = (byte) cbuf[i + k];
+                    k++;
+                }
+                count += k;
+                i += k;
+                if (k == n) {
+                    continue;
+                }
+            }
+
+            // Encode the following run of other characters
+            int j = i + 1;
+            while ((j < end) && (!asciiCompatible || (cbuf[j] >= 0x80))) {
+                j++;
+            }
+            encode(CharBuffer.wrap(cbuf, i, j - i));
+            i = j;
+        }
+    }
+
+    /**
+     * Encodes characters with the character set encoder, and puts them in
+     * the buffer.
+     *
+     * @param in The characters to encode.
+     *
+     * @throws IOException Unable to write to the channel.
+     */
+    private void encode(final CharBuffer in) throws IOException {
+        CharBuffer chars = in;
+        if (pendingHigh != 0) {
+            chars = CharBuffer.allocate(in.remaining() + 1);
+            chars.put(pendingHigh);
+            chars.put(in);
+            chars.flip();
+            pendingHigh = 0;
+        }
+        while (true) {
+            ByteBuffer dst = ByteBuffer.wrap(bytes, count,
+                    bytes.length - count);
+            CoderResult result = encoder.encode(chars, dst, false);
+            count = dst.position();
+            if (result.isOverflow()) {
+                writeBuffer();
+            } else {
+                break;
+            }
+        }
+
+        // A high surrogate at the end is encoded together with the low
+        // surrogate in the next write.
+        if (chars.hasRemaining()) {
+            pendingHigh = chars.get();
+        }
+    }
+
+    /**
+     * Replaces a pending high surrogate, which can no longer be followed by
+     * its low surrogate, and writes the buffer to the channel.
+     *
+     * @throws IOException Unable to write to the channel.
+     */
+    private void flushPendingAndBuffer() throws IOException {
+        if (pendingHigh != 0) {
+            // A lone high surrogate can't be encoded.
+            pendingHigh = 0;
+            if (count == bytes.length) {
+                writeBuffer();
+            }
+            bytes[count++] = REPLACEMENT;
+        }
+        writeBuffer();
+    }
+
+    /**
+     * Writes the bytes in the buffer to the channel and empties the buffer.
+     *
+     * @throws IOException Unable to write to the channel.
+     */
+    private void writeBuffer() throws IOException {
+        ByteBuffer src = ByteBuffer.wrap(bytes, 0, count);
+        while (src.hasRemaining()) {
+            channel.write(src);
+        }
+        count = 0;
+    }
+
+    /**
+     * Writes all buffered characters to the channel. A high surrogate at the
+     * end of the last write is kept, such that it is still encoded together
+     * with a low surrogate that is written after the flush.
+     *
+     * @throws IOException Unable to write to the channel.
+     */
+    @Override
+    public void flush() throws IOException {
+        writeBuffer();
+    }
+
+    /**
+     * Writes all buffered characters to the channel and closes the channel.
+     *
+     * @throws IOException Unable to write to or close the channel.
+     */
+    @Override
+    public void close() throws IOException {
+        if (channel.isOpen()) {
+            flushPendingAndBuffer();
+            channel.close();
+        }
+    }
+}
@@ -162,8 +162,14 @@ public class LimitedSectionInputStream extends InputStream {
     @Override
     public int read(final byte[] cbuf, final int off, final int len)
             throws IOException {
+        if (len == 0) {
+            return 0;
+        }
         int maxLength = Math.min(length - charsRead, len);
-        int n = rdr.read(cbuf, 0, maxLength);
+        if (maxLength <= 0) {
+            return -1;
+        }
+        int n = rdr.read(cbuf, off, maxLength);
         if (n > 0) {
             charsRead += n;
         } else {
@@ -0,0 +1,456 @@
+/*
+ * This file is part of Eps2pgf.
+ *
+ * Copyright 2007-2009 Paul Wagenaars
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sf.eps2pgf.io;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.Adler32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Output stream that compresses its data into a zlib stream, optionally
+ * with several threads.
+ *
+ * With more than one thread, the data is split into blocks that are
+ * compressed independently, each with the last 32 kB of the previous block
+ * as preset dictionary, such that matches across block boundaries are not
+ * lost. Every block except the last is ended with a sync flush, so the
+ * compressed blocks can simply be concatenated. Sync flushes are only
+ * available from Java 7 on, on older runtimes the data is compressed by a
+ * single thread.
+ *
+ * @author Paul Wagenaars
+ */
+public class ParallelDeflaterOutputStream extends OutputStream {
+
+    /** Size (in bytes) of the blocks that are compressed independently. */
+    static final int BLOCK_SIZE = 128 * 1024;
+
+    /** Size (in bytes) of the preset dictionary of a block. */
+    private static final int DICT_SIZE = 32 * 1024;
+
+    /** Flush mode argument of Deflater.deflate() for a sync flush. */
+    private static final int SYNC_FLUSH = 2;
+
+    /**
+     * Deflater.deflate(byte[], int, int, int) method that supports flushing,
+     * or null if the runtime doesn't have it.
+     */
+    private static final Method DEFLATE_FLUSH = findDeflateFlush();
+
+    /**
+     * Thread pools shared by all streams, by number of threads. A pool is
+     * never shut down, because other streams might still use it. Its threads
+     * are daemon threads.
+     */
+    private static Map<Integer, ExecutorService> pools =
+        new HashMap<Integer, ExecutorService>();
+
+    /** The compressed data is written to this stream. */
+    private OutputStream out;
+
+    /** Compression level (0-9). */
+    private int level;
+
+    /** Stream that compresses the data when only one thread is used. */
+    private DeflaterOutputStream serialOut = null;
+
+    /** Deflater of serialOut. */
+    private Deflater serialDeflater = null;
+
+    /** Threads that compress the blocks, or null if one thread is used. */
+    private ExecutorService executor = null;
+
+    /** Maximum number of blocks that are being compressed at once. */
+    private int maxPending;
+
+    /** Blocks being compressed, in order. */
+    private LinkedList<Future<byte[]>> pending =
+        new LinkedList<Future<byte[]>>();
+
+    /** Block that is being filled. */
+    private byte[] block = null;
+
+    /** Number of bytes in the block that is being filled. */
+    private int blockLength = 0;
+
+    /** Previous block, its end is the dictionary of the next block. */
+    private byte[] prevBlock = null;
+
+    /** Checksum of all uncompressed data. */
+    private Adler32 checksum = new Adler32();
+
+    /** Indicates whether the compressed data has been finished. */
+    private boolean finished = false;
+
+    /**
+     * Creates a new deflater output stream.
+     *
+     * @param pOut The compressed data is written to this stream.
+     * @param pLevel Compression level (0-9).
+     * @param nrThreads Number of threads that compress the data, zero to use
+     * one thread per processor.
+     */
+    public ParallelDeflaterOutputStream(final OutputStream pOut,
+            final int pLevel, final int nrThreads) {
+        out = pOut;
+        level = pLevel;
+        int threads = nrThreads;
+        if (threads <= 0) {
+            threads = Runtime.getRuntime().availableProcessors();
+        }
+        if ((threads > 1) && (DEFLATE_FLUSH != null)) {
+            executor = getPool(threads);
+            maxPending = 2 * threads;
+        } else {
+            serialDeflater = new Deflater(level);
+            serialOut = new DeflaterOutputStream(out, serialDeflater);
+        }
+    }
+
+    /**
+     * Looks up the Deflater method that supports flushing.
+     *
+     * @return The method, or null if it is not available.
+     */
+    private static Method findDeflateFlush() {
+        try {
+            return Deflater.class.getMethod("deflate", byte[].class,
+                    int.class, int.class, int.class);
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Gets the shared thread pool with a number of threads. It is created
+     * when it is used for the first time.
+     *
+     * @param nrThreads Number of threads.
+     *
+     * @return The thread pool.
+     */
+    private static synchronized ExecutorService getPool(final int nrThreads) {
+        ExecutorService pool = pools.get(nrThreads);
+        if (pool == null) {
+            pool = Executors.newFixedThreadPool(nrThreads,
+                    new ThreadFactory() {
+                public Thread newThread(final Runnable r) {
+                    Thread thread = new Thread(r, "eps2pgf-deflate");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            pools.put(nrThreads, pool);
+        }
+        return pool;
+    }
+
+    /**
+     * Writes a byte.
+     *
+     * @param b The byte.
+     *
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    @Override
+    public void write(final int b) throws IOException {
+        if (finished) {
+            throw new IOException("Write beyond end of compressed data.");
+        }
+        if (executor == null) {
+            serialOut.write(b);
+            return;
+        }
+
+        checksum.update(b);
+        if (block == null) {
+            block = new byte[BLOCK_SIZE];
+            blockLength = 0;
+        }
+        block[blockLength++] = (byte) b;
+        if (blockLength == BLOCK_SIZE) {
+            submitBlock(false);
+        }
+    }
+
+    /**
+     * Writes part of an array of bytes.
+     *
+     * @param b The array.
+     * @param off Index of the first byte.
+     * @param len Number of bytes.
+     *
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    @Override
+    public void write(final byte[] b, final int off, final int len)
+            throws IOException {
+        if (finished) {
+            throw new IOException("Write beyond end of compressed data.");
+        }
+        if (executor == null) {
+            serialOut.write(b, off, len);
+            return;
+        }
+
+        checksum.update(b, off, len);
+        int i = 0;
+        while (i < len) {
+            if (block == null) {
+                block = new byte[BLOCK_SIZE];
+                blockLength = 0;
+            }
+            int n = Math.min(len - i, BLOCK_SIZE - blockLength);
+            System.arraycopy(b, off + i, block, blockLength, n);
+            blockLength += n;
+            i += n;
+            if (blockLength == BLOCK_SIZE) {
+                submitBlock(false);
+            }
+        }
+    }
+
+    /**
+     * Starts compressing the current block, and writes compressed blocks
+     * while too many blocks are being compressed.
+     *
+     * @param last Indicates whether this is the last block.
+     *
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    private void submitBlock(final boolean last) throws IOException {
+        if (pending.isEmpty() && (prevBlock == null)) {
+            writeHeader();
+        }
+        byte[] data = block;
+        if (data == null) {
+            data = new byte[0];
+        }
+        pending.addLast(executor.submit(new BlockCompressor(data,
+                blockLength, prevBlock, level, last)));
+        prevBlock = data;
+        block = null;
+        blockLength = 0;
+        while (pending.size() >= maxPending) {
+            writeBlock();
+        }
+    }
+
+    /**
+     * Waits until the oldest block is compressed and writes it.
+     *
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    private void writeBlock() throws IOException {
+        try {
+            out.write(pending.removeFirst().get());
+        } catch (InterruptedException e) {
+            throw new IOException("Interrupted while compressing data.");
+        } catch (ExecutionException e) {
+            IOException ioe = new IOException("Unable to compress data.");
+            ioe.initCause(e.getCause());
+            throw ioe;
+        }
+    }
+
+    /**
+     * Writes the zlib header.
+     *
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    private void writeHeader() throws IOException {
+        int cmf = 0x78;
+        int flevel;
+        if (level <= 1) {
+            flevel = 0;
+        } else if (level <= 5) {
+            flevel = 1;
+        } else if (level == 6) {
+            flevel = 2;
+        } else {
+            flevel = 3;
+        }
+        int flg = flevel << 6;
+        flg += 31 - ((cmf << 8) + flg) % 31;
+        out.write(cmf);
+        out.write(flg);
+    }
+
+    /**
+     * Writes the remaining compressed data to the output stream, without
+     * closing it.
+     *
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    public void finish() throws IOException {
+        if (finished) {
+            return;
+        }
+        finished = true;
+        if (executor == null) {
+            serialOut.finish();
+            serialDeflater.end();
+            return;
+        }
+
+        submitBlock(true);
+        while (!pending.isEmpty()) {
+            writeBlock();
+        }
+        long value = checksum.getValue();
+        out.write((int) (value >>> 24) & 0xff);
+        out.write((int) (value >>> 16) & 0xff);
+        out.write((int) (value >>> 8) & 0xff);
+        out.write((int) value & 0xff);
+    }
+
+    /**
+     * Flushes the output stream. Data that has not been compressed yet is
+     * not flushed.
+     *
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    /**
+     * Writes the remaining compressed data and closes the output stream.
+     *
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    @Override
+    public void close() throws IOException {
+        finish();
+        out.close();
+    }
+
+    /**
+     * Compresses a single block into raw deflate data.
+     */
+    private static class BlockCompressor implements Callable<byte[]> {
+
+        /** Array with the uncompressed block. */
+        private byte[] data;
+
+        /** Number of bytes in the block. */
+        private int length;
+
+        /** Previous block, or null if this is the first block. */
+        private byte[] prev;
+
+        /** Compression level. */
+        private int level;
+
+        /** Indicates whether this is the last block. */
+        private boolean last;
+
+        /**
+         * Creates a new block compressor.
+         *
+         * @param pData Array with the uncompressed block.
+         * @param pLength Number of bytes in the block.
+         * @param pPrev Previous (full) block, or null if this is the first
+         * block.
+         * @param pLevel Compression level.
+         * @param pLast Indicates whether this is the last block.
+         */
+        public BlockCompressor(final byte[] pData, final int pLength,
+                final byte[] pPrev, final int pLevel, final boolean pLast) {
+            data = pData;
+            length = pLength;
+            prev = pPrev;
+            level = pLevel;
+            last = pLast;
+        }
+
+        /**
+         * Compresses the block.
+         *
+         * @return The compressed block.
+         *
+         * @throws Exception Unable to compress the block.
+         */
+        public byte[] call() throws Exception {
+            Deflater deflater = new Deflater(level, true);
+            try {
+                if (prev != null) {
+                    deflater.setDictionary(prev, prev.length - DICT_SIZE,
+                            DICT_SIZE);
+                }
+                deflater.setInput(data, 0, length);
+                ByteArrayOutputStream compressed =
+                    new ByteArrayOutputStream(length / 2 + 64);
+                byte[] buf = new byte[length / 2 + 64];
+                if (last) {
+                    deflater.finish();
+                    while (!deflater.finished()) {
+                        int n = deflater.deflate(buf);
+                        compressed.write(buf, 0, n);
+                    }
+                } else {
+                    // A sync flush is complete when the output buffer is not
+                    // filled.
+                    int n;
+                    do {
+                        n = deflateSync(deflater, buf);
+                        compressed.write(buf, 0, n);
+                    } while (n == buf.length);
+                }
+                return compressed.toByteArray();
+            } finally {
+                deflater.end();
+            }
+        }
+
+        /**
+         * Compresses the input of a deflater with a sync flush.
+         *
+         * @param deflater The deflater.
+         * @param buf Buffer for the compressed data.
+         *
+         * @return Number of bytes of compressed data.
+         *
+         * @throws IllegalAccessException Unable to call the method.
+         * @throws InvocationTargetException Unable to call the method.
+         */
+        private static int deflateSync(final Deflater deflater,
+                final byte[] buf) throws IllegalAccessException,
+                InvocationTargetException {
+            Object n = DEFLATE_FLUSH.invoke(deflater, buf, 0, buf.length,
+                    SYNC_FLUSH);
+            return ((Integer) n).intValue();
+        }
+    }
+}
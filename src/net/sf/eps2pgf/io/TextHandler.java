@@ -45,6 +45,12 @@ public class TextHandler {
     
     /** Text label handling. */
     private Options.TextMode textMode;
+    
+    /**
+     * Indicates whether texts are written as plain text instead of LaTeX
+     * code, for output formats that are not processed by LaTeX.
+     */
+    private boolean plainText = false;
 
     /**
      * Creates a new instance of TextHandler.
@@ -86,6 +92,16 @@ public class TextHandler {
         textMode = pTextMode;
     }
     
+    /**
+     * Sets whether texts are written as plain text instead of LaTeX code.
+     * Texts with a replacement rule are not affected.
+     * 
+     * @param pPlainText True to write texts as plain text.
+     */
+    public void setPlainText(final boolean pPlainText) {
+        plainText = pPlainText;
+    }
+    
     /**
      * Appends the path of a text to the current path.
      * 
@@ -230,7 +246,8 @@ public class TextHandler {
         PSObjectArray charNames = string.decode(currentFont.getEncoding());
         
         String text;
-        if ((replaceRule == null) && (textMode == TextMode.DIRECT_COPY)) {
+        if ((replaceRule == null)
+                && ((textMode == TextMode.DIRECT_COPY) || plainText)) {
             text = string.toString();
         } else {
             text = currentFont.charNames2texStrings(charNames);
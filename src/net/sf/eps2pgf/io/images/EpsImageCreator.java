@@ -19,14 +19,18 @@
 package net.sf.eps2pgf.io.images;
 
 import java.io.BufferedOutputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.util.Calendar;
 import java.util.Formatter;
 
 import net.sf.eps2pgf.Main;
+import net.sf.eps2pgf.Options;
+import net.sf.eps2pgf.ProgramError;
 import net.sf.eps2pgf.io.RandomAccessOutputStream;
 import net.sf.eps2pgf.ps.Image;
+import net.sf.eps2pgf.ps.ImageRowTranscoder;
 import net.sf.eps2pgf.ps.Interpreter;
 import net.sf.eps2pgf.ps.errors.PSError;
 import net.sf.eps2pgf.ps.errors.PSErrorRangeCheck;
@@ -62,10 +66,34 @@ public final class EpsImageCreator {
      * 
      * @throws IOException Signals that an I/O exception has occurred.
      * @throws PSError A PostScript error occurred.
+     * @throws ProgramError This shouldn't happen, it indicates a bug.
      */
     public static void writeImage(final OutputStream out, final Image img,
             final String title, final Interpreter interpreter)
-            throws IOException, PSError {
+            throws IOException, PSError, ProgramError {
+        
+        writeImageHeader(out, img, title, interpreter);
+        writeEncodedImageData(out, img, interpreter.getOptions());
+        writeImageTrailer(out);
+    }
+    
+    /**
+     * Writes the part of the EPS file that precedes the image data.
+     * 
+     * @param out OutputStream to which EPS image is written.
+     * @param img Bitmap image to must be converted to EPS and written to the
+     * OutputStream.
+     * @param title Title of figure (used in EPS header)
+     * @param interpreter The interpreter.
+     * 
+     * @return The number of bytes written.
+     * 
+     * @throws IOException Signals that an I/O exception has occurred.
+     * @throws PSError A PostScript error occurred.
+     */
+    public static int writeImageHeader(final OutputStream out,
+            final Image img, final String title,
+            final Interpreter interpreter) throws IOException, PSError {
         
         RandomAccessOutputStream outBuf = new RandomAccessOutputStream(out);
         
@@ -73,18 +101,65 @@ public final class EpsImageCreator {
         writeScaling(outBuf, img);
         writeColorSpace(outBuf, img, interpreter);
         writeImageDict(outBuf, img);
-
-        OutputStream ascii85Out = new ASCII85Encode(outBuf, null);
-        OutputStream flateOut = new FlateEncode(ascii85Out, null);
+        outBuf.close();
+        
+        return outBuf.size();
+    }
+    
+    /**
+     * Writes the part of the EPS file that follows the image data.
+     * 
+     * @param out OutputStream to which EPS image is written.
+     * 
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    public static void writeImageTrailer(final OutputStream out)
+            throws IOException {
+        
+        out.write("\n%%EOF".getBytes("US-ASCII"));
+    }
+    
+    /**
+     * Compresses the binary image data, encodes it in ASCII base-85 and
+     * writes it to an OutputStream. The result is the data of the image in
+     * both the EPS and the PDF file. The rows of the image are compressed
+     * while they are read, so the image doesn't have to be in memory. If
+     * the image data is already compressed, and the image has a pass-through
+     * filter, the compressed data is encoded as it is.
+     * 
+     * @param out OutputStream to which the encoded data is written.
+     * @param img The bitmap image.
+     * @param options Options with the compression level and the number of
+     * threads that compress the data.
+     * 
+     * @return The number of bytes written, including the end-of-data marker.
+     * 
+     * @throws IOException Signals that an I/O exception has occurred.
+     * @throws PSError A PostScript error occurred.
+     * @throws ProgramError This shouldn't happen, it indicates a bug.
+     */
+    public static long writeEncodedImageData(final OutputStream out,
+            final Image img, final Options options)
+            throws IOException, PSError, ProgramError {
+        
+        CountingOutputStream counter = new CountingOutputStream(out);
+        OutputStream ascii85Out = new ASCII85Encode(counter, null);
+        if (img.getPassThroughFilter() != null) {
+            OutputStream bufOut = new BufferedOutputStream(ascii85Out);
+            img.writeCompressedData(bufOut);
+            bufOut.flush();
+            ascii85Out.close();
+            return counter.getCount();
+        }
+        OutputStream flateOut = new FlateEncode(ascii85Out, null,
+                options.getCompressionLevel(), options.getDeflateThreads());
         OutputStream bufOut = new BufferedOutputStream(flateOut);
         writeImageData(bufOut, img);
         bufOut.close();
         flateOut.close();
         ascii85Out.close();
         
-        outBuf.write("\n%%EOF");
-        
-        outBuf.close();
+        return counter.getCount();
     }
     
     /**
@@ -155,10 +230,49 @@ public final class EpsImageCreator {
             throws IOException, PSErrorVMError, PSErrorRangeCheck {
         
         PSColor colorSpace = img.getColorSpace();
+        if (img.isMask()) {
+            // A stencil mask is painted with the current color.
+            out.write(getMaskColor(img,
+                    new String[] {"setgray", "setrgbcolor", "setcmykcolor"}));
+            out.write("\n");
+            return;
+        }
         out.write(colorSpace.getColorSpace(interpreter).isis());
         out.write(" setcolorspace\n");
     }
     
+    /**
+     * Gets the operands and operator that set the color of a stencil mask,
+     * in the preferred color space of the color.
+     * 
+     * @param img The stencil mask.
+     * @param operators The operators that set a gray, RGB and CMYK color.
+     * 
+     * @return The operands followed by the operator.
+     */
+    static String getMaskColor(final Image img, final String[] operators) {
+        PSColor color = img.getColorSpace();
+        String model = color.getPreferredColorSpace();
+        double[] values;
+        String operator;
+        if (model.equals("Gray")) {
+            values = new double[] {color.getGray()};
+            operator = operators[0];
+        } else if (model.equals("CMYK")) {
+            values = color.getCMYK();
+            operator = operators[2];
+        } else {
+            values = color.getRGB();
+            operator = operators[1];
+        }
+        StringBuilder str = new StringBuilder();
+        for (int i = 0; i < values.length; i++) {
+            str.append(PGFDevice.COLOR_FORMAT.format(values[i])).append(' ');
+        }
+        str.append(operator);
+        return str.toString();
+    }
+    
     /**
      * Write the image dictionary.
      * 
@@ -167,20 +281,39 @@ public final class EpsImageCreator {
      * OutputStream.
      * 
      * @throws IOException Signals that an I/O exception has occurred.
+     * @throws PSError A PostScript error occurred.
      */
     private static void writeImageDict(final RandomAccessOutputStream out,
-            final Image img) throws IOException {
+            final Image img) throws IOException, PSError {
         
         out.write("<<\n");
         
         out.write("/ImageType 1\n");
         
-        int width = img.getOutputWidthPx();
-        out.write(String.format("/Width %d\n", width));
-        int height = img.getOutputHeightPx();
-        out.write(String.format("/Height %d\n", height));
-        out.write(String.format("/ImageMatrix [%d 0 0 %d 0 0]\n", width,
-                height));
+        String filter = img.getPassThroughFilter();
+        if (filter != null) {
+            // The compressed data is copied as it is, so the image is
+            // described as it is in the original data.
+            out.write(String.format("/Width %d\n", img.getDataWidthPx()));
+            out.write(String.format("/Height %d\n", img.getDataHeightPx()));
+            int[] matrix = img.getDataImageMatrix();
+            out.write(String.format("/ImageMatrix [%d %d %d %d %d %d]\n",
+                    matrix[0], matrix[1], matrix[2], matrix[3], matrix[4],
+                    matrix[5]));
+        } else {
+            filter = "FlateDecode";
+            int width = img.getOutputWidthPx();
+            out.write(String.format("/Width %d\n", width));
+            int height = img.getOutputHeightPx();
+            out.write(String.format("/Height %d\n", height));
+            if (img.isTopDown()) {
+                out.write(String.format("/ImageMatrix [%d 0 0 -%d 0 %d]\n",
+                        width, height, height));
+            } else {
+                out.write(String.format("/ImageMatrix [%d 0 0 %d 0 0]\n",
+                        width, height));
+            }
+        }
         
         out.write(String.format("/BitsPerComponent %d\n",
                 img.getBitsPerComponent()));
@@ -200,9 +333,13 @@ public final class EpsImageCreator {
         
         out.write("/DataSource currentfile"
                 + " /ASCII85Decode filter"
-                + " /FlateDecode filter\n");
+                + " /" + filter + " filter\n");
         
-        out.write(">>\nimage\n");
+        if (img.isMask()) {
+            out.write(">>\nimagemask\n");
+        } else {
+            out.write(">>\nimage\n");
+        }
     }
     
     /**
@@ -214,64 +351,80 @@ public final class EpsImageCreator {
      * 
      * @throws IOException Signals that an I/O exception has occurred.
      * @throws PSError A PostScript error occurred.
+     * @throws ProgramError This shouldn't happen, it indicates a bug.
      */
     public static void writeImageData(final OutputStream out,
-            final Image img) throws IOException, PSError {
-        
-        int width = img.getOutputWidthPx();
-        int height = img.getOutputHeightPx();
-        int n = img.getBitsPerComponent();
-        int nrComponents = img.getColorSpace().getNrInputValues();
-        
-        int bitBuffer = 0;
-        int bitsInBuffer = 0;
+            final Image img) throws IOException, PSError, ProgramError {
         
+        ImageRowTranscoder transcoder = img.getRowTranscoder();
+        int height = transcoder.getHeight();
+        byte[] row = new byte[transcoder.getPackedRowLength()];
         for (int y = 0; y < height; y++) {
-            for (int x = 0; x < width; x++) {
-                int[] components = img.getPixelInputIntValues(x, y);
-                for (int v = 0; v < nrComponents; v++) {
-                    bitBuffer <<= n;
-                    bitBuffer |= components[v];
-                    bitsInBuffer += n;
-                    
-                    bitsInBuffer = writeBytesFromBuffer(out, bitBuffer,
-                            bitsInBuffer);
-                }
-            }
-            // We are at the end of the row. If there is still an incomplete
-            // byte in the buffer we add some zeros to make a full byte.
-            if (bitsInBuffer > 0) {
-                int nrZeros = 8 - bitsInBuffer;
-                bitBuffer <<= nrZeros;
-                bitsInBuffer += nrZeros;
-                bitsInBuffer = writeBytesFromBuffer(out, bitBuffer,
-                        bitsInBuffer);
-            }
+            transcoder.readPackedRow(row);
+            out.write(row);
         }
     }
     
     /**
-     * Write all full bytes from a bit buffer to an output stream.
-     * 
-     * @param out OutputStream where the bytes must be written to.
-     * @param bitBuffer Buffer with bits.
-     * @param bitsInBuffer Indicates the number of bits in the bit buffer.
-     * 
-     * @return Number of bits left in buffer.
-     * 
-     * @throws IOException Signals that an I/O exception has occurred.
+     * Output stream that counts the number of bytes written through it.
      */
-    private static int writeBytesFromBuffer(final OutputStream out,
-            final int bitBuffer, final int bitsInBuffer) throws IOException {
-
-        int currentBits = bitsInBuffer;
-        while (currentBits >= 8) {
-            int byteVal = 0xff & (bitBuffer >> (currentBits - 8));
-            out.write(byteVal);
-            currentBits -= 8;
+    private static class CountingOutputStream extends FilterOutputStream {
+        /** Number of bytes written. */
+        private long count = 0;
+        
+        /**
+         * Creates a new counting output stream.
+         * 
+         * @param out The bytes are written to this stream.
+         */
+        CountingOutputStream(final OutputStream out) {
+            super(out);
+        }
+        
+        /**
+         * Writes a single byte.
+         * 
+         * @param b The byte.
+         * 
+         * @throws IOException Signals that an I/O exception has occurred.
+         */
+        @Override
+        public void write(final int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+        
+        /**
+         * Writes a part of an array of bytes.
+         * 
+         * @param b The bytes.
+         * @param off Index of the first byte to write.
+         * @param len Number of bytes to write.
+         * 
+         * @throws IOException Signals that an I/O exception has occurred.
+         */
+        @Override
+        public void write(final byte[] b, final int off, final int len)
+                throws IOException {
+            out.write(b, off, len);
+            count += len;
         }
         
-        return currentBits;
+        /**
+         * Does nothing: the underlying stream is closed by its owner.
+         */
+        @Override
+        public void close() {
+            // empty block
+        }
+        
+        /**
+         * Gets the number of bytes written.
+         * 
+         * @return Number of bytes.
+         */
+        long getCount() {
+            return count;
+        }
     }
-    
 }
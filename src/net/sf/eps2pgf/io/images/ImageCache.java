@@ -0,0 +1,314 @@
+/*
+ * This file is part of Eps2pgf.
+ *
+ * Copyright 2007-2009 Paul Wagenaars
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sf.eps2pgf.io.images;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.logging.Logger;
+
+import net.sf.eps2pgf.ProgramError;
+import net.sf.eps2pgf.ps.Image;
+import net.sf.eps2pgf.ps.ImageRowTranscoder;
+import net.sf.eps2pgf.ps.Interpreter;
+import net.sf.eps2pgf.ps.errors.PSError;
+
+/**
+ * Cache of encoded bitmap images, shared by all conversions that use the
+ * same cache directory.
+ *
+ * An entry is named after a hash of the image rows, in the orientation of
+ * the output, of the parameters of the image: size, bits per component,
+ * color space and decode array, and of the compression level. Only the
+ * parts of the image files that don't depend on the conversion are cached,
+ * e.g. the encoded data of an EPS image but not its header. When the total
+ * size of the entries exceeds a limit, the least recently used entries are
+ * removed.
+ *
+ * @author Paul Wagenaars
+ */
+public class ImageCache {
+
+    /** The log. */
+    private static final Logger LOG
+                                  = Logger.getLogger("net.sourceforge.eps2pgf");
+
+    /**
+     * Prefix of the description of each image that is hashed. It must be
+     * changed when the format of the cached data changes.
+     */
+    private static final String KEY_PREFIX = "eps2pgf-image-cache-2";
+
+    /** Size of the buffer used to copy entries. */
+    private static final int COPY_BUFFER_SIZE = 8192;
+
+    /** Cache directory, or null if the cache can't be used. */
+    private File dir;
+
+    /** Maximum total size (in bytes) of all entries, zero means no limit. */
+    private long maxSize;
+
+    /**
+     * Creates a new image cache. The cache directory is created if it does
+     * not exist yet.
+     *
+     * @param pDir The cache directory.
+     * @param pMaxSize Maximum total size (in bytes) of all entries, zero
+     * means no limit.
+     */
+    public ImageCache(final File pDir, final long pMaxSize) {
+        maxSize = pMaxSize;
+        dir = pDir;
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            LOG.warning("Unable to create image cache directory " + dir
+                    + ". Images are not cached.");
+            dir = null;
+        }
+    }
+
+    /**
+     * Computes the key of an image. All image data is read from the data
+     * source and stored, such that it can still be written after this.
+     *
+     * @param img The bitmap image.
+     * @param extension Extension of the entry, e.g. ".png". Entries with
+     * different extensions have different keys.
+     * @param interp The interpreter.
+     *
+     * @return The key, a hexadecimal string.
+     *
+     * @throws PSError A PostScript error occurred.
+     * @throws ProgramError This shouldn't happen, it indicates a bug.
+     */
+    public String computeKey(final Image img, final String extension,
+            final Interpreter interp) throws PSError, ProgramError {
+
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new ProgramError("SHA-1 message digest is not available.");
+        }
+
+        StringBuilder str = new StringBuilder(KEY_PREFIX);
+        str.append(' ').append(extension);
+        str.append(" level ").append(
+                interp.getOptions().getCompressionLevel());
+        str.append(' ').append(img.getOutputWidthPx());
+        str.append(' ').append(img.getOutputHeightPx());
+        str.append(' ').append(img.getBitsPerComponent());
+        str.append(' ').append(img.isTopDown());
+        str.append(' ').append(img.getInterpolate());
+        str.append(' ').append(Arrays.toString(img.getDecode()));
+        str.append(' ').append(img.getColorSpace().getColorSpace(interp)
+                .isis());
+        if (img.isMask()) {
+            double[] rgb = img.getColorSpace().getRGB();
+            str.append(" mask ").append(Arrays.toString(rgb));
+        }
+        try {
+            md.update(str.toString().getBytes("UTF-8"));
+        } catch (UnsupportedEncodingException e) {
+            throw new ProgramError("UTF-8 encoding is not supported.");
+        }
+
+        img.storeData();
+        ImageRowTranscoder rows = img.getRowTranscoder();
+        byte[] row = new byte[rows.getPackedRowLength()];
+        for (int y = 0; y < rows.getHeight(); y++) {
+            rows.readPackedRow(row);
+            md.update(row);
+        }
+
+        byte[] digest = md.digest();
+        StringBuilder key = new StringBuilder(2 * digest.length);
+        for (int i = 0; i < digest.length; i++) {
+            key.append(String.format("%02x", digest[i] & 0xff));
+        }
+        return key.toString();
+    }
+
+    /**
+     * Opens a cache entry and marks it as recently used.
+     *
+     * @param key Key of the entry.
+     * @param extension Extension of the entry.
+     *
+     * @return Stream from which the entry is read, or null if the entry is
+     * not in the cache.
+     */
+    public FileInputStream openEntry(final String key,
+            final String extension) {
+        if (dir == null) {
+            return null;
+        }
+        File entry = new File(dir, key + extension);
+        try {
+            FileInputStream in = new FileInputStream(entry);
+            entry.setLastModified(System.currentTimeMillis());
+            return in;
+        } catch (FileNotFoundException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Adds an entry to the cache, and removes the least recently used
+     * entries if the cache becomes too large. If the entry can't be written
+     * the cache is no longer used.
+     *
+     * @param key Key of the entry.
+     * @param extension Extension of the entry.
+     * @param src File that contains the data of the entry.
+     * @param offset Position in the file of the first byte of the entry.
+     * @param length Number of bytes in the entry.
+     */
+    public void addEntry(final String key, final String extension,
+            final File src, final long offset, final long length) {
+        if (dir == null) {
+            return;
+        }
+        File tmpFile = null;
+        try {
+            // The entry is written to a temporary file first, such that
+            // other conversions never read an incomplete entry.
+            tmpFile = File.createTempFile("eps2pgf", ".tmp", dir);
+            FileInputStream in = new FileInputStream(src);
+            try {
+                in.getChannel().position(offset);
+                OutputStream out = new FileOutputStream(tmpFile);
+                try {
+                    if (copy(in, out, length) != length) {
+                        throw new IOException("unexpected end of " + src);
+                    }
+                } finally {
+                    out.close();
+                }
+            } finally {
+                in.close();
+            }
+            if (!tmpFile.renameTo(new File(dir, key + extension))) {
+                // Probably added by another conversion in the meantime.
+                tmpFile.delete();
+            }
+        } catch (IOException e) {
+            // The temporary file is not an entry, so it would never be
+            // removed from the cache directory.
+            if (tmpFile != null) {
+                tmpFile.delete();
+            }
+            LOG.warning("Unable to add image to the image cache ("
+                    + e.getMessage() + "). Images are no longer cached.");
+            dir = null;
+            return;
+        }
+        removeLeastRecentlyUsed();
+    }
+
+    /**
+     * Removes the least recently used entries until the total size of the
+     * entries is within the limit.
+     */
+    private void removeLeastRecentlyUsed() {
+        if (maxSize <= 0) {
+            return;
+        }
+        File[] entries = dir.listFiles();
+        if (entries == null) {
+            return;
+        }
+        long totalSize = 0;
+        for (int i = 0; i < entries.length; i++) {
+            if (isEntry(entries[i])) {
+                totalSize += entries[i].length();
+            }
+        }
+        if (totalSize <= maxSize) {
+            return;
+        }
+
+        Arrays.sort(entries, new Comparator<File>() {
+            public int compare(final File a, final File b) {
+                long diff = a.lastModified() - b.lastModified();
+                return (diff < 0) ? -1 : ((diff > 0) ? 1 : 0);
+            }
+        });
+        for (int i = 0; (i < entries.length) && (totalSize > maxSize); i++) {
+            if (isEntry(entries[i])) {
+                long size = entries[i].length();
+                if (entries[i].delete()) {
+                    totalSize -= size;
+                }
+            }
+        }
+    }
+
+    /**
+     * Checks whether a file in the cache directory is a cache entry. Other
+     * files are never removed from the directory.
+     *
+     * @param file The file.
+     *
+     * @return True if the file is a cache entry.
+     */
+    private static boolean isEntry(final File file) {
+        return file.isFile()
+                && file.getName().matches("[0-9a-f]{40}\\.[a-z]+");
+    }
+
+    /**
+     * Copies bytes from an input stream to an output stream.
+     *
+     * @param in The input stream.
+     * @param out The output stream.
+     * @param length Maximum number of bytes to copy, or a negative value to
+     * copy all bytes until the end of the input stream.
+     *
+     * @return Number of bytes copied.
+     *
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    public static long copy(final InputStream in, final OutputStream out,
+            final long length) throws IOException {
+        byte[] buffer = new byte[COPY_BUFFER_SIZE];
+        long count = 0;
+        while ((length < 0) || (count < length)) {
+            int n = buffer.length;
+            if ((length >= 0) && (length - count < n)) {
+                n = (int) (length - count);
+            }
+            n = in.read(buffer, 0, n);
+            if (n < 0) {
+                break;
+            }
+            out.write(buffer, 0, n);
+            count += n;
+        }
+        return count;
+    }
+}
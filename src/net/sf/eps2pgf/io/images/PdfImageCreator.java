@@ -18,8 +18,10 @@
 
 package net.sf.eps2pgf.io.images;
 
-import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Calendar;
@@ -31,10 +33,9 @@ import net.sf.eps2pgf.ProgramError;
 import net.sf.eps2pgf.io.RandomAccessOutputStream;
 import net.sf.eps2pgf.ps.Image;
 import net.sf.eps2pgf.ps.Interpreter;
+import net.sf.eps2pgf.ps.Matrix;
 import net.sf.eps2pgf.ps.errors.PSError;
 import net.sf.eps2pgf.ps.resources.colors.PSColor;
-import net.sf.eps2pgf.ps.resources.filters.ASCII85Encode;
-import net.sf.eps2pgf.ps.resources.filters.FlateEncode;
 import net.sf.eps2pgf.ps.resources.outputdevices.PGFDevice;
 
 /**
@@ -51,6 +52,15 @@ public final class PdfImageCreator {
     /** Offset (in file) of xref table. */
     private int xrefOffset;
     
+    /** The PDF document is written to this output stream. */
+    private OutputStream targetOut;
+    
+    /**
+     * Number of bytes that have been written to the target output stream.
+     * The offsets in the RandomAccessOutputStream are relative to this.
+     */
+    private int flushedBytes = 0;
+    
     /** Reference to the interpreter. */
     private Interpreter interp;
     
@@ -78,13 +88,43 @@ public final class PdfImageCreator {
     public void writeImage(final OutputStream out, final Image img,
             final String title) throws IOException, PSError, ProgramError {
 
+        ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+        EpsImageCreator.writeEncodedImageData(encoded, img,
+                interp.getOptions());
+        writeImage(out, img, title,
+                new ByteArrayInputStream(encoded.toByteArray()),
+                encoded.size());
+    }
+    
+    /**
+     * Takes a bitmap image and writes it to an OutputStream, using image
+     * data that was already compressed and encoded by
+     * EpsImageCreator.writeEncodedImageData(). The encoded data is copied
+     * into the PDF document while it is written.
+     * 
+     * @param out OutputStream to which EPS image is written.
+     * @param img Bitmap image to must be converted to EPS and written to the
+     * OutputStream.
+     * @param title Title of figure (used in EPS header)
+     * @param encodedData Stream with the compressed and encoded image data.
+     * @param length Number of bytes of encoded data.
+     * 
+     * @throws IOException Signals that an I/O exception has occurred.
+     * @throws PSError A PostScript error occurred.
+     * @throws ProgramError This shouldn't happen, it indicates a bug.
+     */
+    public void writeImage(final OutputStream out, final Image img,
+            final String title, final InputStream encodedData,
+            final long length) throws IOException, PSError, ProgramError {
+
+        targetOut = out;
         RandomAccessOutputStream outBuf = new RandomAccessOutputStream(out);
         
         outBuf.write("%PDF-1.2\n");
         
         writeCatalog(outBuf);
         writeOutlines(outBuf);
-        writePageTree(outBuf, img);
+        writePageTree(outBuf, img, encodedData, length);
         writeInfoDict(outBuf, title);
         writeXrefTable(outBuf);
         writeTrailer(outBuf);
@@ -102,7 +142,7 @@ public final class PdfImageCreator {
     private void writeCatalog(final RandomAccessOutputStream out)
             throws IOException {
         
-        xrefTable.add(out.getPointer());
+        xrefTable.add(flushedBytes + out.getPointer());
         out.write("1 0 obj\n<<\n");
         out.write("/Type /Catalog\n");
         out.write("/Outlines 2 0 R\n");
@@ -120,7 +160,7 @@ public final class PdfImageCreator {
     private void writeOutlines(final RandomAccessOutputStream out)
             throws IOException {
         
-        xrefTable.add(out.getPointer());
+        xrefTable.add(flushedBytes + out.getPointer());
         out.write("2 0 obj\n<<\n/Type /Outlines\n/Count 0\n>>\nendobj\n");
     }
     
@@ -129,16 +169,19 @@ public final class PdfImageCreator {
      * 
      * @param out The output stream.
      * @param img The bitmap image.
+     * @param encodedData Stream with the compressed and encoded image data.
+     * @param length Number of bytes of encoded data.
      * 
      * @throws IOException Signals that an I/O exception has occurred.
      * @throws PSError A PostScript error occurred.
      * @throws ProgramError This shouldn't happen, it indicates a bug.
      */
     private void writePageTree(final RandomAccessOutputStream out,
-            final Image img) throws IOException, PSError, ProgramError {
+            final Image img, final InputStream encodedData, final long length)
+            throws IOException, PSError, ProgramError {
         
         // Append Page Tree node
-        xrefTable.add(out.getPointer());
+        xrefTable.add(flushedBytes + out.getPointer());
         out.write("3 0 obj\n<<\n");
         out.write("/Type /Pages\n");
         out.write("/Kids [4 0 R]\n");
@@ -146,7 +189,7 @@ public final class PdfImageCreator {
         out.write(">>\nendobj\n");
         
         // Append Page Object
-        xrefTable.add(out.getPointer());
+        xrefTable.add(flushedBytes + out.getPointer());
         out.write("4 0 obj\n<<\n");
         out.write("/Type /Page\n");
         out.write("/Parent 3 0 R\n");
@@ -163,11 +206,11 @@ public final class PdfImageCreator {
         out.write(">>\nendobj\n");
         
         // Create an XObject with the bitmap image.
-        writeImageXObject(out, img);
+        writeImageXObject(out, img, encodedData, length);
         
         // Paint the bitmap image
 
-        xrefTable.add(out.getPointer());
+        xrefTable.add(flushedBytes + out.getPointer());
         out.write("6 0 obj\n<<\n");
         out.write("/Length ");
         int lengthPos = out.getPointer();
@@ -175,9 +218,20 @@ public final class PdfImageCreator {
         out.write(">>\nstream\n");
         int streamStart = out.getPointer();
         out.write("q\n");
-        out.write(String.format("%.3f 0 0 -%.3f 0 %.3f cm\n",
-                img.getOutputWidthPt(), img.getOutputHeightPt(),
-                img.getOutputHeightPt()));
+        if (img.getPassThroughFilter() != null) {
+            out.write(getDataMatrix(img) + " cm\n");
+        } else if (img.isTopDown()) {
+            out.write(String.format("%.3f 0 0 %.3f 0 0 cm\n",
+                    img.getOutputWidthPt(), img.getOutputHeightPt()));
+        } else {
+            out.write(String.format("%.3f 0 0 -%.3f 0 %.3f cm\n",
+                    img.getOutputWidthPt(), img.getOutputHeightPt(),
+                    img.getOutputHeightPt()));
+        }
+        if (img.isMask()) {
+            out.write(EpsImageCreator.getMaskColor(img,
+                    new String[] {"g", "rg", "k"}) + "\n");
+        }
         out.write("/Img Do\n");
         out.write("Q\n");
         int streamEnd = out.getPointer();
@@ -188,30 +242,81 @@ public final class PdfImageCreator {
         
     }
     
+    /**
+     * Gets the transformation matrix that paints an image of which the
+     * compressed data is copied as it is. The image is then in the
+     * orientation of the original data.
+     * 
+     * @param img The bitmap image.
+     * 
+     * @return The operands of the cm operator.
+     * 
+     * @throws PSError A PostScript error occurred.
+     */
+    private static String getDataMatrix(final Image img) throws PSError {
+        // The unit square of the image XObject is mapped onto the image in
+        // the original data, then onto the unit square of the output by the
+        // inverse of the image matrix, and finally scaled to the output size.
+        int[] m = img.getDataImageMatrix();
+        Matrix imageMatrix = new Matrix(m[0], m[1], m[2], m[3], m[4], m[5]);
+        imageMatrix.invert();
+        int width = img.getDataWidthPx();
+        int height = img.getDataHeightPx();
+        Matrix ctm = new Matrix(img.getOutputWidthPt(), 0, 0,
+                img.getOutputHeightPt(), 0, 0);
+        ctm.concat(imageMatrix);
+        ctm.concat(new Matrix(width, 0, 0, -height, 0, height));
+        StringBuilder str = new StringBuilder();
+        for (int i = 0; i < 6; i++) {
+            if (i > 0) {
+                str.append(' ');
+            }
+            // Rounding first avoids "-0.000".
+            double value = Math.round(ctm.get(i) * 1000.0) / 1000.0 + 0.0;
+            str.append(String.format("%.3f", value));
+        }
+        return str.toString();
+    }
+    
     /**
      * Write an XObject with the bitmap image.
      * 
      * @param out The output stream.
      * @param img The bitmap image.
+     * @param encodedData Stream with the compressed and encoded image data.
+     * @param length Number of bytes of encoded data.
      * 
      * @throws IOException Signals that an I/O exception has occurred.
      * @throws PSError A PostScript error occurred.
      * @throws ProgramError This shouldn't happen, it indicates a bug.
      */
     private void writeImageXObject(final RandomAccessOutputStream out,
-            final Image img) throws IOException, PSError, ProgramError {
+            final Image img, final InputStream encodedData, final long length)
+            throws IOException, PSError, ProgramError {
         
         PSColor colorSpace = img.getColorSpace();
         
-        xrefTable.add(out.getPointer());
+        xrefTable.add(flushedBytes + out.getPointer());
         out.write("5 0 obj\n<<\n");
         out.write("/Type /XObject\n");
         out.write("/Subtype /Image\n");
-        out.write(String.format("/Width %d\n", img.getOutputWidthPx()));
-        out.write(String.format("/Height %d\n", img.getOutputHeightPx()));
+        String filter = img.getPassThroughFilter();
+        if (filter != null) {
+            out.write(String.format("/Width %d\n", img.getDataWidthPx()));
+            out.write(String.format("/Height %d\n", img.getDataHeightPx()));
+        } else {
+            filter = "FlateDecode";
+            out.write(String.format("/Width %d\n", img.getOutputWidthPx()));
+            out.write(String.format("/Height %d\n",
+                    img.getOutputHeightPx()));
+        }
 
-        out.write(String.format("/ColorSpace %s\n",
-                colorSpace.getColorSpace(interp).isis()));
+        if (img.isMask()) {
+            out.write("/ImageMask true\n");
+        } else {
+            out.write(String.format("/ColorSpace %s\n",
+                    colorSpace.getColorSpace(interp).isis()));
+        }
 
         out.write(String.format("/BitsPerComponent %d\n", 
                 img.getBitsPerComponent()));
@@ -229,27 +334,30 @@ public final class PdfImageCreator {
         
         out.write("/Interpolate " + img.getInterpolate() + "\n");
         
-        out.write("/Length ");
-        int streamLengthPos = out.getPointer();
-        out.write("         \n");
+        out.write(String.format("/Length %d\n", length));
         
-        out.write("/Filter [/ASCII85Decode /FlateDecode]\n");
+        out.write("/Filter [/ASCII85Decode /" + filter + "]\n");
 
         out.write(">>\nstream\n");
         
-        int streamStart = out.getPointer();
-        OutputStream ascii85Out = new ASCII85Encode(out, null);
-        OutputStream flateOut = new FlateEncode(ascii85Out, null);
-        OutputStream bufOut = new BufferedOutputStream(flateOut);
-        EpsImageCreator.writeImageData(bufOut, img);
-        bufOut.close();
-        flateOut.close();
-        ascii85Out.close();
+        // Write everything up to here, and copy the image data directly to
+        // the target output stream.
+        out.close();
+        flushedBytes += out.size();
+        out.reset();
+        byte[] buffer = new byte[64 * 1024];
+        long remaining = length;
+        while (remaining > 0) {
+            int n = encodedData.read(buffer, 0,
+                    (int) Math.min(buffer.length, remaining));
+            if (n <= 0) {
+                throw new IOException("Image data ended prematurely.");
+            }
+            targetOut.write(buffer, 0, n);
+            remaining -= n;
+        }
+        flushedBytes += (int) length;
         
-        int streamEnd = out.getPointer();
-        out.seek(streamLengthPos);
-        out.write(String.format("%d", streamEnd - streamStart));
-        out.seek(streamEnd);                
         out.write("endstream\nendobj\n");
     }
     
@@ -264,7 +372,7 @@ public final class PdfImageCreator {
     private void writeInfoDict(final RandomAccessOutputStream out,
             final String title) throws IOException {
         
-        xrefTable.add(out.getPointer());
+        xrefTable.add(flushedBytes + out.getPointer());
         out.write("7 0 obj\n<<\n");
         out.write(String.format("/Title (%s)\n", title));
         out.write(String.format("/Producer (%s)\n", Main.getNameVersion()));
@@ -303,7 +411,7 @@ public final class PdfImageCreator {
     private void writeXrefTable(final RandomAccessOutputStream out)
             throws IOException {
         
-        xrefOffset = out.getPointer();
+        xrefOffset = flushedBytes + out.getPointer();
         out.write("xref\n");
         out.write("0 " + (xrefTable.size() + 1) + "\n");
         out.write("0000000000 65535 f \n");
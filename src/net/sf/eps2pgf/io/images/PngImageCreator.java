@@ -0,0 +1,525 @@
+/*
+ * This file is part of Eps2pgf.
+ *
+ * Copyright 2007-2009 Paul Wagenaars
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sf.eps2pgf.io.images;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+
+import net.sf.eps2pgf.Options;
+import net.sf.eps2pgf.ProgramError;
+import net.sf.eps2pgf.io.ParallelDeflaterOutputStream;
+import net.sf.eps2pgf.ps.Image;
+import net.sf.eps2pgf.ps.ImageRowTranscoder;
+import net.sf.eps2pgf.ps.errors.PSError;
+import net.sf.eps2pgf.ps.resources.colors.DeviceGray;
+import net.sf.eps2pgf.ps.resources.colors.DeviceRGB;
+import net.sf.eps2pgf.ps.resources.colors.PSColor;
+
+/**
+ * This class takes a bitmap image and writes it as a PNG image to an
+ * OutputStream.
+ *
+ * The image is encoded while its rows are read, so it doesn't have to be in
+ * memory. Gray and RGB images with a PNG bit depth and the default decode
+ * array are written with their own samples, all other images are converted
+ * to 8-bit RGB. Stencil masks are written as 1-bit palette images with a
+ * transparent background. Each row is filtered with the PNG filter that is
+ * expected to compress best.
+ *
+ * @author Paul Wagenaars
+ *
+ */
+public final class PngImageCreator {
+
+    /** PNG file signature. */
+    private static final byte[] SIGNATURE = {(byte) 137, 80, 78, 71, 13, 10,
+        26, 10};
+
+    /** Maximum size (in bytes) of the data in an IDAT chunk. */
+    private static final int IDAT_SIZE = 32768;
+
+    /** PNG color type: grayscale. */
+    private static final byte COLOR_TYPE_GRAY = 0;
+
+    /** PNG color type: RGB. */
+    private static final byte COLOR_TYPE_RGB = 2;
+
+    /** PNG color type: palette indices. */
+    private static final byte COLOR_TYPE_PALETTE = 3;
+
+    /** PNG filter type: no filter. */
+    private static final int FILTER_NONE = 0;
+
+    /** PNG filter type: difference with the pixel to the left. */
+    private static final int FILTER_SUB = 1;
+
+    /** PNG filter type: difference with the pixel above. */
+    private static final int FILTER_UP = 2;
+
+    /** PNG filter type: difference with the average of left and above. */
+    private static final int FILTER_AVERAGE = 3;
+
+    /** PNG filter type: difference with the Paeth predictor. */
+    private static final int FILTER_PAETH = 4;
+
+    /** Number of PNG filter types. */
+    private static final int NR_FILTERS = 5;
+
+    /**
+     * "Hidden" constructor.
+     */
+    private PngImageCreator() {
+        // empty block
+    }
+
+    /**
+     * Takes a bitmap image and writes it as PNG image to an OutputStream.
+     *
+     * @param out OutputStream to which the PNG image is written.
+     * @param img Bitmap image to must be converted to PNG and written to the
+     * OutputStream.
+     * @param options Options with the compression level and the number of
+     * threads that compress the data.
+     *
+     * @throws IOException Signals that an I/O exception has occurred.
+     * @throws PSError A PostScript error occurred.
+     * @throws ProgramError This shouldn't happen, it indicates a bug.
+     */
+    public static void writeImage(final OutputStream out, final Image img,
+            final Options options) throws IOException, PSError, ProgramError {
+
+        int width = img.getOutputWidthPx();
+        int height = img.getOutputHeightPx();
+        boolean copySamples = img.isMask() || hasPngSamples(img);
+        int bitDepth = 8;
+        int nrChannels = 3;
+        if (copySamples) {
+            bitDepth = img.getBitsPerComponent();
+            nrChannels = img.getNrComponents();
+        }
+
+        out.write(SIGNATURE);
+        byte[] ihdr = new byte[13];
+        putInt(ihdr, 0, width);
+        putInt(ihdr, 4, height);
+        ihdr[8] = (byte) bitDepth;
+        if (img.isMask()) {
+            ihdr[9] = COLOR_TYPE_PALETTE;
+        } else if (nrChannels == 1) {
+            ihdr[9] = COLOR_TYPE_GRAY;
+        } else {
+            ihdr[9] = COLOR_TYPE_RGB;
+        }
+        writeChunk(out, "IHDR", ihdr, ihdr.length);
+        if (img.isMask()) {
+            writeMaskPalette(out, img);
+        }
+
+        // The first row of a PNG image is the top row.
+        ImageRowTranscoder transcoder = img.getTopDownRowTranscoder();
+        IdatOutputStream idatOut = new IdatOutputStream(out);
+        ParallelDeflaterOutputStream zOut = new ParallelDeflaterOutputStream(
+                idatOut, options.getCompressionLevel(),
+                options.getDeflateThreads());
+        RowConverter converter = null;
+        if (!copySamples) {
+            converter = new RowConverter(img);
+        }
+        int rowLength = (width * nrChannels * bitDepth + 7) / 8;
+        int bytesPerPixel = Math.max(1, nrChannels * bitDepth / 8);
+        byte[] row = new byte[rowLength];
+        byte[] prevRow = new byte[rowLength];
+        byte[][] filtered = new byte[NR_FILTERS][rowLength + 1];
+        for (int y = 0; y < height; y++) {
+            if (copySamples) {
+                transcoder.readPackedRow(row);
+            } else {
+                converter.convertRow(transcoder, row);
+            }
+            if (bitDepth < 8) {
+                // Filters rarely help for images with less than 8 bits
+                // per pixel, the PNG specification recommends none.
+                filtered[FILTER_NONE][0] = FILTER_NONE;
+                System.arraycopy(row, 0, filtered[FILTER_NONE], 1,
+                        rowLength);
+                zOut.write(filtered[FILTER_NONE]);
+            } else {
+                zOut.write(filterRow(row, prevRow, bytesPerPixel,
+                        filtered));
+            }
+            byte[] tmp = prevRow;
+            prevRow = row;
+            row = tmp;
+        }
+        zOut.finish();
+        idatOut.close();
+
+        writeChunk(out, "IEND", new byte[0], 0);
+    }
+
+    /**
+     * Writes the palette of a stencil mask. The samples of a stencil mask
+     * are used as palette indices: the index of which the decoded value is
+     * zero is the opaque color of the mask, the other index is transparent.
+     *
+     * @param out The output stream.
+     * @param img The stencil mask.
+     *
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    private static void writeMaskPalette(final OutputStream out,
+            final Image img) throws IOException {
+        int painted = (img.getDecode()[0] == 0.0) ? 0 : 1;
+        double[] rgb = img.getColorSpace().getRGB();
+        byte[] plte = new byte[6];
+        for (int i = 0; i < 3; i++) {
+            plte[3 * painted + i] = (byte) Math.round(255.0 * rgb[i]);
+        }
+        writeChunk(out, "PLTE", plte, plte.length);
+        byte[] trns = new byte[2];
+        trns[painted] = (byte) 255;
+        writeChunk(out, "tRNS", trns, trns.length);
+    }
+
+    /**
+     * Checks whether the samples of an image can be written to the PNG file
+     * without conversion.
+     *
+     * @param img The bitmap image.
+     *
+     * @return True if the samples can be copied.
+     */
+    private static boolean hasPngSamples(final Image img) {
+        PSColor colorSpace = img.getColorSpace();
+        int bitsPerComponent = img.getBitsPerComponent();
+        boolean validDepth;
+        if (colorSpace instanceof DeviceGray) {
+            validDepth = (bitsPerComponent == 1) || (bitsPerComponent == 2)
+                    || (bitsPerComponent == 4) || (bitsPerComponent == 8)
+                    || (bitsPerComponent == 16);
+        } else if (colorSpace instanceof DeviceRGB) {
+            validDepth = (bitsPerComponent == 8) || (bitsPerComponent == 16);
+        } else {
+            return false;
+        }
+        if (!validDepth) {
+            return false;
+        }
+        double[] decode = img.getDecode();
+        for (int i = 0; i < decode.length; i += 2) {
+            if ((decode[i] != 0.0) || (decode[i + 1] != 1.0)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Applies all PNG filters to a row and selects the filtered row of which
+     * the sum of the absolute (signed) byte values is the smallest. This is
+     * the heuristic recommended by the PNG specification.
+     *
+     * @param row The row.
+     * @param prevRow The previous row, all zeros for the first row.
+     * @param bpp Number of bytes per complete pixel, at least one.
+     * @param filtered Arrays in which the filtered rows are stored, one for
+     * each filter type. Each is one byte longer than a row.
+     *
+     * @return The selected filtered row, starting with the filter type.
+     */
+    private static byte[] filterRow(final byte[] row, final byte[] prevRow,
+            final int bpp, final byte[][] filtered) {
+
+        long[] sums = new long[NR_FILTERS];
+        for (int f = 0; f < NR_FILTERS; f++) {
+            filtered[f][0] = (byte) f;
+        }
+        for (int i = 0; i < row.length; i++) {
+            int x = row[i] & 0xff;
+            int a = (i >= bpp) ? (row[i - bpp] & 0xff) : 0;
+            int b = prevRow[i] & 0xff;
+            int c = (i >= bpp) ? (prevRow[i - bpp] & 0xff) : 0;
+            byte none = (byte) x;
+            byte sub = (byte) (x - a);
+            byte up = (byte) (x - b);
+            byte avg = (byte) (x - ((a + b) >> 1));
+            byte paeth = (byte) (x - paethPredictor(a, b, c));
+            filtered[FILTER_NONE][i + 1] = none;
+            filtered[FILTER_SUB][i + 1] = sub;
+            filtered[FILTER_UP][i + 1] = up;
+            filtered[FILTER_AVERAGE][i + 1] = avg;
+            filtered[FILTER_PAETH][i + 1] = paeth;
+            sums[FILTER_NONE] += Math.abs(none);
+            sums[FILTER_SUB] += Math.abs(sub);
+            sums[FILTER_UP] += Math.abs(up);
+            sums[FILTER_AVERAGE] += Math.abs(avg);
+            sums[FILTER_PAETH] += Math.abs(paeth);
+        }
+
+        int best = FILTER_NONE;
+        for (int f = 1; f < NR_FILTERS; f++) {
+            if (sums[f] < sums[best]) {
+                best = f;
+            }
+        }
+        return filtered[best];
+    }
+
+    /**
+     * Computes the Paeth predictor of a byte.
+     *
+     * @param a The byte to the left.
+     * @param b The byte above.
+     * @param c The byte above and to the left.
+     *
+     * @return Whichever of a, b and c is closest to a + b - c.
+     */
+    private static int paethPredictor(final int a, final int b, final int c) {
+        int p = a + b - c;
+        int pa = Math.abs(p - a);
+        int pb = Math.abs(p - b);
+        int pc = Math.abs(p - c);
+        if ((pa <= pb) && (pa <= pc)) {
+            return a;
+        } else if (pb <= pc) {
+            return b;
+        }
+        return c;
+    }
+
+    /**
+     * Stores an integer in four bytes, most significant byte first.
+     *
+     * @param buf The array in which the integer is stored.
+     * @param off Index of the first byte.
+     * @param value The integer.
+     */
+    private static void putInt(final byte[] buf, final int off,
+            final int value) {
+        buf[off] = (byte) (value >>> 24);
+        buf[off + 1] = (byte) (value >>> 16);
+        buf[off + 2] = (byte) (value >>> 8);
+        buf[off + 3] = (byte) value;
+    }
+
+    /**
+     * Writes a PNG chunk.
+     *
+     * @param out The output stream.
+     * @param type Chunk type, four ASCII letters.
+     * @param data Array with the chunk data.
+     * @param length Number of bytes of chunk data.
+     *
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    private static void writeChunk(final OutputStream out, final String type,
+            final byte[] data, final int length) throws IOException {
+        byte[] buf = new byte[8];
+        putInt(buf, 0, length);
+        byte[] typeBytes = type.getBytes("US-ASCII");
+        System.arraycopy(typeBytes, 0, buf, 4, 4);
+        out.write(buf, 0, 8);
+        out.write(data, 0, length);
+
+        CRC32 crc = new CRC32();
+        crc.update(typeBytes);
+        crc.update(data, 0, length);
+        putInt(buf, 0, (int) crc.getValue());
+        out.write(buf, 0, 4);
+    }
+
+    /**
+     * Converts rows of samples to 8-bit RGB.
+     */
+    private static class RowConverter {
+
+        /** Color used to convert pixels. */
+        private PSColor color;
+
+        /** Number of components per pixel. */
+        private int nrComponents;
+
+        /** For each component the level of each sample value. */
+        private double[][] levels;
+
+        /** Samples of the current row. */
+        private int[] samples;
+
+        /** Decoded values of the current pixel. */
+        private double[] values;
+
+        /**
+         * Creates a new row converter.
+         *
+         * @param img The bitmap image.
+         */
+        public RowConverter(final Image img) {
+            color = img.getColorSpace().clone();
+            nrComponents = color.getNrInputValues();
+            levels = decodeTables(img, nrComponents);
+            samples = new int[img.getOutputWidthPx() * nrComponents];
+            values = new double[nrComponents];
+        }
+
+        /**
+         * Reads the next row and converts it.
+         *
+         * @param transcoder The row transcoder from which the row is read.
+         * @param row Array in which the red, green and blue bytes of each
+         * pixel are stored.
+         *
+         * @throws PSError A PostScript error occurred.
+         * @throws ProgramError This shouldn't happen, it indicates a bug.
+         */
+        public void convertRow(final ImageRowTranscoder transcoder,
+                final byte[] row) throws PSError, ProgramError {
+            transcoder.readRow(samples);
+            int i = 0;
+            int dst = 0;
+            for (int x = 0; x < transcoder.getWidth(); x++) {
+                for (int v = 0; v < nrComponents; v++) {
+                    values[v] = levels[v][samples[i++]];
+                }
+                color.setColor(values);
+                double[] rgb = color.getRGB();
+                row[dst++] = (byte) toByte(rgb[0]);
+                row[dst++] = (byte) toByte(rgb[1]);
+                row[dst++] = (byte) toByte(rgb[2]);
+            }
+        }
+    }
+
+    /**
+     * Output stream that writes its data in IDAT chunks. Closing it writes
+     * the last chunk, but doesn't close the underlying stream.
+     */
+    private static class IdatOutputStream extends OutputStream {
+
+        /** The underlying output stream. */
+        private OutputStream out;
+
+        /** Data of the current chunk. */
+        private byte[] buffer = new byte[IDAT_SIZE];
+
+        /** Number of bytes in the buffer. */
+        private int count = 0;
+
+        /**
+         * Creates a new IDAT output stream.
+         *
+         * @param pOut The underlying output stream.
+         */
+        public IdatOutputStream(final OutputStream pOut) {
+            out = pOut;
+        }
+
+        /**
+         * Writes a byte.
+         *
+         * @param b The byte.
+         *
+         * @throws IOException Signals that an I/O exception has occurred.
+         */
+        @Override
+        public void write(final int b) throws IOException {
+            buffer[count++] = (byte) b;
+            if (count == buffer.length) {
+                writeChunk(out, "IDAT", buffer, count);
+                count = 0;
+            }
+        }
+
+        /**
+         * Writes part of an array of bytes.
+         *
+         * @param b The array.
+         * @param off Index of the first byte.
+         * @param len Number of bytes.
+         *
+         * @throws IOException Signals that an I/O exception has occurred.
+         */
+        @Override
+        public void write(final byte[] b, final int off, final int len)
+                throws IOException {
+            int i = 0;
+            while (i < len) {
+                int n = Math.min(len - i, buffer.length - count);
+                System.arraycopy(b, off + i, buffer, count, n);
+                count += n;
+                i += n;
+                if (count == buffer.length) {
+                    writeChunk(out, "IDAT", buffer, count);
+                    count = 0;
+                }
+            }
+        }
+
+        /**
+         * Writes the last chunk.
+         *
+         * @throws IOException Signals that an I/O exception has occurred.
+         */
+        @Override
+        public void close() throws IOException {
+            if (count > 0) {
+                writeChunk(out, "IDAT", buffer, count);
+                count = 0;
+            }
+        }
+    }
+
+    /**
+     * Creates tables that map the sample values of each component to color
+     * levels, by applying the decode array of the image.
+     *
+     * @param img The bitmap image.
+     * @param nrComponents Number of components per pixel.
+     *
+     * @return For each component a table with the level of each sample value.
+     */
+    private static double[][] decodeTables(final Image img,
+            final int nrComponents) {
+
+        double[] decode = img.getDecode();
+        int bitsPerComponent = img.getBitsPerComponent();
+        int nrSamples = 1 << bitsPerComponent;
+        double maxSample = Math.pow(2.0, (double) bitsPerComponent) - 1.0;
+        double[][] levels = new double[nrComponents][nrSamples];
+        for (int v = 0; v < nrComponents; v++) {
+            double dmin = decode[2 * v];
+            double dmax = decode[2 * v + 1];
+            for (int i = 0; i < nrSamples; i++) {
+                levels[v][i] = dmin + ((double) i) * (dmax - dmin) / maxSample;
+            }
+        }
+        return levels;
+    }
+
+    /**
+     * Converts a color level to a byte value.
+     *
+     * @param level The color level (0.0 to 1.0).
+     *
+     * @return The byte value (0 to 255).
+     */
+    private static int toByte(final double level) {
+        return (int) Math.round(255.0 * Math.max(0.0, Math.min(1.0, level)));
+    }
+}
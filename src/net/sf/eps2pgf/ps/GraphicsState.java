@@ -19,6 +19,7 @@
 package net.sf.eps2pgf.ps;
 
 import java.util.ArrayList;
+import java.util.List;
 
 import net.sf.eps2pgf.ProgramError;
 import net.sf.eps2pgf.ps.errors.PSError;
@@ -38,6 +39,11 @@ import net.sf.eps2pgf.ps.resources.outputdevices.OutputDevice;
 /**
  * Structure that holds the graphics state (graphic control parameter).
  * See PostScript manual table 4.1, p. 179 for more info.
+ * 
+ * Most components of the graphics state (CTM, color, dash pattern, font,
+ * etc...) are shared between a graphics state and its clones. These
+ * components are never modified in place, instead the setters replace the
+ * component. This makes cloning (gsave) cheap.
  *
  * @author Paul Wagenaars
  */
@@ -337,16 +343,44 @@ public class GraphicsState implements Cloneable {
     
     /**
      * Intersects the area inside the current clipping path with the area
-     * inside the current path.
-     */
-    public void clip() {
+     * inside the current path. If both paths are polygons, and at least one of
+     * them is convex, the intersection is computed exactly. Otherwise, the
+     * current path becomes the new clipping path and the intersection is left
+     * to the output device.
+     * 
+     * @return True if the clipping path was changed. False if the current
+     * path encloses the current clipping path, such that it has no effect.
+     */
+    public boolean clip() {
+        List<double[]> newPoly = path.toPolygon();
+        List<double[]> clipPoly = clippingPath.toPolygon();
+        if ((newPoly != null) && (clipPoly != null)) {
+            if (PolygonClipper.isConvex(newPoly)
+                    && PolygonClipper.isInside(clipPoly, newPoly)) {
+                return false;
+            }
+            if (PolygonClipper.isConvex(clipPoly)
+                    && PolygonClipper.isInside(newPoly, clipPoly)) {
+                clippingPath = path.clone();
+                return true;
+            }
+            List<double[]> intersection =
+                PolygonClipper.intersect(clipPoly, newPoly);
+            if (intersection != null) {
+                clippingPath = path.newPolygonPath(intersection);
+                return true;
+            }
+        }
+        
         clippingPath = path.clone();
+        return true;
     }
     
     /**
-     * Creates a deep copy of this object.
+     * Creates a copy of this object. Components that are never modified in
+     * place are shared between this object and the copy.
      * 
-     * @return Returns the deep copy.
+     * @return Returns the copy.
      */
     @Override
     public GraphicsState clone() {
@@ -357,17 +391,19 @@ public class GraphicsState implements Cloneable {
             copy = null;
         }
         
-        copy.blackGeneration = blackGeneration.clone();
-        copy.clippingPath = clippingPath.clone();
-        copy.color = color.clone();
-        copy.colorRendering = colorRendering.clone();
-        copy.ctm = ctm.clone();
+        // blackGeneration is replaced by its setter, it is shared.
+        // clippingPath is replaced by clip() and its setter, it is shared.
+        // color is replaced by setcolor() and its setters, it is shared.
+        // colorRendering is replaced by its setter, it is shared.
+        // ctm is replaced by concat(), scale(), etc..., it is shared.
         // dashOffset is primitive, it doesn't need to be cloned explicitly.
-        copy.dashPattern = new ArrayList<Double>(dashPattern);
+        // dashPattern is replaced by its setter, it is shared.
+        // The device might keep track of state that depends on the graphics
+        // state (e.g. bounding box in cache device). It is cloned.
         copy.device = device.clone();
         // flatness is primitive, it doesn't need to be cloned explicitely.
-        copy.font = font.clone();
-        copy.halftone = halftone.clone();
+        // font is replaced by its setter, it is shared.
+        // halftone is replaced by its setter, it is shared.
         // interp is a reference to the interpreter, it is not cloned
         // lineCap is primitive, it doesn't need to be cloned explicitly.
         // lineJoin is primitive, it doesn't need to be cloned explicitly.
@@ -378,8 +414,8 @@ public class GraphicsState implements Cloneable {
         copy.position = position.clone();
         // smoothness is primitive, it doesn't need to be cloned explicitely.
         // strokeAdjust is primitive, it doesn't need to be cloned explicitly.
-        copy.transfer = transfer.clone();
-        copy.undercolorRemoval = undercolorRemoval.clone();
+        // transfer is replaced by its setters, it is shared.
+        // undercolorRemoval is replaced by its setter, it is shared.
         
         return copy;
     }
@@ -741,7 +777,9 @@ public class GraphicsState implements Cloneable {
     public void setcolor(final double[] newColor)
             throws PSError, ProgramError {
         
-        color.setColor(newColor);
+        PSColor newPSColor = color.clone();
+        newPSColor.setColor(newColor);
+        color = newPSColor;
     }
     
     /**
@@ -802,9 +840,57 @@ public class GraphicsState implements Cloneable {
     public void setCtm(final Matrix pCtm) {
         ctm = pCtm;
     }
+    
+    /**
+     * Concatenates a matrix with the current transformation matrix (CTM).
+     * 
+     * @param matrix The matrix to concatenate.
+     */
+    public void concat(final Matrix matrix) {
+        Matrix newCtm = ctm.clone();
+        newCtm.concat(matrix);
+        ctm = newCtm;
+    }
+    
+    /**
+     * Rotates the user space (applied to the CTM).
+     * 
+     * @param angle Angle in degrees.
+     */
+    public void rotate(final double angle) {
+        Matrix newCtm = ctm.clone();
+        newCtm.rotate(angle);
+        ctm = newCtm;
+    }
+    
+    /**
+     * Scales the user space (applied to the CTM).
+     * 
+     * @param sx Scaling in x-direction.
+     * @param sy Scaling in y-direction.
+     */
+    public void scale(final double sx, final double sy) {
+        Matrix newCtm = ctm.clone();
+        newCtm.scale(sx, sy);
+        ctm = newCtm;
+    }
+    
+    /**
+     * Moves the origin of the user space (applied to the CTM).
+     * 
+     * @param tx Translation in x-direction.
+     * @param ty Translation in y-direction.
+     */
+    public void translate(final double tx, final double ty) {
+        Matrix newCtm = ctm.clone();
+        newCtm.translate(tx, ty);
+        ctm = newCtm;
+    }
 
     /**
-     * Gets the current transformation matrix (CTM).
+     * Gets the current transformation matrix (CTM). The matrix is shared with
+     * saved graphics states, it must not be modified.
+     * 
      * @return the ctm
      */
     public Matrix getCtm() {
@@ -959,23 +1045,19 @@ public class GraphicsState implements Cloneable {
     public void setDashPattern(final PSObjectArray newDashPattern)
             throws PSErrorTypeCheck, PSErrorRangeCheck {
         
-        // Make sure that the dash pattern array has the same length as the new
-        // dash pattern.
-        while (dashPattern.size() < newDashPattern.size()) {
-            dashPattern.add(Double.NaN);
-        }
-        while (dashPattern.size() > newDashPattern.size()) {
-            dashPattern.remove(dashPattern.size() - 1);
-        }
-        
-        // Copy the value from the new pattern.
-        for (int i = 0; i < dashPattern.size(); i++) {
-            dashPattern.set(i, newDashPattern.get(i).toReal());
+        // The old dash pattern might be shared with saved graphics states,
+        // so it is replaced instead of modified.
+        int n = newDashPattern.size();
+        ArrayList<Double> pattern = new ArrayList<Double>(n);
+        for (int i = 0; i < n; i++) {
+            pattern.add(newDashPattern.get(i).toReal());
         }
+        dashPattern = pattern;
     }
 
     /**
-     * Gets the dash pattern.
+     * Gets the dash pattern. The list is shared with saved graphics states,
+     * it must not be modified.
      * 
      * @return the dashPattern
      */
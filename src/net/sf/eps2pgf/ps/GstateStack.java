@@ -181,4 +181,13 @@ public class GstateStack {
     public GraphicsState current() {
         return current;
     }
+    
+    /**
+     * Gets the interpreter to which this graphics state stack belongs.
+     * 
+     * @return The interpreter.
+     */
+    public Interpreter getInterp() {
+        return interp;
+    }
 }
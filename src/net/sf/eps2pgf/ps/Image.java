@@ -19,10 +19,11 @@
 package net.sf.eps2pgf.ps;
 
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
 
 import net.sf.eps2pgf.ProgramError;
 import net.sf.eps2pgf.ps.errors.PSError;
-import net.sf.eps2pgf.ps.errors.PSErrorIOError;
 import net.sf.eps2pgf.ps.errors.PSErrorRangeCheck;
 import net.sf.eps2pgf.ps.errors.PSErrorUnregistered;
 import net.sf.eps2pgf.ps.objects.PSObject;
@@ -31,6 +32,7 @@ import net.sf.eps2pgf.ps.objects.PSObjectDict;
 import net.sf.eps2pgf.ps.objects.PSObjectFile;
 import net.sf.eps2pgf.ps.objects.PSObjectName;
 import net.sf.eps2pgf.ps.objects.PSObjectString;
+import net.sf.eps2pgf.ps.resources.colors.Indexed;
 import net.sf.eps2pgf.ps.resources.colors.PSColor;
 
 /**
@@ -100,6 +102,12 @@ public class Image {
     /** Height of image (in output) in pixels. */
     private int outputHeightPx;
     
+    /** Factor by which the width in the output is downsampled. */
+    private int downsampleX = 1;
+    
+    /** Factor by which the height in the output is downsampled. */
+    private int downsampleY = 1;
+    
     /** Describes how component values from data are mapped to their
      * corresponding values in the current color space. */
     private double[] decode;
@@ -117,6 +125,12 @@ public class Image {
      * image was in a different color space, it is converted to RGB. */
     private PSColor colorSpace;
     
+    /**
+     * Indicates whether the image is a stencil mask, which paints the color
+     * in colorSpace where the decoded sample value is zero.
+     */
+    private boolean mask = false;
+    
     /** Number of bits per input value/component. */
     private int bitsPerComponent;
     
@@ -124,7 +138,7 @@ public class Image {
     private int bytesPerLine;
     
     /** Raw image data. */
-    private byte[] data;
+    private ImageData data;
     
     /**
      * List with coordinates (in pixels) of corners of image in image space.
@@ -171,28 +185,45 @@ public class Image {
      */
     public Image(final PSObjectDict dict, final Interpreter interp,
             final PSColor pColorSpace) throws PSError, ProgramError {
+        this(dict, interp, pColorSpace, false);
+    }
+    
+    /**
+     * Creates a new bitmap image or stencil mask.
+     * 
+     * @param dict The image dictionary.
+     * @param interp Interpreter to which this image belongs.
+     * @param pColorSpace The current color space, or the current color for
+     * a stencil mask.
+     * @param pMask Indicates whether the image is a stencil mask, as painted
+     * by the imagemask operator.
+     * 
+     * @throws PSError A PostScript error occurred.
+     * @throws ProgramError This shouldn't happen, it indicates a bug.
+     */
+    public Image(final PSObjectDict dict, final Interpreter interp,
+            final PSColor pColorSpace, final boolean pMask)
+            throws PSError, ProgramError {
+        
+        mask = pMask;
         
         // Get some information from the graphics state.
         ctm = interp.getGstate().current().getCtm().clone();
         colorSpace = pColorSpace.clone();
         
         int imageType = dict.get(IMAGE_TYPE).toInt();
-        try {
-            switch (imageType) {
-                case 1:
-                    loadType1Image(dict, interp);
-                    break;
-                case 3:
-                    throw new PSErrorUnregistered("Bitmap images of type 3.");
-                    // break;
-                case 4:
-                    throw new PSErrorUnregistered("Bitmap images of type 4.");
-                    // break;
-                default:
-                    throw new PSErrorRangeCheck();
-            }
-        } catch (IOException e) {
-            throw new PSErrorIOError();
+        switch (imageType) {
+            case 1:
+                loadType1Image(dict, interp);
+                break;
+            case 3:
+                throw new PSErrorUnregistered("Bitmap images of type 3.");
+                // break;
+            case 4:
+                throw new PSErrorUnregistered("Bitmap images of type 4.");
+                // break;
+            default:
+                throw new PSErrorRangeCheck();
         }
     }
     
@@ -203,25 +234,30 @@ public class Image {
      * @param interp Interpreter to which this image belongs.
      * 
      * @throws PSError A PostScript error occurred.
-     * @throws IOException Signals that an I/O exception has occurred.
      * @throws ProgramError This shouldn't happen, it indicates a bug.
      */
     private void loadType1Image(final PSObjectDict dict,
-            final  Interpreter interp) throws PSError, ProgramError,
-            IOException {
+            final  Interpreter interp) throws PSError, ProgramError {
         
         // Read bitmap dimensions
         imgWidthPx = dict.get(WIDTH).toInt();
         imgHeightPx = dict.get(HEIGHT).toInt();
         
         // Read pixel/color information
-        int nrInputValues = colorSpace.getNrInputValues();
+        int nrInputValues = getNrComponents();
         PSObjectArray decodeArray = dict.get(DECODE).toArray();
         if (decodeArray.size() / 2 != nrInputValues) {
             throw new PSErrorRangeCheck();
         }
         decode = decodeArray.toDoubleArray();
-        bitsPerComponent = dict.get(BITS_PER_COMPONENT).toInt();
+        if (mask && !dict.known(BITS_PER_COMPONENT)) {
+            bitsPerComponent = 1;
+        } else {
+            bitsPerComponent = dict.get(BITS_PER_COMPONENT).toInt();
+        }
+        if (mask && (bitsPerComponent != 1)) {
+            throw new PSErrorRangeCheck();
+        }
         
         // Read info about how it is included in the PostScript document
         imageMatrix = dict.get(IMAGE_MATRIX).toArray().toMatrix();
@@ -239,23 +275,31 @@ public class Image {
             multipleSources = false;
         }
         PSObject dataSource = dict.get(DATA_SOURCE);
+        bytesPerLine = (int) Math.ceil(((double) imgWidthPx)
+                * ((double) nrInputValues) * ((double) bitsPerComponent)
+                / 8.0);
+        long spillThreshold = interp.getOptions().getImageSpillThreshold();
         if (multipleSources) {
-            throw new PSErrorUnregistered("Image from multiple data sources.");
+            PSObjectArray sources = dataSource.toArray();
+            if (sources.size() != nrInputValues) {
+                throw new PSErrorRangeCheck();
+            }
+            PSObject[] sourceArray = new PSObject[nrInputValues];
+            for (int i = 0; i < nrInputValues; i++) {
+                sourceArray[i] = sources.get(i);
+            }
+            data = new ImageData(sourceArray, interp, imgWidthPx,
+                    bitsPerComponent, imgHeightPx, spillThreshold);
         } else {
             if (dataSource instanceof PSObjectFile) {
-                loadDataFromFile((PSObjectFile) dataSource, imgWidthPx,
-                        imgHeightPx, nrInputValues);
+                data = new ImageData((PSObjectFile) dataSource, bytesPerLine,
+                        imgHeightPx, spillThreshold);
             } else if (dataSource instanceof PSObjectString) {
                 throw new PSErrorUnregistered("Reading (bitmap) image data"
                         + " from a string.");
             } else if (dataSource instanceof PSObjectArray) {
-                if (multipleSources) {
-                    throw new PSErrorUnregistered("Reading bitmap data from"
-                            + " multiple data sources.");
-                } else {
-                    loadDataFromProcedure((PSObjectArray) dataSource,
-                            imgWidthPx, imgHeightPx, nrInputValues, interp);
-                }
+                data = new ImageData((PSObjectArray) dataSource, interp,
+                        bytesPerLine, imgHeightPx, spillThreshold);
             } else {
                 throw new PSErrorUnregistered("Reading (bitmap) image data"
                         + " from other " + dataSource);
@@ -331,74 +375,6 @@ public class Image {
     }
     
     
-    /**
-     * Loads data from a file data source.
-     * 
-     * @param in The file from which the data is read.
-     * @param width The width in pixels.
-     * @param height The height in pixels
-     * @param nrComponents Number of components per pixel.
-     * appropriate for the color space.
-     * 
-     * @throws IOException Signals that an I/O exception has occurred.
-     * @throws PSErrorRangeCheck Unable to read the required number of bytes.
-     */
-    private void loadDataFromFile(final PSObjectFile in,
-            final int width, final int height, final int nrComponents)
-            throws IOException, PSErrorRangeCheck {
-        
-        bytesPerLine = (int) Math.ceil(((double) width)
-                * ((double) nrComponents) * ((double) bitsPerComponent) / 8.0);
-        
-        data = new byte[height * bytesPerLine];
-            
-        int bytesRead = 0;
-        while (true) {
-            int nrNewBytes = in.getStream().read(data, bytesRead,
-                    data.length - bytesRead);
-            if (nrNewBytes == 0) {
-                break;
-            }
-            bytesRead += nrNewBytes;
-        }
-
-        if (bytesRead != (height * bytesPerLine)) {
-            throw new PSErrorRangeCheck();
-        }
-    }
-    
-    /**
-     * Loads data from a procedure data source.
-     * 
-     * @param proc Procedure that must produce the data.
-     * @param width The width in pixels.
-     * @param height The height in pixels.
-     * @param nrComponents Number of components per pixel.
-     * appropriate for the color space.
-     * @param interp Interpreter in which the procedure in executed.
-     * 
-     * @throws ProgramError This shouldn't happen, it indicates a bug.
-     * @throws PSError A PostScript error occurred.
-     */
-    private void loadDataFromProcedure(final PSObjectArray proc,
-            final int width, final int height, final int nrComponents,
-            final Interpreter interp) throws ProgramError, PSError {
-        
-        bytesPerLine = (int) Math.ceil(((double) width)
-                * ((double) nrComponents) * ((double) bitsPerComponent) / 8.0);
-        data = new byte[height * bytesPerLine];
-        
-        int bytesRead = 0;
-        while (bytesRead < height * bytesPerLine) {
-            interp.runObject(proc);
-            PSObjectString dataStr = interp.getOpStack().pop().toPSString();
-            for (int i = 0; i < dataStr.length(); i++) {
-                data[bytesRead] = (byte) dataStr.get(i);
-                bytesRead++;
-            }
-        }
-    }
-    
     /**
      * Dumps some information about this image to the standard output. Only used
      * for debugging purposes.
@@ -545,21 +521,146 @@ public class Image {
     }
     
     /**
-     * Gets the width (in pixels) of the image in the output.
+     * Gets the width (in pixels) of the image in the output, after
+     * downsampling.
      * 
      * @return Width (px).
      */
     public int getOutputWidthPx() {
-        return outputWidthPx;
+        return (outputWidthPx + downsampleX - 1) / downsampleX;
     }
     
     /**
-     * Gets the height (in pixels) of the image in the output.
+     * Gets the height (in pixels) of the image in the output, after
+     * downsampling.
      * 
      * @return Height (px).
      */
     public int getOutputHeightPx() {
-        return outputHeightPx;
+        return (outputHeightPx + downsampleY - 1) / downsampleY;
+    }
+    
+    /**
+     * Downsamples the image in the output if its resolution is at least
+     * twice a target resolution. The image is downsampled by the largest
+     * integer factor that keeps the resolution at or above the target, so
+     * that it can be done while the rows are read.
+     * 
+     * @param dpi The target resolution (in pixels per inch).
+     */
+    public void downsample(final double dpi) {
+        if ("DCTDecode".equals(data.getCompressedFilter())) {
+            // DCT compressed data can only be copied as it is.
+            return;
+        }
+        downsampleX = downsampleFactor(outputWidthPx, getOutputWidthPt(),
+                dpi);
+        downsampleY = downsampleFactor(outputHeightPx, getOutputHeightPt(),
+                dpi);
+    }
+    
+    /**
+     * Determines the downsampling factor along one axis of the image.
+     * 
+     * @param px Size (in pixels) along the axis.
+     * @param pt Size (in pt) along the axis in the output.
+     * @param dpi The target resolution (in pixels per inch).
+     * 
+     * @return The downsampling factor, one if the image is not downsampled.
+     */
+    private static int downsampleFactor(final int px, final double pt,
+            final double dpi) {
+        if ((pt <= 0.0) || (dpi <= 0.0)) {
+            return 1;
+        }
+        // The tolerance makes exact multiples of the target resolution, e.g.
+        // 300 dpi for a target of 150 dpi, immune to rounding errors.
+        double factor = Math.floor(px / (pt / 72.0) / dpi + 1e-6);
+        return (int) Math.max(1.0, Math.min(px, factor));
+    }
+    
+    /**
+     * Gets the name of the filter with which the image data is compressed,
+     * if the compressed data can be copied as it is to the output. That is
+     * the case if the data is read from a FlateDecode or DCTDecode filter,
+     * and if the image is not downsampled.
+     * 
+     * @return "FlateDecode" or "DCTDecode", or null if the image data must
+     * be decoded.
+     */
+    public String getPassThroughFilter() {
+        if ((downsampleX != 1) || (downsampleY != 1)) {
+            return null;
+        }
+        return data.getCompressedFilter();
+    }
+    
+    /**
+     * Gets the width (in pixels) of the image in the raw data stream.
+     * 
+     * @return Width (px).
+     */
+    public int getDataWidthPx() {
+        return imgWidthPx;
+    }
+    
+    /**
+     * Gets the height (in pixels) of the image in the raw data stream.
+     * 
+     * @return Height (px).
+     */
+    public int getDataHeightPx() {
+        return imgHeightPx;
+    }
+    
+    /**
+     * Gets the image matrix that maps the unit square, in the orientation of
+     * the output, onto the image in the raw data stream. This matrix is
+     * needed when the compressed data is copied as it is, because the data
+     * is then not reordered to the orientation of the output.
+     * 
+     * @return The matrix [a b c d tx ty], all entries are integers.
+     * 
+     * @throws PSError A PostScript error occurred.
+     */
+    public int[] getDataImageMatrix() throws PSError {
+        // One output pixel to the right or up is one pixel along one of the
+        // image axes, see getRowTranscoder().
+        int[] origin = convertCoorDeviceToImg(new int[] {0, 0});
+        int[] right = convertCoorDeviceToImg(new int[] {1, 0});
+        int[] up = convertCoorDeviceToImg(new int[] {0, 1});
+        int[] matrix = new int[6];
+        for (int i = 0; i < 2; i++) {
+            int stepX = right[i] - origin[i];
+            int stepY = up[i] - origin[i];
+            matrix[i] = stepX * outputWidthPx;
+            matrix[2 + i] = stepY * outputHeightPx;
+            // Pixel 'origin' is the lower-left output pixel. If an axis runs
+            // backwards, the edge of the image is at the far side of it.
+            matrix[4 + i] = origin[i];
+            if (stepX < 0) {
+                matrix[4 + i] += 1;
+            }
+            if (stepY < 0) {
+                matrix[4 + i] += 1;
+            }
+        }
+        return matrix;
+    }
+    
+    /**
+     * Copies the compressed image data as it is to an output stream. May
+     * only be used if getPassThroughFilter() returns a filter.
+     * 
+     * @param out The compressed data is written to this stream.
+     * 
+     * @throws PSError A PostScript error occurred.
+     * @throws IOException Signals that an I/O exception has occurred.
+     * @throws ProgramError This shouldn't happen, it indicates a bug.
+     */
+    public void writeCompressedData(final OutputStream out)
+            throws PSError, IOException, ProgramError {
+        data.copyCompressedData(out);
     }
     
     /**
@@ -571,6 +672,28 @@ public class Image {
         return colorSpace;
     }
     
+    /**
+     * Checks whether this image is a stencil mask. The color space of a
+     * stencil mask is the color with which it is painted.
+     * 
+     * @return True if the image is a stencil mask.
+     */
+    public boolean isMask() {
+        return mask;
+    }
+    
+    /**
+     * Gets the number of components per pixel in the image data.
+     * 
+     * @return Number of components, one for a stencil mask.
+     */
+    public int getNrComponents() {
+        if (mask) {
+            return 1;
+        }
+        return colorSpace.getNrInputValues();
+    }
+    
     /**
      * Get the number of bits per color component.
      * 
@@ -607,9 +730,10 @@ public class Image {
      * @return Array with color component values.
      * 
      * @throws PSError A PostScript error occurred.
+     * @throws ProgramError This shouldn't happen, it indicates a bug.
      */
     public double[] getPixelInputValues(final int x, final int y)
-            throws PSError {
+            throws PSError, ProgramError {
         
         int[] intValues = getPixelInputIntValues(x, y);
         int nrValues = intValues.length;
@@ -627,7 +751,8 @@ public class Image {
     
     /**
      * Get the color information (integer input values) of a single pixel. The
-     * decode array is not yet applied to the values.
+     * decode array is not yet applied to the values. All image data is read
+     * and stored when this method is called for the first time.
      * 
      * @param x The x-coordinate (pixels in device space)
      * @param y The y-coordinate (pixels in device space)
@@ -635,14 +760,16 @@ public class Image {
      * @return Array with color component values.
      * 
      * @throws PSError A PostScript error occurred.
+     * @throws ProgramError This shouldn't happen, it indicates a bug.
      */
     public int[] getPixelInputIntValues(final int x, final int y)
-            throws PSError {
+            throws PSError, ProgramError {
         
+        ByteBuffer buffer = data.getStoredData();
         int[] deviceCoor = {x, y};
         int[] imgCoor = convertCoorDeviceToImg(deviceCoor);
         
-        int nrValues = colorSpace.getNrInputValues();
+        int nrValues = getNrComponents();
         int[] values = new int[nrValues];
         for (int v = 0; v < nrValues; v++) {
             int bitMsb = 8 * bytesPerLine * imgCoor[1]
@@ -658,12 +785,13 @@ public class Image {
             if (byteMsb == byteLsb) {
                 int mask = ((1 << (bitInByteMsb + 1)) - 1)
                         ^ ((1 << bitInByteLsb) - 1);
-                intValue = (data[byteMsb] & mask) >> bitInByteLsb;
+                intValue = (buffer.get(byteMsb) & mask) >> bitInByteLsb;
             } else if (byteMsb == (byteLsb - 1)) {
                 int maskMsb = ((1 << (bitInByteMsb + 1)) - 1);
                 int maskLsb = 255 ^ ((1 << bitInByteLsb) - 1);
-                intValue = (data[byteMsb] & maskMsb) << (8 - bitInByteLsb);
-                intValue |= (data[byteLsb] & maskLsb) >> bitInByteLsb;
+                intValue = (buffer.get(byteMsb) & maskMsb)
+                        << (8 - bitInByteLsb);
+                intValue |= (buffer.get(byteLsb) & maskLsb) >> bitInByteLsb;
             } else {
                 throw new PSErrorUnregistered("More than 16 bit per component"
                         + " is not supported in bitmap images.");
@@ -674,6 +802,104 @@ public class Image {
         return values;
     }
 
+    /**
+     * Creates a transcoder that reads the image data row by row, in the
+     * orientation of the image in the output. This is much faster than
+     * reading the image pixel by pixel with getPixelInputIntValues().
+     * 
+     * If the image is not rotated by 90 or 270 degrees, the transcoder reads
+     * the lines directly from the data source, such that the image doesn't
+     * have to be stored. In that case, only a single transcoder can be
+     * created, and the image data can't be accessed in any other way.
+     *
+     * @return The row transcoder.
+     *
+     * @throws PSError A PostScript error occurred.
+     * @throws ProgramError This shouldn't happen, it indicates a bug.
+     */
+    public ImageRowTranscoder getRowTranscoder()
+            throws PSError, ProgramError {
+        if (bitsPerComponent > 16) {
+            throw new PSErrorUnregistered("More than 16 bit per component"
+                    + " is not supported in bitmap images.");
+        }
+
+        // The corners of the image are mapped on the corners of the output,
+        // so the mapping between output and image pixels is an integer
+        // translation plus steps of one pixel along the image axes.
+        int[] origin = convertCoorDeviceToImg(new int[] {0, 0});
+        int[] right = convertCoorDeviceToImg(new int[] {1, 0});
+        int[] up = convertCoorDeviceToImg(new int[] {0, 1});
+        int[] stepX = {right[0] - origin[0], right[1] - origin[1]};
+        int[] stepY = {up[0] - origin[0], up[1] - origin[1]};
+
+        // Samples of 1-bit and indexed images can't be averaged.
+        boolean nearest = (bitsPerComponent == 1)
+                || (colorSpace instanceof Indexed);
+        boolean stream = (stepY[0] == 0) && data.canStream();
+        return new ImageRowTranscoder(data, stream, bitsPerComponent,
+                getNrComponents(), outputWidthPx, outputHeightPx,
+                origin, stepX, stepY, downsampleX, downsampleY, nearest);
+    }
+    
+    /**
+     * Creates a row transcoder that returns the rows from the top to the
+     * bottom of the output. If the lines of the data source are in the
+     * other order, all data is read and stored first.
+     * 
+     * @return The row transcoder.
+     * 
+     * @throws PSError A PostScript error occurred.
+     * @throws ProgramError This shouldn't happen, it indicates a bug.
+     */
+    public ImageRowTranscoder getTopDownRowTranscoder()
+            throws PSError, ProgramError {
+        if (!isTopDown()) {
+            data.getStoredData();
+        }
+        ImageRowTranscoder transcoder = getRowTranscoder();
+        transcoder.setTopDown();
+        return transcoder;
+    }
+    
+    /**
+     * Checks in which order the rows are returned by the row transcoder.
+     * 
+     * @return True if the first row is the top row in the output, false if
+     * it is the bottom row.
+     * 
+     * @throws PSError A PostScript error occurred.
+     */
+    public boolean isTopDown() throws PSError {
+        int[] origin = convertCoorDeviceToImg(new int[] {0, 0});
+        int[] up = convertCoorDeviceToImg(new int[] {0, 1});
+        return (up[1] < origin[1]);
+    }
+    
+    /**
+     * Reads all image data from the data source and stores it, such that
+     * the rows can be read more than once. Each row transcoder created
+     * afterwards reads the stored data.
+     *
+     * @throws PSError A PostScript error occurred.
+     * @throws ProgramError This shouldn't happen, it indicates a bug.
+     */
+    public void storeData() throws PSError, ProgramError {
+        data.getStoredData();
+    }
+
+    /**
+     * Reads the image data that has not been read yet from the data source.
+     * This must be called after the image has been painted, such that the
+     * data source is positioned after the image data.
+     * 
+     * @throws PSError A PostScript error occurred.
+     * @throws ProgramError This shouldn't happen, it indicates a bug.
+     */
+    public void discardData() throws PSError, ProgramError {
+        data.skipRemaining();
+    }
+
     /**
      * Return the bounding box in device space.
      * 
@@ -0,0 +1,767 @@
+/*
+ * This file is part of Eps2pgf.
+ *
+ * Copyright 2007-2009 Paul Wagenaars
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sf.eps2pgf.ps;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import net.sf.eps2pgf.ProgramError;
+import net.sf.eps2pgf.ps.errors.PSError;
+import net.sf.eps2pgf.ps.errors.PSErrorIOError;
+import net.sf.eps2pgf.ps.errors.PSErrorInvalidAccess;
+import net.sf.eps2pgf.ps.errors.PSErrorRangeCheck;
+import net.sf.eps2pgf.ps.errors.PSErrorUnregistered;
+import net.sf.eps2pgf.ps.errors.PSErrorVMError;
+import net.sf.eps2pgf.ps.objects.PSObject;
+import net.sf.eps2pgf.ps.objects.PSObjectArray;
+import net.sf.eps2pgf.ps.objects.PSObjectFile;
+import net.sf.eps2pgf.ps.objects.PSObjectName;
+import net.sf.eps2pgf.ps.objects.PSObjectString;
+import net.sf.eps2pgf.ps.resources.filters.ASCIIHexDecode;
+import net.sf.eps2pgf.ps.resources.filters.DCTDecode;
+import net.sf.eps2pgf.ps.resources.filters.FlateDecode;
+
+/**
+ * Raw data of a bitmap image, read from its data source one line at a time.
+ *
+ * The lines can be passed on as they are read, such that the image never
+ * has to be in memory as a whole. If the lines are needed in a different
+ * order, e.g. for a rotated image, all data is read and stored at once.
+ * Large images are stored in a memory-mapped temporary file instead of on
+ * the heap.
+ *
+ * The data can also come from multiple data sources, one per color
+ * component. One line is read from each data source in turn, and the lines
+ * are interleaved into a single line.
+ *
+ * Procedures of the form {currentfile string readhexstring pop} are
+ * recognized, and their data is read in bulk directly from the current file
+ * into the lines of the image.
+ *
+ * If the data is read from a FlateDecode or DCTDecode filter, the compressed
+ * data can also be copied as it is, without decoding it.
+ *
+ * @author Paul Wagenaars
+ */
+public class ImageData {
+
+    /** Data sources, one for all components or one per component. */
+    private Source[] sources;
+
+    /** Interpreter in which procedures are executed. */
+    private Interpreter interp;
+
+    /** Number of bytes per line. */
+    private int bytesPerLine;
+
+    /** Number of lines. */
+    private int nrLines;
+
+    /** Number of lines that have been read from the data source. */
+    private int linesRead = 0;
+
+    /** Number of bits per component, only used for multiple sources. */
+    private int bitsPerComponent;
+
+    /** Number of pixels per line, only used for multiple sources. */
+    private int width;
+
+    /** Current line of each data source, or null for a single source. */
+    private byte[][] planeLines = null;
+
+    /**
+     * Images with more data (in bytes) than this are stored in a temporary
+     * file. Zero disables spilling.
+     */
+    private long spillThreshold;
+
+    /** Stored data, or null if the data has not been stored. */
+    private ByteBuffer stored = null;
+
+    /**
+     * Filter from which the data is read, if its compressed data can be
+     * copied as it is. Null otherwise.
+     */
+    private FlateDecode flateIn = null;
+
+    /**
+     * Filter from which the data is read, if it is DCT (JPEG) compressed.
+     * Null otherwise.
+     */
+    private DCTDecode dctIn = null;
+
+    /** Indicates whether the compressed data has been copied. */
+    private boolean compressedCopied = false;
+
+    /**
+     * Creates new image data that is read from a file.
+     *
+     * @param in The file from which the data is read.
+     * @param pBytesPerLine Number of bytes per line.
+     * @param pNrLines Number of lines.
+     * @param pSpillThreshold Size (in bytes) of the data above which it is
+     * stored in a temporary file. Zero disables spilling.
+     */
+    public ImageData(final PSObjectFile in, final int pBytesPerLine,
+            final int pNrLines, final long pSpillThreshold) {
+        sources = new Source[] {new Source(in)};
+        bytesPerLine = pBytesPerLine;
+        nrLines = pNrLines;
+        spillThreshold = pSpillThreshold;
+
+        InputStream stream = in.getStream();
+        if ((stream instanceof FlateDecode)
+                && ((FlateDecode) stream).canCopyCompressedData()) {
+            flateIn = (FlateDecode) stream;
+        } else if (stream instanceof DCTDecode) {
+            dctIn = (DCTDecode) stream;
+        }
+    }
+
+    /**
+     * Creates new image data that is produced by a procedure.
+     *
+     * @param pProc Procedure that must produce the data.
+     * @param pInterp Interpreter in which the procedure is executed.
+     * @param pBytesPerLine Number of bytes per line.
+     * @param pNrLines Number of lines.
+     * @param pSpillThreshold Size (in bytes) of the data above which it is
+     * stored in a temporary file. Zero disables spilling.
+     *
+     * @throws PSError A PostScript error occurred.
+     */
+    public ImageData(final PSObjectArray pProc, final Interpreter pInterp,
+            final int pBytesPerLine, final int pNrLines,
+            final long pSpillThreshold) throws PSError {
+        interp = pInterp;
+        sources = new Source[] {new Source(pProc)};
+        bytesPerLine = pBytesPerLine;
+        nrLines = pNrLines;
+        spillThreshold = pSpillThreshold;
+    }
+
+    /**
+     * Creates new image data that is read from multiple data sources, one
+     * per color component. The lines of the data sources are read in turn
+     * and interleaved, such that the data looks like it comes from a single
+     * data source.
+     *
+     * @param pSources The data sources: files or procedures.
+     * @param pInterp Interpreter in which the procedures are executed.
+     * @param pWidth Number of pixels per line.
+     * @param pBitsPerComponent Number of bits per component.
+     * @param pNrLines Number of lines.
+     * @param pSpillThreshold Size (in bytes) of the data above which it is
+     * stored in a temporary file. Zero disables spilling.
+     *
+     * @throws PSError A PostScript error occurred.
+     */
+    public ImageData(final PSObject[] pSources, final Interpreter pInterp,
+            final int pWidth, final int pBitsPerComponent, final int pNrLines,
+            final long pSpillThreshold) throws PSError {
+        interp = pInterp;
+        int nrSources = pSources.length;
+        sources = new Source[nrSources];
+        planeLines = new byte[nrSources][];
+        for (int i = 0; i < nrSources; i++) {
+            if (pSources[i] instanceof PSObjectFile) {
+                sources[i] = new Source((PSObjectFile) pSources[i]);
+            } else if (pSources[i] instanceof PSObjectArray) {
+                sources[i] = new Source((PSObjectArray) pSources[i]);
+            } else {
+                throw new PSErrorUnregistered("Reading (bitmap) image data"
+                        + " from other " + pSources[i]);
+            }
+            planeLines[i] = new byte[(int) (((long) pWidth
+                    * pBitsPerComponent + 7) / 8)];
+        }
+        width = pWidth;
+        bitsPerComponent = pBitsPerComponent;
+        bytesPerLine = (int) (((long) pWidth * nrSources * pBitsPerComponent
+                + 7) / 8);
+        nrLines = pNrLines;
+        spillThreshold = pSpillThreshold;
+    }
+
+    /**
+     * Gets the number of bytes per line.
+     *
+     * @return Number of bytes.
+     */
+    public int getBytesPerLine() {
+        return bytesPerLine;
+    }
+
+    /**
+     * Gets the number of lines.
+     *
+     * @return Number of lines.
+     */
+    public int getNrLines() {
+        return nrLines;
+    }
+
+    /**
+     * Checks whether the data is stored, such that it can be accessed in
+     * any order.
+     *
+     * @return True if the data is stored.
+     */
+    public boolean isStored() {
+        return (stored != null);
+    }
+
+    /**
+     * Checks whether lines can still be read one by one with readLine(),
+     * starting at the first line.
+     *
+     * @return True if no lines have been read and the data is not stored.
+     */
+    public boolean canStream() {
+        return (linesRead == 0) && (stored == null);
+    }
+
+    /**
+     * Gets the name of the filter with which the data is compressed, if the
+     * compressed data can be copied as it is with copyCompressedData(), or
+     * if it has been copied.
+     *
+     * @return "FlateDecode" or "DCTDecode", or null if the compressed data
+     * can't be copied.
+     */
+    public String getCompressedFilter() {
+        if (dctIn != null) {
+            if (compressedCopied || dctIn.canCopyCompressedData()) {
+                return "DCTDecode";
+            }
+        } else if (flateIn != null) {
+            if (compressedCopied
+                    || (canStream() && flateIn.canCopyCompressedData())) {
+                return "FlateDecode";
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Copies the compressed data as it is from the data source to an output
+     * stream. The compressed data is not decoded, except for checking it.
+     * Afterwards, all lines have been read.
+     *
+     * @param out The compressed data is written to this stream. If it is
+     * null the data is skipped.
+     *
+     * @throws PSError A PostScript error occurred.
+     * @throws IOException Signals that an I/O exception has occurred.
+     * @throws ProgramError This shouldn't happen, it indicates a bug.
+     */
+    public void copyCompressedData(final OutputStream out)
+            throws PSError, IOException, ProgramError {
+
+        if (compressedCopied || (getCompressedFilter() == null)) {
+            throw new ProgramError("Compressed image data can't be copied.");
+        }
+        compressedCopied = true;
+        if (dctIn != null) {
+            dctIn.copyCompressedData(out);
+        } else if (flateIn.copyCompressedData(out)
+                < (long) bytesPerLine * nrLines) {
+            // Decoding the data would run out of data as well.
+            throw new PSErrorRangeCheck();
+        }
+        linesRead = nrLines;
+    }
+
+    /**
+     * Reads the next line from the data source.
+     *
+     * @param line Array in which the line is stored.
+     * @param off Index in the array of the first byte of the line.
+     *
+     * @throws PSError A PostScript error occurred.
+     * @throws ProgramError This shouldn't happen, it indicates a bug.
+     */
+    public void readLine(final byte[] line, final int off)
+            throws PSError, ProgramError {
+
+        if (linesRead >= nrLines) {
+            throw new ProgramError("Reading beyond the end of image data.");
+        }
+        if (dctIn != null) {
+            throw new PSErrorUnregistered("Decoding DCT (JPEG) compressed"
+                    + " bitmap images.");
+        }
+        if (planeLines == null) {
+            sources[0].read(line, off, bytesPerLine);
+        } else {
+            for (int i = 0; i < sources.length; i++) {
+                sources[i].read(planeLines[i], 0, planeLines[i].length);
+            }
+            interleave(line, off);
+        }
+        linesRead++;
+        if (linesRead == nrLines) {
+            for (int i = 0; i < sources.length; i++) {
+                sources[i].finish();
+            }
+        }
+    }
+
+    /**
+     * Interleaves the current lines of the data sources into a single line
+     * with all components of each pixel next to each other.
+     *
+     * @param line Array in which the interleaved line is stored.
+     * @param off Index in the array of the first byte of the line.
+     */
+    private void interleave(final byte[] line, final int off) {
+        int nrSources = planeLines.length;
+        if (bitsPerComponent == 8) {
+            for (int i = 0; i < nrSources; i++) {
+                byte[] plane = planeLines[i];
+                for (int x = 0, j = off + i; x < width; x++, j += nrSources) {
+                    line[j] = plane[x];
+                }
+            }
+        } else if (bitsPerComponent == 16) {
+            for (int i = 0; i < nrSources; i++) {
+                byte[] plane = planeLines[i];
+                int j = off + 2 * i;
+                for (int x = 0; x < 2 * width; x += 2) {
+                    line[j] = plane[x];
+                    line[j + 1] = plane[x + 1];
+                    j += 2 * nrSources;
+                }
+            }
+        } else {
+            // Samples of less than 8 bits, or of 12 bits, don't start at a
+            // byte boundary. They are copied through a 24-bit window that
+            // always contains a whole sample.
+            int mask = (1 << bitsPerComponent) - 1;
+            for (int j = 0; j < bytesPerLine; j++) {
+                line[off + j] = 0;
+            }
+            for (int i = 0; i < nrSources; i++) {
+                byte[] plane = planeLines[i];
+                for (int x = 0; x < width; x++) {
+                    int srcBit = x * bitsPerComponent;
+                    int shift = 24 - (srcBit & 7) - bitsPerComponent;
+                    int sample = (getWindow(plane, srcBit >> 3) >> shift)
+                            & mask;
+                    int dstBit = (x * nrSources + i) * bitsPerComponent;
+                    int pos = dstBit >> 3;
+                    int bits = sample << (24 - (dstBit & 7)
+                            - bitsPerComponent);
+                    for (int k = 0; (k < 3)
+                            && (pos + k < bytesPerLine); k++) {
+                        line[off + pos + k] |= (byte) (bits >> (16 - 8 * k));
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Gets three consecutive bytes as a 24-bit integer. Bytes beyond the end
+     * of the data are zero.
+     *
+     * @param buf The array with the data.
+     * @param index Index of the first byte.
+     *
+     * @return The bytes, the first byte is the most significant.
+     */
+    private static int getWindow(final byte[] buf, final int index) {
+        int window = 0;
+        for (int k = 0; k < 3; k++) {
+            window <<= 8;
+            if (index + k < buf.length) {
+                window |= buf[index + k] & 0xff;
+            }
+        }
+        return window;
+    }
+
+    /**
+     * Reads the remaining lines from the data source without storing them.
+     * This must be done after an image is painted, such that a file data
+     * source is positioned after the image data.
+     *
+     * @throws PSError A PostScript error occurred.
+     * @throws ProgramError This shouldn't happen, it indicates a bug.
+     */
+    public void skipRemaining() throws PSError, ProgramError {
+        if (stored != null) {
+            return;
+        }
+        if ((dctIn != null) && (linesRead < nrLines)) {
+            // DCT data can't be decoded, only the JPEG data is skipped.
+            try {
+                copyCompressedData(null);
+            } catch (IOException e) {
+                throw new PSErrorIOError();
+            }
+            return;
+        }
+        byte[] line = new byte[bytesPerLine];
+        while (linesRead < nrLines) {
+            readLine(line, 0);
+        }
+    }
+
+    /**
+     * Gets the stored data. If the data has not been stored yet, all lines
+     * are read from the data source and stored.
+     *
+     * @return Buffer with all lines of the image. The position of the buffer
+     * is undefined, use absolute get methods.
+     *
+     * @throws PSError A PostScript error occurred.
+     * @throws ProgramError This shouldn't happen, it indicates a bug.
+     */
+    public ByteBuffer getStoredData() throws PSError, ProgramError {
+        if (stored != null) {
+            return stored;
+        }
+        if (linesRead > 0) {
+            throw new ProgramError("Image data has already been read line"
+                    + " by line.");
+        }
+
+        long size = (long) bytesPerLine * nrLines;
+        if (size > Integer.MAX_VALUE) {
+            throw new PSErrorVMError();
+        }
+        if ((spillThreshold > 0) && (size > spillThreshold)) {
+            stored = storeInFile((int) size);
+        } else {
+            byte[] data = new byte[(int) size];
+            for (int i = 0; i < nrLines; i++) {
+                readLine(data, i * bytesPerLine);
+            }
+            stored = ByteBuffer.wrap(data);
+        }
+        return stored;
+    }
+
+    /**
+     * Reads all lines from the data source and stores them in a memory-mapped
+     * temporary file.
+     *
+     * @param size Size (in bytes) of the data.
+     *
+     * @return Buffer that is backed by the temporary file.
+     *
+     * @throws PSError A PostScript error occurred.
+     * @throws ProgramError This shouldn't happen, it indicates a bug.
+     */
+    private ByteBuffer storeInFile(final int size)
+            throws PSError, ProgramError {
+
+        try {
+            File tmpFile = File.createTempFile("eps2pgf", ".img");
+            tmpFile.deleteOnExit();
+            OutputStream out = new BufferedOutputStream(
+                    new FileOutputStream(tmpFile));
+            byte[] line = new byte[bytesPerLine];
+            try {
+                for (int i = 0; i < nrLines; i++) {
+                    readLine(line, 0);
+                    out.write(line);
+                }
+            } finally {
+                out.close();
+            }
+
+            // The mapping stays valid after the file is closed. On most
+            // systems the file can even be deleted, otherwise it is deleted
+            // on exit.
+            RandomAccessFile raf = new RandomAccessFile(tmpFile, "r");
+            ByteBuffer buffer = raf.getChannel().map(
+                    FileChannel.MapMode.READ_ONLY, 0, size);
+            raf.close();
+            tmpFile.delete();
+            return buffer;
+        } catch (IOException e) {
+            throw new PSErrorIOError();
+        }
+    }
+
+    /**
+     * A single data source: a file or a procedure.
+     */
+    private final class Source {
+
+        /** The file, or null if the data source is a procedure. */
+        private PSObjectFile file = null;
+
+        /** The procedure, or null if the data source is a file. */
+        private PSObjectArray proc = null;
+
+        /** String returned by the procedure of which some bytes are unused. */
+        private PSObjectString pending = null;
+
+        /** Index of the first unused byte in the pending string. */
+        private int pendingIndex = 0;
+
+        /**
+         * Stream from which the procedure reads its data, if the procedure
+         * is recognized as reading a string from the current file. Null
+         * otherwise.
+         */
+        private InputStream directIn = null;
+
+        /** Length of the string that the procedure reads. */
+        private int directLength = 0;
+
+        /** Bytes of the last string read directly that are still unused. */
+        private int directLeft = 0;
+
+        /**
+         * Creates a new file data source.
+         *
+         * @param in The file.
+         */
+        private Source(final PSObjectFile in) {
+            file = in;
+        }
+
+        /**
+         * Creates a new procedure data source.
+         *
+         * @param pProc The procedure.
+         *
+         * @throws PSError A PostScript error occurred.
+         */
+        private Source(final PSObjectArray pProc) throws PSError {
+            proc = pProc;
+            matchReadStringIdiom();
+        }
+
+        /**
+         * Checks whether the procedure is the common idiom
+         * {currentfile string readhexstring pop} or the same with
+         * readstring. The names in the procedure must refer to the standard
+         * operators. If so, the data is read directly from the current file
+         * instead of by executing the procedure. The string is then not
+         * used, the data is decoded straight into the lines of the image.
+         *
+         * @throws PSError A PostScript error occurred.
+         */
+        private void matchReadStringIdiom() throws PSError {
+            if (proc.size() != 4) {
+                return;
+            }
+            PSObject str = resolve(proc.get(1));
+            PSObject read = resolve(proc.get(2));
+            if (!(resolve(proc.get(0)) instanceof OperatorsAtoC.Ocurrentfile)
+                    || !(str instanceof PSObjectString)
+                    || !(resolve(proc.get(3)) instanceof OperatorsPtoR.Opop)) {
+                return;
+            }
+            boolean hex = (read instanceof OperatorsPtoR.Oreadhexstring);
+            if (!hex && !(read instanceof OperatorsPtoR.Oreadstring)) {
+                return;
+            }
+            PSObjectFile currentFile = interp.getExecStack().getTopmostFile();
+            directLength = str.toPSString().length();
+            if ((currentFile == null) || (directLength == 0)) {
+                return;
+            }
+            try {
+                // Access errors are left to the procedure.
+                str.checkAccess(false, true, false);
+                currentFile.checkAccess(false, false, true);
+            } catch (PSErrorInvalidAccess e) {
+                return;
+            }
+            if (hex) {
+                directIn = new ASCIIHexDecode(currentFile.getStream(), null);
+            } else {
+                directIn = currentFile.getStream();
+            }
+        }
+
+        /**
+         * Looks up an executable name in the procedure.
+         *
+         * @param obj Object from the procedure.
+         *
+         * @return The value of the name, the object itself if it is not an
+         * executable name, or null if the name is not defined.
+         */
+        private PSObject resolve(final PSObject obj) {
+            if ((obj instanceof PSObjectName) && !obj.isLiteral()) {
+                return interp.getDictStack().lookup(obj);
+            }
+            return obj;
+        }
+
+        /**
+         * Reads bytes from the data source.
+         *
+         * @param buf Array in which the bytes are stored.
+         * @param off Index in the array of the first byte.
+         * @param len Number of bytes to read.
+         *
+         * @throws PSError A PostScript error occurred.
+         * @throws ProgramError This shouldn't happen, it indicates a bug.
+         */
+        private void read(final byte[] buf, final int off, final int len)
+                throws PSError, ProgramError {
+            if (file != null) {
+                readFromFile(buf, off, len);
+            } else if (directIn != null) {
+                readDirect(buf, off, len);
+            } else {
+                readFromProcedure(buf, off, len);
+            }
+        }
+
+        /**
+         * Reads bytes from the file.
+         *
+         * @param buf Array in which the bytes are stored.
+         * @param off Index in the array of the first byte.
+         * @param len Number of bytes to read.
+         *
+         * @throws PSError Unable to read the required number of bytes.
+         */
+        private void readFromFile(final byte[] buf, final int off,
+                final int len) throws PSError {
+
+            InputStream in = file.getStream();
+            int bytesRead = 0;
+            try {
+                while (bytesRead < len) {
+                    int nrNewBytes = in.read(buf, off + bytesRead,
+                            len - bytesRead);
+                    if (nrNewBytes <= 0) {
+                        throw new PSErrorRangeCheck();
+                    }
+                    bytesRead += nrNewBytes;
+                }
+            } catch (IOException e) {
+                throw new PSErrorIOError();
+            }
+        }
+
+        /**
+         * Reads bytes directly from the stream that the procedure reads
+         * from. The bytes are read in the same pieces as the procedure
+         * would read them: an execution reads at most the length of the
+         * string.
+         *
+         * @param buf Array in which the bytes are stored.
+         * @param off Index in the array of the first byte.
+         * @param len Number of bytes to read.
+         *
+         * @throws PSError A PostScript error occurred.
+         */
+        private void readDirect(final byte[] buf, final int off,
+                final int len) throws PSError {
+
+            int bytesRead = 0;
+            try {
+                while (bytesRead < len) {
+                    if (directLeft == 0) {
+                        directLeft = directLength;
+                    }
+                    int n = directIn.read(buf, off + bytesRead,
+                            Math.min(len - bytesRead, directLeft));
+                    if (n <= 0) {
+                        // The procedure would return a short string and
+                        // then an empty string, which ends the data
+                        // prematurely.
+                        throw new PSErrorRangeCheck();
+                    }
+                    directLeft -= n;
+                    bytesRead += n;
+                }
+            } catch (IOException e) {
+                throw new PSErrorIOError();
+            }
+        }
+
+        /**
+         * Reads the unused bytes of the last string that was read directly,
+         * such that the current file is positioned where the procedure would
+         * have left it. Must be called after the last line of the image.
+         *
+         * @throws PSError A PostScript error occurred.
+         */
+        private void finish() throws PSError {
+            if (directLeft == 0) {
+                return;
+            }
+            byte[] unused = new byte[directLeft];
+            try {
+                while (directLeft > 0) {
+                    int n = directIn.read(unused, 0, directLeft);
+                    if (n <= 0) {
+                        break;
+                    }
+                    directLeft -= n;
+                }
+            } catch (IOException e) {
+                throw new PSErrorIOError();
+            }
+            directLeft = 0;
+        }
+
+        /**
+         * Reads bytes from the procedure. The procedure is executed as often
+         * as needed, bytes that are not read are kept for the next read.
+         *
+         * @param buf Array in which the bytes are stored.
+         * @param off Index in the array of the first byte.
+         * @param len Number of bytes to read.
+         *
+         * @throws PSError A PostScript error occurred.
+         * @throws ProgramError This shouldn't happen, it indicates a bug.
+         */
+        private void readFromProcedure(final byte[] buf, final int off,
+                final int len) throws PSError, ProgramError {
+
+            int bytesRead = 0;
+            while (bytesRead < len) {
+                if ((pending == null) || (pendingIndex >= pending.length())) {
+                    interp.runObject(proc);
+                    pending = interp.getOpStack().pop().toPSString();
+                    pendingIndex = 0;
+                    if (pending.length() == 0) {
+                        // An empty string ends the data prematurely.
+                        throw new PSErrorRangeCheck();
+                    }
+                }
+                int n = Math.min(len - bytesRead,
+                        pending.length() - pendingIndex);
+                pending.getBytes(pendingIndex, buf, off + bytesRead, n);
+                pendingIndex += n;
+                bytesRead += n;
+            }
+        }
+    }
+}
@@ -0,0 +1,504 @@
+/*
+ * This file is part of Eps2pgf.
+ *
+ * Copyright 2007-2009 Paul Wagenaars
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sf.eps2pgf.ps;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import net.sf.eps2pgf.ProgramError;
+import net.sf.eps2pgf.ps.errors.PSError;
+
+/**
+ * Reads the raw data of a bitmap image row by row, in the orientation of the
+ * image in the output.
+ *
+ * A rotated or flipped image is read with precomputed strides: going one
+ * pixel to the right in the output moves a fixed number of bits through the
+ * raw data, and so does going one row up. Images that are not rotated or
+ * flipped are copied a whole row at a time, and 8-bit and 1-bit data are
+ * read without generic bit extraction.
+ *
+ * If the rows of the output are lines of the raw data, i.e. the image is
+ * not rotated by 90 or 270 degrees, the rows are returned in the order of
+ * the lines in the data source. The lines can then be transcoded while they
+ * are read from the data source. Otherwise, the data must be stored first
+ * and the rows are returned from the bottom to the top of the output.
+ *
+ * The image can be downsampled by integer factors while it is read. Each
+ * output pixel is then the average of a block of pixels, or the first pixel
+ * of the block for images of which the samples can't be averaged, such as
+ * 1-bit and indexed images.
+ *
+ * @author Paul Wagenaars
+ */
+public final class ImageRowTranscoder {
+
+    /** Data source from which lines are read, or null if data is stored. */
+    private ImageData source;
+
+    /** Raw image data: the current line, or all stored data. */
+    private ByteBuffer data;
+
+    /** Array backing the data buffer when lines are read one by one. */
+    private byte[] line;
+
+    /** Number of bits per component. */
+    private int bitsPerComponent;
+
+    /** Number of components per pixel. */
+    private int nrComponents;
+
+    /** Width (in pixels) of the image in the output. */
+    private int width;
+
+    /** Height (in pixels) of the image in the output. */
+    private int height;
+
+    /** Width (in pixels) of the image before downsampling. */
+    private int srcWidth;
+
+    /** Height (in pixels) of the image before downsampling. */
+    private int srcHeight;
+
+    /** Number of pixels along a row that form one downsampled pixel. */
+    private int factorX;
+
+    /** Number of rows that form one downsampled row. */
+    private int factorY;
+
+    /** Take the first pixel of each block instead of the average. */
+    private boolean nearest;
+
+    /** Samples of a row before downsampling, or null if not downsampled. */
+    private int[] srcSamples = null;
+
+    /** Sums of the samples in the blocks of the current downsampled row. */
+    private long[] sums = null;
+
+    /** Samples of a downsampled row that is packed into bytes. */
+    private int[] rowSamples = null;
+
+    /**
+     * Position (in bits) in the raw data of the lower-left output pixel, or
+     * of the first output pixel in a line if lines are read one by one.
+     */
+    private long origin;
+
+    /** Step (in bits) in the raw data for one output pixel to the right. */
+    private long strideX;
+
+    /** Step (in bits) in the raw data for one output row up. */
+    private long strideY;
+
+    /** Indicates whether rows are returned from the top to the bottom. */
+    private boolean topDown;
+
+    /** Number of rows that have been read, before downsampling. */
+    private int rowsRead = 0;
+
+    /** Mask with the lowest bitsPerComponent bits set. */
+    private int sampleMask;
+
+    /** Number of bytes in a packed row. */
+    private int packedRowLength;
+
+    /**
+     * Creates a new row transcoder.
+     *
+     * @param pSource The raw image data.
+     * @param stream If true, lines are read one by one from the data source.
+     * If false, the stored data is used.
+     * @param pBitsPerComponent Number of bits per component (at most 16).
+     * @param pNrComponents Number of components per pixel.
+     * @param pWidth Width (in pixels) of the image in the output, before
+     * downsampling.
+     * @param pHeight Height (in pixels) of the image in the output, before
+     * downsampling.
+     * @param originImg Image space pixel of the lower-left output pixel.
+     * @param stepX Step in image space for one output pixel to the right.
+     * @param stepY Step in image space for one output row up.
+     * @param pFactorX Downsampling factor along the rows, one for none.
+     * @param pFactorY Downsampling factor across the rows, one for none.
+     * @param pNearest If true, the first pixel of each block is taken
+     * instead of the average.
+     *
+     * @throws PSError A PostScript error occurred.
+     * @throws ProgramError This shouldn't happen, it indicates a bug.
+     */
+    ImageRowTranscoder(final ImageData pSource, final boolean stream,
+            final int pBitsPerComponent, final int pNrComponents,
+            final int pWidth, final int pHeight, final int[] originImg,
+            final int[] stepX, final int[] stepY, final int pFactorX,
+            final int pFactorY, final boolean pNearest)
+            throws PSError, ProgramError {
+
+        bitsPerComponent = pBitsPerComponent;
+        nrComponents = pNrComponents;
+        srcWidth = pWidth;
+        srcHeight = pHeight;
+        factorX = pFactorX;
+        factorY = pFactorY;
+        nearest = pNearest;
+        width = (srcWidth + factorX - 1) / factorX;
+        height = (srcHeight + factorY - 1) / factorY;
+        if ((factorX > 1) || (factorY > 1)) {
+            srcSamples = new int[srcWidth * nrComponents];
+            sums = new long[width * nrComponents];
+            rowSamples = new int[width * nrComponents];
+        }
+
+        int bytesPerLine = pSource.getBytesPerLine();
+        long bitsPerLine = 8L * bytesPerLine;
+        long bitsPerPixel = (long) bitsPerComponent * nrComponents;
+        strideX = bitsPerLine * stepX[1] + bitsPerPixel * stepX[0];
+        strideY = bitsPerLine * stepY[1] + bitsPerPixel * stepY[0];
+        topDown = (stepY[1] < 0);
+        if (stream) {
+            source = pSource;
+            line = new byte[bytesPerLine];
+            data = ByteBuffer.wrap(line);
+            origin = bitsPerPixel * originImg[0];
+        } else {
+            data = pSource.getStoredData().duplicate();
+            origin = bitsPerLine * originImg[1] + bitsPerPixel * originImg[0];
+        }
+
+        sampleMask = (1 << bitsPerComponent) - 1;
+        packedRowLength = (int) ((bitsPerPixel * width + 7) / 8);
+    }
+
+    /**
+     * Gets the width of the rows.
+     *
+     * @return Width (in pixels) of the image in the output.
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * Gets the number of rows.
+     *
+     * @return Height (in pixels) of the image in the output.
+     */
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Checks in which order the rows are returned.
+     *
+     * @return True if the first row is the top row in the output, false if
+     * it is the bottom row.
+     */
+    public boolean isTopDown() {
+        return topDown;
+    }
+
+    /**
+     * Makes the rows be returned from the top to the bottom of the output.
+     * This must be done before the first row is read.
+     *
+     * @throws ProgramError If the rows are read one by one from the data
+     * source in the other order.
+     */
+    void setTopDown() throws ProgramError {
+        if (!topDown && ((source != null) || (rowsRead > 0))) {
+            throw new ProgramError("Unable to change the order of the rows.");
+        }
+        topDown = true;
+    }
+
+    /**
+     * Gets the number of bytes in a row returned by readPackedRow().
+     *
+     * @return Number of bytes.
+     */
+    public int getPackedRowLength() {
+        return packedRowLength;
+    }
+
+    /**
+     * Determines where the next row starts, reading it from the data source
+     * if needed.
+     *
+     * @return Position (in bits) in the raw data of the first pixel of the
+     * row.
+     *
+     * @throws PSError A PostScript error occurred.
+     * @throws ProgramError This shouldn't happen, it indicates a bug.
+     */
+    private long nextRow() throws PSError, ProgramError {
+        if (rowsRead >= srcHeight) {
+            throw new ProgramError("Reading beyond the last row of image.");
+        }
+        int y = rowsRead++;
+        if (source != null) {
+            source.readLine(line, 0);
+            return origin;
+        }
+        if (topDown) {
+            y = srcHeight - 1 - y;
+        }
+        return origin + y * strideY;
+    }
+
+    /**
+     * Reads the next row of samples, packed with the same number of bits per
+     * component as the raw data. The row is padded with zero bits to a whole
+     * number of bytes.
+     *
+     * @param row Array in which the row is stored. It must be at least
+     * getPackedRowLength() bytes long.
+     *
+     * @throws PSError A PostScript error occurred.
+     * @throws ProgramError This shouldn't happen, it indicates a bug.
+     */
+    public void readPackedRow(final byte[] row)
+            throws PSError, ProgramError {
+        if (srcSamples != null) {
+            readDownsampledRow(rowSamples);
+            packSamples(rowSamples, row);
+            return;
+        }
+        long start = nextRow();
+        int bitsPerPixel = bitsPerComponent * nrComponents;
+
+        if ((strideX == bitsPerPixel) && ((start & 7) == 0)) {
+            // Not rotated or flipped: the row is a part of the raw data.
+            data.position((int) (start >>> 3));
+            data.get(row, 0, packedRowLength);
+            int padding = (int) (8L * packedRowLength
+                    - (long) bitsPerPixel * width);
+            if (padding > 0) {
+                row[packedRowLength - 1] &= (byte) (0xff << padding);
+            }
+        } else if (bitsPerComponent == 8) {
+            int src = (int) (start >>> 3);
+            int step = (int) (strideX / 8);
+            if (nrComponents == 1) {
+                for (int x = 0; x < width; x++) {
+                    row[x] = data.get(src);
+                    src += step;
+                }
+            } else {
+                int dst = 0;
+                for (int x = 0; x < width; x++) {
+                    for (int v = 0; v < nrComponents; v++) {
+                        row[dst++] = data.get(src + v);
+                    }
+                    src += step;
+                }
+            }
+        } else if ((bitsPerComponent == 1) && (nrComponents == 1)) {
+            long bit = start;
+            int dst = 0;
+            int acc = 0;
+            for (int x = 0; x < width; x++) {
+                int b = (data.get((int) (bit >>> 3)) >> (7 - (int) (bit & 7)))
+                        & 1;
+                acc = (acc << 1) | b;
+                if ((x & 7) == 7) {
+                    row[dst++] = (byte) acc;
+                    acc = 0;
+                }
+                bit += strideX;
+            }
+            if ((width & 7) != 0) {
+                row[dst] = (byte) (acc << (8 - (width & 7)));
+            }
+        } else {
+            long pixel = start;
+            int dst = 0;
+            int acc = 0;
+            int nrBits = 0;
+            for (int x = 0; x < width; x++) {
+                long bit = pixel;
+                for (int v = 0; v < nrComponents; v++) {
+                    acc = (acc << bitsPerComponent) | readSample(bit);
+                    nrBits += bitsPerComponent;
+                    while (nrBits >= 8) {
+                        nrBits -= 8;
+                        row[dst++] = (byte) (acc >> nrBits);
+                    }
+                    bit += bitsPerComponent;
+                }
+                pixel += strideX;
+            }
+            if (nrBits > 0) {
+                row[dst] = (byte) (acc << (8 - nrBits));
+            }
+        }
+    }
+
+    /**
+     * Reads the next row of samples, one array element per component. The
+     * decode array is not yet applied to the values.
+     *
+     * @param row Array in which the row is stored. It must be at least
+     * width * nrComponents elements long.
+     *
+     * @throws PSError A PostScript error occurred.
+     * @throws ProgramError This shouldn't happen, it indicates a bug.
+     */
+    public void readRow(final int[] row) throws PSError, ProgramError {
+        if (srcSamples != null) {
+            readDownsampledRow(row);
+        } else {
+            readSourceRow(row);
+        }
+    }
+
+    /**
+     * Reads the next row of samples before downsampling.
+     *
+     * @param row Array in which the row is stored. It must be at least
+     * srcWidth * nrComponents elements long.
+     *
+     * @throws PSError A PostScript error occurred.
+     * @throws ProgramError This shouldn't happen, it indicates a bug.
+     */
+    private void readSourceRow(final int[] row)
+            throws PSError, ProgramError {
+        long start = nextRow();
+        int dst = 0;
+        if (bitsPerComponent == 8) {
+            int src = (int) (start >>> 3);
+            int step = (int) (strideX / 8);
+            for (int x = 0; x < srcWidth; x++) {
+                for (int v = 0; v < nrComponents; v++) {
+                    row[dst++] = data.get(src + v) & 0xff;
+                }
+                src += step;
+            }
+        } else {
+            long pixel = start;
+            for (int x = 0; x < srcWidth; x++) {
+                long bit = pixel;
+                for (int v = 0; v < nrComponents; v++) {
+                    row[dst++] = readSample(bit);
+                    bit += bitsPerComponent;
+                }
+                pixel += strideX;
+            }
+        }
+    }
+
+    /**
+     * Reads the rows that form the next downsampled row, and combines them.
+     *
+     * @param row Array in which the downsampled row is stored, one element
+     * per component. It must be at least width * nrComponents elements
+     * long.
+     *
+     * @throws PSError A PostScript error occurred.
+     * @throws ProgramError This shouldn't happen, it indicates a bug.
+     */
+    private void readDownsampledRow(final int[] row)
+            throws PSError, ProgramError {
+        int nrRows = Math.min(factorY, srcHeight - rowsRead);
+        int blockLength = factorX * nrComponents;
+        int rowLength = srcWidth * nrComponents;
+
+        if (nearest) {
+            readSourceRow(srcSamples);
+            for (int i = 1; i < nrRows; i++) {
+                nextRow();
+            }
+            int dst = 0;
+            for (int src = 0; src < rowLength; src += blockLength) {
+                for (int v = 0; v < nrComponents; v++) {
+                    row[dst++] = srcSamples[src + v];
+                }
+            }
+            return;
+        }
+
+        Arrays.fill(sums, 0L);
+        for (int i = 0; i < nrRows; i++) {
+            readSourceRow(srcSamples);
+            int dst = 0;
+            for (int src = 0; src < rowLength; src += blockLength) {
+                int end = Math.min(src + blockLength, rowLength);
+                for (int j = src; j < end; j += nrComponents) {
+                    for (int v = 0; v < nrComponents; v++) {
+                        sums[dst + v] += srcSamples[j + v];
+                    }
+                }
+                dst += nrComponents;
+            }
+        }
+
+        // The last block of a row can be narrower than the others.
+        long count = (long) factorX * nrRows;
+        int lastCount = (srcWidth - (width - 1) * factorX) * nrRows;
+        int lastBlock = (width - 1) * nrComponents;
+        for (int i = 0; i < lastBlock; i++) {
+            row[i] = (int) ((sums[i] + count / 2) / count);
+        }
+        for (int i = lastBlock; i < lastBlock + nrComponents; i++) {
+            row[i] = (int) ((sums[i] + lastCount / 2) / lastCount);
+        }
+    }
+
+    /**
+     * Packs samples into bytes, with bitsPerComponent bits per sample. The
+     * last byte is padded with zero bits.
+     *
+     * @param samples The samples.
+     * @param row Array in which the packed samples are stored.
+     */
+    private void packSamples(final int[] samples, final byte[] row) {
+        int dst = 0;
+        int acc = 0;
+        int nrBits = 0;
+        int n = width * nrComponents;
+        for (int i = 0; i < n; i++) {
+            acc = (acc << bitsPerComponent) | samples[i];
+            nrBits += bitsPerComponent;
+            while (nrBits >= 8) {
+                nrBits -= 8;
+                row[dst++] = (byte) (acc >> nrBits);
+            }
+        }
+        if (nrBits > 0) {
+            row[dst] = (byte) (acc << (8 - nrBits));
+        }
+    }
+
+    /**
+     * Reads a single sample from the raw data.
+     *
+     * @param bit Position (in bits) of the most significant bit of the sample.
+     *
+     * @return The sample value.
+     */
+    private int readSample(final long bit) {
+        int i = (int) (bit >>> 3);
+        int value = (data.get(i) & 0xff) << 16;
+        if (i + 1 < data.limit()) {
+            value |= (data.get(i + 1) & 0xff) << 8;
+            if (i + 2 < data.limit()) {
+                value |= data.get(i + 2) & 0xff;
+            }
+        }
+        return (value >>> (24 - (int) (bit & 7) - bitsPerComponent))
+                & sampleMask;
+    }
+}
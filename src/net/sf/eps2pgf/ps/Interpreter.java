@@ -18,7 +18,9 @@
 
 package net.sf.eps2pgf.ps;
 
+import java.io.IOException;
 import java.io.Writer;
+import java.util.logging.Logger;
 
 import net.sf.eps2pgf.Options;
 import net.sf.eps2pgf.ProgramError;
@@ -36,10 +38,15 @@ import net.sf.eps2pgf.ps.objects.PSObjectNull;
 import net.sf.eps2pgf.ps.objects.PSObjectOperator;
 import net.sf.eps2pgf.ps.objects.PSObjectString;
 import net.sf.eps2pgf.ps.resources.ResourceManager;
+import net.sf.eps2pgf.ps.resources.outputdevices.DisplayListDevice;
 import net.sf.eps2pgf.ps.resources.outputdevices.LOLDevice;
 import net.sf.eps2pgf.ps.resources.outputdevices.NullDevice;
+import net.sf.eps2pgf.ps.resources.outputdevices.OutputBackend;
 import net.sf.eps2pgf.ps.resources.outputdevices.OutputDevice;
 import net.sf.eps2pgf.ps.resources.outputdevices.PGFDevice;
+import net.sf.eps2pgf.ps.resources.outputdevices.PipelinedBackend;
+import net.sf.eps2pgf.ps.resources.outputdevices.SVGDevice;
+import net.sf.eps2pgf.ps.resources.outputdevices.TikzDevice;
 import net.sf.eps2pgf.util.ArrayStack;
 
 /**
@@ -48,6 +55,10 @@ import net.sf.eps2pgf.util.ArrayStack;
  * @author Paul Wagenaars
  */
 public class Interpreter {
+    /** The log. */
+    private static final Logger LOG
+                                  = Logger.getLogger("net.sourceforge.eps2pgf");
+    
     /** Virtual Memory (VM) manager. */
     private final VM vm = new VM();
     
@@ -119,6 +130,9 @@ public class Interpreter {
     /** User-defined options. */
     private Options options;
     
+    /** Temporary file to which long paths are spilled, see SegmentLog. */
+    private final PathSpillFile pathSpillFile = SegmentLog.createSpillFile();
+    
     /** Interpreter parameters. */
     private final InterpParams interpParams = new InterpParams(this);
     
@@ -151,24 +165,86 @@ public class Interpreter {
 
         // Create graphics state stack with output device
         OutputDevice output;
+        if (opts.getOutputType() == Options.OutputType.LOL) {
+            output = new LOLDevice(outputWriter);
+        } else {
+            output = createDisplayListDevice(createBackend(outputWriter, opts,
+                    fileHeader.getBoundingBox()), opts);
+        }
+        
+        gstate = new GstateStack(output, this);
+        initializeText(opts, fileHeader, textReplace);
+        
+        // Initialization procedure that is the same for all constructors
+        initialize();
+    }
+    
+    /**
+     * Creates a new instance of interpreter that passes the painting
+     * operations to a back-end, e.g. a DisplayListWriter that stores them.
+     * Text and images are written as for the output type in the options.
+     * 
+     * @param backend The painting operations are passed to this back-end.
+     * @param opts Configuration options.
+     * @param fileHeader The file header.
+     * @param textReplace The text replacements.
+     * 
+     * @throws ProgramError This shouldn't happen, it indicates a bug.
+     * @throws PSError A PostScript error occurred.
+     */
+    public Interpreter(final OutputBackend backend, final Options opts,
+            final DSCHeader fileHeader,
+            final TextReplacements textReplace)
+            throws ProgramError, PSError {
+        
+        options = opts;
+        gstate = new GstateStack(new DisplayListDevice(backend, this), this);
+        initializeText(opts, fileHeader, textReplace);
+        
+        // Initialization procedure that is the same for all constructors
+        initialize();
+    }
+    
+    /**
+     * Creates the back-end that writes the output for the output type in the
+     * options.
+     * 
+     * @param outputWriter Output is written to this writer.
+     * @param opts Configuration options.
+     * @param bbox Bounding box (in pt) of the figure, or null.
+     * 
+     * @return The back-end.
+     * 
+     * @throws ProgramError The output type doesn't use a back-end.
+     */
+    public static OutputBackend createBackend(final Writer outputWriter,
+            final Options opts, final double[] bbox) throws ProgramError {
         switch (opts.getOutputType()) {
             case PGF:
-                output = new PGFDevice(outputWriter, this);
-                break;
-            case LOL:
-                output = new LOLDevice(outputWriter);
-                break;
+                return new PGFDevice(outputWriter, opts);
+            case TIKZ:
+                return new TikzDevice(outputWriter, opts);
+            case SVG:
+                return new SVGDevice(outputWriter, opts, bbox);
             default:
                 throw new ProgramError("Unknown output device ("
                         + opts.getOutputType() + ").");
         }
-        
-        gstate = new GstateStack(output, this);
+    }
+    
+    /**
+     * Creates the text handler and stores the file header.
+     * 
+     * @param opts Configuration options.
+     * @param fileHeader The file header.
+     * @param textReplace The text replacements.
+     */
+    private void initializeText(final Options opts,
+            final DSCHeader fileHeader, final TextReplacements textReplace) {
         textHandler = new TextHandler(gstate, textReplace, opts.getTextmode());
+        textHandler.setPlainText(
+                opts.getOutputType() == Options.OutputType.SVG);
         header = fileHeader;
-        
-        // Initialization procedure that is the same for all constructors
-        initialize();
     }
     
     /**
@@ -196,6 +272,31 @@ public class Interpreter {
         initialize();
     }
     
+    /**
+     * Creates the output device that passes the painting operations to a
+     * back-end, on a separate thread if the pipeline is enabled. With a
+     * single processor, the pipeline only adds overhead and is not used.
+     * 
+     * @param backend The back-end.
+     * @param opts Configuration options.
+     * 
+     * @return The output device.
+     */
+    private OutputDevice createDisplayListDevice(final OutputBackend backend,
+            final Options opts) {
+        OutputBackend pipeline = backend;
+        if (opts.isPipelineEnabled()) {
+            if (Runtime.getRuntime().availableProcessors() > 1) {
+                pipeline = new PipelinedBackend(backend,
+                        opts.getPathSpillThreshold());
+            } else {
+                LOG.info("Only one processor available, the output is not"
+                        + " pipelined.");
+            }
+        }
+        return new DisplayListDevice(pipeline, this);
+    }
+    
     /**
      * Do some initialization tasks.
      * 
@@ -229,7 +330,7 @@ public class Interpreter {
         gstate.current().lineto(right, top);
         gstate.current().lineto(left, top);
         gstate.current().getPath().closepath();
-        defaultClippingPath = gstate.current().getPath();
+        defaultClippingPath = gstate.current().getPath().clone();
         executeOperator("newpath");
         if (bbox != null) {
             executeOperator("initclip");
@@ -373,6 +474,15 @@ public class Interpreter {
         return options;
     }
 
+    /**
+     * Gets the temporary file to which long paths are spilled.
+     * 
+     * @return The spill file.
+     */
+    public PathSpillFile getPathSpillFile() {
+        return pathSpillFile;
+    }
+
     /**
      * Start interpreting PostScript document.
      * 
@@ -399,7 +509,23 @@ public class Interpreter {
             throw new ProgramError("Encountered a PostScript error were they"
                     + " should not occur. ");
         } finally {
-            this.gstate.current().getDevice().finish();
+            try {
+                this.gstate.current().getDevice().finish();
+            } finally {
+                closePathSpillFile();
+            }
+        }
+    }
+    
+    /**
+     * Closes and deletes the temporary file to which paths are spilled.
+     */
+    private void closePathSpillFile() {
+        try {
+            pathSpillFile.close();
+        } catch (IOException e) {
+            LOG.warning("Unable to close temporary file with paths ("
+                    + e.getMessage() + ").");
         }
     }
     
@@ -514,8 +514,9 @@ public final class OperatorsAtoC extends OperatorContainer {
          */
         @Override
         public void invoke() throws PSError, ProgramError {
-            gsCurrent().clip();
-            gsCurrent().getDevice().clip(gsCurrent().getClippingPath());
+            if (gsCurrent().clip()) {
+                gsCurrent().getDevice().clip(gsCurrent().getClippingPath());
+            }
         }
     }
 
@@ -636,7 +637,7 @@ public final class OperatorsAtoC extends OperatorContainer {
             PSObject dataSource;
             if (multi) {
                 PSObject[] sources = new PSObject[ncomp];
-                for (int i = (ncomp - 1); i >= 0; i++) {
+                for (int i = (ncomp - 1); i >= 0; i--) {
                     sources[i] = osPop();
                 }
                 dataSource = new PSObjectArray(sources, getInterp());
@@ -658,6 +659,7 @@ public final class OperatorsAtoC extends OperatorContainer {
             dict.setKey(Image.HEIGHT, new PSObjectInt(height));
             dict.setKey(Image.IMAGE_MATRIX, matrix);
             dict.setKey(Image.DATA_SOURCE, dataSource);
+            dict.setKey(Image.MULTIPLE_DATA_SOURCES, new PSObjectBool(multi));
             dict.setKey(Image.BITS_PER_COMPONENT,
                     new PSObjectInt(bitsPerComponent));        
             double[] decode = new double[2 * ncomp];
@@ -668,7 +670,11 @@ public final class OperatorsAtoC extends OperatorContainer {
             dict.setKey(Image.DECODE, new PSObjectArray(decode, getInterp()));
             
             Image image = new Image(dict, getInterp(), colorSpace);
-            gsCurrent().getDevice().image(image);
+            try {
+                gsCurrent().getDevice().image(image);
+            } finally {
+                image.discardData();
+            }
         }
     }
 
@@ -685,7 +691,7 @@ public final class OperatorsAtoC extends OperatorContainer {
         @Override
         public void invoke() throws PSError, ProgramError {
             Matrix matrix = osPop().toArray().toMatrix();
-            gsCurrent().getCtm().concat(matrix);
+            gsCurrent().concat(matrix);
             gsCurrent().updatePosition();
         }
     }
@@ -343,8 +343,9 @@ public final class OperatorsDtoF extends OperatorContainer {
         @Override
         public void invoke() throws PSError, ProgramError {
             GstateStack gstate = getGstate();
-            gstate.current().clip();
-            gstate.current().getDevice().eoclip(gstate.current());
+            if (gstate.current().clip()) {
+                gstate.current().getDevice().eoclip(gstate.current());
+            }
         }
     }
     
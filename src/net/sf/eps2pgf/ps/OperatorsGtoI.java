@@ -22,7 +22,6 @@ import net.sf.eps2pgf.ProgramError;
 import net.sf.eps2pgf.ps.errors.PSError;
 import net.sf.eps2pgf.ps.errors.PSErrorInvalidAccess;
 import net.sf.eps2pgf.ps.errors.PSErrorTypeCheck;
-import net.sf.eps2pgf.ps.errors.PSErrorUnregistered;
 import net.sf.eps2pgf.ps.objects.PSObject;
 import net.sf.eps2pgf.ps.objects.PSObjectArray;
 import net.sf.eps2pgf.ps.objects.PSObjectBool;
@@ -408,7 +407,11 @@ public final class OperatorsGtoI extends OperatorContainer {
             }
             
             Image image = new Image(dict, getInterp(), colorSpace);
-            getGstate().current().getDevice().image(image);
+            try {
+                getGstate().current().getDevice().image(image);
+            } finally {
+                image.discardData();
+            }
         }
     }
     
@@ -424,7 +427,45 @@ public final class OperatorsGtoI extends OperatorContainer {
          */
         @Override
         public void invoke() throws PSError, ProgramError {
-            throw new PSErrorUnregistered("imagemask operator");
+            PSObject dictOrDataSrc = getOpStack().pop();
+            PSObjectDict dict;
+            
+            if (dictOrDataSrc instanceof PSObjectDict) {
+                // We have the one argument imagemask operand
+                // dict imagemask.
+                dict = dictOrDataSrc.toDict();
+            } else {
+                // We have the five argument imagemask operand
+                // width height polarity matrix datasrc imagemask.
+                PSObjectArray matrix = getOpStack().pop().toArray();
+                Matrix.checkArray(matrix);
+                boolean polarity = getOpStack().pop().toBool();
+                int height = getOpStack().pop().toInt();
+                int width = getOpStack().pop().toInt();
+                
+                dict = new PSObjectDict(getInterp());
+                dict.setKey(Image.IMAGE_TYPE, new PSObjectInt(1));
+                dict.setKey(Image.WIDTH, new PSObjectInt(width));
+                dict.setKey(Image.HEIGHT, new PSObjectInt(height));
+                dict.setKey(Image.IMAGE_MATRIX, matrix);
+                dict.setKey(Image.DATA_SOURCE, dictOrDataSrc);
+                dict.setKey(Image.BITS_PER_COMPONENT, new PSObjectInt(1));
+                // With polarity true, samples with value 1 are painted.
+                double[] decode = {0.0, 1.0};
+                if (polarity) {
+                    decode = new double[] {1.0, 0.0};
+                }
+                dict.setKey(Image.DECODE,
+                        new PSObjectArray(decode, getInterp()));
+            }
+            
+            Image image = new Image(dict, getInterp(),
+                    getGstate().current().getColor(), true);
+            try {
+                getGstate().current().getDevice().image(image);
+            } finally {
+                image.discardData();
+            }
         }
     }
     
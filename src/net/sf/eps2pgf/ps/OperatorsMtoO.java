@@ -252,7 +252,7 @@ public final class OperatorsMtoO extends OperatorContainer {
          */
         @Override
         public void invoke() throws PSError, ProgramError {
-            getGstate().current().setPath(new Path(getGstate()));
+            getGstate().current().getPath().clear();
             getGstate().current().setPosition(Double.NaN, Double.NaN);
         }
     }
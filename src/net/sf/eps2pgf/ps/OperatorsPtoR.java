@@ -20,6 +20,7 @@ package net.sf.eps2pgf.ps;
 
 import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.List;
 import java.util.logging.Logger;
 
 import net.sf.eps2pgf.ProgramError;
@@ -38,6 +39,7 @@ import net.sf.eps2pgf.ps.objects.PSObjectOperator;
 import net.sf.eps2pgf.ps.objects.PSObjectReal;
 import net.sf.eps2pgf.ps.objects.PSObjectSave;
 import net.sf.eps2pgf.ps.objects.PSObjectString;
+import net.sf.eps2pgf.ps.resources.filters.ASCIIHexDecode;
 import net.sf.eps2pgf.util.ArrayStack;
 
 
@@ -99,7 +101,7 @@ public final class OperatorsPtoR extends OperatorContainer {
             PSObjectArray line = os.pop().toProc();
             PSObjectArray move = os.pop().toProc();
             
-            ArrayList<PathSection> sects = gsCurrent().getPath().getSections();
+            List<PathSection> sects = gsCurrent().getPath().getSections();
             PSObjectArray path = new PSObjectArray(getInterp());
             for (int i = 0; i < sects.size(); i++) {
                 path.addToEnd(sects.get(i));
@@ -294,9 +296,11 @@ public final class OperatorsPtoR extends OperatorContainer {
                 throw new PSErrorTypeCheck();
             }
             nextObj.checkAccess(false, false, true);
-            getOpStack().push(new PSObjectName("/ASCIIHexDecode"));
-            getInterp().executeOperator("filter");
-            PSObjectFile file = getOpStack().pop().toFile();
+            getOpStack().pop();
+            // Unlike the ASCIIHexDecode filter, readhexstring doesn't stop
+            // at a '>'.
+            PSObjectFile file = new PSObjectFile(new ASCIIHexDecode(
+                    nextObj.toFile().getStream(), null), getInterp());
             
             PSObjectString substring = file.readstring(string);
             boolean bool = (string.length() == substring.length());
@@ -460,7 +464,7 @@ public final class OperatorsPtoR extends OperatorContainer {
             rectPath();
             
             if (matrix != null) {
-                gsCurrent().getCtm().concat(matrix);
+                gsCurrent().concat(matrix);
                 gsCurrent().updatePosition();
             }
             
@@ -654,7 +658,7 @@ public final class OperatorsPtoR extends OperatorContainer {
                 getOpStack().push(array);
             } else {
                 angle = obj.toReal();
-                gsCurrent().getCtm().rotate(angle);
+                gsCurrent().rotate(angle);
                 gsCurrent().updatePosition();
             }
         }
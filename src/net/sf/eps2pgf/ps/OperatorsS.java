@@ -108,7 +108,7 @@ public final class OperatorsS extends OperatorContainer {
             } else {
                 sy = obj.toReal();
                 sx = getOpStack().pop().toReal();
-                getGstate().current().getCtm().scale(sx, sy);
+                getGstate().current().scale(sx, sy);
                 getGstate().current().updatePosition();
             }
         }
@@ -575,7 +575,7 @@ public final class OperatorsS extends OperatorContainer {
         @Override
         public void invoke() throws PSError, ProgramError {
             Matrix matrix = getOpStack().pop().toArray().toMatrix();
-            getGstate().current().getCtm().copy(matrix);
+            getGstate().current().setCtm(matrix);
             getGstate().current().updatePosition();
         }
     }
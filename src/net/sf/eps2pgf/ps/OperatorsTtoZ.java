@@ -139,7 +139,7 @@ public final class OperatorsTtoZ extends OperatorContainer {
             } else {
                 ty = obj.toReal();
                 tx = getOpStack().pop().toReal();
-                getGstate().current().getCtm().translate(tx, ty);
+                getGstate().current().translate(tx, ty);
                 getGstate().current().updatePosition();
             }
         }
@@ -19,6 +19,7 @@
 package net.sf.eps2pgf.ps;
 
 import java.util.ArrayList;
+import java.util.List;
 
 import net.sf.eps2pgf.ProgramError;
 import net.sf.eps2pgf.ps.errors.PSError;
@@ -34,7 +35,7 @@ import net.sf.eps2pgf.ps.errors.PSErrorTypeCheck;
 public class Path implements Cloneable {
     
     /** List with sections of this path. */
-    private ArrayList<PathSection> sections = new ArrayList<PathSection>();
+    private SegmentLog sections;
     
     /** Reference to the graphics state stack this path is part of. */
     private GstateStack gStateStack;
@@ -47,6 +48,10 @@ public class Path implements Cloneable {
      */
     public Path(final GstateStack graphicsStateStack) {
         gStateStack = graphicsStateStack;
+        Interpreter interp = gStateStack.getInterp();
+        sections = new SegmentLog(
+                interp.getOptions().getPathSpillThreshold(),
+                interp.getPathSpillFile());
     }
     
     /**
@@ -85,6 +90,14 @@ public class Path implements Cloneable {
         return bbox;
     }
     
+    /**
+     * Removes all sections from this path. Spilled sections are released,
+     * such that other paths can reuse the space in the temporary file.
+     */
+    public void clear() {
+        sections.clear();
+    }
+    
     /**
      * Create a clone of this object.
      * 
@@ -99,10 +112,7 @@ public class Path implements Cloneable {
             copy = null;
         }
         
-        copy.sections = new ArrayList<PathSection>();
-        for (int i = 0; i < sections.size(); i++) {
-            copy.sections.add(sections.get(i).clone());
-        }
+        copy.sections = sections.clone();
         
         return copy;
     }
@@ -219,6 +229,72 @@ public class Path implements Cloneable {
         getSections().add(new Curveto(control1, control2, end));
     }
     
+    /**
+     * Converts this path to a polygon. This is only possible if the path
+     * consists of a single subpath with only straight line segments.
+     * 
+     * @return List with {x, y} vertices (in device coordinates) without
+     * duplicate and collinear vertices, or null if this path is not a polygon.
+     */
+    List<double[]> toPolygon() {
+        int n = sections.size();
+        if ((n > 1) && (sections.get(n - 1) instanceof Moveto)) {
+            // A trailing moveto has no effect
+            n--;
+        }
+        if ((n < 1) || !(sections.get(0) instanceof Moveto)) {
+            return null;
+        }
+        
+        List<double[]> polygon = new ArrayList<double[]>(n);
+        polygon.add(sections.get(0).deviceCoor());
+        for (int i = 1; i < n; i++) {
+            PathSection section = sections.get(i);
+            if (section instanceof Lineto) {
+                polygon.add(section.deviceCoor());
+            } else if (!(section instanceof Closepath) || (i != n - 1)) {
+                return null;
+            }
+        }
+        
+        polygon = PolygonClipper.simplify(polygon);
+        if (polygon.isEmpty()) {
+            return null;
+        }
+        return polygon;
+    }
+    
+    /**
+     * Creates a new closed path from a polygon. The new path is linked to the
+     * same graphics state stack as this path.
+     * 
+     * @param polygon List with {x, y} vertices in device coordinates. If the
+     * list is empty, a path enclosing no area is created at the position of
+     * the first section of this path.
+     * 
+     * @return The new path.
+     */
+    Path newPolygonPath(final List<double[]> polygon) {
+        Path polyPath = new Path(gStateStack);
+        if (polygon.isEmpty()) {
+            double[] coor = {0.0, 0.0};
+            if (!sections.isEmpty()) {
+                coor = sections.get(0).deviceCoor();
+            }
+            polyPath.moveto(coor[0], coor[1]);
+            polyPath.lineto(coor[0], coor[1]);
+        } else {
+            double[] first = polygon.get(0);
+            polyPath.moveto(first[0], first[1]);
+            for (int i = 1; i < polygon.size(); i++) {
+                double[] coor = polygon.get(i);
+                polyPath.lineto(coor[0], coor[1]);
+            }
+        }
+        polyPath.getSections().add(new Closepath());
+        return polyPath;
+    }
+    
     /**
      * Creates a human-readable string representation of this object.
      * @return Human-readable string representation of this path
@@ -233,9 +309,12 @@ public class Path implements Cloneable {
     }
 
     /**
+     * Gets the sections of this path. The returned sections are copies,
+     * changing them has no effect on this path.
+     * 
      * @return the sections
      */
-    public ArrayList<PathSection> getSections() {
+    public List<PathSection> getSections() {
         return sections;
     }
     
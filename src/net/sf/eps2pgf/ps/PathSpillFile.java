@@ -0,0 +1,232 @@
+/*
+ * This file is part of Eps2pgf.
+ *
+ * Copyright 2007-2009 Paul Wagenaars
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sf.eps2pgf.ps;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Temporary file to which the sections of long paths are spilled, see
+ * SegmentLog. A single file is shared by all paths of a conversion. It is
+ * divided in regions of equal size, which are memory-mapped. Regions are
+ * reused once the path that used it is cleared, or garbage collected.
+ *
+ * The file is created when the first region is mapped, and deleted by
+ * close(). A spill file must only be used by a single thread.
+ *
+ * @author Paul Wagenaars
+ */
+public class PathSpillFile {
+
+    /** Size (in bytes) of a region. */
+    private int regionSize;
+
+    /** The temporary file, or null if it has not been created yet. */
+    private File file = null;
+
+    /** The channel of the temporary file. */
+    private FileChannel channel = null;
+
+    /** Indicates whether this spill file has been closed. */
+    private boolean closed = false;
+
+    /** Position in the file after the last region. */
+    private long endPosition = 0;
+
+    /** Positions of regions that can be reused. */
+    private long[] free = new long[16];
+
+    /** Number of positions in free. */
+    private int nrFree = 0;
+
+    /** Regions in use, by position. */
+    private Map<Long, Region> regions = new HashMap<Long, Region>();
+
+    /** Regions of which the buffer has been garbage collected. */
+    private ReferenceQueue<ByteBuffer> collected
+                                            = new ReferenceQueue<ByteBuffer>();
+
+    /**
+     * Creates a new spill file. The actual file is created when it is needed.
+     *
+     * @param pRegionSize Size (in bytes) of a region.
+     */
+    public PathSpillFile(final int pRegionSize) {
+        regionSize = pRegionSize;
+    }
+
+    /**
+     * Gets the size of a region.
+     *
+     * @return The size (in bytes) of a region.
+     */
+    public int getRegionSize() {
+        return regionSize;
+    }
+
+    /**
+     * Maps a region of the file. A free region is reused if possible,
+     * otherwise the file is extended.
+     *
+     * @return Buffer that is backed by the region.
+     *
+     * @throws IOException Unable to create the file or to map the region.
+     */
+    public ByteBuffer map() throws IOException {
+        if (closed) {
+            throw new IOException("Path spill file has already been closed.");
+        }
+        if (channel == null) {
+            file = File.createTempFile("eps2pgf", ".seg");
+            file.deleteOnExit();
+            channel = new RandomAccessFile(file, "rw").getChannel();
+        }
+        reclaimCollected();
+
+        long position;
+        if (nrFree > 0) {
+            position = free[--nrFree];
+        } else {
+            position = endPosition;
+        }
+        ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE,
+                position, regionSize);
+        if (position == endPosition) {
+            endPosition += regionSize;
+        }
+        regions.put(position, new Region(buffer, position, collected));
+        return buffer;
+    }
+
+    /**
+     * Releases a region, such that it can be reused. The buffer must no
+     * longer be used afterwards. Buffers that weren't mapped from this file
+     * are ignored.
+     *
+     * @param buffer Buffer returned by map().
+     */
+    public void release(final ByteBuffer buffer) {
+        if (!buffer.isDirect()) {
+            return;
+        }
+        for (Region region : regions.values()) {
+            if (region.get() == buffer) {
+                regions.remove(region.position);
+                region.clear();
+                addFree(region.position);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Gets the size of the file.
+     *
+     * @return The size (in bytes) of the part of the file that is in use or
+     * free.
+     */
+    public long getSize() {
+        return endPosition;
+    }
+
+    /**
+     * Closes and deletes the file. Buffers that are already mapped stay valid
+     * on most systems. No new regions can be mapped after this.
+     *
+     * @throws IOException Unable to close the file.
+     */
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        regions.clear();
+        nrFree = 0;
+        if (channel != null) {
+            try {
+                channel.close();
+            } finally {
+                // On some systems, a file that is mapped can't be deleted. It
+                // is deleted on exit in that case.
+                file.delete();
+                channel = null;
+                file = null;
+            }
+        }
+    }
+
+    /**
+     * Makes the regions of which the buffers have been garbage collected
+     * available for reuse. This covers paths that are discarded without
+     * being cleared, e.g. by grestore.
+     */
+    private void reclaimCollected() {
+        Region region;
+        while ((region = (Region) collected.poll()) != null) {
+            if (regions.get(region.position) == region) {
+                regions.remove(region.position);
+                addFree(region.position);
+            }
+        }
+    }
+
+    /**
+     * Adds a position to the list with free regions.
+     *
+     * @param position Position of the free region.
+     */
+    private void addFree(final long position) {
+        if (nrFree == free.length) {
+            long[] newFree = new long[2 * free.length];
+            System.arraycopy(free, 0, newFree, 0, nrFree);
+            free = newFree;
+        }
+        free[nrFree++] = position;
+    }
+
+    /**
+     * Mapped region of the file. The buffer is referenced weakly, such that
+     * the region is reclaimed when no path uses it anymore.
+     */
+    private static class Region extends WeakReference<ByteBuffer> {
+        /** Position of the region in the file. */
+        private long position;
+
+        /**
+         * Creates a new region.
+         *
+         * @param buffer Buffer that is backed by the region.
+         * @param pPosition Position of the region in the file.
+         * @param queue Queue to which the region is added when the buffer has
+         * been garbage collected.
+         */
+        Region(final ByteBuffer buffer, final long pPosition,
+                final ReferenceQueue<ByteBuffer> queue) {
+            super(buffer, queue);
+            position = pPosition;
+        }
+    }
+}
@@ -0,0 +1,368 @@
+/*
+ * This file is part of Eps2pgf.
+ *
+ * Copyright 2007-2009 Paul Wagenaars
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sf.eps2pgf.ps;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Computes the intersection of two polygons. This is used to determine the
+ * effective clipping path, such that nested clips can be replaced by a single
+ * clipping path in the output.
+ *
+ * The intersection is computed with the Sutherland-Hodgman algorithm, which
+ * is exact as long as (at least) one of the two polygons is convex. The other
+ * polygon must be simple, i.e. it may not intersect itself. Both the nonzero
+ * and the even-odd rule then give the same result.
+ *
+ * @author Paul Wagenaars
+ */
+final class PolygonClipper {
+
+    /**
+     * Points that are closer than this distance (in device units,
+     * micrometer) are considered equal, or to lie on a line.
+     */
+    static final double EPS = 1e-3;
+
+    /**
+     * Polygons with more vertices than this are not checked for
+     * self-intersections (which is O(n^2)), and are therefore never clipped.
+     */
+    static final int MAX_SIMPLE_CHECK = 500;
+
+    /**
+     * "Hidden" constructor.
+     */
+    private PolygonClipper() {
+        /* empty block */
+    }
+
+    /**
+     * Computes the intersection of two polygons.
+     *
+     * @param polyA First polygon, list of {x, y} vertices.
+     * @param polyB Second polygon, list of {x, y} vertices.
+     *
+     * @return The intersection (possibly with zero vertices if the polygons
+     * do not overlap), or null if the intersection can not be computed
+     * exactly by this class.
+     */
+    static List<double[]> intersect(final List<double[]> polyA,
+            final List<double[]> polyB) {
+
+        if (isConvex(polyA) && isSimple(polyB)) {
+            return clip(polyB, polyA);
+        } else if (isConvex(polyB) && isSimple(polyA)) {
+            return clip(polyA, polyB);
+        } else {
+            return null;
+        }
+    }
+
+    /**
+     * Checks whether all vertices of a polygon are inside (or on the edge of)
+     * a convex polygon.
+     *
+     * @param poly The polygon to check.
+     * @param convex The convex polygon.
+     *
+     * @return True if poly lies completely within convex.
+     */
+    static boolean isInside(final List<double[]> poly,
+            final List<double[]> convex) {
+        double orientation = Math.signum(signedArea(convex));
+        int n = convex.size();
+        for (double[] pt : poly) {
+            for (int i = 0; i < n; i++) {
+                double[] e0 = convex.get(i);
+                double[] e1 = convex.get((i + 1) % n);
+                if (orientation * distance(e0, e1, pt) < -EPS) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Clips a subject polygon with a convex clipping polygon
+     * (Sutherland-Hodgman).
+     *
+     * @param subject The polygon to clip.
+     * @param window The convex clipping polygon.
+     *
+     * @return The clipped polygon.
+     */
+    static List<double[]> clip(final List<double[]> subject,
+            final List<double[]> window) {
+
+        double orientation = Math.signum(signedArea(window));
+        List<double[]> output = subject;
+        int n = window.size();
+        for (int i = 0; (i < n) && !output.isEmpty(); i++) {
+            double[] e0 = window.get(i);
+            double[] e1 = window.get((i + 1) % n);
+            List<double[]> input = output;
+            output = new ArrayList<double[]>(input.size() + 4);
+
+            double[] prev = input.get(input.size() - 1);
+            double prevSide = orientation * distance(e0, e1, prev);
+            for (double[] cur : input) {
+                double curSide = orientation * distance(e0, e1, cur);
+                if (curSide >= -EPS) {
+                    if (prevSide < -EPS) {
+                        output.add(intersection(prev, prevSide, cur, curSide));
+                    }
+                    output.add(cur);
+                } else if (prevSide >= -EPS) {
+                    output.add(intersection(prev, prevSide, cur, curSide));
+                }
+                prev = cur;
+                prevSide = curSide;
+            }
+        }
+
+        return simplify(output);
+    }
+
+    /**
+     * Checks whether a polygon is convex. Collinear vertices are allowed, but
+     * the polygon may wind only once around its interior.
+     *
+     * @param poly The polygon.
+     *
+     * @return True if the polygon is convex.
+     */
+    static boolean isConvex(final List<double[]> poly) {
+        int n = poly.size();
+        if (n < 3) {
+            return false;
+        }
+
+        double sign = 0.0;
+        double totalAngle = 0.0;
+        for (int i = 0; i < n; i++) {
+            double[] p0 = poly.get(i);
+            double[] p1 = poly.get((i + 1) % n);
+            double[] p2 = poly.get((i + 2) % n);
+            double cross = side(p0, p1, p2);
+            double dot = (p1[0] - p0[0]) * (p2[0] - p1[0])
+                    + (p1[1] - p0[1]) * (p2[1] - p1[1]);
+            if (Math.abs(distance(p0, p1, p2)) > EPS) {
+                if (sign == 0.0) {
+                    sign = Math.signum(cross);
+                } else if (Math.signum(cross) != sign) {
+                    return false;
+                }
+            } else if (dot < 0.0) {
+                // The polygon doubles back on itself.
+                return false;
+            }
+            totalAngle += Math.atan2(cross, dot);
+        }
+
+        // A convex polygon turns exactly once (2*pi).
+        return (sign != 0.0) && (Math.abs(Math.abs(totalAngle) - 2 * Math.PI)
+                < 1e-6);
+    }
+
+    /**
+     * Checks whether a polygon is simple, i.e. none of its edges intersect,
+     * except neighboring edges at their common vertex.
+     *
+     * @param poly The polygon.
+     *
+     * @return True if the polygon is simple. If the polygon has too many
+     * vertices to check, false is returned.
+     */
+    static boolean isSimple(final List<double[]> poly) {
+        int n = poly.size();
+        if ((n < 3) || (n > MAX_SIMPLE_CHECK)) {
+            return false;
+        }
+        for (int i = 0; i < n; i++) {
+            double[] a0 = poly.get(i);
+            double[] a1 = poly.get((i + 1) % n);
+            for (int j = i + 1; j < n; j++) {
+                if ((j == i + 1) || ((i == 0) && (j == n - 1))) {
+                    // Neighboring edges
+                    continue;
+                }
+                double[] b0 = poly.get(j);
+                double[] b1 = poly.get((j + 1) % n);
+                if (segmentsIntersect(a0, a1, b0, b1)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Checks whether two line segments intersect (or touch).
+     *
+     * @param a0 Start of first segment.
+     * @param a1 End of first segment.
+     * @param b0 Start of second segment.
+     * @param b1 End of second segment.
+     *
+     * @return True if the segments have at least one point in common.
+     */
+    private static boolean segmentsIntersect(final double[] a0,
+            final double[] a1, final double[] b0, final double[] b1) {
+
+        // Quick rejection based on bounding boxes
+        if ((Math.max(a0[0], a1[0]) < Math.min(b0[0], b1[0]) - EPS)
+                || (Math.max(b0[0], b1[0]) < Math.min(a0[0], a1[0]) - EPS)
+                || (Math.max(a0[1], a1[1]) < Math.min(b0[1], b1[1]) - EPS)
+                || (Math.max(b0[1], b1[1]) < Math.min(a0[1], a1[1]) - EPS)) {
+            return false;
+        }
+
+        double d1 = distance(b0, b1, a0);
+        double d2 = distance(b0, b1, a1);
+        double d3 = distance(a0, a1, b0);
+        double d4 = distance(a0, a1, b1);
+
+        if ((((d1 > EPS) && (d2 < -EPS)) || ((d1 < -EPS) && (d2 > EPS)))
+                && (((d3 > EPS) && (d4 < -EPS)) || ((d3 < -EPS)
+                        && (d4 > EPS)))) {
+            return true;
+        }
+
+        // Touching or collinear segments. The bounding boxes overlap, so if
+        // one of the end points lies on the other segment they touch.
+        return (Math.abs(d1) <= EPS) || (Math.abs(d2) <= EPS)
+                || (Math.abs(d3) <= EPS) || (Math.abs(d4) <= EPS);
+    }
+
+    /**
+     * Determines on which side of a line a point lies.
+     *
+     * @param e0 First point on the line.
+     * @param e1 Second point on the line.
+     * @param pt The point.
+     *
+     * @return Positive value if the point is on the left side, negative if it
+     * is on the right side, and zero if it is on the line.
+     */
+    private static double side(final double[] e0, final double[] e1,
+            final double[] pt) {
+        return (e1[0] - e0[0]) * (pt[1] - e0[1])
+                - (e1[1] - e0[1]) * (pt[0] - e0[0]);
+    }
+
+    /**
+     * Determines the signed distance from a point to a line.
+     *
+     * @param e0 First point on the line.
+     * @param e1 Second point on the line.
+     * @param pt The point.
+     *
+     * @return Distance, positive if the point is on the left side of the line.
+     * If e0 and e1 coincide, the distance to e0 is returned.
+     */
+    private static double distance(final double[] e0, final double[] e1,
+            final double[] pt) {
+        double length = Math.sqrt((e1[0] - e0[0]) * (e1[0] - e0[0])
+                + (e1[1] - e0[1]) * (e1[1] - e0[1]));
+        if (length <= EPS) {
+            return Math.sqrt((pt[0] - e0[0]) * (pt[0] - e0[0])
+                    + (pt[1] - e0[1]) * (pt[1] - e0[1]));
+        }
+        return side(e0, e1, pt) / length;
+    }
+
+    /**
+     * Computes the intersection of a polygon edge with a clipping line.
+     *
+     * @param p0 Start of the edge.
+     * @param side0 Signed distance of p0 to the clipping line.
+     * @param p1 End of the edge.
+     * @param side1 Signed distance of p1 to the clipping line.
+     *
+     * @return The intersection point.
+     */
+    private static double[] intersection(final double[] p0, final double side0,
+            final double[] p1, final double side1) {
+        double t = side0 / (side0 - side1);
+        double[] pt = {p0[0] + t * (p1[0] - p0[0]),
+                p0[1] + t * (p1[1] - p0[1])};
+        return pt;
+    }
+
+    /**
+     * Calculates the signed area of a polygon.
+     *
+     * @param poly The polygon.
+     *
+     * @return Area, positive for counterclockwise polygons.
+     */
+    static double signedArea(final List<double[]> poly) {
+        double area = 0.0;
+        int n = poly.size();
+        for (int i = 0; i < n; i++) {
+            double[] p0 = poly.get(i);
+            double[] p1 = poly.get((i + 1) % n);
+            area += p0[0] * p1[1] - p1[0] * p0[1];
+        }
+        return 0.5 * area;
+    }
+
+    /**
+     * Removes duplicate and collinear vertices from a polygon.
+     *
+     * @param poly The polygon.
+     *
+     * @return The simplified polygon. If less than three vertices remain, an
+     * empty list is returned.
+     */
+    static List<double[]> simplify(final List<double[]> poly) {
+        List<double[]> result = new ArrayList<double[]>(poly);
+        boolean changed = true;
+        while (changed && (result.size() >= 3)) {
+            changed = false;
+            for (int i = 0; i < result.size(); i++) {
+                int n = result.size();
+                double[] p0 = result.get((i + n - 1) % n);
+                double[] p1 = result.get(i);
+                double[] p2 = result.get((i + 1) % n);
+                boolean duplicate = (Math.abs(p1[0] - p0[0]) <= EPS)
+                        && (Math.abs(p1[1] - p0[1]) <= EPS);
+                double dot = (p1[0] - p0[0]) * (p2[0] - p1[0])
+                        + (p1[1] - p0[1]) * (p2[1] - p1[1]);
+                boolean collinear = (Math.abs(distance(p0, p2, p1)) <= EPS)
+                        && (dot >= 0.0);
+                if (duplicate || collinear) {
+                    result.remove(i);
+                    changed = true;
+                    i--;
+                    if (result.size() < 3) {
+                        break;
+                    }
+                }
+            }
+        }
+        if (result.size() < 3) {
+            result.clear();
+        }
+        return result;
+    }
+}
@@ -0,0 +1,429 @@
+/*
+ * This file is part of Eps2pgf.
+ *
+ * Copyright 2007-2009 Paul Wagenaars
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sf.eps2pgf.ps;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.RandomAccess;
+import java.util.logging.Logger;
+
+/**
+ * Compact list with the sections of a path. Instead of keeping a PathSection
+ * object for each section, the type and coordinates of the sections are
+ * stored in fixed-size records in byte buffers (chunks). The PathSection
+ * objects returned by get() are created on the fly, changing them has no
+ * effect on this list.
+ *
+ * If the number of sections exceeds the spill threshold, new chunks are
+ * memory-mapped from a temporary file instead of allocated on the heap. This
+ * bounds the heap usage of paths with millions of sections. All paths of a
+ * conversion share the same temporary file, see PathSpillFile. The regions
+ * of the file are released when the list is cleared.
+ *
+ * Appending sections, and removing the last section, is cheap. Inserting,
+ * replacing or removing another section rebuilds the list from that section
+ * on. Clones share the chunks with the original list. A shared chunk is
+ * copied before it is changed (copy-on-write), such that cloning a long path
+ * is cheap.
+ *
+ * @author Paul Wagenaars
+ */
+public class SegmentLog extends AbstractList<PathSection>
+        implements RandomAccess, Cloneable {
+
+    /** The log. */
+    private static final Logger LOG
+                                  = Logger.getLogger("net.sourceforge.eps2pgf");
+
+    /** Type of a moveto section. */
+    private static final byte MOVETO = 0;
+
+    /** Type of a lineto section. */
+    private static final byte LINETO = 1;
+
+    /** Type of a curveto section. */
+    private static final byte CURVETO = 2;
+
+    /** Type of a closepath section. */
+    private static final byte CLOSEPATH = 3;
+
+    /** Number of parameters stored for each section. */
+    private static final int NR_PARAMS = 6;
+
+    /** Size (in bytes) of a record: the type (padded) and the parameters. */
+    private static final int RECORD_SIZE = 8 * (NR_PARAMS + 1);
+
+    /** Base-2 logarithm of the number of records in a full chunk. */
+    private static final int CHUNK_SHIFT = 13;
+
+    /** Number of records in a full chunk. */
+    private static final int CHUNK_RECORDS = 1 << CHUNK_SHIFT;
+
+    /** Initial number of records in the first chunk. */
+    private static final int INITIAL_RECORDS = 8;
+
+    /** The chunks with records. */
+    private ByteBuffer[] chunks = new ByteBuffer[1];
+
+    /** Number of chunks in use. */
+    private int nrChunks = 0;
+
+    /** Chunks with an index lower than this are shared with clones. */
+    private int ownedFrom = 0;
+
+    /** Number of sections in this list. */
+    private int size = 0;
+
+    /**
+     * Number of sections that is stored on the heap. Above this number
+     * sections are spilled to a temporary file. Zero disables spilling.
+     */
+    private int spillThreshold;
+
+    /** Temporary file to which chunks are spilled, or null. */
+    private PathSpillFile spillFile;
+
+    /**
+     * Creates a new empty segment log.
+     *
+     * @param pSpillThreshold Number of sections that is stored on the heap.
+     * Zero disables spilling.
+     * @param pSpillFile Temporary file to which chunks are spilled, created
+     * with createSpillFile(). If it is null, spilling is disabled.
+     */
+    public SegmentLog(final int pSpillThreshold,
+            final PathSpillFile pSpillFile) {
+        spillFile = pSpillFile;
+        if (spillFile != null) {
+            spillThreshold = Math.max(pSpillThreshold, 0);
+        } else {
+            spillThreshold = 0;
+        }
+    }
+
+    /**
+     * Creates a temporary file to which the chunks of segment logs can be
+     * spilled. It should be closed when the conversion is finished.
+     *
+     * @return The new spill file.
+     */
+    public static PathSpillFile createSpillFile() {
+        return new PathSpillFile(CHUNK_RECORDS * RECORD_SIZE);
+    }
+
+    /**
+     * Appends a section to the end of this list.
+     *
+     * @param section The section to add.
+     *
+     * @return Always true.
+     */
+    @Override
+    public boolean add(final PathSection section) {
+        byte type = typeOf(section);
+        ByteBuffer chunk = writableChunk(size);
+        int offset = (size & (CHUNK_RECORDS - 1)) * RECORD_SIZE;
+        chunk.put(offset, type);
+        for (int i = 0; i < NR_PARAMS; i++) {
+            chunk.putDouble(offset + 8 * (i + 1), section.getParam(i));
+        }
+        size++;
+        modCount++;
+        return true;
+    }
+
+    /**
+     * Gets a section from this list. A new object is created for each call.
+     *
+     * @param index Index of the section.
+     *
+     * @return The section.
+     */
+    @Override
+    public PathSection get(final int index) {
+        if ((index < 0) || (index >= size)) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: "
+                    + size);
+        }
+        ByteBuffer chunk = chunks[index >> CHUNK_SHIFT];
+        int offset = (index & (CHUNK_RECORDS - 1)) * RECORD_SIZE;
+        PathSection section;
+        switch (chunk.get(offset)) {
+            case MOVETO:
+                section = new Moveto();
+                break;
+            case LINETO:
+                section = new Lineto();
+                break;
+            case CURVETO:
+                section = new Curveto();
+                break;
+            default:
+                section = new Closepath();
+                break;
+        }
+        for (int i = 0; i < NR_PARAMS; i++) {
+            section.setParam(i, chunk.getDouble(offset + 8 * (i + 1)));
+        }
+        return section;
+    }
+
+    /**
+     * Inserts a section in this list. The sections after it are rebuilt.
+     *
+     * @param index Index at which the section is inserted.
+     * @param section The section to insert.
+     */
+    @Override
+    public void add(final int index, final PathSection section) {
+        if ((index < 0) || (index > size)) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: "
+                    + size);
+        }
+        typeOf(section);
+        List<PathSection> tail = copyTail(index);
+        truncate(index);
+        add(section);
+        addAll(tail);
+    }
+
+    /**
+     * Replaces a section in this list. The sections after it are rebuilt.
+     *
+     * @param index Index of the section to replace.
+     * @param section The new section.
+     *
+     * @return The section that was replaced.
+     */
+    @Override
+    public PathSection set(final int index, final PathSection section) {
+        PathSection old = get(index);
+        typeOf(section);
+        List<PathSection> tail = copyTail(index + 1);
+        truncate(index);
+        add(section);
+        addAll(tail);
+        return old;
+    }
+
+    /**
+     * Removes a section from this list. The sections after it are rebuilt,
+     * removing the last section is cheap.
+     *
+     * @param index Index of the section.
+     *
+     * @return The removed section.
+     */
+    @Override
+    public PathSection remove(final int index) {
+        PathSection section = get(index);
+        List<PathSection> tail = copyTail(index + 1);
+        truncate(index);
+        addAll(tail);
+        return section;
+    }
+
+    /**
+     * Removes all sections from this list. Spilled chunks that are not shared
+     * with clones are released, such that other lists can reuse them.
+     */
+    @Override
+    public void clear() {
+        if (spillFile != null) {
+            for (int c = ownedFrom; c < nrChunks; c++) {
+                spillFile.release(chunks[c]);
+            }
+        }
+        chunks = new ByteBuffer[1];
+        nrChunks = 0;
+        ownedFrom = 0;
+        size = 0;
+        modCount++;
+    }
+
+    /**
+     * Gets the number of sections in this list.
+     *
+     * @return The number of sections.
+     */
+    @Override
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Creates a clone of this list. The chunks are shared between this list
+     * and the clone until one of them changes it.
+     *
+     * @return The clone.
+     */
+    @Override
+    public SegmentLog clone() {
+        SegmentLog copy;
+        try {
+            copy = (SegmentLog) super.clone();
+        } catch (CloneNotSupportedException e) {
+            copy = null;
+        }
+
+        copy.chunks = chunks.clone();
+        ownedFrom = nrChunks;
+        copy.ownedFrom = nrChunks;
+        // modCount is used by iterators of the original list only.
+        copy.modCount = 0;
+
+        return copy;
+    }
+
+    /**
+     * Gets the type of a section, as stored in the records.
+     *
+     * @param section The section.
+     *
+     * @return The type.
+     */
+    private static byte typeOf(final PathSection section) {
+        if (section instanceof Moveto) {
+            return MOVETO;
+        } else if (section instanceof Lineto) {
+            return LINETO;
+        } else if (section instanceof Curveto) {
+            return CURVETO;
+        } else if (section instanceof Closepath) {
+            return CLOSEPATH;
+        } else {
+            throw new IllegalArgumentException("Can't store "
+                    + section.getClass().getName() + " in a path.");
+        }
+    }
+
+    /**
+     * Copies the sections from an index up to the end of this list.
+     *
+     * @param from Index of the first section to copy.
+     *
+     * @return The copied sections.
+     */
+    private List<PathSection> copyTail(final int from) {
+        List<PathSection> tail = new ArrayList<PathSection>(size - from);
+        for (int i = from; i < size; i++) {
+            tail.add(get(i));
+        }
+        return tail;
+    }
+
+    /**
+     * Removes the sections from an index up to the end of this list. Chunks
+     * that are no longer used are dropped, spilled chunks that are not
+     * shared with clones are released.
+     *
+     * @param newSize New number of sections.
+     */
+    private void truncate(final int newSize) {
+        int keep = (newSize + CHUNK_RECORDS - 1) >> CHUNK_SHIFT;
+        for (int c = keep; c < nrChunks; c++) {
+            if ((c >= ownedFrom) && (spillFile != null)) {
+                spillFile.release(chunks[c]);
+            }
+            chunks[c] = null;
+        }
+        nrChunks = Math.min(nrChunks, keep);
+        ownedFrom = Math.min(ownedFrom, nrChunks);
+        size = newSize;
+        modCount++;
+    }
+
+    /**
+     * Gets the chunk in which a record can be written. The chunk is allocated,
+     * grown or copied if needed.
+     *
+     * @param index Index of the record.
+     *
+     * @return The chunk.
+     */
+    private ByteBuffer writableChunk(final int index) {
+        int c = index >> CHUNK_SHIFT;
+        int needed = (index & (CHUNK_RECORDS - 1)) + 1;
+        if (c >= nrChunks) {
+            if (c >= chunks.length) {
+                ByteBuffer[] newChunks = new ByteBuffer[2 * chunks.length];
+                System.arraycopy(chunks, 0, newChunks, 0, nrChunks);
+                chunks = newChunks;
+            }
+            chunks[c] = allocateChunk(c, Math.max(needed, INITIAL_RECORDS));
+            nrChunks = c + 1;
+        } else if ((c < ownedFrom)
+                || (chunks[c].capacity() < needed * RECORD_SIZE)) {
+            int records = chunks[c].capacity() / RECORD_SIZE;
+            while (records < needed) {
+                records *= 2;
+            }
+            ByteBuffer newChunk = allocateChunk(c, records);
+            ByteBuffer oldChunk = chunks[c].duplicate();
+            oldChunk.clear();
+            oldChunk.limit(Math.min(oldChunk.capacity(),
+                    newChunk.capacity()));
+            newChunk.put(oldChunk);
+            chunks[c] = newChunk;
+            ownedFrom = Math.min(ownedFrom, c);
+        }
+        return chunks[c];
+    }
+
+    /**
+     * Allocates a new chunk. It is allocated on the heap, unless the chunk
+     * would hold sections beyond the spill threshold.
+     *
+     * @param c Index of the chunk.
+     * @param records Minimum number of records in the chunk.
+     *
+     * @return The new chunk.
+     */
+    private ByteBuffer allocateChunk(final int c, final int records) {
+        if ((spillThreshold > 0)
+                && ((long) c * CHUNK_RECORDS + records > spillThreshold)) {
+            try {
+                return spillFile.map();
+            } catch (IOException e) {
+                LOG.warning("Unable to spill path to a temporary file ("
+                        + e.getMessage() + "). It is kept in memory.");
+                spillThreshold = 0;
+            }
+        }
+        return ByteBuffer.allocate(Math.min(records, CHUNK_RECORDS)
+                * RECORD_SIZE);
+    }
+
+    /**
+     * Checks whether (part of) this list is stored in a temporary file.
+     *
+     * @return True if chunks were spilled to a temporary file.
+     */
+    public boolean isSpilled() {
+        for (int c = 0; c < nrChunks; c++) {
+            if (chunks[c].isDirect()) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -218,16 +218,17 @@ public class PSObjectFile extends PSObject implements Cloneable {
     public PSObjectString readstring(final PSObjectString string)
             throws PSErrorIOError {
         int n = string.length();
-        int length = n;
+        int length = 0;
+        byte[] buf = new byte[n];
         try {
-            for (int i = 0; i < n; i++) {
-                int chr = inStr.read();
-                if (chr == -1) {
-                    length = i;
+            while (length < n) {
+                int nrNewBytes = inStr.read(buf, length, n - length);
+                if (nrNewBytes <= 0) {
                     break;
                 }
-                string.set(i, (char) chr);
+                length += nrNewBytes;
             }
+            string.setBytes(0, buf, 0, length);
             return string.getinterval(0, length);
         } catch (IOException e) {
             throw new PSErrorIOError();
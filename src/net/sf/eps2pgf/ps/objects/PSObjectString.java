@@ -347,6 +347,30 @@ public class PSObjectString extends PSObjectComposite implements Cloneable {
         return getSharedString().charAt(index + offset);
     }
     
+    /**
+     * Copies characters of this string to an array of bytes.
+     * 
+     * @param index Index of the first character to copy.
+     * @param dst The array to which the characters are copied.
+     * @param dstOff Index in the array of the first copied character.
+     * @param len Number of characters to copy.
+     * 
+     * @throws PSErrorRangeCheck A PostScript rangecheck error occurred.
+     */
+    public void getBytes(final int index, final byte[] dst, final int dstOff,
+            final int len) throws PSErrorRangeCheck {
+        if ((index < 0) || (len < 0) || (len > (count - index))) {
+            throw new PSErrorRangeCheck();
+        }
+        
+        char[] chars = new char[len];
+        getSharedString().getChars(offset + index, offset + index + len,
+                chars, 0);
+        for (int i = 0; i < len; i++) {
+            dst[dstOff + i] = (byte) chars[i];
+        }
+    }
+    
     /**
      * Gets the (integer) value of a character in this string.
      * 
@@ -782,6 +806,30 @@ public class PSObjectString extends PSObjectComposite implements Cloneable {
         return result;
     }
     
+    /**
+     * Replaces characters of this string by bytes from an array.
+     * 
+     * @param index Index of the first character to replace.
+     * @param src The array with the new characters.
+     * @param srcOff Index in the array of the first new character.
+     * @param len Number of characters to replace.
+     * 
+     * @throws PSErrorRangeCheck A PostScript rangecheck error occurred.
+     */
+    public void setBytes(final int index, final byte[] src, final int srcOff,
+            final int len) throws PSErrorRangeCheck {
+        if ((index < 0) || (len < 0) || (len > (count - index))) {
+            throw new PSErrorRangeCheck();
+        }
+        
+        char[] chars = new char[len];
+        for (int i = 0; i < len; i++) {
+            chars[i] = (char) (src[srcOff + i] & 0xff);
+        }
+        getSharedString().replace(offset + index, offset + index + len,
+                new String(chars));
+    }
+    
     /**
      * Changes a single character in this string.
      * 
@@ -270,7 +270,7 @@ public class ASCII85Decode extends InputStream {
      * @param c Store characters in this buffer.
      * 
      * @return Returns number of characters correctly written. If this is less
-     * than five, the remaining characters are set to '!'. Returns -1 when there
+     * than five, the remaining characters are set to 'u'. Returns -1 when there
      * are no new characters.
      * 
      * @throws IOException An invalid character encountered or and I/O error
@@ -298,7 +298,9 @@ public class ASCII85Decode extends InputStream {
             } else if ((chr == EOF_CHAR) || (chr == EOD_CHAR)) {
                 rawPtr--;
                 if (ptr > 0) {
-                    c[ptr++] = '/';
+                    // Padding with the highest digit makes the truncated
+                    // bytes come out right.
+                    c[ptr++] = 'u';
                 } else {
                     return -1;
                 }
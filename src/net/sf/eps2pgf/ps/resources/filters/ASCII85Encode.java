@@ -135,7 +135,8 @@ public class ASCII85Encode extends OutputStream {
         
         // Convert the long to encoded  bytes.
         int goodEncodedBytes;
-        if (d > 0) {
+        // The 'z' shorthand only exists for a complete group of zeros.
+        if ((d > 0) || (goodChars < 4)) {
             for (int i = 4; i >= 0; i--) {
                 targetBuffer[i] = (byte) (33 + (d % 85));
                 d /= 85;
@@ -174,7 +175,9 @@ public class ASCII85Encode extends OutputStream {
      */
     @Override
     public void close() throws IOException {
-        encodeAndWriteBuffer();
+        if (bufferSize > 0) {
+            encodeAndWriteBuffer();
+        }
         String data = "\n~>\n";
         out.write(data.getBytes());
         
@@ -37,9 +37,26 @@ public class ASCIIHexDecode extends InputStream {
     /** CloseSource parameter. */
     private boolean closeSource;
     
+    /** Maximum number of encoded characters that is read at once. */
+    private static final int BUFFER_SIZE = 8192;
+    
+    /** Buffer for encoded characters, or null if not allocated yet. */
+    private byte[] encoded = null;
+    
+    /** Character that marks the end of the data. */
+    private static final int EOD_CHAR = '>';
+    
+    /** Indicates whether the data ends at an EOD_CHAR. */
+    private boolean endAtEod;
+    
+    /** Indicates whether the EOD_CHAR has been read. */
+    private boolean eod = false;
+    
     
     /**
-     * Creates a new instance of ASCIIHexDecode.
+     * Creates a new instance of ASCIIHexDecode. The data continues up to the
+     * end of the underlying stream, all characters that aren't hex digits are
+     * ignored. This is how readhexstring reads its data.
      * 
      * @param pIn <code>InputStream</code> from which hex data will be read.
      * @param dict The parameter dictionary.
@@ -49,7 +66,24 @@ public class ASCIIHexDecode extends InputStream {
     public ASCIIHexDecode(final InputStream pIn, final PSObjectDict dict)
            throws PSError {
         
+        this(pIn, dict, false);
+    }
+    
+    /**
+     * Creates a new instance of ASCIIHexDecode.
+     * 
+     * @param pIn <code>InputStream</code> from which hex data will be read.
+     * @param dict The parameter dictionary.
+     * @param pEndAtEod If true, the data ends at the '>' character, like
+     * the data of the ASCIIHexDecode filter. Characters after it are not read.
+     * 
+     * @throws PSError A PostScript error occurred.
+     */
+    public ASCIIHexDecode(final InputStream pIn, final PSObjectDict dict,
+            final boolean pEndAtEod) throws PSError {
+        
         in = pIn;
+        endAtEod = pEndAtEod;
         
         if (dict != null) {
             PSObject obj = dict.lookup(FilterManager.KEY_CLOSESOURCE);
@@ -146,7 +180,7 @@ public class ASCIIHexDecode extends InputStream {
      */
     @Override
     public int read() throws IOException {
-        if (in == null) {
+        if ((in == null) || eod) {
             return -1;
         }
         
@@ -161,12 +195,131 @@ public class ASCIIHexDecode extends InputStream {
         return (16 * c1 + c2);
     }
     
+    /**
+     * Reads up to len bytes of data from this input stream into an array of
+     * bytes. The encoded characters are read in bulk, but never beyond the
+     * last character that is needed, such that the underlying stream is left
+     * at the same position as when the bytes are read one by one.
+     * 
+     * @param b The array in which the data is stored.
+     * @param off Index in the array of the first byte.
+     * @param len Maximum number of bytes to read.
+     * 
+     * @throws IOException An I/O exception occurred.
+     * 
+     * @return The number of bytes read, or -1 if the end of the stream is
+     * reached.
+     */
+    @Override
+    public int read(final byte[] b, final int off, final int len)
+            throws IOException {
+        if ((in == null) || eod) {
+            return -1;
+        }
+        if (len == 0) {
+            return 0;
+        }
+        if (encoded == null) {
+            encoded = new byte[BUFFER_SIZE];
+        }
+        
+        // Characters after the EOD_CHAR must not be consumed. They are read
+        // again after a reset, or else they are read one at a time.
+        boolean canReset = endAtEod && in.markSupported();
+        int n = 0;
+        int high = -1;
+        while ((n < len) && !eod) {
+            // Each byte needs at least two more hex digits.
+            int maxChars = 2 * (len - n);
+            if (high >= 0) {
+                maxChars--;
+            }
+            maxChars = Math.min(maxChars, encoded.length);
+            if (endAtEod && !canReset) {
+                maxChars = 1;
+            } else if (canReset) {
+                in.mark(maxChars);
+            }
+            int nrChars = in.read(encoded, 0, maxChars);
+            if (nrChars <= 0) {
+                break;
+            }
+            for (int i = 0; i < nrChars; i++) {
+                int value = hexValue(encoded[i] & 0xff);
+                if (value < 0) {
+                    if (endAtEod && ((encoded[i] & 0xff) == EOD_CHAR)) {
+                        eod = true;
+                        if (canReset) {
+                            in.reset();
+                            skipFully(i + 1);
+                        }
+                        break;
+                    }
+                    continue;
+                } else if (high < 0) {
+                    high = value;
+                } else {
+                    b[off + n] = (byte) (16 * high + value);
+                    n++;
+                    high = -1;
+                }
+            }
+        }
+        
+        // A missing final digit is treated as zero, as in read().
+        if (high >= 0) {
+            b[off + n] = (byte) (16 * high);
+            n++;
+        }
+        if (n == 0) {
+            return -1;
+        }
+        return n;
+    }
+    
+    /**
+     * Reads and discards characters from the underlying stream.
+     * 
+     * @param n The number of characters.
+     * 
+     * @throws IOException An I/O exception occurred.
+     */
+    private void skipFully(final int n) throws IOException {
+        int nrSkipped = 0;
+        while (nrSkipped < n) {
+            int nrChars = in.read(encoded, 0, n - nrSkipped);
+            if (nrChars <= 0) {
+                throw new IOException();
+            }
+            nrSkipped += nrChars;
+        }
+    }
+    
+    /**
+     * Gets the value of a hex digit.
+     * 
+     * @param c The character.
+     * 
+     * @return Value of the digit (0-15), or -1 if the character is not a hex
+     * digit.
+     */
+    private static int hexValue(final int c) {
+        if ((c >= '0') && (c <= '9')) {
+            return c - '0';
+        } else if ((c >= 'A') && (c <= 'F')) {
+            return c - 'A' + 10;
+        } else if ((c >= 'a') && (c <= 'f')) {
+            return c - 'a' + 10;
+        }
+        return -1;
+    }
+    
     /**
      * Read the next hex value from the InputStream <code>in</code>. Whitespace
      * charcters are automatically skipped.
      * 
      * @return Value of next hex value ranging from 0-15. Returns -1 at
-     * end-of-file.
+     * end-of-file, or at the end-of-data if endAtEod is set.
      * 
      * @throws IOException Signals that an I/O exception has occurred.
      */
@@ -183,6 +336,9 @@ public class ASCIIHexDecode extends InputStream {
                 c -= 87;
             } else if (c == -1) {
                 // nothing to to
+            } else if (endAtEod && (c == EOD_CHAR)) {
+                eod = true;
+                c = -1;
             } else {
                 continue;
             }
@@ -0,0 +1,270 @@
+/*
+ * This file is part of Eps2pgf.
+ *
+ * Copyright 2007-2009 Paul Wagenaars
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sf.eps2pgf.ps.resources.filters;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import net.sf.eps2pgf.ps.errors.PSError;
+import net.sf.eps2pgf.ps.objects.PSObject;
+import net.sf.eps2pgf.ps.objects.PSObjectDict;
+
+/**
+ * DCTDecode filter: JPEG compressed data.
+ *
+ * The data can't be decoded, reading from this filter results in an
+ * I/O error. The JPEG data can only be copied as it is to an output stream,
+ * for example to a bitmap image in a PDF file, which supports the same
+ * filter. The structure of the JPEG data is followed to find the end of the
+ * data.
+ *
+ * @author Paul Wagenaars
+ */
+public class DCTDecode extends InputStream {
+
+    /** Marker that starts the JPEG data (SOI). */
+    private static final int START_OF_IMAGE = 0xD8;
+
+    /** Marker that ends the JPEG data (EOI). */
+    private static final int END_OF_IMAGE = 0xD9;
+
+    /** Marker that is followed by entropy-coded data (SOS). */
+    private static final int START_OF_SCAN = 0xDA;
+
+    /** First restart marker (RST0). */
+    private static final int RESTART_FIRST = 0xD0;
+
+    /** Last restart marker (RST7). */
+    private static final int RESTART_LAST = 0xD7;
+
+    /** Temporary marker (TEM), which has no parameters. */
+    private static final int TEMPORARY = 0x01;
+
+    /** InputStream from which the JPEG data is read. */
+    private InputStream in;
+
+    /** CloseSource parameter. */
+    private boolean closeSource;
+
+    /** Indicates whether the JPEG data has been read. */
+    private boolean eod = false;
+
+    /** JPEG data is copied to this stream, or null if it is skipped. */
+    private OutputStream copyOut = null;
+
+    /**
+     * Creates a new DCTDecode filter.
+     *
+     * @param pIn The source input stream.
+     * @param dict The parameter dictionary.
+     *
+     * @throws PSError A PostScript error occurred.
+     */
+    public DCTDecode(final InputStream pIn, final PSObjectDict dict)
+            throws PSError {
+
+        in = pIn;
+
+        PSObject obj = dict.lookup(FilterManager.KEY_CLOSESOURCE);
+        if (obj != null) {
+            closeSource = obj.toBool();
+        } else {
+            closeSource = false;
+        }
+    }
+
+    /**
+     * Checks whether the JPEG data can be copied with copyCompressedData().
+     *
+     * @return True if the JPEG data has not been read yet.
+     */
+    public boolean canCopyCompressedData() {
+        return (in != null) && !eod;
+    }
+
+    /**
+     * Closes this input stream.
+     *
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closeSource) {
+            in.close();
+        }
+        in = null;
+    }
+
+    /**
+     * Reads the next byte of decoded data, which is not supported.
+     *
+     * @return -1 if the JPEG data has already been copied.
+     *
+     * @throws IOException Always, unless the JPEG data has been copied.
+     */
+    @Override
+    public int read() throws IOException {
+        if ((in == null) || !eod) {
+            throw new IOException("Decoding of DCT (JPEG) data is not"
+                    + " supported.");
+        }
+        return -1;
+    }
+
+    /**
+     * Copies the JPEG data, from the start-of-image marker up to and including
+     * the end-of-image marker, from the source to an output stream.
+     * Afterwards, this filter is at the end of its data. If the source is
+     * another decode filter, it is read up to its end-of-data marker, e.g.
+     * the '>' of ASCIIHexDecode, just like the read-ahead of a PostScript
+     * interpreter would.
+     *
+     * @param out The JPEG data is written to this stream. If it is null the
+     * data is skipped.
+     *
+     * @throws IOException The JPEG data is invalid or truncated, or an I/O
+     * error occurred.
+     */
+    public void copyCompressedData(final OutputStream out)
+            throws IOException {
+
+        if (!canCopyCompressedData()) {
+            throw new IOException();
+        }
+        copyOut = out;
+        if ((next() != 0xFF) || (next() != START_OF_IMAGE)) {
+            throw new IOException("DCT data doesn't start with a JPEG"
+                    + " start-of-image marker.");
+        }
+        int marker = nextMarker();
+        while (marker != END_OF_IMAGE) {
+            if ((marker == TEMPORARY) || isRestartMarker(marker)) {
+                marker = nextMarker();
+                continue;
+            }
+
+            // All other markers start a segment with its length.
+            int length = (next() << 8) | next();
+            for (int i = 2; i < length; i++) {
+                next();
+            }
+            if (marker == START_OF_SCAN) {
+                marker = skipEntropyCodedData();
+            } else {
+                marker = nextMarker();
+            }
+        }
+        eod = true;
+        copyOut = null;
+        if (isDecodeFilter(in)) {
+            while (in.read() >= 0) {
+                // skip remaining data
+            }
+        }
+    }
+
+    /**
+     * Checks whether a stream is a decode filter, which has its own end of
+     * data.
+     *
+     * @param stream The stream.
+     *
+     * @return True if the stream is a decode filter.
+     */
+    private static boolean isDecodeFilter(final InputStream stream) {
+        Class<?> cls = stream.getClass();
+        return (cls.getPackage() == DCTDecode.class.getPackage())
+                && cls.getName().endsWith("Decode");
+    }
+
+    /**
+     * Checks whether a marker is a restart marker, which has no parameters.
+     *
+     * @param marker The marker code.
+     *
+     * @return True if it is a restart marker.
+     */
+    private static boolean isRestartMarker(final int marker) {
+        return (marker >= RESTART_FIRST) && (marker <= RESTART_LAST);
+    }
+
+    /**
+     * Reads the next marker, which must follow directly. Fill bytes (0xFF)
+     * before the marker are skipped.
+     *
+     * @return The marker code.
+     *
+     * @throws IOException The data is invalid or an I/O error occurred.
+     */
+    private int nextMarker() throws IOException {
+        if (next() != 0xFF) {
+            throw new IOException("Invalid marker in DCT (JPEG) data.");
+        }
+        int marker;
+        do {
+            marker = next();
+        } while (marker == 0xFF);
+        return marker;
+    }
+
+    /**
+     * Reads entropy-coded data up to the next marker that is not a restart
+     * marker. In this data, a 0xFF byte followed by a zero byte is data.
+     *
+     * @return The code of the marker after the data.
+     *
+     * @throws IOException The data is truncated or an I/O error occurred.
+     */
+    private int skipEntropyCodedData() throws IOException {
+        while (true) {
+            if (next() != 0xFF) {
+                continue;
+            }
+            int marker;
+            do {
+                marker = next();
+            } while (marker == 0xFF);
+            if ((marker != 0) && !isRestartMarker(marker)) {
+                return marker;
+            }
+        }
+    }
+
+    /**
+     * Reads the next byte of JPEG data, and copies it to the output stream.
+     *
+     * @return The byte.
+     *
+     * @throws IOException The end of the data is reached or an I/O error
+     * occurred.
+     */
+    private int next() throws IOException {
+        int b = in.read();
+        if (b < 0) {
+            throw new EOFException("Unexpected end of DCT (JPEG) data.");
+        }
+        if (copyOut != null) {
+            copyOut.write(b);
+        }
+        return b;
+    }
+
+}
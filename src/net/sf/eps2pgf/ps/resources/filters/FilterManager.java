@@ -54,6 +54,10 @@ public final class FilterManager {
     public static final PSObjectName FILTER_ASCII85DECODE =
         new PSObjectName("/ASCII85Decode");
     
+    /** Name of DCTDecode filter. */
+    public static final PSObjectName FILTER_DCTDECODE =
+        new PSObjectName("/DCTDecode");
+    
     /** Name of FlateDecode filter. */
     public static final PSObjectName FILTER_FLATEDECODE =
         new PSObjectName("/FlateDecode");
@@ -257,9 +261,11 @@ public final class FilterManager {
         
         InputStream filteredStream;
         if (name.eq(FILTER_ASCIIHEXDECODE)) {
-            filteredStream = new ASCIIHexDecode(inStream, paramDict);
+            filteredStream = new ASCIIHexDecode(inStream, paramDict, true);
         } else if (name.eq(FILTER_ASCII85DECODE)) {
             filteredStream = new ASCII85Decode(inStream, paramDict);
+        } else if (name.eq(FILTER_DCTDECODE)) {
+            filteredStream = new DCTDecode(inStream, paramDict);
         } else if (name.eq(FILTER_FLATEDECODE)) {
             filteredStream = new FlateDecode(inStream, paramDict);
         } else if (name.eq(FILTER_RUNLENGTHDECODE)) {
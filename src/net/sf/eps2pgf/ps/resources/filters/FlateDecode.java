@@ -18,13 +18,18 @@
 
 package net.sf.eps2pgf.ps.resources.filters;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.DataFormatException;
 import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipException;
 
 import net.sf.eps2pgf.ps.errors.PSError;
 import net.sf.eps2pgf.ps.objects.PSObject;
 import net.sf.eps2pgf.ps.objects.PSObjectDict;
+import net.sf.eps2pgf.ps.objects.PSObjectName;
 
 /**
  * FlateEncode filter.
@@ -33,12 +38,22 @@ import net.sf.eps2pgf.ps.objects.PSObjectDict;
  */
 public class FlateDecode extends InflaterInputStream {
     
+    /** Key of Predictor field in parameter dictionary. */
+    public static final PSObjectName KEY_PREDICTOR =
+        new PSObjectName("/Predictor");
+    
+    /** Size (in bytes) of the buffers used to copy compressed data. */
+    private static final int BUFFER_SIZE = 8192;
+    
     /** Indicates whether this filter is closed. */
     private boolean isClosed = false;
     
     /** CloseSource parameter. */
     private boolean closeSource;
     
+    /** Predictor parameter, one if no predictor is used. */
+    private int predictor;
+    
     /**
      * Creates a new FlateDecode filter.
      * 
@@ -58,9 +73,77 @@ public class FlateDecode extends InflaterInputStream {
         } else {
             closeSource = false;
         }
+        
+        obj = dict.lookup(KEY_PREDICTOR);
+        if (obj != null) {
+            predictor = obj.toInt();
+        } else {
+            predictor = 1;
+        }
 
     }
     
+    /**
+     * Checks whether the compressed data can be copied as it is, with
+     * copyCompressedData(). That is only possible if nothing has been read
+     * from this filter yet, and if no predictor is used.
+     * 
+     * @return True if the compressed data can be copied.
+     */
+    public boolean canCopyCompressedData() {
+        return !isClosed && (predictor <= 1) && (inf.getTotalIn() == 0)
+                && inf.needsInput();
+    }
+    
+    /**
+     * Copies the compressed data from the source to an output stream, up to
+     * the end of the zlib stream. The data is decompressed on the way to
+     * find its end and to check it, but the decompressed data is discarded.
+     * Afterwards, this filter is at the end of its data.
+     * 
+     * @param out The compressed data is written to this stream.
+     * 
+     * @return The number of bytes of decompressed data.
+     * 
+     * @throws IOException The compressed data is invalid or truncated, or an
+     * I/O error occurred.
+     */
+    public long copyCompressedData(final OutputStream out)
+            throws IOException {
+        
+        if (isClosed) {
+            throw new IOException();
+        }
+        byte[] inBuf = new byte[BUFFER_SIZE];
+        byte[] outBuf = new byte[BUFFER_SIZE];
+        int inLength = 0;
+        long decompressedLength = 0;
+        try {
+            while (!inf.finished()) {
+                if (inf.needsInput()) {
+                    // The previous piece of data has been used completely.
+                    out.write(inBuf, 0, inLength);
+                    inLength = in.read(inBuf, 0, inBuf.length);
+                    if (inLength <= 0) {
+                        throw new EOFException("Unexpected end of compressed"
+                                + " data.");
+                    }
+                    inf.setInput(inBuf, 0, inLength);
+                }
+                decompressedLength += inf.inflate(outBuf);
+                if (inf.needsDictionary()) {
+                    throw new ZipException("Compressed data requires a preset"
+                            + " dictionary.");
+                }
+            }
+        } catch (DataFormatException e) {
+            throw new ZipException(e.getMessage());
+        }
+        out.write(inBuf, 0, inLength - inf.getRemaining());
+        
+        return decompressedLength;
+    }
+    
     /**
      * Returns 0 after EOF has been reached, otherwise always return 1.
      * 
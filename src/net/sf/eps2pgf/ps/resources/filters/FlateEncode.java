@@ -21,8 +21,8 @@ package net.sf.eps2pgf.ps.resources.filters;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.util.zip.Deflater;
-import java.util.zip.DeflaterOutputStream;
 
+import net.sf.eps2pgf.io.ParallelDeflaterOutputStream;
 import net.sf.eps2pgf.ps.errors.PSError;
 import net.sf.eps2pgf.ps.objects.PSObject;
 import net.sf.eps2pgf.ps.objects.PSObjectDict;
@@ -32,7 +32,7 @@ import net.sf.eps2pgf.ps.objects.PSObjectDict;
  * 
  * @author Paul Wagenaars
  */
-public class FlateEncode extends DeflaterOutputStream {
+public class FlateEncode extends ParallelDeflaterOutputStream {
     
     /** Indicates whether this filter is closed. */
     private boolean isClosed = false;
@@ -41,7 +41,8 @@ public class FlateEncode extends DeflaterOutputStream {
     private boolean closeTarget;
     
     /**
-     * Creates a new FlateEncode filter.
+     * Creates a new FlateEncode filter that compresses as much as possible,
+     * with a single thread.
      * 
      * @param out The output stream to which encoded bytes are written.
      * @param dict The parameter dictionary.
@@ -51,7 +52,24 @@ public class FlateEncode extends DeflaterOutputStream {
     public FlateEncode(final OutputStream out, final PSObjectDict dict)
             throws PSError {
         
-        super(out, new Deflater(Deflater.BEST_COMPRESSION));
+        this(out, dict, Deflater.BEST_COMPRESSION, 1);
+    }
+    
+    /**
+     * Creates a new FlateEncode filter.
+     * 
+     * @param out The output stream to which encoded bytes are written.
+     * @param dict The parameter dictionary.
+     * @param level Compression level (0-9).
+     * @param nrThreads Number of threads that compress the data, zero to use
+     * one thread per processor.
+     * 
+     * @throws PSError A PostScript error occurred.
+     */
+    public FlateEncode(final OutputStream out, final PSObjectDict dict,
+            final int level, final int nrThreads) throws PSError {
+        
+        super(out, level, nrThreads);
         
         PSObject obj = null;
         if (dict != null) {
@@ -230,6 +230,14 @@ public class SubFileDecode extends InputStream {
      * @throws IOException Signals that an I/O exception has occurred.
      */
     private int readNLargerThanZero() throws IOException {
+        // Once the end-of-data is reached, the (blanked) read buffer must not
+        // be filled again, that would read beyond the end-of-data.
+        if (((eodCount == 0) && (eodOccurrences > 0))
+            || ((eodCount > 0) && (eodOccurrences >= eodCount))) {
+
+            return -1;
+        }
+
         if ((readBuffer[0] == -99) && (eodCount == 0)) {
             fillBuffer();
         }
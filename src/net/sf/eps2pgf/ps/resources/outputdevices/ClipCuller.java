@@ -0,0 +1,257 @@
+/*
+ * This file is part of Eps2pgf.
+ *
+ * Copyright 2007-2009 Paul Wagenaars
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sf.eps2pgf.ps.resources.outputdevices;
+
+import net.sf.eps2pgf.ps.GraphicsState;
+import net.sf.eps2pgf.ps.Matrix;
+import net.sf.eps2pgf.ps.Path;
+import net.sf.eps2pgf.ps.errors.PSErrorNoCurrentPoint;
+
+/**
+ * Decides whether painting operations are visible, i.e. whether their
+ * bounding box (in device space) intersects with the bounding box of the
+ * current clipping path. Operations that are not visible don't have to be
+ * written to the output.
+ *
+ * A single culler is shared by an output device and all its clones, such that
+ * the number of culled operations is counted over the whole document.
+ *
+ * @author Paul Wagenaars
+ */
+public class ClipCuller {
+
+    /** Indicates whether invisible operations are culled. */
+    private boolean enabled;
+
+    /** Number of painting operations that were culled so far. */
+    private int nrCulled = 0;
+
+    /**
+     * Clipping path of which the bounding box is cached. Clipping paths are
+     * never modified in place (clip() and initclip replace them), so the
+     * cache is valid as long as the clipping path is the same object.
+     */
+    private Path cachedClipPath = null;
+
+    /** Cached bounding box of <code>cachedClipPath</code>. */
+    private double[] cachedClipBbox = null;
+
+    /**
+     * Creates a new clip culler.
+     *
+     * @param pEnabled If false, all operations are considered visible.
+     */
+    public ClipCuller(final boolean pEnabled) {
+        enabled = pEnabled;
+    }
+
+    /**
+     * Checks whether a fill of the current path is visible.
+     *
+     * @param gstate The current graphics state.
+     *
+     * @return True if the fill might be visible, false if it is certainly
+     * outside the clipping path.
+     */
+    public boolean isFillVisible(final GraphicsState gstate) {
+        return isVisible(pathBbox(gstate.getPath()), gstate);
+    }
+
+    /**
+     * Checks whether a stroke of the current path is visible. The bounding box
+     * of the path is enlarged to account for the line width, line caps and
+     * miter joins.
+     *
+     * @param gstate The current graphics state.
+     *
+     * @return True if the stroke might be visible, false if it is certainly
+     * outside the clipping path.
+     */
+    public boolean isStrokeVisible(final GraphicsState gstate) {
+        double[] bbox = pathBbox(gstate.getPath());
+        if (bbox != null) {
+            // Half the line width, scaled with the largest possible scaling
+            // of the CTM.
+            Matrix ctm = gstate.getCtm();
+            double scaling = Math.sqrt(Math.pow(ctm.getXScaling(), 2)
+                    + Math.pow(ctm.getYScaling(), 2));
+            double margin = 0.5 * Math.abs(gstate.getLineWidth()) * scaling;
+
+            // Square line caps and miter joins extend beyond half the line
+            // width.
+            if (gstate.getLineJoin() == 0) {
+                margin *= Math.max(gstate.getMiterLimit(), Math.sqrt(2.0));
+            } else {
+                margin *= Math.sqrt(2.0);
+            }
+            bbox[0] -= margin;
+            bbox[1] -= margin;
+            bbox[2] += margin;
+            bbox[3] += margin;
+        }
+        return isVisible(bbox, gstate);
+    }
+
+    /**
+     * Checks whether a text label is visible. Since the exact extent of the
+     * typeset text is only known by LaTeX, a generous margin around the anchor
+     * point is assumed.
+     *
+     * @param text The text that is shown.
+     * @param position Anchor point of the text (in device coordinates).
+     * @param fontsize Font size in PostScript points. If it is NaN, the size
+     * is unknown and the label is always considered visible.
+     * @param gstate The current graphics state.
+     *
+     * @return True if the text might be visible, false if it is certainly
+     * outside the clipping path.
+     */
+    public boolean isTextVisible(final String text, final double[] position,
+            final double fontsize, final GraphicsState gstate) {
+        if (Double.isNaN(fontsize)) {
+            return true;
+        }
+
+        // Font size in device units (micrometer)
+        double size = fontsize / 72.0 * 25.4 * 1000.0;
+        double margin = size * (text.length() + 2);
+        double[] bbox = {position[0] - margin, position[1] - margin,
+                position[0] + margin, position[1] + margin};
+        return isVisible(bbox, gstate);
+    }
+
+    /**
+     * Checks whether a quadrilateral is visible.
+     *
+     * @param corners Coordinates (in device space) of the corners.
+     * @param gstate The current graphics state.
+     *
+     * @return True if the area might be visible, false if it is certainly
+     * outside the clipping path.
+     */
+    public boolean isAreaVisible(final double[][] corners,
+            final GraphicsState gstate) {
+        double[] bbox = {Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY,
+                Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY};
+        for (int i = 0; i < corners.length; i++) {
+            bbox[0] = Math.min(bbox[0], corners[i][0]);
+            bbox[1] = Math.min(bbox[1], corners[i][1]);
+            bbox[2] = Math.max(bbox[2], corners[i][0]);
+            bbox[3] = Math.max(bbox[3], corners[i][1]);
+        }
+        return isVisible(bbox, gstate);
+    }
+
+    /**
+     * Checks whether a bounding box intersects with the bounding box of the
+     * current clipping path. If the operation is not visible the culled
+     * operations counter is incremented.
+     *
+     * @param bbox Bounding box {llx, lly, urx, ury} in device coordinates. If
+     * it is null the bounding box is unknown and the operation is considered
+     * visible.
+     * @param gstate The current graphics state.
+     *
+     * @return True if the bounding boxes intersect, false otherwise.
+     */
+    boolean isVisible(final double[] bbox, final GraphicsState gstate) {
+        if (!enabled || (bbox == null)) {
+            return true;
+        }
+
+        double[] clipBbox = clipBbox(gstate);
+        if (clipBbox == null) {
+            return true;
+        }
+
+        if ((bbox[2] < clipBbox[0]) || (bbox[0] > clipBbox[2])
+                || (bbox[3] < clipBbox[1]) || (bbox[1] > clipBbox[3])) {
+            nrCulled++;
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Gets the bounding box of the current clipping path. The bounding box is
+     * only recomputed when the clipping path is replaced.
+     *
+     * @param gstate The current graphics state.
+     *
+     * @return The bounding box {llx, lly, urx, ury}, or null if the clipping
+     * path has no (finite) bounding box, or if it is degenerate (zero width
+     * or height). Operations are never culled against such a clipping path.
+     */
+    private double[] clipBbox(final GraphicsState gstate) {
+        Path clipPath = gstate.getClippingPath();
+        if ((clipPath != cachedClipPath) || (clipPath == null)) {
+            cachedClipPath = clipPath;
+            cachedClipBbox = pathBbox(clipPath);
+            if ((cachedClipBbox != null)
+                    && ((cachedClipBbox[2] <= cachedClipBbox[0])
+                    || (cachedClipBbox[3] <= cachedClipBbox[1]))) {
+                cachedClipBbox = null;
+            }
+        }
+        return cachedClipBbox;
+    }
+
+    /**
+     * Determines the bounding box of a path.
+     *
+     * @param path The path.
+     *
+     * @return The bounding box {llx, lly, urx, ury}, or null if the path has
+     * no (finite) bounding box.
+     */
+    private static double[] pathBbox(final Path path) {
+        if (path == null) {
+            return null;
+        }
+        try {
+            double[] bbox = path.boundingBox();
+            for (int i = 0; i < bbox.length; i++) {
+                if (Double.isInfinite(bbox[i]) || Double.isNaN(bbox[i])) {
+                    return null;
+                }
+            }
+            return bbox;
+        } catch (PSErrorNoCurrentPoint e) {
+            return null;
+        }
+    }
+
+    /**
+     * Gets the number of painting operations that were culled so far.
+     *
+     * @return The number of culled operations.
+     */
+    public int getNrCulled() {
+        return nrCulled;
+    }
+
+    /**
+     * Checks whether culling is enabled.
+     *
+     * @return True if invisible operations are culled.
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+}
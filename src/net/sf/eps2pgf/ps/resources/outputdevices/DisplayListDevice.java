@@ -0,0 +1,628 @@
+/*
+ * This file is part of Eps2pgf.
+ *
+ * Copyright 2007-2009 Paul Wagenaars
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sf.eps2pgf.ps.resources.outputdevices;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.logging.Logger;
+
+import net.sf.eps2pgf.Options;
+import net.sf.eps2pgf.ProgramError;
+import net.sf.eps2pgf.io.images.EpsImageCreator;
+import net.sf.eps2pgf.io.images.ImageCache;
+import net.sf.eps2pgf.io.images.PdfImageCreator;
+import net.sf.eps2pgf.io.images.PngImageCreator;
+import net.sf.eps2pgf.ps.GraphicsState;
+import net.sf.eps2pgf.ps.Image;
+import net.sf.eps2pgf.ps.Interpreter;
+import net.sf.eps2pgf.ps.Matrix;
+import net.sf.eps2pgf.ps.Path;
+import net.sf.eps2pgf.ps.errors.PSError;
+import net.sf.eps2pgf.ps.errors.PSErrorIOError;
+import net.sf.eps2pgf.ps.errors.PSErrorUnregistered;
+import net.sf.eps2pgf.ps.objects.PSObjectDict;
+import net.sf.eps2pgf.ps.resources.colors.PSColor;
+import net.sf.eps2pgf.ps.resources.shadings.RadialShading;
+import net.sf.eps2pgf.ps.resources.shadings.Shading;
+
+/**
+ * Output device that turns the painting operations of the interpreter into
+ * a display list: a sequence of calls on an OutputBackend with all graphics
+ * state parameters resolved to plain values in device space. The back-end
+ * writes the actual output format.
+ *
+ * Painting operations outside the clipping path are skipped here, and bitmap
+ * images are written to separate files here, such that back-ends only have
+ * to include them.
+ *
+ * @author Paul Wagenaars
+ */
+public class DisplayListDevice implements OutputDevice, Cloneable {
+
+    /** The log. */
+    private static final Logger LOG
+                                  = Logger.getLogger("net.sourceforge.eps2pgf");
+
+    //
+    // The variables below are shared by this device and all its clones.
+    //
+
+    /** The back-end to which the display list is passed. */
+    private OutputBackend backend;
+
+    /** Unique number of next bitmap image. */
+    private int[] nextImage = {1};
+
+    /**
+     * Last color passed to the back-end. Colors in the graphics state are
+     * replaced, never changed, so the same object is the same color.
+     */
+    private PSColor[] lastColor = {null};
+
+    /** Skips painting operations that are outside the clipping path. */
+    private ClipCuller culler;
+
+    /** Interpreter to which this device belongs. */
+    private Interpreter interp;
+
+    /** Cache of encoded bitmap images, or null if images are not cached. */
+    private ImageCache imageCache = null;
+
+    /**
+     * Creates a new display list device.
+     *
+     * @param pBackend The back-end to which the display list is passed.
+     * @param interpreter The interpreter.
+     */
+    public DisplayListDevice(final OutputBackend pBackend,
+            final Interpreter interpreter) {
+        backend = pBackend;
+        interp = interpreter;
+        Options options = interp.getOptions();
+        culler = new ClipCuller(options.isCullingEnabled());
+        if (options.getImageCacheDir() != null) {
+            imageCache = new ImageCache(options.getImageCacheDir(),
+                    options.getImageCacheSize());
+        }
+    }
+
+    /**
+     * Returns a <b>copy</b> default transformation matrix (converts user space
+     * coordinates to device space).
+     *
+     * @return Default transformation matrix.
+     */
+    public Matrix defaultCTM() {
+        return new Matrix(25.4 * 1000.0 / 72.0, 0.0, 0.0,
+                25.4 * 1000.0 / 72.0, 0.0, 0.0);
+    }
+
+    /**
+     * Internal Eps2pgf command: eps2pgfgetmetrics
+     * It is meant for the cache device. When this command is issued, it will
+     * return metrics information about the drawn glyph.
+     *
+     * @return Metrics information about glyph.
+     */
+    public double[] eps2pgfGetMetrics() {
+        double[] dummyData = {0.0, 0.0, 0.0, 0.0, 0.0, 0.0};
+        return dummyData;
+    }
+
+    /**
+     * Initialize before any other methods are called. Normally, this method
+     * writes a header.
+     *
+     * @throws PSError A PostScript error occurred.
+     */
+    public void init() throws PSError {
+        backend.init();
+    }
+
+    /**
+     * Finalize writing. Normally, this method writes a footer.
+     *
+     * @throws PSError A PostScript error occurred.
+     */
+    public void finish() throws PSError {
+        backend.finish();
+
+        if (culler.getNrCulled() > 0) {
+            LOG.info("Skipped " + culler.getNrCulled() + " painting operations"
+                    + " outside the clipping path.");
+        }
+    }
+
+    /**
+     * Returns a copy of this output device. All state of this device is about
+     * the output document, it is shared with the copy.
+     *
+     * @return Copy of this object.
+     */
+    @Override
+    public DisplayListDevice clone() {
+        DisplayListDevice copy;
+        try {
+            copy = (DisplayListDevice) super.clone();
+        } catch (CloneNotSupportedException e) {
+            copy = null;
+        }
+
+        return copy;
+    }
+
+    /**
+     * Implements PostScript stroke operator.
+     *
+     * @param gstate Current graphics state.
+     *
+     * @throws PSError A PostScript error occurred.
+     * @throws ProgramError This shouldn't happen, it indicates a bug.
+     */
+    public void stroke(final GraphicsState gstate)
+            throws PSError, ProgramError {
+
+        if (!culler.isStrokeVisible(gstate)) {
+            return;
+        }
+
+        double scaling = gstate.getCtm().getMeanScaling();
+        List<Double> gsPattern = gstate.getDashPattern();
+        double[] dashPattern = new double[gsPattern.size()];
+        for (int i = 0; i < dashPattern.length; i++) {
+            dashPattern[i] = gsPattern.get(i) * scaling;
+        }
+        backend.setLineStyle(gstate.getLineWidth() * scaling, dashPattern,
+                gstate.getDashOffset() * scaling, gstate.getLineCap(),
+                gstate.getLineJoin(), gstate.getMiterLimit());
+        updateColor(gstate);
+        backend.stroke(gstate.getPath().getSections());
+    }
+
+    /**
+     * Implements PostScript clip operator.
+     * Intersects the area inside the current clipping path with the area
+     * inside the current path to produce a new, smaller clipping path.
+     *
+     * @param clipPath the clip path
+     *
+     * @throws PSError A PostScript error occurred.
+     */
+    public void clip(final Path clipPath) throws PSError {
+        backend.clip(clipPath.getSections());
+    }
+
+    /**
+     * Fills a path using the non-zero rule.
+     * See the PostScript manual (fill operator) for more info.
+     *
+     * @param gstate Current graphics state.
+     *
+     * @throws PSError A PostScript error occurred.
+     * @throws ProgramError This shouldn't happen, it indicates a bug.
+     */
+    public void fill(final GraphicsState gstate) throws PSError, ProgramError {
+        if (!culler.isFillVisible(gstate)) {
+            return;
+        }
+        updateColor(gstate);
+        backend.fill(gstate.getPath().getSections());
+    }
+
+    /**
+     * Set the current clipping path in the graphics state as clipping path in
+     * the output document. The even-odd rule is used to determine which point
+     * are inside the path.
+     *
+     * @param gstate The current graphics state.
+     *
+     * @throws PSError A PostScript error occurred.
+     */
+    public void eoclip(final GraphicsState gstate) throws PSError {
+        backend.eoclip(gstate.getClippingPath().getSections());
+    }
+
+    /**
+     * Fills a path using the even-odd rule.
+     * See the PostScript manual (fill operator) for more info.
+     *
+     * @param gstate The current graphics state.
+     *
+     * @throws PSError A PostScript error occurred.
+     * @throws ProgramError This shouldn't happen, it indicates a bug.
+     */
+    public void eofill(final GraphicsState gstate)
+            throws PSError, ProgramError {
+
+        if (!culler.isFillVisible(gstate)) {
+            return;
+        }
+        updateColor(gstate);
+        backend.eofill(gstate.getPath().getSections());
+    }
+
+    /**
+     * Shading fill (shfill PostScript operator).
+     *
+     * @param dict Shading to use.
+     * @param gstate Current graphics state.
+     *
+     * @throws PSError A PostScript error occurred.
+     * @throws ProgramError This shouldn't happen, it indicates a bug.
+     */
+    public void shfill(final PSObjectDict dict, final GraphicsState gstate)
+            throws PSError, ProgramError {
+
+        updateColor(gstate);
+        Shading shading = Shading.newShading(dict);
+        if (shading instanceof RadialShading) {
+            radialShading((RadialShading) shading, gstate);
+        } else {
+            throw new PSErrorUnregistered("Shading of this type "
+                    + shading);
+        }
+    }
+
+    /**
+     * Create a radial shading.
+     *
+     * @param shading The shading.
+     * @param gstate The graphics state.
+     *
+     * @throws PSError A PostScript error occurred.
+     * @throws ProgramError This shouldn't happen, it indicates a bug.
+     */
+    private void radialShading(final RadialShading shading,
+            final GraphicsState gstate) throws PSError, ProgramError {
+
+        // Convert coordinates and radii from user space to coordinate space
+        // PGF does not support the Extend parameters for shadings. So we
+        // try to emulate the effect.
+        Matrix ctm = gstate.getCtm();
+        double scaling = ctm.getMeanScaling();
+        double xScale = ctm.getXScaling() / scaling;
+        double yScale = ctm.getYScaling() / scaling;
+        double[] coor0 = ctm.transform(shading.getCoord(0.0));
+        double[] coor1 = ctm.transform(shading.getCoord(1.0));
+
+        double maxS = 1.0;
+        if (shading.getExtend1()) {
+            // Find the s value for which the radius is big (0.3 meters ~
+            // a4 paper).
+            maxS = shading.getSForDistance(0.3 * 1e6 / scaling, 1,
+                    Double.POSITIVE_INFINITY);
+            coor1 = ctm.transform(shading.getCoord(maxS));
+        }
+
+        double[] sFit = shading.fitLinearSegmentsOnColor(0.01);
+        int n = sFit.length + ((maxS > 1.0) ? 1 : 0);
+        double[] radii = new double[n];
+        double[][] colors = new double[n][];
+        for (int i = 0; i < sFit.length; i++) {
+            radii[i] = scaling * shading.getRadius(sFit[i]);
+            colors[i] = shading.getColor(sFit[i]);
+        }
+        if (maxS > 1.0) {
+            radii[n - 1] = scaling * shading.getRadius(maxS);
+            colors[n - 1] = shading.getColor(1.0);
+        }
+
+        double[] offset = {coor0[0] - coor1[0], coor0[1] - coor1[1]};
+        backend.radialShading(offset, radii, colors, coor1,
+                ctm.getRotation(), xScale, yScale);
+    }
+
+    /**
+     * Passes the current color to the back-end, if it was changed.
+     *
+     * @param gstate Current graphics state.
+     *
+     * @throws PSError A PostScript error occurred.
+     * @throws ProgramError This shouldn't happen, it indicates a bug.
+     */
+    private void updateColor(final GraphicsState gstate)
+            throws PSError, ProgramError {
+
+        PSColor gsColor = gstate.getColor();
+        if (gsColor == lastColor[0]) {
+            return;
+        }
+
+        double[] levels = new double[gsColor.getNrComponents()];
+        for (int i = 0; i < levels.length; i++) {
+            levels[i] = gsColor.getLevel(i);
+        }
+        String model = gsColor.getPreferredColorSpace();
+        double[] values;
+        if (model.equals("CMYK")) {
+            values = gsColor.getCMYK();
+        } else if (model.equals("RGB")) {
+            values = gsColor.getRGB();
+        } else if (model.equals("Gray")) {
+            values = new double[] {gsColor.getGray()};
+        } else {
+            throw new ProgramError("Invalid preferred color space: " + model);
+        }
+        backend.setColor(gsColor.getFamilyName().isis(), levels, model,
+                values);
+        lastColor[0] = gsColor;
+    }
+
+    /**
+     * Draws text.
+     *
+     * @param text Exact text to draw
+     * @param position Text anchor point in [micrometer, micrometer]
+     * @param angle Text angle in degrees
+     * @param fontsize in PostScript pt (= 1/72 inch). If font size is NaN, the
+     * font size is not set and completely determined by LaTeX.
+     * @param anchor String with two characters:
+     * t - top, c - center, B - baseline b - bottom
+     * l - left, c - center, r - right
+     * e.g. Br = baseline,right
+     * @param gstate The current graphics state.
+     *
+     * @throws PSError A PostScript error occurred.
+     * @throws ProgramError This shouldn't happen, it indicates a bug.
+     */
+    public void show(final String text, final double[] position,
+            final double angle, final double fontsize, final String anchor,
+            final GraphicsState gstate)
+            throws PSError, ProgramError {
+
+        if (!culler.isTextVisible(text, position, fontsize, gstate)) {
+            return;
+        }
+        updateColor(gstate);
+        backend.show(text, position[0], position[1], angle, fontsize, anchor);
+    }
+
+    /**
+     * Starts a new scope.
+     *
+     * @throws PSError A PostScript error occurred.
+     */
+    public void startScope() throws PSError {
+        backend.startScope();
+    }
+
+    /**
+     * Ends the current scope.
+     *
+     * @throws PSError A PostScript error occurred.
+     */
+    public void endScope() throws PSError {
+        backend.endScope();
+    }
+
+    /**
+     * Draws a red dot (useful for debugging, don't use otherwise).
+     *
+     * @param x X-coordinate (micrometer)
+     * @param y Y-coordinate (micrometer)
+     *
+     * @throws PSError A PostScript error occurred.
+     */
+    public void drawDot(final double x, final double y) throws PSError {
+        backend.drawDot(x, y);
+    }
+
+    /**
+     * Draws a blue rectangle (useful for debugging, don't use otherwise).
+     *
+     * @param lowerLeft X- and Y-coordinate (in micrometer) of lower left
+     * corner.
+     * @param upperRight X- and Y-coordinate (in micrometer) of upper right
+     * corner.
+     *
+     * @throws PSError A PostScript error occurred.
+     */
+    public void drawRect(final double[] lowerLeft, final double[] upperRight)
+            throws PSError {
+        backend.drawRect(lowerLeft, upperRight);
+    }
+
+    /**
+     * Adds a bitmap image to the output. The image is written to an EPS and
+     * a PDF file, or to a PNG file for SVG output or if PNG images are
+     * selected. The back-end only includes it.
+     *
+     * @param img The bitmap image to add.
+     *
+     * @throws PSError A PostScript error occurred.
+     * @throws ProgramError This shouldn't happen, it indicates a bug.
+     */
+    public void image(final Image img) throws PSError, ProgramError {
+        if (!culler.isAreaVisible(img.getDeviceBbox(),
+                interp.getGstate().current())) {
+            return;
+        }
+
+        Options options = interp.getOptions();
+        if (options.getImageResolution() > 0.0) {
+            img.downsample(options.getImageResolution());
+        }
+        String filename = options.getOutputFile().getName();
+        String basename;
+        int dot = filename.lastIndexOf('.');
+        if (dot >= 0) {
+            basename = filename.substring(0, dot);
+        } else {
+            basename = filename;
+        }
+        basename += "-image" + nextImage[0];
+        nextImage[0] = nextImage[0] + 1;
+        if ((options.getOutputType() == Options.OutputType.SVG)
+                || (options.getImageFormat() == Options.ImageFormat.PNG)) {
+            writePngImage(img, basename);
+        } else {
+            writeEpsPdfImage(img, basename);
+        }
+
+        double[][] bbox = img.getDeviceBbox();
+        int[] cornerMap = img.getCornerMap();
+        double llx = bbox[cornerMap[0]][0];
+        double lly = bbox[cornerMap[0]][1];
+        double lrx = bbox[cornerMap[1]][0];
+        double lry = bbox[cornerMap[1]][1];
+        double ulx = bbox[cornerMap[3]][0];
+        double uly = bbox[cornerMap[3]][1];
+        double x = Math.min(Math.min(llx, ulx), lrx);
+        double y = Math.min(Math.min(lly, uly), lry);
+        double width = img.getOutputWidthPt() / 72.0 * 25.4 * 1000.0;
+        double height = img.getOutputHeightPt() / 72.0 * 25.4 * 1000.0;
+        backend.image(basename, x, y, width, height, img.getAngle());
+    }
+
+    /**
+     * Writes a bitmap image to an EPS and a PDF file. The image data is
+     * compressed and encoded once, while it is written to the EPS file, or
+     * it is taken from the image cache. Data that is already compressed may
+     * be copied as it is instead. The encoded data is then copied from the
+     * EPS file into the PDF file.
+     *
+     * @param img The bitmap image.
+     * @param basename Name of the files, without extension.
+     *
+     * @throws PSError A PostScript error occurred.
+     * @throws ProgramError This shouldn't happen, it indicates a bug.
+     */
+    private void writeEpsPdfImage(final Image img, final String basename)
+            throws PSError, ProgramError {
+
+        Options options = interp.getOptions();
+        File epsFile = new File(options.getOutputFile().getParent(),
+                basename + ".eps");
+        File pdfFile = new File(options.getOutputFile().getParent(),
+                basename + ".pdf");
+        String key = null;
+        InputStream cached = null;
+        // Compressed data that is copied as it is isn't cached, computing
+        // the key would require decoding it.
+        if ((imageCache != null) && (img.getPassThroughFilter() == null)) {
+            key = imageCache.computeKey(img, ".dat", interp);
+            cached = imageCache.openEntry(key, ".dat");
+        }
+        try {
+            int headerLength;
+            long dataLength;
+            try {
+                OutputStream epsOut =
+                    new BufferedOutputStream(new FileOutputStream(epsFile));
+                try {
+                    headerLength = EpsImageCreator.writeImageHeader(epsOut,
+                            img, epsFile.getName(), interp);
+                    if (cached != null) {
+                        dataLength = ImageCache.copy(cached, epsOut, -1);
+                    } else {
+                        dataLength = EpsImageCreator.writeEncodedImageData(
+                                epsOut, img, options);
+                    }
+                    EpsImageCreator.writeImageTrailer(epsOut);
+                } finally {
+                    epsOut.close();
+                }
+            } finally {
+                if (cached != null) {
+                    cached.close();
+                }
+            }
+            if ((key != null) && (cached == null)) {
+                imageCache.addEntry(key, ".dat", epsFile, headerLength,
+                        dataLength);
+            }
+
+            FileInputStream epsIn = new FileInputStream(epsFile);
+            try {
+                epsIn.getChannel().position(headerLength);
+                InputStream encodedData = new BufferedInputStream(epsIn);
+                OutputStream pdfOut = new BufferedOutputStream(
+                        new FileOutputStream(pdfFile));
+                try {
+                    PdfImageCreator pdfImgCreator =
+                        new PdfImageCreator(interp);
+                    pdfImgCreator.writeImage(pdfOut, img, pdfFile.getName(),
+                            encodedData, dataLength);
+                } finally {
+                    pdfOut.close();
+                }
+            } finally {
+                epsIn.close();
+            }
+        } catch (IOException e) {
+            throw new PSErrorIOError();
+        }
+    }
+
+    /**
+     * Writes a bitmap image to a PNG file, or copies it from the image
+     * cache.
+     *
+     * @param img The bitmap image.
+     * @param basename Name of the file, without extension.
+     *
+     * @throws PSError A PostScript error occurred.
+     * @throws ProgramError This shouldn't happen, it indicates a bug.
+     */
+    private void writePngImage(final Image img, final String basename)
+            throws PSError, ProgramError {
+
+        File pngFile = new File(interp.getOptions().getOutputFile().getParent(),
+                basename + ".png");
+        String key = null;
+        InputStream cached = null;
+        if (imageCache != null) {
+            key = imageCache.computeKey(img, ".png", interp);
+            cached = imageCache.openEntry(key, ".png");
+        }
+        try {
+            try {
+                OutputStream pngOut =
+                    new BufferedOutputStream(new FileOutputStream(pngFile));
+                try {
+                    if (cached != null) {
+                        ImageCache.copy(cached, pngOut, -1);
+                    } else {
+                        PngImageCreator.writeImage(pngOut, img,
+                                interp.getOptions());
+                    }
+                } finally {
+                    pngOut.close();
+                }
+            } finally {
+                if (cached != null) {
+                    cached.close();
+                }
+            }
+            if ((key != null) && (cached == null)) {
+                imageCache.addEntry(key, ".png", pngFile, 0,
+                        pngFile.length());
+            }
+        } catch (IOException e) {
+            throw new PSErrorIOError();
+        }
+    }
+}
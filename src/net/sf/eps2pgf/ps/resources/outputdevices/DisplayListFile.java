@@ -0,0 +1,214 @@
+/*
+ * This file is part of Eps2pgf.
+ *
+ * Copyright 2007-2009 Paul Wagenaars
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sf.eps2pgf.ps.resources.outputdevices;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.logging.Logger;
+
+import net.sf.eps2pgf.Options;
+import net.sf.eps2pgf.ProgramError;
+import net.sf.eps2pgf.ps.errors.PSError;
+import net.sf.eps2pgf.ps.errors.PSErrorIOError;
+
+/**
+ * Display list that is stored in a file, such that a figure can be rendered
+ * again without interpreting the PostScript code. The file starts with a
+ * header, followed by the records of a DisplayListWriter.
+ *
+ * The text and the bitmap images in the display list are already in the
+ * form of the output type for which it was recorded. A display list that was
+ * recorded for PGF or TikZ output can be rendered to PGF and TikZ, one that
+ * was recorded for SVG output only to SVG. Bitmap images are referenced by
+ * name, so the image files must be next to the output file.
+ *
+ * @author Paul Wagenaars
+ */
+public class DisplayListFile {
+
+    /** The log. */
+    private static final Logger LOG
+                                  = Logger.getLogger("net.sourceforge.eps2pgf");
+
+    /** First bytes of a display list file. */
+    private static final byte[] MAGIC = {'%', 'E', 'p', 's', '2', 'p', 'g',
+        'f', '-', 'D', 'L', '\n'};
+
+    /** Version of the file format. */
+    private static final int VERSION = 1;
+
+    /** The records are read from this stream. */
+    private InputStream in;
+
+    /** Output type for which the display list was recorded. */
+    private Options.OutputType outputType;
+
+    /** Bounding box (in pt) of the figure, or null. */
+    private double[] bbox;
+
+    /**
+     * Opens a display list file and reads its header.
+     *
+     * @param pIn The file is read from this stream. It should be buffered.
+     *
+     * @throws PSError The stream is not a display list, or it has an
+     * unsupported version.
+     */
+    public DisplayListFile(final InputStream pIn) throws PSError {
+        in = pIn;
+        try {
+            DataInputStream data = new DataInputStream(in);
+            byte[] magic = new byte[MAGIC.length];
+            data.readFully(magic);
+            if (!Arrays.equals(magic, MAGIC)) {
+                LOG.severe("File is not a display list.");
+                throw new PSErrorIOError();
+            }
+            int version = data.readInt();
+            if (version != VERSION) {
+                LOG.severe("Unsupported display list version (" + version
+                        + ").");
+                throw new PSErrorIOError();
+            }
+            outputType = Options.OutputType.valueOf(data.readUTF());
+            if (data.readBoolean()) {
+                bbox = new double[4];
+                for (int i = 0; i < bbox.length; i++) {
+                    bbox[i] = data.readDouble();
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            LOG.severe("Display list has an unknown output type.");
+            throw new PSErrorIOError();
+        } catch (IOException e) {
+            throw new PSErrorIOError();
+        }
+    }
+
+    /**
+     * Writes the header of a display list file. The records must be written
+     * by a DisplayListWriter to the same stream.
+     *
+     * @param out The header is written to this stream.
+     * @param pOutputType Output type for which the display list is recorded.
+     * @param pBbox Bounding box (in pt) of the figure, or null.
+     *
+     * @throws IOException Unable to write to the stream.
+     */
+    public static void writeHeader(final OutputStream out,
+            final Options.OutputType pOutputType, final double[] pBbox)
+            throws IOException {
+        DataOutputStream data = new DataOutputStream(out);
+        data.write(MAGIC);
+        data.writeInt(VERSION);
+        data.writeUTF(pOutputType.name());
+        data.writeBoolean(pBbox != null);
+        if (pBbox != null) {
+            for (int i = 0; i < 4; i++) {
+                data.writeDouble(pBbox[i]);
+            }
+        }
+        data.flush();
+    }
+
+    /**
+     * Checks whether a file is a display list file.
+     *
+     * @param file The file to check.
+     *
+     * @return True if the file starts with the display list header.
+     *
+     * @throws IOException Unable to read the file.
+     */
+    public static boolean isDisplayList(final File file) throws IOException {
+        InputStream fileIn = new FileInputStream(file);
+        try {
+            byte[] magic = new byte[MAGIC.length];
+            int n = 0;
+            while (n < magic.length) {
+                int count = fileIn.read(magic, n, magic.length - n);
+                if (count < 0) {
+                    return false;
+                }
+                n += count;
+            }
+            return Arrays.equals(magic, MAGIC);
+        } finally {
+            fileIn.close();
+        }
+    }
+
+    /**
+     * Gets the output type for which the display list was recorded.
+     *
+     * @return The output type.
+     */
+    public Options.OutputType getOutputType() {
+        return outputType;
+    }
+
+    /**
+     * Gets the bounding box of the figure.
+     *
+     * @return Bounding box (in pt): llx, lly, urx, ury. Null if the figure
+     * has no bounding box.
+     */
+    public double[] getBoundingBox() {
+        if (bbox == null) {
+            return null;
+        }
+        return bbox.clone();
+    }
+
+    /**
+     * Checks whether the display list can be rendered to an output type.
+     *
+     * @param type The output type.
+     *
+     * @return True if the text and images of the display list suit the
+     * output type.
+     */
+    public boolean canRenderTo(final Options.OutputType type) {
+        if (type == Options.OutputType.LOL) {
+            return false;
+        }
+        return (outputType == Options.OutputType.SVG)
+                == (type == Options.OutputType.SVG);
+    }
+
+    /**
+     * Reads the records of the display list and passes them to a back-end.
+     *
+     * @param backend The back-end that renders the display list.
+     * @param pathSpillThreshold Number of sections of a path that is kept in
+     * memory. Zero disables spilling.
+     *
+     * @throws PSError A PostScript error occurred.
+     * @throws ProgramError This shouldn't happen, it indicates a bug.
+     */
+    public void replay(final OutputBackend backend,
+            final int pathSpillThreshold) throws PSError, ProgramError {
+        new DisplayListReader(in, pathSpillThreshold).replay(backend);
+    }
+}
@@ -0,0 +1,267 @@
+/*
+ * This file is part of Eps2pgf.
+ *
+ * Copyright 2007-2009 Paul Wagenaars
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sf.eps2pgf.ps.resources.outputdevices;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.logging.Logger;
+
+import net.sf.eps2pgf.ProgramError;
+import net.sf.eps2pgf.ps.Closepath;
+import net.sf.eps2pgf.ps.Curveto;
+import net.sf.eps2pgf.ps.Lineto;
+import net.sf.eps2pgf.ps.Moveto;
+import net.sf.eps2pgf.ps.PathSection;
+import net.sf.eps2pgf.ps.PathSpillFile;
+import net.sf.eps2pgf.ps.SegmentLog;
+import net.sf.eps2pgf.ps.errors.PSError;
+import net.sf.eps2pgf.ps.errors.PSErrorIOError;
+
+/**
+ * Reads a display list that was recorded by a DisplayListWriter, and passes
+ * the operations to a back-end.
+ *
+ * @author Paul Wagenaars
+ */
+public class DisplayListReader {
+
+    /** The log. */
+    private static final Logger LOG
+                                  = Logger.getLogger("net.sourceforge.eps2pgf");
+
+    /** The records are read from this stream. */
+    private DataInputStream in;
+
+    /** Temporary file to which long paths are spilled, see SegmentLog. */
+    private PathSpillFile pathSpillFile = SegmentLog.createSpillFile();
+
+    /**
+     * The path that was read last. It is reused for the next path, such that
+     * its spilled sections are released.
+     */
+    private SegmentLog path;
+
+    /**
+     * Creates a new display list reader.
+     *
+     * @param pIn The records are read from this stream. It should be
+     * buffered.
+     * @param pPathSpillThreshold Number of sections of a path that is kept in
+     * memory. Zero disables spilling.
+     */
+    public DisplayListReader(final InputStream pIn,
+            final int pPathSpillThreshold) {
+        in = new DataInputStream(pIn);
+        path = new SegmentLog(pPathSpillThreshold, pathSpillFile);
+    }
+
+    /**
+     * Reads the display list up to and including the finish() operation, and
+     * passes all operations to a back-end.
+     *
+     * @param backend The back-end that renders the display list.
+     *
+     * @throws PSError A PostScript error occurred.
+     * @throws ProgramError This shouldn't happen, it indicates a bug.
+     */
+    public void replay(final OutputBackend backend)
+            throws PSError, ProgramError {
+
+        try {
+            while (true) {
+                byte op = in.readByte();
+                switch (op) {
+                    case DisplayListWriter.INIT:
+                        backend.init();
+                        break;
+                    case DisplayListWriter.FINISH:
+                        backend.finish();
+                        return;
+                    case DisplayListWriter.START_SCOPE:
+                        backend.startScope();
+                        break;
+                    case DisplayListWriter.END_SCOPE:
+                        backend.endScope();
+                        break;
+                    case DisplayListWriter.SET_COLOR:
+                        backend.setColor(readString(), readDoubles(),
+                                readString(), readDoubles());
+                        break;
+                    case DisplayListWriter.SET_LINE_STYLE:
+                        backend.setLineStyle(in.readDouble(), readDoubles(),
+                                in.readDouble(), in.readByte(), in.readByte(),
+                                in.readDouble());
+                        break;
+                    case DisplayListWriter.FILL:
+                        backend.fill(readPath());
+                        break;
+                    case DisplayListWriter.EOFILL:
+                        backend.eofill(readPath());
+                        break;
+                    case DisplayListWriter.STROKE:
+                        backend.stroke(readPath());
+                        break;
+                    case DisplayListWriter.CLIP:
+                        backend.clip(readPath());
+                        break;
+                    case DisplayListWriter.EOCLIP:
+                        backend.eoclip(readPath());
+                        break;
+                    case DisplayListWriter.RADIAL_SHADING:
+                        readRadialShading(backend);
+                        break;
+                    case DisplayListWriter.SHOW:
+                        backend.show(readString(), in.readDouble(),
+                                in.readDouble(), in.readDouble(),
+                                in.readDouble(), readString());
+                        break;
+                    case DisplayListWriter.IMAGE:
+                        backend.image(readString(), in.readDouble(),
+                                in.readDouble(), in.readDouble(),
+                                in.readDouble(), in.readDouble());
+                        break;
+                    case DisplayListWriter.DRAW_DOT:
+                        backend.drawDot(in.readDouble(), in.readDouble());
+                        break;
+                    case DisplayListWriter.DRAW_RECT:
+                        double[] lowerLeft = {in.readDouble(), in.readDouble()};
+                        double[] upperRight = {in.readDouble(),
+                                in.readDouble()};
+                        backend.drawRect(lowerLeft, upperRight);
+                        break;
+                    default:
+                        throw new ProgramError("Invalid operation in display"
+                                + " list: " + op);
+                }
+            }
+        } catch (EOFException e) {
+            throw new ProgramError("Display list ended before finish().");
+        } catch (IOException e) {
+            throw new PSErrorIOError();
+        } finally {
+            path.clear();
+            try {
+                pathSpillFile.close();
+            } catch (IOException e) {
+                LOG.warning("Unable to close temporary file with paths ("
+                        + e.getMessage() + ").");
+            }
+        }
+    }
+
+    /**
+     * Reads the parameters of a radial shading and passes it to a back-end.
+     *
+     * @param backend The back-end.
+     *
+     * @throws IOException Unable to read from the stream.
+     * @throws PSError A PostScript error occurred.
+     * @throws ProgramError This shouldn't happen, it indicates a bug.
+     */
+    private void readRadialShading(final OutputBackend backend)
+            throws IOException, PSError, ProgramError {
+
+        double[] offset = {in.readDouble(), in.readDouble()};
+        double[] radii = readDoubles();
+        double[][] colors = new double[radii.length][];
+        for (int i = 0; i < radii.length; i++) {
+            colors[i] = readDoubles();
+        }
+        double[] position = {in.readDouble(), in.readDouble()};
+        backend.radialShading(offset, radii, colors, position,
+                in.readDouble(), in.readDouble(), in.readDouble());
+    }
+
+    /**
+     * Reads a path. The same list is returned for each path, the back-end
+     * must not keep a reference to it.
+     *
+     * @return Sections of the path.
+     *
+     * @throws IOException Unable to read from the stream.
+     * @throws ProgramError This shouldn't happen, it indicates a bug.
+     */
+    private SegmentLog readPath() throws IOException, ProgramError {
+        int n = in.readInt();
+        path.clear();
+        for (int i = 0; i < n; i++) {
+            PathSection section;
+            int nrCoors;
+            byte type = in.readByte();
+            switch (type) {
+                case DisplayListWriter.MOVETO:
+                    section = new Moveto();
+                    nrCoors = 2;
+                    break;
+                case DisplayListWriter.LINETO:
+                    section = new Lineto();
+                    nrCoors = 2;
+                    break;
+                case DisplayListWriter.CURVETO:
+                    section = new Curveto();
+                    nrCoors = 6;
+                    break;
+                case DisplayListWriter.CLOSEPATH:
+                    section = new Closepath();
+                    nrCoors = 0;
+                    break;
+                default:
+                    throw new ProgramError("Invalid path section in display"
+                            + " list: " + type);
+            }
+            for (int j = 0; j < nrCoors; j++) {
+                section.setParam(j, in.readDouble());
+            }
+            path.add(section);
+        }
+        return path;
+    }
+
+    /**
+     * Reads an array of doubles that is preceded by its length.
+     *
+     * @return The values.
+     *
+     * @throws IOException Unable to read from the stream.
+     */
+    private double[] readDoubles() throws IOException {
+        double[] values = new double[in.readInt()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = in.readDouble();
+        }
+        return values;
+    }
+
+    /**
+     * Reads a string that is preceded by its length.
+     *
+     * @return The string.
+     *
+     * @throws IOException Unable to read from the stream.
+     */
+    private String readString() throws IOException {
+        char[] chars = new char[in.readInt()];
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = in.readChar();
+        }
+        return new String(chars);
+    }
+}
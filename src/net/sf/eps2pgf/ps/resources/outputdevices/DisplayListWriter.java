@@ -0,0 +1,527 @@
+/*
+ * This file is part of Eps2pgf.
+ *
+ * Copyright 2007-2009 Paul Wagenaars
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sf.eps2pgf.ps.resources.outputdevices;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.List;
+
+import net.sf.eps2pgf.ps.Closepath;
+import net.sf.eps2pgf.ps.Curveto;
+import net.sf.eps2pgf.ps.Lineto;
+import net.sf.eps2pgf.ps.Moveto;
+import net.sf.eps2pgf.ps.PathSection;
+import net.sf.eps2pgf.ps.errors.PSError;
+import net.sf.eps2pgf.ps.errors.PSErrorIOError;
+import net.sf.eps2pgf.ps.errors.PSErrorUnregistered;
+
+/**
+ * Back-end that records the display list in a compact binary format. Each
+ * call is written as a record: an operation code followed by its parameters.
+ * The records are read back by a DisplayListReader, which passes them to
+ * another back-end.
+ *
+ * Colors and line styles are only recorded when they differ from the last
+ * recorded ones. Path sections only store the coordinates that they use.
+ *
+ * @author Paul Wagenaars
+ */
+public class DisplayListWriter implements OutputBackend {
+
+    /** Operation code of init(). */
+    static final byte INIT = 1;
+
+    /** Operation code of finish(). */
+    static final byte FINISH = 2;
+
+    /** Operation code of startScope(). */
+    static final byte START_SCOPE = 3;
+
+    /** Operation code of endScope(). */
+    static final byte END_SCOPE = 4;
+
+    /** Operation code of setColor(). */
+    static final byte SET_COLOR = 5;
+
+    /** Operation code of setLineStyle(). */
+    static final byte SET_LINE_STYLE = 6;
+
+    /** Operation code of fill(). */
+    static final byte FILL = 7;
+
+    /** Operation code of eofill(). */
+    static final byte EOFILL = 8;
+
+    /** Operation code of stroke(). */
+    static final byte STROKE = 9;
+
+    /** Operation code of clip(). */
+    static final byte CLIP = 10;
+
+    /** Operation code of eoclip(). */
+    static final byte EOCLIP = 11;
+
+    /** Operation code of radialShading(). */
+    static final byte RADIAL_SHADING = 12;
+
+    /** Operation code of show(). */
+    static final byte SHOW = 13;
+
+    /** Operation code of image(). */
+    static final byte IMAGE = 14;
+
+    /** Operation code of drawDot(). */
+    static final byte DRAW_DOT = 15;
+
+    /** Operation code of drawRect(). */
+    static final byte DRAW_RECT = 16;
+
+    /** Type of a moveto path section. */
+    static final byte MOVETO = 0;
+
+    /** Type of a lineto path section. */
+    static final byte LINETO = 1;
+
+    /** Type of a curveto path section. */
+    static final byte CURVETO = 2;
+
+    /** Type of a closepath path section. */
+    static final byte CLOSEPATH = 3;
+
+    /** The records are written to this stream. */
+    private DataOutputStream out;
+
+    /** Color space of the last recorded color. */
+    private String lastColorSpace = null;
+
+    /** Levels of the last recorded color. */
+    private double[] lastLevels = null;
+
+    /** Model of the last recorded color. */
+    private String lastModel = null;
+
+    /** Values of the last recorded color. */
+    private double[] lastValues = null;
+
+    /**
+     * Last recorded line style: width, dash offset, cap, join and miter
+     * limit.
+     */
+    private double[] lastLineStyle = null;
+
+    /** Last recorded dash pattern. */
+    private double[] lastDashPattern = null;
+
+    /**
+     * Creates a new display list writer.
+     *
+     * @param pOut The records are written to this stream. It should be
+     * buffered.
+     */
+    public DisplayListWriter(final OutputStream pOut) {
+        out = new DataOutputStream(pOut);
+    }
+
+    /**
+     * Records init(). The header is written by the back-end that renders the
+     * display list.
+     *
+     * @throws PSError A PostScript error occurred.
+     */
+    public void init() throws PSError {
+        try {
+            out.writeByte(INIT);
+        } catch (IOException e) {
+            throw new PSErrorIOError();
+        }
+    }
+
+    /**
+     * Records finish() and flushes the stream. The stream is not closed.
+     *
+     * @throws PSError A PostScript error occurred.
+     */
+    public void finish() throws PSError {
+        try {
+            out.writeByte(FINISH);
+            out.flush();
+        } catch (IOException e) {
+            throw new PSErrorIOError();
+        }
+    }
+
+    /**
+     * Records startScope().
+     *
+     * @throws PSError A PostScript error occurred.
+     */
+    public void startScope() throws PSError {
+        try {
+            out.writeByte(START_SCOPE);
+        } catch (IOException e) {
+            throw new PSErrorIOError();
+        }
+    }
+
+    /**
+     * Records endScope().
+     *
+     * @throws PSError A PostScript error occurred.
+     */
+    public void endScope() throws PSError {
+        try {
+            out.writeByte(END_SCOPE);
+        } catch (IOException e) {
+            throw new PSErrorIOError();
+        }
+    }
+
+    /**
+     * Records setColor(), if the color differs from the last recorded color.
+     *
+     * @param colorSpace Name of the color space family of the color.
+     * @param levels Color values in the color space.
+     * @param model Color model in which the color is written.
+     * @param values Color values (in range from 0.0 to 1.0) in the model.
+     *
+     * @throws PSError A PostScript error occurred.
+     */
+    public void setColor(final String colorSpace, final double[] levels,
+            final String model, final double[] values) throws PSError {
+
+        if (colorSpace.equals(lastColorSpace)
+                && Arrays.equals(levels, lastLevels)
+                && model.equals(lastModel)
+                && Arrays.equals(values, lastValues)) {
+            return;
+        }
+        try {
+            out.writeByte(SET_COLOR);
+            writeString(colorSpace);
+            writeDoubles(levels);
+            writeString(model);
+            writeDoubles(values);
+        } catch (IOException e) {
+            throw new PSErrorIOError();
+        }
+        lastColorSpace = colorSpace;
+        lastLevels = levels;
+        lastModel = model;
+        lastValues = values;
+    }
+
+    /**
+     * Records setLineStyle(), if the line style differs from the last
+     * recorded line style.
+     *
+     * @param width Line width (in micrometer).
+     * @param dashPattern Dash pattern (in micrometer).
+     * @param dashOffset Dash offset (in micrometer).
+     * @param cap Line cap (0, 1 or 2).
+     * @param join Line join (0, 1 or 2).
+     * @param miterLimit Miter limit.
+     *
+     * @throws PSError A PostScript error occurred.
+     */
+    public void setLineStyle(final double width, final double[] dashPattern,
+            final double dashOffset, final int cap, final int join,
+            final double miterLimit) throws PSError {
+
+        double[] lineStyle = {width, dashOffset, cap, join, miterLimit};
+        if (Arrays.equals(lineStyle, lastLineStyle)
+                && Arrays.equals(dashPattern, lastDashPattern)) {
+            return;
+        }
+        try {
+            out.writeByte(SET_LINE_STYLE);
+            out.writeDouble(width);
+            writeDoubles(dashPattern);
+            out.writeDouble(dashOffset);
+            out.writeByte(cap);
+            out.writeByte(join);
+            out.writeDouble(miterLimit);
+        } catch (IOException e) {
+            throw new PSErrorIOError();
+        }
+        lastLineStyle = lineStyle;
+        lastDashPattern = dashPattern;
+    }
+
+    /**
+     * Records fill().
+     *
+     * @param path Sections of the path.
+     *
+     * @throws PSError A PostScript error occurred.
+     */
+    public void fill(final List<PathSection> path) throws PSError {
+        writePathRecord(FILL, path);
+    }
+
+    /**
+     * Records eofill().
+     *
+     * @param path Sections of the path.
+     *
+     * @throws PSError A PostScript error occurred.
+     */
+    public void eofill(final List<PathSection> path) throws PSError {
+        writePathRecord(EOFILL, path);
+    }
+
+    /**
+     * Records stroke().
+     *
+     * @param path Sections of the path.
+     *
+     * @throws PSError A PostScript error occurred.
+     */
+    public void stroke(final List<PathSection> path) throws PSError {
+        writePathRecord(STROKE, path);
+    }
+
+    /**
+     * Records clip().
+     *
+     * @param path Sections of the path.
+     *
+     * @throws PSError A PostScript error occurred.
+     */
+    public void clip(final List<PathSection> path) throws PSError {
+        writePathRecord(CLIP, path);
+    }
+
+    /**
+     * Records eoclip().
+     *
+     * @param path Sections of the path.
+     *
+     * @throws PSError A PostScript error occurred.
+     */
+    public void eoclip(final List<PathSection> path) throws PSError {
+        writePathRecord(EOCLIP, path);
+    }
+
+    /**
+     * Records radialShading().
+     *
+     * @param offset Position of the center of the first circle, relative to
+     * the center of the last circle.
+     * @param radii Radius of each circle.
+     * @param colors RGB color of each circle.
+     * @param position Position of the center of the last circle.
+     * @param angle Rotation (in degrees) of the shading.
+     * @param xScale Horizontal scaling of the shading.
+     * @param yScale Vertical scaling of the shading.
+     *
+     * @throws PSError A PostScript error occurred.
+     */
+    public void radialShading(final double[] offset, final double[] radii,
+            final double[][] colors, final double[] position,
+            final double angle, final double xScale, final double yScale)
+            throws PSError {
+
+        try {
+            out.writeByte(RADIAL_SHADING);
+            out.writeDouble(offset[0]);
+            out.writeDouble(offset[1]);
+            writeDoubles(radii);
+            for (int i = 0; i < radii.length; i++) {
+                writeDoubles(colors[i]);
+            }
+            out.writeDouble(position[0]);
+            out.writeDouble(position[1]);
+            out.writeDouble(angle);
+            out.writeDouble(xScale);
+            out.writeDouble(yScale);
+        } catch (IOException e) {
+            throw new PSErrorIOError();
+        }
+    }
+
+    /**
+     * Records show().
+     *
+     * @param text Exact text to draw
+     * @param x X-coordinate of text anchor point (in micrometer).
+     * @param y Y-coordinate of text anchor point (in micrometer).
+     * @param angle Text angle in degrees
+     * @param fontsize in PostScript pt (= 1/72 inch), or NaN.
+     * @param anchor String with two characters, see OutputDevice.show().
+     *
+     * @throws PSError A PostScript error occurred.
+     */
+    public void show(final String text, final double x, final double y,
+            final double angle, final double fontsize, final String anchor)
+            throws PSError {
+
+        try {
+            out.writeByte(SHOW);
+            writeString(text);
+            out.writeDouble(x);
+            out.writeDouble(y);
+            out.writeDouble(angle);
+            out.writeDouble(fontsize);
+            writeString(anchor);
+        } catch (IOException e) {
+            throw new PSErrorIOError();
+        }
+    }
+
+    /**
+     * Records image().
+     *
+     * @param name Name of the image file, without extension.
+     * @param x X-coordinate of the lower-left corner (in micrometer).
+     * @param y Y-coordinate of the lower-left corner (in micrometer).
+     * @param width Width (in micrometer) of the image.
+     * @param height Height (in micrometer) of the image.
+     * @param angle Rotation (in degrees) of the image.
+     *
+     * @throws PSError A PostScript error occurred.
+     */
+    public void image(final String name, final double x, final double y,
+            final double width, final double height, final double angle)
+            throws PSError {
+
+        try {
+            out.writeByte(IMAGE);
+            writeString(name);
+            out.writeDouble(x);
+            out.writeDouble(y);
+            out.writeDouble(width);
+            out.writeDouble(height);
+            out.writeDouble(angle);
+        } catch (IOException e) {
+            throw new PSErrorIOError();
+        }
+    }
+
+    /**
+     * Records drawDot().
+     *
+     * @param x X-coordinate of dot.
+     * @param y Y-coordinate of dot.
+     *
+     * @throws PSError A PostScript error occurred.
+     */
+    public void drawDot(final double x, final double y) throws PSError {
+        try {
+            out.writeByte(DRAW_DOT);
+            out.writeDouble(x);
+            out.writeDouble(y);
+        } catch (IOException e) {
+            throw new PSErrorIOError();
+        }
+    }
+
+    /**
+     * Records drawRect().
+     *
+     * @param lowerLeft Lower-left coordinate.
+     * @param upperRight Upper-right coordinate.
+     *
+     * @throws PSError A PostScript error occurred.
+     */
+    public void drawRect(final double[] lowerLeft, final double[] upperRight)
+            throws PSError {
+
+        try {
+            out.writeByte(DRAW_RECT);
+            out.writeDouble(lowerLeft[0]);
+            out.writeDouble(lowerLeft[1]);
+            out.writeDouble(upperRight[0]);
+            out.writeDouble(upperRight[1]);
+        } catch (IOException e) {
+            throw new PSErrorIOError();
+        }
+    }
+
+    /**
+     * Writes a record with a path.
+     *
+     * @param op Operation code.
+     * @param path Sections of the path.
+     *
+     * @throws PSError A PostScript error occurred.
+     */
+    private void writePathRecord(final byte op, final List<PathSection> path)
+            throws PSError {
+
+        try {
+            int n = path.size();
+            out.writeByte(op);
+            out.writeInt(n);
+            for (int i = 0; i < n; i++) {
+                PathSection section = path.get(i);
+                int nrCoors;
+                if (section instanceof Moveto) {
+                    out.writeByte(MOVETO);
+                    nrCoors = 2;
+                } else if (section instanceof Lineto) {
+                    out.writeByte(LINETO);
+                    nrCoors = 2;
+                } else if (section instanceof Curveto) {
+                    out.writeByte(CURVETO);
+                    nrCoors = 6;
+                } else if (section instanceof Closepath) {
+                    out.writeByte(CLOSEPATH);
+                    nrCoors = 0;
+                } else {
+                    throw new PSErrorUnregistered("Can't handle "
+                            + section.getClass().getName());
+                }
+                for (int j = 0; j < nrCoors; j++) {
+                    out.writeDouble(section.getParam(j));
+                }
+            }
+        } catch (IOException e) {
+            throw new PSErrorIOError();
+        }
+    }
+
+    /**
+     * Writes an array of doubles, preceded by its length.
+     *
+     * @param values The values to write.
+     *
+     * @throws IOException Unable to write to the stream.
+     */
+    private void writeDoubles(final double[] values) throws IOException {
+        out.writeInt(values.length);
+        for (int i = 0; i < values.length; i++) {
+            out.writeDouble(values[i]);
+        }
+    }
+
+    /**
+     * Writes a string, preceded by its length. Unlike writeUTF() there is no
+     * limit on the length.
+     *
+     * @param str The string to write.
+     *
+     * @throws IOException Unable to write to the stream.
+     */
+    private void writeString(final String str) throws IOException {
+        out.writeInt(str.length());
+        out.writeChars(str);
+    }
+}
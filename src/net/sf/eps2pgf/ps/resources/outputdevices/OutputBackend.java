@@ -0,0 +1,223 @@
+/*
+ * This file is part of Eps2pgf.
+ *
+ * Copyright 2007-2009 Paul Wagenaars
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sf.eps2pgf.ps.resources.outputdevices;
+
+import java.util.List;
+
+import net.sf.eps2pgf.ProgramError;
+import net.sf.eps2pgf.ps.PathSection;
+import net.sf.eps2pgf.ps.errors.PSError;
+
+/**
+ * Back-end of an output device, it writes painting operations to an output
+ * format. Unlike an OutputDevice, a back-end does not need the graphics
+ * state. All parameters are passed as plain values in device space
+ * (micrometer), such that the operations can be recorded in a display list
+ * and rendered later, or on another thread.
+ *
+ * The color and line style are set before the operations that use them, and
+ * remain in effect until they are set again. They are not affected by
+ * scopes.
+ *
+ * @author Paul Wagenaars
+ */
+public interface OutputBackend {
+
+    /**
+     * Initialize before any other methods are called. Normally, this method
+     * writes a header.
+     *
+     * @throws PSError A PostScript error occurred.
+     */
+    void init() throws PSError;
+
+    /**
+     * Finalize writing. Normally, this method writes a footer.
+     *
+     * @throws PSError A PostScript error occurred.
+     */
+    void finish() throws PSError;
+
+    /**
+     * Starts a new scope.
+     *
+     * @throws PSError A PostScript error occurred.
+     */
+    void startScope() throws PSError;
+
+    /**
+     * Ends the current scope.
+     *
+     * @throws PSError A PostScript error occurred.
+     */
+    void endScope() throws PSError;
+
+    /**
+     * Sets the color of the following painting operations.
+     *
+     * @param colorSpace Name of the color space family of the color.
+     * @param levels Color values in the color space.
+     * @param model Color model in which the color is written: "CMYK", "RGB"
+     * or "Gray".
+     * @param values Color values (in range from 0.0 to 1.0) in the model.
+     *
+     * @throws PSError A PostScript error occurred.
+     * @throws ProgramError This shouldn't happen, it indicates a bug.
+     */
+    void setColor(String colorSpace, double[] levels, String model,
+            double[] values) throws PSError, ProgramError;
+
+    /**
+     * Sets the line style of the following stroke operations.
+     *
+     * @param width Line width (in micrometer).
+     * @param dashPattern Dash pattern (in micrometer).
+     * @param dashOffset Dash offset (in micrometer).
+     * @param cap Line cap (0, 1 or 2).
+     * @param join Line join (0, 1 or 2).
+     * @param miterLimit Miter limit.
+     *
+     * @throws PSError A PostScript error occurred.
+     */
+    void setLineStyle(double width, double[] dashPattern, double dashOffset,
+            int cap, int join, double miterLimit) throws PSError;
+
+    /**
+     * Fills a path using the non-zero rule.
+     *
+     * @param path Sections of the path.
+     *
+     * @throws PSError A PostScript error occurred.
+     * @throws ProgramError This shouldn't happen, it indicates a bug.
+     */
+    void fill(List<PathSection> path) throws PSError, ProgramError;
+
+    /**
+     * Fills a path using the even-odd rule.
+     *
+     * @param path Sections of the path.
+     *
+     * @throws PSError A PostScript error occurred.
+     * @throws ProgramError This shouldn't happen, it indicates a bug.
+     */
+    void eofill(List<PathSection> path) throws PSError, ProgramError;
+
+    /**
+     * Strokes a path.
+     *
+     * @param path Sections of the path.
+     *
+     * @throws PSError A PostScript error occurred.
+     * @throws ProgramError This shouldn't happen, it indicates a bug.
+     */
+    void stroke(List<PathSection> path) throws PSError, ProgramError;
+
+    /**
+     * Sets a clipping path, using the non-zero rule.
+     *
+     * @param path Sections of the path.
+     *
+     * @throws PSError A PostScript error occurred.
+     */
+    void clip(List<PathSection> path) throws PSError;
+
+    /**
+     * Sets a clipping path, using the even-odd rule.
+     *
+     * @param path Sections of the path.
+     *
+     * @throws PSError A PostScript error occurred.
+     */
+    void eoclip(List<PathSection> path) throws PSError;
+
+    /**
+     * Fills the clipping path with a radial shading. The shading is
+     * described by circles that have their centers on a line, from the
+     * center of the first circle to the center of the last circle.
+     *
+     * @param offset Position of the center of the first circle, relative to
+     * the center of the last circle.
+     * @param radii Radius of each circle.
+     * @param colors RGB color of each circle.
+     * @param position Position of the center of the last circle.
+     * @param angle Rotation (in degrees) of the shading.
+     * @param xScale Horizontal scaling of the shading.
+     * @param yScale Vertical scaling of the shading.
+     *
+     * @throws PSError A PostScript error occurred.
+     * @throws ProgramError This shouldn't happen, it indicates a bug.
+     */
+    void radialShading(double[] offset, double[] radii, double[][] colors,
+            double[] position, double angle, double xScale, double yScale)
+            throws PSError, ProgramError;
+
+    /**
+     * Draws text.
+     *
+     * @param text Exact text to draw
+     * @param x X-coordinate of text anchor point (in micrometer).
+     * @param y Y-coordinate of text anchor point (in micrometer).
+     * @param angle Text angle in degrees
+     * @param fontsize in PostScript pt (= 1/72 inch). If fontsize is NaN, the
+     * font size is not set and completely determined by LaTeX.
+     * @param anchor String with two characters, see OutputDevice.show().
+     *
+     * @throws PSError A PostScript error occurred.
+     * @throws ProgramError This shouldn't happen, it indicates a bug.
+     */
+    void show(String text, double x, double y, double angle, double fontsize,
+            String anchor) throws PSError, ProgramError;
+
+    /**
+     * Includes a bitmap image that was written to a separate file. The
+     * position is the lower-left corner of the bounding box of the rotated
+     * image.
+     *
+     * @param name Name of the image file, without extension.
+     * @param x X-coordinate of the lower-left corner (in micrometer).
+     * @param y Y-coordinate of the lower-left corner (in micrometer).
+     * @param width Width (in micrometer) of the image.
+     * @param height Height (in micrometer) of the image.
+     * @param angle Rotation (in degrees) of the image.
+     *
+     * @throws PSError A PostScript error occurred.
+     */
+    void image(String name, double x, double y, double width,
+            double height, double angle) throws PSError;
+
+    /**
+     * Draws a red dot (useful for debugging, don't use otherwise).
+     *
+     * @param x X-coordinate of dot.
+     * @param y Y-coordinate of dot.
+     *
+     * @throws PSError A PostScript error occurred.
+     */
+    void drawDot(double x, double y) throws PSError;
+
+    /**
+     * Draws a blue rectangle (useful for debugging, don't use otherwise).
+     *
+     * @param lowerLeft Lower-left coordinate.
+     * @param upperRight Upper-right coordinate.
+     *
+     * @throws PSError A PostScript error occurred.
+     */
+    void drawRect(double[] lowerLeft, double[] upperRight) throws PSError;
+}
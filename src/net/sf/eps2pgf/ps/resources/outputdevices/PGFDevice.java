@@ -18,49 +18,42 @@
 
 package net.sf.eps2pgf.ps.resources.outputdevices;
 
-import java.io.BufferedOutputStream;
-import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.OutputStream;
 import java.io.Writer;
 import java.text.DecimalFormat;
 import java.text.DecimalFormatSymbols;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.List;
 import java.util.Locale;
+import java.util.logging.Logger;
 
 import net.sf.eps2pgf.Options;
 import net.sf.eps2pgf.ProgramError;
-import net.sf.eps2pgf.io.images.EpsImageCreator;
-import net.sf.eps2pgf.io.images.PdfImageCreator;
 import net.sf.eps2pgf.ps.Closepath;
 import net.sf.eps2pgf.ps.Curveto;
-import net.sf.eps2pgf.ps.GraphicsState;
-import net.sf.eps2pgf.ps.Image;
-import net.sf.eps2pgf.ps.Interpreter;
 import net.sf.eps2pgf.ps.Lineto;
 import net.sf.eps2pgf.ps.Moveto;
-import net.sf.eps2pgf.ps.Matrix;
-import net.sf.eps2pgf.ps.Path;
 import net.sf.eps2pgf.ps.PathSection;
 import net.sf.eps2pgf.ps.errors.PSError;
 import net.sf.eps2pgf.ps.errors.PSErrorIOError;
 import net.sf.eps2pgf.ps.errors.PSErrorRangeCheck;
 import net.sf.eps2pgf.ps.errors.PSErrorUnregistered;
-import net.sf.eps2pgf.ps.objects.PSObjectDict;
-import net.sf.eps2pgf.ps.resources.colors.PSColor;
-import net.sf.eps2pgf.ps.resources.shadings.RadialShading;
-import net.sf.eps2pgf.ps.resources.shadings.Shading;
+import net.sf.eps2pgf.util.ArrayStack;
+import net.sf.eps2pgf.util.FixedDecimalFormat;
 
 /**
- * Writes PGF files.
+ * Writes PGF files. This is a back-end, the painting operations are passed
+ * by a DisplayListDevice.
  * 
  * @author Paul Wagenaars
  */
-public class PGFDevice implements OutputDevice, Cloneable {
+public class PGFDevice implements OutputBackend {
+    
+    /** The log. */
+    private static final Logger LOG
+                                  = Logger.getLogger("net.sourceforge.eps2pgf");
     
     /** Coordinate format (used to format X- and Y-coordinates). */
     public static final DecimalFormat COOR_FORMAT =
@@ -82,94 +75,210 @@ public class PGFDevice implements OutputDevice, Cloneable {
      * Colors (in range from 0.0 to 1.0) have at least 16-bit per channel
      * accuracy.
      */
-    static final DecimalFormat COLOR_FORMAT = new DecimalFormat("#.######",
-            new DecimalFormatSymbols(Locale.US));
+    public static final DecimalFormat COLOR_FORMAT =
+        new DecimalFormat("#.######", new DecimalFormatSymbols(Locale.US));
+    
+    /** Painting operation: fill using the non-zero rule. */
+    public static final int FILL = 0;
+    
+    /** Painting operation: fill using the even-odd rule. */
+    public static final int EOFILL = 1;
+    
+    /** Painting operation: stroke. */
+    public static final int STROKE = 2;
+    
+    /** Painting operation: clip using the non-zero rule. */
+    static final int CLIP = 3;
+    
+    /** Painting operation: clip using the even-odd rule. */
+    static final int EOCLIP = 4;
+    
+    /** PGF code that paints a path, for each painting operation. */
+    private static final String[] USE_PATH = {
+        "\\pgfusepath{fill}",
+        "\\pgfseteorule\\pgfusepath{fill}\\pgfsetnonzerorule",
+        "\\pgfusepath{stroke}",
+        "\\pgfusepath{clip}",
+        "\\pgfseteorule\\pgfusepath{clip}\\pgfsetnonzerorule"
+    };
+    
+    /**
+     * Writes coordinates in the same format as COOR_FORMAT, without creating
+     * intermediate strings.
+     */
+    private FixedDecimalFormat coorWriter = new FixedDecimalFormat(3);
     
+    /**
+     * Writes colors in the same format as COLOR_FORMAT, without creating
+     * intermediate strings.
+     */
+    private FixedDecimalFormat colorWriter = new FixedDecimalFormat(6);
+    
+    /**
+     * State (color, line width, etc...) of the output document at the current
+     * position in the output. Only differences with this state are written.
+     */
+    private EmittedState emitted = new EmittedState();
     
-    //
-    // The variables below keep track of the status of parameters that are
-    // influenced by the current scope of the output document.
+    /**
+     * Scopes in the output document, with an entry for each started scope.
+     * Scopes are only written to the output when something is drawn in them.
+     * The entry is null if the scope has not been written yet, otherwise it
+     * is the emitted state just before the scope was written. This state is
+     * restored at the end of the scope, just like TeX does.
+     */
+    private ArrayStack<EmittedState> scopes = new ArrayStack<EmittedState>();
+    
+    /** Removes superfluous points from polylines. */
+    private PathSimplifier simplifier;
+    
+    /** Macros for paths that are drawn more than once. */
+    private PathMacros pathMacros;
+    
+    /** Merges consecutive paths that are painted in the same way. */
+    private PathBatch batch;
+    
+    /** Bitmap images are PNG files instead of EPS and PDF files. */
+    private boolean pngImages;
+    
+    /**
+     * Origin of the coordinates that are written. It is only non-zero while
+     * the definition of a path macro is written.
+     */
+    private double[] origin = {0.0, 0.0};
+
     //
+    // Run of markers: consecutive paths with the same path macro that are
+    // painted in the same way. The positions are collected and written as a
+    // list, which is drawn by a loop in TeX.
+    //
+
+    /**
+     * Maximum number of markers in a run. Longer runs are split, such that
+     * the memory usage remains limited.
+     */
+    static final int MAX_MARKER_RUN = 1 << 16;
+
+    /**
+     * Minimum number of markers in a run that is written as a list. Shorter
+     * runs are written as separate macro uses, the list would not be
+     * shorter.
+     */
+    static final int MIN_MARKER_RUN = 4;
+
+    /** Number of marker positions that is written per line. */
+    static final int MARKERS_PER_LINE = 8;
+
+    /**
+     * TeX macro that draws the markers in a list "x1,y1;x2,y2;...", which is
+     * terminated by "\relax,\relax;". Coordinates are in cm. It draws the
+     * path \epspgfmarker at each position and paints it with
+     * \epspgfmarkeruse.
+     */
+    static final String MARKER_LOOP = "\\gdef\\epspgfmarkers#1,#2;{"
+        + "\\ifx\\relax#1\\else"
+        + "{\\pgftransformshift{\\pgfqpoint{#1cm}{#2cm}}\\epspgfmarker}"
+        + "\\epspgfmarkeruse\\expandafter\\epspgfmarkers\\fi}\n";
+
+    /** Path macro of the current marker run, null if there is no run. */
+    private PathMacros.Macro runMacro = null;
+
+    /** Painting operation of the markers of the current run. */
+    private int runOp = FILL;
+
+    /** Style version at the start of the current run. */
+    private long runStyleVersion = 0;
+
+    /** Positions (x1, y1, x2, y2, ...) of the markers in the current run. */
+    private double[] runPositions = new double[64];
+
+    /** Number of markers in the current run. */
+    private int runLength = 0;
+
+    /** Indicates whether MARKER_LOOP has been written to the output. */
+    private boolean markerLoopDefined = false;
+
+    /** Number of markers that were written in a marker list. */
+    private long nrCompactedMarkers = 0;
+
+    /** Number of marker lists that were written. */
+    private int nrMarkerRuns = 0;
+
+    /**
+     * Incremented each time the color or line style is set to a different
+     * value.
+     */
+    private long styleVersion = 0;
+
+    /** Output file. */
+    private Writer out;
     
-    /** Current color values in output document. Is influenced by scope. */
-    private ArrayList<Double> currentColor = new ArrayList<Double>();
+    /** Name of the LaTeX environment of the picture. */
+    private String environment;
     
-    /** Current line width in output document. Is influenced by scope. */
-    private double currentLineWidth = -1.0;
     
-    /** Current dash pattern in output document. Is influenced by scope. */
-    private ArrayList<Double> currentDashPattern = new ArrayList<Double>();
+    //
+    // Color and line style set by setColor() and setLineStyle(). They are
+    // written to the output when they are used.
+    //
     
-    /** Current dash offset in output document. Is influenced by scope. */
-    private double currentDashOffset = 0.0;
+    /** Color space family of the color. */
+    private String colorSpace = "";
     
-    /** Current line cap in output document. Is influenced by scope. */
-    private int currentLineCap = 0;
+    /** Color values in the color space. */
+    private double[] colorLevels = {};
     
-    /** Current line join in output document. Is influenced by scope. */
-    private int currentLineJoin = 0;
+    /** Color model in which the color is written. */
+    private String colorModel = "Gray";
     
-    /** Current miter limit in output document. Is influenced by scope. */
-    private double currentMiterLimit = 10.0;
+    /** Color values in the color model. */
+    private double[] colorValues = {0.0};
     
-    /** Current color space in output document. Is influenced by scope. */
-    private String currentColorSpace = "";
+    /** Line width (in micrometer). */
+    private double lineWidth = 1.0;
     
-
-    //
-    // The variables below keep track of some parameters that are not limited
-    // by scope. If this graphics state is cloned these parameters are shared.
-    //
+    /** Dash pattern (in micrometer). */
+    private double[] dashPattern = {};
     
-    /** Unique number of next bitmap image. */
-    private int[] nextImage = {1};
-    
-    /** Current scope depth in output document. */
-    private int[] scopeDepth = {0};
-    
-    
-    //
-    // Links to useful objects
-    //
+    /** Dash offset (in micrometer). */
+    private double dashOffset = 0.0;
     
-    /** Output file. */
-    private Writer out;
+    /** Line cap. */
+    private int lineCap = 0;
+    
+    /** Line join. */
+    private int lineJoin = 0;
     
-    /** Interpreter to which this device belongs. */
-    private Interpreter interp;
+    /** Miter limit. */
+    private double miterLimit = 10.0;
     
     /**
      * Creates a new instance of PGFExport.
      * 
      * @param wOut Writer to where the PGF code will be written.
-     * @param interpreter The interpreter.
+     * @param opts Configuration options.
      */
-    public PGFDevice(final Writer wOut, final Interpreter interpreter) {
-        out = wOut;
-        interp = interpreter;
-    }
-    
-    /**
-     * Returns a <b>copy</b> default transformation matrix (converts user space
-     * coordinates to device space).
-     * 
-     * @return Default transformation matrix.
-     */
-    public Matrix defaultCTM() {
-        return new Matrix(25.4 * 1000.0 / 72.0, 0.0, 0.0,
-                25.4 * 1000.0 / 72.0, 0.0, 0.0);
+    public PGFDevice(final Writer wOut, final Options opts) {
+        this(wOut, opts, "pgfpicture");
     }
     
     /**
-     * Internal Eps2pgf command: eps2pgfgetmetrics
-     * It is meant for the cache device. When this command is issued, it will
-     * return metrics information about the drawn glyph.
+     * Creates a new instance of PGFExport that writes the picture in a
+     * specific LaTeX environment.
      * 
-     * @return Metrics information about glyph.
+     * @param wOut Writer to where the PGF code will be written.
+     * @param opts Configuration options.
+     * @param pEnvironment Name of the LaTeX environment of the picture.
      */
-    public double[] eps2pgfGetMetrics() {
-        double[] dummyData = {0.0, 0.0, 0.0, 0.0, 0.0, 0.0};
-        return dummyData;
+    protected PGFDevice(final Writer wOut, final Options opts,
+            final String pEnvironment) {
+        out = wOut;
+        environment = pEnvironment;
+        simplifier = new PathSimplifier(opts.getPathSimplification(),
+                1e4 * opts.getPathTolerance(), 10.0);
+        pathMacros = new PathMacros(opts.getPathMacroSize(), 10.0);
+        batch = new PathBatch(opts.isMergePathsEnabled());
+        pngImages = (opts.getImageFormat() == Options.ImageFormat.PNG);
     }
     
     /**
@@ -184,7 +293,7 @@ public class PGFDevice implements OutputDevice, Cloneable {
                     + " ");
             Date now = new Date();
             out.write("on " + now  + "\n");
-            out.write("\\begin{pgfpicture}\n");
+            out.write("\\begin{" + environment + "}\n");
         } catch (IOException e) {
             throw new PSErrorIOError();
         }
@@ -196,55 +305,352 @@ public class PGFDevice implements OutputDevice, Cloneable {
      * @throws PSError A PostScript error occurred.
      */
     public void finish() throws PSError {
+        flushPending();
         try {
-            while (scopeDepth[0] > 0) {
+            while (!scopes.isEmpty()) {
                 endScope();
             }
-            out.write("\\end{pgfpicture}\n");
+            out.write("\\end{" + environment + "}\n");
         } catch (IOException e) {
             throw new PSErrorIOError();
         }
+        
+        if (simplifier.getNrRemoved() > 0) {
+            LOG.info("Path simplification removed "
+                    + simplifier.getNrRemoved() + " of "
+                    + simplifier.getNrPoints() + " polyline points.");
+        }
+        if (pathMacros.getNrUses() > 0) {
+            LOG.info("Drew " + pathMacros.getNrUses() + " paths with "
+                    + pathMacros.getNrDefined() + " path macros.");
+        }
+        if (batch.getNrWritten() > 0) {
+            LOG.info("Merged " + batch.getNrMerged() + " paths into "
+                    + batch.getNrWritten() + " paths.");
+        }
+        if (nrMarkerRuns > 0) {
+            LOG.info("Compacted " + nrCompactedMarkers + " markers in "
+                    + nrMarkerRuns + " marker lists.");
+        }
     }
     
     /**
-     * Convert a Path to pgf code and write in to the output.
+     * Convert a path to pgf code and write in to the output. Paths that were
+     * drawn before at another position are drawn with a macro.
      * 
-     * @param path The path.
+     * @param sections Sections of the path.
+     * @param op Painting operation: FILL, EOFILL, STROKE, CLIP or EOCLIP.
      * 
      * @throws PSError A PostScript error occurred.
      */
-    void writePath(final Path path) throws PSError {
+    void writePath(final List<PathSection> sections, final int op)
+            throws PSError {
+        PathMacros.Macro macro = pathMacros.getMacro(sections);
+        if (macro == null) {
+            writePaintedPath(sections, op);
+            return;
+        }
+
+        defineMacro(macro, sections);
+        writeMacroUse(macro, sections.get(0).getParam(0),
+                sections.get(0).getParam(1));
+        writeUsePath(op);
+    }
+    
+    /**
+     * Writes a path together with the code that paints it. Subclasses can
+     * override this method to write paths in another syntax. Paths that are
+     * drawn with a path macro are always written as PGF code.
+     * 
+     * @param sections Sections of the path.
+     * @param op Painting operation: FILL, EOFILL, STROKE, CLIP or EOCLIP.
+     * 
+     * @throws PSError A PostScript error occurred.
+     */
+    protected void writePaintedPath(final List<PathSection> sections,
+            final int op) throws PSError {
+        writeSections(sections);
+        writeUsePath(op);
+    }
+    
+    /**
+     * Writes the PGF code that paints the current path.
+     * 
+     * @param op Painting operation: FILL, EOFILL, STROKE, CLIP or EOCLIP.
+     * 
+     * @throws PSError A PostScript error occurred.
+     */
+    private void writeUsePath(final int op) throws PSError {
+        try {
+            out.write(USE_PATH[op]);
+            out.write('\n');
+        } catch (IOException e) {
+            throw new PSErrorIOError();
+        }
+    }
+    
+    /**
+     * Gets the writer to which the output is written.
+     * 
+     * @return The writer.
+     */
+    protected Writer getWriter() {
+        return out;
+    }
+    
+    /**
+     * Gets the path simplifier that is used for polylines.
+     * 
+     * @return The path simplifier.
+     */
+    protected PathSimplifier getSimplifier() {
+        return simplifier;
+    }
+
+    /**
+     * Writes the definition of a path macro, if it hasn't been written yet.
+     * The macro draws the path with its first point at the origin.
+     *
+     * @param macro The path macro.
+     * @param sections Sections of the path.
+     *
+     * @throws PSError A PostScript error occurred.
+     */
+    private void defineMacro(final PathMacros.Macro macro,
+            final List<PathSection> sections) throws PSError {
+        if (macro.isDefined()) {
+            return;
+        }
+        try {
+            out.write("\\gdef\\" + macro.getName() + "{");
+            origin[0] = sections.get(0).getParam(0);
+            origin[1] = sections.get(0).getParam(1);
+            try {
+                writeSections(sections);
+            } finally {
+                origin[0] = 0.0;
+                origin[1] = 0.0;
+            }
+            out.write("}\n");
+        } catch (IOException e) {
+            throw new PSErrorIOError();
+        }
+        macro.setDefined();
+    }
+
+    /**
+     * Writes the code that draws a path macro at a position. The
+     * transformation is local to the TeX group.
+     *
+     * @param macro The path macro, it must be defined.
+     * @param x X-coordinate (in device space) of the first point of the path.
+     * @param y Y-coordinate (in device space) of the first point of the path.
+     *
+     * @throws PSError A PostScript error occurred.
+     */
+    private void writeMacroUse(final PathMacros.Macro macro, final double x,
+            final double y) throws PSError {
+        try {
+            out.write("{\\pgftransformshift");
+            writePoint(x, y);
+            out.write("\\" + macro.getName() + "}\n");
+        } catch (IOException e) {
+            throw new PSErrorIOError();
+        }
+    }
+
+    /**
+     * Paints a path. Paths that are drawn with a path macro are collected in
+     * a marker run, as long as the following paths are drawn with the same
+     * macro, are painted in the same way, and nothing else is drawn in
+     * between. This is typical for the markers of scatter plots.
+     * 
+     * Other paths are merged with the following paths that are painted in
+     * the same way, if merging is enabled, see PathBatch.
+     * 
+     * Paths that are drawn with a macro or merged do not open the current
+     * scope. Scopes only need to be written when they contain a clipping
+     * path, because the color and line style are written whenever they
+     * differ from the emitted state. This way, paths that are each drawn in
+     * their own scope (gsave ... fill grestore) can still be combined.
+     *
+     * @param path Sections of the path.
+     * @param op Painting operation: FILL, EOFILL or STROKE.
+     *
+     * @throws PSError A PostScript error occurred.
+     * @throws ProgramError This shouldn't happen, it indicates a bug.
+     */
+    private void paintPath(final List<PathSection> path, final int op)
+            throws PSError, ProgramError {
+
+        PathMacros.Macro macro = pathMacros.getMacro(path);
+        if ((macro != null) && (macro == runMacro) && (op == runOp)
+                && (styleVersion == runStyleVersion)
+                && (runLength < MAX_MARKER_RUN)) {
+            addMarker(path.get(0).getParam(0), path.get(0).getParam(1));
+            return;
+        }
+        int mergeOp = -1;
+        if (macro == null) {
+            mergeOp = batch.getMergeOp(path, op);
+            if ((mergeOp >= 0) && batch.canAdd(path, mergeOp, styleVersion)) {
+                batch.add(path, mergeOp, styleVersion);
+                return;
+            }
+        }
+
+        flushPending();
+        if ((macro == null) && (mergeOp < 0)) {
+            openScope();
+        }
+        if (op == STROKE) {
+            updateDash();
+            updateLineWidth();
+            updateLineCap();
+            updateLineJoin();
+            updateMiterLimit();
+        }
+        updateColor();
+        if (mergeOp >= 0) {
+            batch.add(path, mergeOp, styleVersion);
+        } else if (macro == null) {
+            writePaintedPath(path, op);
+        } else {
+            defineMacro(macro, path);
+            runMacro = macro;
+            runOp = op;
+            runStyleVersion = styleVersion;
+            addMarker(path.get(0).getParam(0), path.get(0).getParam(1));
+        }
+    }
+
+    /**
+     * Adds a marker to the current marker run.
+     *
+     * @param x X-coordinate (in device space) of the first point of the path.
+     * @param y Y-coordinate (in device space) of the first point of the path.
+     */
+    private void addMarker(final double x, final double y) {
+        if (2 * runLength + 2 > runPositions.length) {
+            double[] larger = new double[2 * runPositions.length];
+            System.arraycopy(runPositions, 0, larger, 0, 2 * runLength);
+            runPositions = larger;
+        }
+        runPositions[2 * runLength] = x;
+        runPositions[2 * runLength + 1] = y;
+        runLength++;
+    }
+
+    /**
+     * Writes the paths that are held back: the current marker run and the
+     * current merged path. It must be called before anything else is written
+     * to the output.
+     *
+     * @throws PSError A PostScript error occurred.
+     */
+    private void flushPending() throws PSError {
+        flushMarkers();
+        if (!batch.isEmpty()) {
+            try {
+                writePaintedPath(batch.getSections(), batch.getOp());
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    /**
+     * Writes the current marker run, if there is one. A run with only a
+     * few markers is written as normal macro uses, longer runs are written as
+     * a list of positions.
+     *
+     * @throws PSError A PostScript error occurred.
+     */
+    private void flushMarkers() throws PSError {
+        if (runMacro == null) {
+            return;
+        }
+        PathMacros.Macro macro = runMacro;
+        runMacro = null;
+        try {
+            if (runLength < MIN_MARKER_RUN) {
+                for (int i = 0; i < runLength; i++) {
+                    writeMacroUse(macro, runPositions[2 * i],
+                            runPositions[2 * i + 1]);
+                    writeUsePath(runOp);
+                }
+            } else {
+                if (!markerLoopDefined) {
+                    out.write(MARKER_LOOP);
+                    markerLoopDefined = true;
+                }
+                out.write("\\def\\epspgfmarker{\\" + macro.getName() + "}");
+                out.write("\\def\\epspgfmarkeruse{" + USE_PATH[runOp] + "}%\n");
+                out.write("\\epspgfmarkers");
+                for (int i = 0; i < runLength; i++) {
+                    if ((i > 0) && (i % MARKERS_PER_LINE == 0)) {
+                        out.write("%\n");
+                    }
+                    coorWriter.write(out, 1e-4 * runPositions[2 * i]);
+                    out.write(',');
+                    coorWriter.write(out, 1e-4 * runPositions[2 * i + 1]);
+                    out.write(';');
+                }
+                out.write("\\relax,\\relax;\n");
+                nrCompactedMarkers += runLength;
+                nrMarkerRuns++;
+            }
+        } catch (IOException e) {
+            throw new PSErrorIOError();
+        } finally {
+            runLength = 0;
+        }
+    }
+    
+    /**
+     * Writes the sections of a path to the output.
+     * 
+     * @param sections Sections of the path.
+     * 
+     * @throws PSError A PostScript error occurred.
+     */
+    private void writeSections(final List<PathSection> sections)
+            throws PSError {
         try {
-            for (int i = 0; i < path.getSections().size(); i++) {
-                PathSection section = path.getSections().get(i);
+            double[] current = null;
+            double[] subpathStart = null;
+            for (int i = 0; i < sections.size(); i++) {
+                PathSection section = sections.get(i);
                 if (section instanceof Moveto) {
                     // If the path ends with a moveto, the moveto is ignored.
-                    if (i < (path.getSections().size() - 1)) {
-                        String x =
-                            COOR_FORMAT.format(1e-4 * section.getParam(0));
-                        String y =
-                            COOR_FORMAT.format(1e-4 * section.getParam(1));
-                        out.write("\\pgfpathmoveto{\\pgfqpoint{" + x + "cm}{"
-                                + y + "cm}}\n");
+                    if (i < (sections.size() - 1)) {
+                        out.write("\\pgfpathmoveto");
+                        writePoint(section.getParam(0), section.getParam(1));
+                        out.write('\n');
                     }
+                    current = new double[] {section.getParam(0),
+                            section.getParam(1)};
+                    subpathStart = current;
                 } else if (section instanceof Lineto) {
-                    String x = COOR_FORMAT.format(1e-4 * section.getParam(0));
-                    String y = COOR_FORMAT.format(1e-4 * section.getParam(1));
-                    out.write("\\pgfpathlineto{\\pgfqpoint{" + x + "cm}{" + y
-                            + "cm}}\n");
+                    if (simplifier.isEnabled() && (current != null)) {
+                        i = writePolyline(sections, i, current) - 1;
+                        section = sections.get(i);
+                    } else {
+                        writeLineto(section.getParam(0), section.getParam(1));
+                    }
+                    current = new double[] {section.getParam(0),
+                            section.getParam(1)};
                 } else if (section instanceof Curveto) {
-                    String x1 = COOR_FORMAT.format(1e-4 * section.getParam(0));
-                    String y1 = COOR_FORMAT.format(1e-4 * section.getParam(1));
-                    String x2 = COOR_FORMAT.format(1e-4 * section.getParam(2));
-                    String y2 = COOR_FORMAT.format(1e-4 * section.getParam(3));
-                    String x3 = COOR_FORMAT.format(1e-4 * section.getParam(4));
-                    String y3 = COOR_FORMAT.format(1e-4 * section.getParam(5));
                     out.write("\\pgfpathcurveto");
-                    out.write("{\\pgfqpoint{" + x1 + "cm}{" + y1 + "cm}}");
-                    out.write("{\\pgfqpoint{" + x2 + "cm}{" + y2 + "cm}}");
-                    out.write("{\\pgfqpoint{" + x3 + "cm}{" + y3 + "cm}}\n");
+                    writePoint(section.getParam(0), section.getParam(1));
+                    writePoint(section.getParam(2), section.getParam(3));
+                    writePoint(section.getParam(4), section.getParam(5));
+                    out.write('\n');
+                    current = new double[] {section.getParam(4),
+                            section.getParam(5)};
                 } else if (section instanceof Closepath) {
                     out.write("\\pgfpathclose\n");
+                    current = subpathStart;
                 } else {
                     throw new PSErrorUnregistered("Can't handle "
                             + section.getClass().getName());
@@ -256,210 +662,238 @@ public class PGFDevice implements OutputDevice, Cloneable {
     }
     
     /**
-     * Implements PostScript stroke operator.
+     * Simplifies a polyline (a run of consecutive lineto's) and writes it to
+     * the output.
+     * 
+     * @param sections Sections of the path.
+     * @param first Index of the first lineto of the polyline.
+     * @param start The current point before the first lineto.
+     * 
+     * @return Index of the first section after the polyline.
+     * 
+     * @throws IOException Unable to write output.
+     */
+    private int writePolyline(final List<PathSection> sections,
+            final int first, final double[] start) throws IOException {
+        int end = first;
+        while ((end < sections.size())
+                && (sections.get(end) instanceof Lineto)) {
+            end++;
+        }
+        
+        int nr = end - first;
+        double[] pts = new double[2 * nr];
+        for (int i = 0; i < nr; i++) {
+            PathSection section = sections.get(first + i);
+            pts[2 * i] = section.getParam(0);
+            pts[2 * i + 1] = section.getParam(1);
+        }
+        boolean[] keep = new boolean[nr];
+        simplifier.simplify(start, pts, nr, keep);
+        for (int i = 0; i < nr; i++) {
+            if (keep[i]) {
+                writeLineto(pts[2 * i], pts[2 * i + 1]);
+            }
+        }
+        
+        return end;
+    }
+    
+    /**
+     * Writes a lineto to the output.
+     * 
+     * @param x X-coordinate (in device space).
+     * @param y Y-coordinate (in device space).
+     * 
+     * @throws IOException Unable to write output.
+     */
+    private void writeLineto(final double x, final double y)
+            throws IOException {
+        out.write("\\pgfpathlineto");
+        writePoint(x, y);
+        out.write('\n');
+    }
+    
+    /**
+     * Writes a point as PGF argument: {\pgfqpoint{x}{y}}. The coordinates
+     * are written relative to the origin.
+     * 
+     * @param x X-coordinate (in device space).
+     * @param y Y-coordinate (in device space).
+     * 
+     * @throws IOException Unable to write output.
+     */
+    private void writePoint(final double x, final double y)
+            throws IOException {
+        out.write("{\\pgfqpoint{");
+        coorWriter.write(out, 1e-4 * (x - origin[0]));
+        out.write("cm}{");
+        coorWriter.write(out, 1e-4 * (y - origin[1]));
+        out.write("cm}}");
+    }
+    
+    /**
+     * Sets the color of the following painting operations.
+     * 
+     * @param pColorSpace Name of the color space family of the color.
+     * @param levels Color values in the color space.
+     * @param model Color model in which the color is written: "CMYK", "RGB"
+     * or "Gray".
+     * @param values Color values (in range from 0.0 to 1.0) in the model.
+     */
+    public void setColor(final String pColorSpace, final double[] levels,
+            final String model, final double[] values) {
+        if (!colorSpace.equals(pColorSpace)
+                || !Arrays.equals(colorLevels, levels)
+                || !colorModel.equals(model)
+                || !Arrays.equals(colorValues, values)) {
+            styleVersion++;
+        }
+        colorSpace = pColorSpace;
+        colorLevels = levels;
+        colorModel = model;
+        colorValues = values;
+    }
+    
+    /**
+     * Sets the line style of the following stroke operations.
      * 
-     * @param gstate Current graphics state.
+     * @param width Line width (in micrometer).
+     * @param pDashPattern Dash pattern (in micrometer).
+     * @param pDashOffset Dash offset (in micrometer).
+     * @param cap Line cap (0, 1 or 2).
+     * @param join Line join (0, 1 or 2).
+     * @param pMiterLimit Miter limit.
+     */
+    public void setLineStyle(final double width, final double[] pDashPattern,
+            final double pDashOffset, final int cap, final int join,
+            final double pMiterLimit) {
+        if ((lineWidth != width) || !Arrays.equals(dashPattern, pDashPattern)
+                || (dashOffset != pDashOffset) || (lineCap != cap)
+                || (lineJoin != join) || (miterLimit != pMiterLimit)) {
+            styleVersion++;
+        }
+        lineWidth = width;
+        dashPattern = pDashPattern;
+        dashOffset = pDashOffset;
+        lineCap = cap;
+        lineJoin = join;
+        miterLimit = pMiterLimit;
+    }
+    
+    /**
+     * Strokes a path.
+     * 
+     * @param path Sections of the path.
      * 
      * @throws PSError A PostScript error occurred.
      * @throws ProgramError This shouldn't happen, it indicates a bug.
      */
-    public void stroke(final GraphicsState gstate)
+    public void stroke(final List<PathSection> path)
             throws PSError, ProgramError {
-
-        try {
-            updateDash(gstate);
-            updateLineWidth(gstate);
-            updateLineCap(gstate);
-            updateLineJoin(gstate);
-            updateMiterLimit(gstate);
-            updateColor(gstate);
-            writePath(gstate.getPath());
-            out.write("\\pgfusepath{stroke}\n");
-        } catch (IOException e) {
-            throw new PSErrorIOError();
-        }
+        
+        paintPath(path, STROKE);
     }
     
     /**
-     * Implements PostScript clip operator.
-     * Intersects the area inside the current clipping path with the area
-     * inside the current path to produce a new, smaller clipping path.
+     * Sets a clipping path, using the non-zero rule.
      * 
-     * @param clipPath the clip path
+     * @param path Sections of the path.
      * 
      * @throws PSError A PostScript error occurred.
      */
-    public void clip(final Path clipPath) throws PSError {
-        try {
-            writePath(clipPath);
-            out.write("\\pgfusepath{clip}\n");
-        } catch (IOException e) {
-            throw new PSErrorIOError();
-        }
+    public void clip(final List<PathSection> path) throws PSError {
+        flushPending();
+        openScope();
+        writePath(path, CLIP);
     }
     
     /**
-     * Returns a exact deep copy of this output device.
+     * Fills a path using the non-zero rule.
      * 
-     * @return Deep copy of this object.
-     */
-    @Override
-    public PGFDevice clone() {
-        PGFDevice copy;
-        try {
-            copy = (PGFDevice) super.clone();
-        } catch (CloneNotSupportedException e) {
-            copy = null;
-        }
-
-        copy.currentColor = new ArrayList<Double>(currentColor);
-        copy.currentDashPattern = new ArrayList<Double>(currentDashPattern);
-        
-        return copy;
-    }
-
-    /**
-     * Fills a path using the non-zero rule.
-     * See the PostScript manual (fill operator) for more info.
-     * 
-     * @param gstate Current graphics state.
+     * @param path Sections of the path.
      * 
      * @throws PSError A PostScript error occurred.
      * @throws ProgramError This shouldn't happen, it indicates a bug.
      */
-    public void fill(final GraphicsState gstate) throws PSError, ProgramError {
-        try {
-            updateColor(gstate);
-            writePath(gstate.getPath());
-            out.write("\\pgfusepath{fill}\n");
-        } catch (IOException e) {
-            throw new PSErrorIOError();
-        }
+    public void fill(final List<PathSection> path)
+            throws PSError, ProgramError {
+        
+        paintPath(path, FILL);
     }
     
     /**
-     * Set the current clipping path in the graphics state as clipping path in
-     * the output document. The even-odd rule is used to determine which point
-     * are inside the path.
+     * Sets a clipping path, using the even-odd rule.
      * 
-     * @param gstate The current graphics state.
+     * @param path Sections of the path.
      * 
      * @throws PSError A PostScript error occurred.
      */
-    public void eoclip(final GraphicsState gstate) throws PSError {
-        try {
-            writePath(gstate.getClippingPath());
-            out.write("\\pgfseteorule\\pgfusepath{clip}\\pgfsetnonzerorule\n");
-        } catch (IOException e) {
-            throw new PSErrorIOError();
-        }
+    public void eoclip(final List<PathSection> path) throws PSError {
+        flushPending();
+        openScope();
+        writePath(path, EOCLIP);
     }
     
     /**
      * Fills a path using the even-odd rule.
-     * See the PostScript manual (fill operator) for more info.
      * 
-     * @param gstate The current graphics state.
+     * @param path Sections of the path.
      * 
      * @throws PSError A PostScript error occurred.
      * @throws ProgramError This shouldn't happen, it indicates a bug.
      */
-    public void eofill(final GraphicsState gstate) throws PSError,
-        ProgramError {
+    public void eofill(final List<PathSection> path)
+            throws PSError, ProgramError {
         
-        try {
-            updateColor(gstate);
-            writePath(gstate.getPath());
-            out.write("\\pgfseteorule\\pgfusepath{fill}\\pgfsetnonzerorule\n");
-        } catch (IOException e) {
-            throw new PSErrorIOError();
-        }
+        paintPath(path, EOFILL);
     }
     
     /**
-     * Shading fill (shfill PostScript operator).
+     * Fills the clipping path with a radial shading. PGF does not support the
+     * Extend parameters for shadings, they must be emulated by the caller.
      * 
-     * @param dict Shading to use.
-     * @param gstate Current graphics state.
+     * @param offset Position of the center of the first circle, relative to
+     * the center of the last circle.
+     * @param radii Radius of each circle.
+     * @param colors RGB color of each circle.
+     * @param position Position of the center of the last circle.
+     * @param angle Rotation (in degrees) of the shading.
+     * @param xScale Horizontal scaling of the shading.
+     * @param yScale Vertical scaling of the shading.
      * 
      * @throws PSError A PostScript error occurred.
      * @throws ProgramError This shouldn't happen, it indicates a bug.
      */
-    public void shfill(final PSObjectDict dict, final GraphicsState gstate)
+    public void radialShading(final double[] offset, final double[] radii,
+            final double[][] colors, final double[] position,
+            final double angle, final double xScale, final double yScale)
             throws PSError, ProgramError {
         
-        updateColor(gstate);
-        Shading shading = Shading.newShading(dict);
-        if (shading instanceof RadialShading) {
-            radialShading((RadialShading) shading, gstate);
-        } else {
-            throw new PSErrorUnregistered("Shading of this type "
-                    + shading);
-        }
-    }
-    
-    /**
-     * Create a radial shading.
-     * 
-     * @param shading The shading.
-     * @param gstate The graphics state.
-     * 
-     * @throws PSError A PostScript error occurred.
-     */
-    void radialShading(final RadialShading shading, final GraphicsState gstate)
-            throws PSError {
-        
-        // Convert coordinates and radii from user space to coordinate space
-        // PGF does not support the Extend parameters for shadings. So we
-        // try to emulate the effect.
-        double scaling = gstate.getCtm().getMeanScaling();
-        double xScale = gstate.getCtm().getXScaling() / scaling;
-        double yScale = gstate.getCtm().getYScaling() / scaling;
-        double angle = gstate.getCtm().getRotation();
-        double[] coor0 = gstate.getCtm().transform(shading.getCoord(0.0));
-        double[] coor1 = gstate.getCtm().transform(shading.getCoord(1.0));
-
-        double maxS = 1.0;
-        if (shading.getExtend1()) {
-            // Find the s value for which the radius is big (0.3 meters ~
-            // a4 paper).
-            maxS = shading.getSForDistance(0.3 * 1e6 / scaling, 1,
-                    Double.POSITIVE_INFINITY);
-            coor1 = gstate.getCtm().transform(shading.getCoord(maxS));
-        }
-        
+        flushPending();
+        openScope();
+        updateColor();
         try {
             startScope();
+            openScope();
             out.write("\\pgfdeclareradialshading{eps2pgfshading}{\\pgfqpoint{");
-            out.write(COOR_FORMAT.format(1e-4 * (coor0[0] - coor1[0]) / xScale)
-                    + "cm}{");
-            out.write(COOR_FORMAT.format(1e-4 * (coor0[1] - coor1[1]) / yScale)
-                    + "cm}}{");
-            double[] sFit = shading.fitLinearSegmentsOnColor(0.01);        
-            for (int i = 0; i < sFit.length; i++) {
+            out.write(COOR_FORMAT.format(1e-4 * offset[0] / xScale) + "cm}{");
+            out.write(COOR_FORMAT.format(1e-4 * offset[1] / yScale) + "cm}}{");
+            for (int i = 0; i < radii.length; i++) {
                 if (i > 0) {
                     out.write(";");
                 }
-                double r = scaling * shading.getRadius(sFit[i]);
-                double[] color = shading.getColor(sFit[i]);
-                out.write("rgb(" + LENGTH_FORMAT.format(1e-4 * r) + "cm)=");
-                out.write("(" + COLOR_FORMAT.format(color[0]));
-                out.write("," + COLOR_FORMAT.format(color[1]));
-                out.write("," + COLOR_FORMAT.format(color[2]) + ")");
-            }
-            if (maxS > 1.0) {
-                double r = scaling * shading.getRadius(maxS);
-                double[] color = shading.getColor(1.0);
-                out.write(";rgb(" + LENGTH_FORMAT.format(1e-4 * r) + "cm)=");
-                out.write("(" + COLOR_FORMAT.format(color[0]));
-                out.write("," + COLOR_FORMAT.format(color[1]));
-                out.write("," + COLOR_FORMAT.format(color[2]) + ")");
+                out.write("rgb(" + LENGTH_FORMAT.format(1e-4 * radii[i])
+                        + "cm)=");
+                out.write("(" + COLOR_FORMAT.format(colors[i][0]));
+                out.write("," + COLOR_FORMAT.format(colors[i][1]));
+                out.write("," + COLOR_FORMAT.format(colors[i][2]) + ")");
             }
             out.write("}");
             out.write("\\pgflowlevelobj{");
             out.write("\\pgftransformshift{\\pgfqpoint{");
-            out.write(LENGTH_FORMAT.format(1e-4 * coor1[0]) + "cm}{");
-            out.write(LENGTH_FORMAT.format(1e-4 * coor1[1]) + "cm}}");
+            out.write(LENGTH_FORMAT.format(1e-4 * position[0]) + "cm}{");
+            out.write(LENGTH_FORMAT.format(1e-4 * position[1]) + "cm}}");
             if (Math.abs(angle) > 1e-10) {
                 out.write("\\pgftransformrotate{" + ANGLE_FORMAT.format(angle)
                         + "}");
@@ -478,17 +912,14 @@ public class PGFDevice implements OutputDevice, Cloneable {
     }
     
     /**
-     * Implements PostScript operator setlinecap.
-     * 
-     * @param gstate The current graphics state.
+     * Updates the line cap in the output.
      * 
      * @throws PSError A PostScript error occurred.
      */
-    private void updateLineCap(final GraphicsState gstate) throws PSError {
+    private void updateLineCap() throws PSError {
         try {
-            int cap = gstate.getLineCap();
-            if (cap != currentLineCap) {
-                switch (cap) {
+            if (lineCap != emitted.lineCap) {
+                switch (lineCap) {
                     case 0:
                         out.write("\\pgfsetbuttcap\n");
                         break;
@@ -501,7 +932,7 @@ public class PGFDevice implements OutputDevice, Cloneable {
                     default:
                         throw new PSErrorRangeCheck();
                 }
-                currentLineCap = cap;
+                emitted.lineCap = lineCap;
             }
         } catch (IOException e) {
             throw new PSErrorIOError();
@@ -511,15 +942,12 @@ public class PGFDevice implements OutputDevice, Cloneable {
     /**
      * Updates the line join in the output.
      * 
-     * @param gstate The current graphics state.
-     * 
      * @throws PSError A PostScript error occurred.
      */
-    private void updateLineJoin(final GraphicsState gstate) throws PSError {
+    private void updateLineJoin() throws PSError {
         try {
-            int join = gstate.getLineJoin();
-            if (currentLineJoin != join) {
-                switch (join) {
+            if (emitted.lineJoin != lineJoin) {
+                switch (lineJoin) {
                     case 0:
                         out.write("\\pgfsetmiterjoin\n");
                         break;
@@ -532,7 +960,7 @@ public class PGFDevice implements OutputDevice, Cloneable {
                     default:
                         throw new PSErrorRangeCheck();
                 }
-                currentLineJoin = join;
+                emitted.lineJoin = lineJoin;
             }
         } catch (IOException e) {
             throw new PSErrorIOError();
@@ -542,27 +970,22 @@ public class PGFDevice implements OutputDevice, Cloneable {
     /**
      * Updates dash pattern in PGF output.
      * 
-     * @param gstate Current graphics state
-     * 
      * @throws PSError A PostScript error occurred.
      */
-    private void updateDash(final GraphicsState gstate) throws PSError {
-        double scaling = gstate.getCtm().getMeanScaling();
-        double gsOffset = gstate.getDashOffset();
-        List<Double> gsPattern = gstate.getDashPattern();
-        int gsN = gsPattern.size();
+    private void updateDash() throws PSError {
+        int gsN = dashPattern.length;
 
         // Check whether anything was changed
         boolean dashChanged = false;
-        if (Math.abs(currentDashOffset - gsOffset * scaling) > 1e-10) {
+        if (Math.abs(emitted.dashOffset - dashOffset) > 1e-10) {
             dashChanged = true;
         } else {
-            if (gsN != currentDashPattern.size()) {
+            if (gsN != emitted.dashPattern.size()) {
                 dashChanged = true;
             } else {
                 for (int i = 0; i < gsN; i++) {
-                    double val1 = gsPattern.get(i) * scaling;
-                    double val2 = currentDashPattern.get(i);
+                    double val1 = dashPattern[i];
+                    double val2 = emitted.dashPattern.get(i);
                     if (Math.abs(val1 - val2) > 1e-10) {
                         dashChanged = true;
                         break;
@@ -573,23 +996,23 @@ public class PGFDevice implements OutputDevice, Cloneable {
         
         if (dashChanged) {
             // Determine new dash offset
-            currentDashOffset = gsOffset * scaling;
+            emitted.dashOffset = dashOffset;
             
-            // Make sure that currentDashPattern has the same size as the new
+            // Make sure that emitted.dashPattern has the same size as the new
             // dash pattern.
-            if (currentDashPattern.size() > gsN) {
-                for (int i = currentDashPattern.size() - 1; i >= gsN; i--) {
-                    currentDashPattern.remove(i);
+            if (emitted.dashPattern.size() > gsN) {
+                for (int i = emitted.dashPattern.size() - 1; i >= gsN; i--) {
+                    emitted.dashPattern.remove(i);
                 }
-            } else if (currentDashPattern.size() < gsN) {
-                for (int i = gsN - currentDashPattern.size(); i > 0; i--) {
-                    currentDashPattern.add(Double.NaN);
+            } else if (emitted.dashPattern.size() < gsN) {
+                for (int i = gsN - emitted.dashPattern.size(); i > 0; i--) {
+                    emitted.dashPattern.add(Double.NaN);
                 }
             }
             
             // Determine the new dash pattern.
             for (int i = 0; i < gsN; i++) {
-                currentDashPattern.set(i, gsPattern.get(i) * scaling);
+                emitted.dashPattern.set(i, dashPattern[i]);
             }
             
             // Write the new dash pattern and offset to the output document.
@@ -597,9 +1020,9 @@ public class PGFDevice implements OutputDevice, Cloneable {
                 out.write("\\pgfsetdash{");
                 for (int i = 0; i < gsN; i++) {
                     out.write("{" + LENGTH_FORMAT.format(
-                            1e-4 * currentDashPattern.get(i)) + "cm}");
+                            1e-4 * emitted.dashPattern.get(i)) + "cm}");
                 }
-                out.write("}{" + LENGTH_FORMAT.format(1e-4 * currentDashOffset)
+                out.write("}{" + LENGTH_FORMAT.format(1e-4 * emitted.dashOffset)
                             + "cm}\n");
             } catch (IOException e) {
                 throw new PSErrorIOError();
@@ -611,19 +1034,14 @@ public class PGFDevice implements OutputDevice, Cloneable {
      * Compares the current line width with the last-used line width. If they
      * are different the new line width is set in the output.
      * 
-     * @param gstate The graphics state.
-     * 
      * @throws PSError A PostScript error occurred.
      */
-    private void updateLineWidth(final GraphicsState gstate) throws PSError {
-        double gsWidth = gstate.getLineWidth()
-                                       * gstate.getCtm().getMeanScaling();
-
+    private void updateLineWidth() throws PSError {
         try {
-            if (Math.abs(gsWidth - currentLineWidth) > 1e-10) {
+            if (Math.abs(lineWidth - emitted.lineWidth) > 1e-10) {
                 out.write("\\pgfsetlinewidth{"
-                        + LENGTH_FORMAT.format(1e-3 * gsWidth) + "mm}\n");
-                currentLineWidth = gsWidth;
+                        + LENGTH_FORMAT.format(1e-3 * lineWidth) + "mm}\n");
+                emitted.lineWidth = lineWidth;
             }
         } catch (IOException e) {
             throw new PSErrorIOError();
@@ -633,17 +1051,13 @@ public class PGFDevice implements OutputDevice, Cloneable {
     /**
      * Updates the miter limit.
      * 
-     * @param gstate The current graphics state.
-     * 
      * @throws PSError A PostScript error occurred.
      */
-    private void updateMiterLimit(final GraphicsState gstate) throws PSError {
-        double gsLimit = gstate.getMiterLimit();
-
+    private void updateMiterLimit() throws PSError {
         try {
-            if (Math.abs(currentMiterLimit - gsLimit) > 1e-6) {
-                out.write("\\pgfsetmiterlimit{" + gsLimit + "}\n");
-                currentMiterLimit = gsLimit;
+            if (Math.abs(emitted.miterLimit - miterLimit) > 1e-6) {
+                out.write("\\pgfsetmiterlimit{" + miterLimit + "}\n");
+                emitted.miterLimit = miterLimit;
             }
         } catch (IOException e) {
             throw new PSErrorIOError();
@@ -651,60 +1065,89 @@ public class PGFDevice implements OutputDevice, Cloneable {
     }
     
    /**
-    * Starts a new scope.
+    * Starts a new scope. The scope is not written to the output until
+    * something is drawn in it, see openScope().
     * 
     * @throws PSError A PostScript error occurred.
     */
     public void startScope() throws PSError {
+        scopes.push(null);
+    }
+    
+    /**
+     * Ends the current scope scope. If nothing was drawn in the scope, it was
+     * never written and nothing is written now either.
+     * 
+     * @throws PSError A PostScript error occurred.
+     */
+    public void endScope() throws PSError {
         try {
-            out.write("\\begin{pgfscope}\n");
-            scopeDepth[0] = scopeDepth[0] + 1;
+            if (!scopes.isEmpty()) {
+                if (scopes.get(scopes.size() - 1) != null) {
+                    flushPending();
+                }
+                EmittedState before = scopes.pop();
+                if (before != null) {
+                    out.write("\\end{pgfscope}\n");
+                    emitted.copyFrom(before);
+                }
+            }
         } catch (IOException e) {
             throw new PSErrorIOError();
         }
     }
     
     /**
-     * Ends the current scope scope.
+     * Writes the begin of the current scope, if it hasn't been written yet.
+     * It must be called before anything is drawn. Enclosing scopes that are
+     * still empty are not written, they would only duplicate this scope.
      * 
      * @throws PSError A PostScript error occurred.
      */
-    public void endScope() throws PSError {
-        try {
-            if (scopeDepth[0] > 0) {
-                out.write("\\end{pgfscope}\n");
-                scopeDepth[0] = scopeDepth[0] - 1;
+    private void openScope() throws PSError {
+        if (!scopes.isEmpty() && (scopes.get(scopes.size() - 1) == null)) {
+            try {
+                out.write("\\begin{pgfscope}\n");
+            } catch (IOException e) {
+                throw new PSErrorIOError();
             }
-        } catch (IOException e) {
-            throw new PSErrorIOError();
+            scopes.set(scopes.size() - 1, emitted.clone());
         }
     }
 
     /**
-     * Updates the current color in gray, RGB or CMYK in the PGF output.
+     * Writes a comma-separated list of color values.
      * 
-     * @param gstate Current graphics state.
+     * @param values The color values (in range from 0.0 to 1.0).
+     * 
+     * @throws IOException Unable to write output.
+     */
+    private void writeColorValues(final double[] values) throws IOException {
+        for (int i = 0; i < values.length; i++) {
+            if (i > 0) {
+                out.write(',');
+            }
+            colorWriter.write(out, values[i]);
+        }
+    }
+
+    /**
+     * Updates the current color in gray, RGB or CMYK in the PGF output.
      * 
      * @throws PSError A PostScript error occurred.
      * @throws ProgramError This shouldn't happen, it indicates a bug.
      */
-    private void updateColor(final GraphicsState gstate)
-            throws PSError, ProgramError {
-        
-        PSColor gsColor = gstate.getColor();
-        int n = gsColor.getNrComponents();
-        String gsColspace = gsColor.getFamilyName().isis();
+    private void updateColor() throws PSError, ProgramError {
+        int n = colorLevels.length;
         
         // Check whether current color and color space is the same as the last
         // color and color space.
         boolean colorChanged = false;
-        if (!currentColorSpace.equals(gsColspace)) {
+        if (!emitted.colorSpace.equals(colorSpace)) {
             colorChanged = true;
         } else {
             for (int i = 0; i < n; i++) {
-                if (Math.abs(currentColor.get(i) - gsColor.getLevel(i))
-                        > 1e-6) {
-                    
+                if (Math.abs(emitted.color.get(i) - colorLevels[i]) > 1e-6) {
                     colorChanged = true;
                     break;
                 }
@@ -713,53 +1156,42 @@ public class PGFDevice implements OutputDevice, Cloneable {
         
         if (colorChanged) {
             // Write new color to the output document. 
-            String prefColSpace = gsColor.getPreferredColorSpace();
             try {
-                if (prefColSpace.equals("CMYK")) {
-                    double[] cmyk = gsColor.getCMYK();
-                    out.write("\\definecolor{eps2pgf_color}{cmyk}{"
-                            + COLOR_FORMAT.format(cmyk[0])
-                            + "," + COLOR_FORMAT.format(cmyk[1])
-                            + "," + COLOR_FORMAT.format(cmyk[2])
-                            + "," + COLOR_FORMAT.format(cmyk[3]) + "}");
-                } else if (prefColSpace.equals("RGB")) {
-                    double[] rgb = gsColor.getRGB();
-                    out.write("\\definecolor{eps2pgf_color}{rgb}{"
-                            + COLOR_FORMAT.format(rgb[0])
-                            + "," + COLOR_FORMAT.format(rgb[1])
-                            + "," + COLOR_FORMAT.format(rgb[2]) + "}");
-                } else if (prefColSpace.equals("Gray")) {
-                    double gray = gsColor.getGray();
-                    out.write("\\definecolor{eps2pgf_color}{gray}{"
-                            + COLOR_FORMAT.format(gray) + "}");
+                if (colorModel.equals("CMYK")) {
+                    out.write("\\definecolor{eps2pgf_color}{cmyk}{");
+                } else if (colorModel.equals("RGB")) {
+                    out.write("\\definecolor{eps2pgf_color}{rgb}{");
+                } else if (colorModel.equals("Gray")) {
+                    out.write("\\definecolor{eps2pgf_color}{gray}{");
                 } else {
                     throw new ProgramError("Invalid preferred color space: "
-                            + prefColSpace);
+                            + colorModel);
                 }
+                writeColorValues(colorValues);
+                out.write('}');
                 out.write("\\pgfsetstrokecolor{eps2pgf_color}");
                 out.write("\\pgfsetfillcolor{eps2pgf_color}\n");
             } catch (IOException e) {
                 throw new PSErrorIOError();
             }
             
-            // Make sure that the currentColor array has the same size as
-            // gsColor.
-            if (n < currentColor.size()) {
-                for (int i = currentColor.size() - 1; i >= n; i--) {
-                    currentColor.remove(i);
+            // Make sure that the emitted.color array has the same size as
+            // colorLevels.
+            if (n < emitted.color.size()) {
+                for (int i = emitted.color.size() - 1; i >= n; i--) {
+                    emitted.color.remove(i);
                 }
-            } else if (n > currentColor.size()) {
-                for (int i = n - currentColor.size(); i > 0; i--) {
-                    currentColor.add(Double.NaN);
+            } else if (n > emitted.color.size()) {
+                for (int i = n - emitted.color.size(); i > 0; i--) {
+                    emitted.color.add(Double.NaN);
                 }
             }
             
-            // Copy the graphics state values to currentColor and
-            // currentColorSpace.
+            // Copy the color values to emitted.color and emitted.colorSpace.
             for (int i = 0; i < n; i++) {
-                currentColor.set(i, gsColor.getLevel(i));
+                emitted.color.set(i, colorLevels[i]);
             }
-            currentColorSpace = gsColspace;
+            emitted.colorSpace = colorSpace;
         }
     }
 
@@ -767,7 +1199,8 @@ public class PGFDevice implements OutputDevice, Cloneable {
      * Draws text.
      * 
      * @param text Exact text to draw
-     * @param position Text anchor point in [micrometer, micrometer]
+     * @param posX X-coordinate of text anchor point (in micrometer).
+     * @param posY Y-coordinate of text anchor point (in micrometer).
      * @param angle Text angle in degrees
      * @param pFontsize in PostScript pt (= 1/72 inch). If font size is NaN, the
      * font size is not set and completely determined by LaTeX.
@@ -775,20 +1208,21 @@ public class PGFDevice implements OutputDevice, Cloneable {
      * t - top, c - center, B - baseline b - bottom
      * l - left, c - center, r - right
      * e.g. Br = baseline,right
-     * @param gstate The current graphics state.
      * 
      * @throws PSError A PostScript error occurred.
      * @throws ProgramError This shouldn't happen, it indicates a bug.
      */
-    public void show(final String text, final double[] position,
-            final double angle, final double pFontsize, final String anchor,
-            final GraphicsState gstate)
+    public void show(final String text, final double posX, final double posY,
+            final double angle, final double pFontsize, final String anchor)
             throws PSError, ProgramError {
         
-        updateColor(gstate);
+        flushPending();
+        openScope();
         
-        String x = COOR_FORMAT.format(1e-4 * position[0]);
-        String y = COOR_FORMAT.format(1e-4 * position[1]);
+        updateColor();
+        
+        String x = COOR_FORMAT.format(1e-4 * posX);
+        String y = COOR_FORMAT.format(1e-4 * posY);
         
         // Process anchor
         String posOpts = "";
@@ -841,6 +1275,8 @@ public class PGFDevice implements OutputDevice, Cloneable {
      * @throws PSError A PostScript error occurred.
      */
     public void drawDot(final double x, final double y) throws PSError {
+        flushPending();
+        openScope();
         try {
             out.write("\\begin{pgfscope}\\pgfsetfillcolor{red}\\pgfpathcircle{"
                     + "\\pgfqpoint{" + 1e-4 * x + "cm}{" + 1e-4 * y
@@ -863,6 +1299,8 @@ public class PGFDevice implements OutputDevice, Cloneable {
     public void drawRect(final double[] lowerLeft, final double[] upperRight)
             throws PSError {
         
+        flushPending();
+        openScope();
         try {
             out.write("\\begin{pgfscope}\\pgfsetstrokecolor{blue}"
                     + "\\pgfsetlinewidth{0.1pt}\\pgfpathrectangle{\\pgfqpoint{"
@@ -877,62 +1315,106 @@ public class PGFDevice implements OutputDevice, Cloneable {
     }
 
     /**
-     * Adds a bitmap image to the output.
+     * Includes a bitmap image that was written to a separate file. EPS and
+     * PDF images have the right size, a PNG image is scaled to the size.
      * 
-     * @param img The bitmap image to add.
+     * @param name Name of the image file, without extension.
+     * @param x X-coordinate of the lower-left corner (in micrometer).
+     * @param y Y-coordinate of the lower-left corner (in micrometer).
+     * @param width Width (in micrometer) of the image.
+     * @param height Height (in micrometer) of the image.
+     * @param angle Rotation (in degrees) of the image.
      * 
      * @throws PSError A PostScript error occurred.
-     * @throws ProgramError This shouldn't happen, it indicates a bug.
      */
-    public void image(final Image img) throws PSError, ProgramError {
-        Options options = interp.getOptions();
-        String filename = options.getOutputFile().getName();
-        String basename;
-        int dot = filename.lastIndexOf('.');
-        if (dot >= 0) {
-            basename = filename.substring(0, dot);
-        } else {
-            basename = filename;
-        }
-        basename += "-image" + nextImage[0];
-        nextImage[0] = nextImage[0] + 1;
-        File epsFile = new File(options.getOutputFile().getParent(), 
-                basename + ".eps");
-        File pdfFile = new File(options.getOutputFile().getParent(), 
-                basename + ".pdf");
+    public void image(final String name, final double x, final double y,
+            final double width, final double height, final double angle)
+            throws PSError {
+        
+        flushPending();
+        openScope();
         try {
-            OutputStream epsOut =
-                new BufferedOutputStream(new FileOutputStream(epsFile));
-            EpsImageCreator.writeImage(epsOut, img, epsFile.getName(), interp);
-            epsOut.close();
-            
-            OutputStream pdfOut = new BufferedOutputStream(
-                    new FileOutputStream(pdfFile));
-            PdfImageCreator pdfImgCreator = new PdfImageCreator(interp);
-            pdfImgCreator.writeImage(pdfOut, img, pdfFile.getName());
-            pdfOut.close();
-            
-            double[][] bbox = img.getDeviceBbox();
-            int[] cornerMap = img.getCornerMap();
-            double llx = bbox[cornerMap[0]][0];
-            double lly = bbox[cornerMap[0]][1];
-            double lrx = bbox[cornerMap[1]][0];
-            double lry = bbox[cornerMap[1]][1];
-            double ulx = bbox[cornerMap[3]][0];
-            double uly = bbox[cornerMap[3]][1];
-            double angle = img.getAngle();
-            double x = Math.min(Math.min(llx, ulx), lrx);
-            double y = Math.min(Math.min(lly, uly), lry);
             String xStr = COOR_FORMAT.format(1e-4 * x);
             String yStr = COOR_FORMAT.format(1e-4 * y);
             String angleStr = ANGLE_FORMAT.format(angle);
-            out.write(String.format("\\pgftext[at=\\pgfqpoint{%scm}{%scm},left,"
-                    + "bottom]{\\includegraphics[angle=%s]{%s}}\n",
-                    xStr, yStr, angleStr, basename));
-        } catch (FileNotFoundException e) {
-            throw new PSErrorIOError();
+            if (pngImages) {
+                out.write(String.format("\\pgftext[at=\\pgfqpoint{%scm}{%scm},"
+                        + "left,bottom]{\\includegraphics[width=%scm,"
+                        + "height=%scm,angle=%s]{%s.png}}\n", xStr, yStr,
+                        COOR_FORMAT.format(1e-4 * width),
+                        COOR_FORMAT.format(1e-4 * height), angleStr, name));
+            } else {
+                out.write(String.format("\\pgftext[at=\\pgfqpoint{%scm}"
+                        + "{%scm},left,bottom]{\\includegraphics[angle=%s]"
+                        + "{%s}}\n", xStr, yStr, angleStr, name));
+            }
         } catch (IOException e) {
             throw new PSErrorIOError();
         }
     }
+    
+    /**
+     * State of the output document, i.e. the values of parameters (color,
+     * line width, etc...) that were last written to the output.
+     */
+    private static class EmittedState implements Cloneable {
+        /** Color values. */
+        private ArrayList<Double> color = new ArrayList<Double>();
+        
+        /** Line width. */
+        private double lineWidth = -1.0;
+        
+        /** Dash pattern. */
+        private ArrayList<Double> dashPattern = new ArrayList<Double>();
+        
+        /** Dash offset. */
+        private double dashOffset = 0.0;
+        
+        /** Line cap. */
+        private int lineCap = 0;
+        
+        /** Line join. */
+        private int lineJoin = 0;
+        
+        /** Miter limit. */
+        private double miterLimit = 10.0;
+        
+        /** Color space. */
+        private String colorSpace = "";
+        
+        /**
+         * Creates a deep copy of this object.
+         * 
+         * @return The copy.
+         */
+        @Override
+        public EmittedState clone() {
+            EmittedState copy;
+            try {
+                copy = (EmittedState) super.clone();
+            } catch (CloneNotSupportedException e) {
+                copy = null;
+            }
+            copy.color = new ArrayList<Double>(color);
+            copy.dashPattern = new ArrayList<Double>(dashPattern);
+            return copy;
+        }
+        
+        /**
+         * Copies all values from another state to this state.
+         * 
+         * @param other The state to copy.
+         */
+        void copyFrom(final EmittedState other) {
+            color = new ArrayList<Double>(other.color);
+            lineWidth = other.lineWidth;
+            dashPattern = new ArrayList<Double>(other.dashPattern);
+            dashOffset = other.dashOffset;
+            lineCap = other.lineCap;
+            lineJoin = other.lineJoin;
+            miterLimit = other.miterLimit;
+            colorSpace = other.colorSpace;
+        }
+    }
+    
 }
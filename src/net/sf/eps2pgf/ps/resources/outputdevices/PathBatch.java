@@ -0,0 +1,309 @@
+/*
+ * This file is part of Eps2pgf.
+ *
+ * Copyright 2007-2009 Paul Wagenaars
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sf.eps2pgf.ps.resources.outputdevices;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import net.sf.eps2pgf.ps.Closepath;
+import net.sf.eps2pgf.ps.Lineto;
+import net.sf.eps2pgf.ps.Moveto;
+import net.sf.eps2pgf.ps.PathSection;
+
+/**
+ * Collects consecutive paths that are painted with the same operation and
+ * style, such that they can be written as a single path with multiple
+ * subpaths. This is common in meshes and maps, where thousands of adjacent
+ * polygons are filled one by one.
+ *
+ * Stroking a path with multiple subpaths is the same as stroking the
+ * subpaths one by one, also for dashed lines, because the dash pattern
+ * restarts at each subpath. Filling is a different story: with the
+ * non-zero rule overlapping polygons with opposite orientations would
+ * cancel each other, with the even-odd rule all overlapping polygons would.
+ * Therefore, only convex polygons are merged into a fill. Inside a convex
+ * polygon the winding number is either 1 or -1, so both fill rules give
+ * the same result. The polygons are written counterclockwise, such that the
+ * non-zero rule fills the union of all polygons.
+ *
+ * @author Paul Wagenaars
+ */
+public class PathBatch {
+
+    /** Maximum number of sections in a merged path. */
+    static final int MAX_SECTIONS = 1024;
+
+    /** Indicates whether paths are merged. */
+    private boolean enabled;
+
+    /** Sections of the merged path. */
+    private List<PathSection> sections = new ArrayList<PathSection>();
+
+    /** Painting operation of the merged path: FILL or STROKE. */
+    private int op = PGFDevice.FILL;
+
+    /** Style version of the merged path, see PGFDevice. */
+    private long styleVersion = 0;
+
+    /** Number of paths in the merged path. */
+    private int nrPaths = 0;
+
+    /** Number of paths that were merged with other paths. */
+    private long nrMerged = 0;
+
+    /** Number of merged paths that were written. */
+    private long nrWritten = 0;
+
+    /**
+     * Creates a new path batch.
+     *
+     * @param pEnabled Indicates whether paths are merged. If false, this
+     * batch never accepts a path.
+     */
+    public PathBatch(final boolean pEnabled) {
+        enabled = pEnabled;
+    }
+
+    /**
+     * Determines with which operation a path can be merged with other
+     * paths.
+     *
+     * @param path Sections of the path.
+     * @param pOp Painting operation: FILL, EOFILL or STROKE.
+     *
+     * @return STROKE for strokes, FILL for fills of convex polygons (with
+     * either fill rule), or -1 if the path can't be merged.
+     */
+    public int getMergeOp(final List<PathSection> path, final int pOp) {
+        if (!enabled || (path.size() > MAX_SECTIONS) || path.isEmpty()
+                || !(path.get(0) instanceof Moveto)) {
+            return -1;
+        } else if (pOp == PGFDevice.STROKE) {
+            return PGFDevice.STROKE;
+        } else if ((pOp == PGFDevice.FILL) || (pOp == PGFDevice.EOFILL)) {
+            if (convexOrientation(path) != 0) {
+                return PGFDevice.FILL;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Checks whether a path can be added to the current merged path.
+     *
+     * @param path Sections of the path.
+     * @param mergeOp Painting operation returned by getMergeOp().
+     * @param pStyleVersion Current style version.
+     *
+     * @return True if the path can be added.
+     */
+    public boolean canAdd(final List<PathSection> path, final int mergeOp,
+            final long pStyleVersion) {
+        return (nrPaths > 0) && (mergeOp == op)
+                && (pStyleVersion == styleVersion)
+                && (sections.size() + path.size() + 1 <= MAX_SECTIONS);
+    }
+
+    /**
+     * Adds a path to the merged path. If the batch is empty, a new merged
+     * path is started.
+     *
+     * @param path Sections of the path.
+     * @param mergeOp Painting operation returned by getMergeOp().
+     * @param pStyleVersion Current style version.
+     */
+    public void add(final List<PathSection> path, final int mergeOp,
+            final long pStyleVersion) {
+        op = mergeOp;
+        styleVersion = pStyleVersion;
+        nrPaths++;
+        int last = lastSection(path);
+        if (op == PGFDevice.STROKE) {
+            for (int i = 0; i <= last; i++) {
+                sections.add(path.get(i));
+            }
+            return;
+        }
+
+        // Polygon, closed explicitly and written counterclockwise
+        if (path.get(last) instanceof Closepath) {
+            last--;
+        }
+        if (convexOrientation(path) > 0) {
+            for (int i = 0; i <= last; i++) {
+                sections.add(path.get(i));
+            }
+        } else {
+            sections.add(path.get(0));
+            for (int i = last; i > 0; i--) {
+                PathSection section = path.get(i);
+                sections.add(new Lineto(section.getParam(0),
+                        section.getParam(1)));
+            }
+        }
+        sections.add(new Closepath());
+    }
+
+    /**
+     * Checks whether the batch is empty.
+     *
+     * @return True if no paths have been added.
+     */
+    public boolean isEmpty() {
+        return nrPaths == 0;
+    }
+
+    /**
+     * Gets the sections of the merged path.
+     *
+     * @return The sections.
+     */
+    public List<PathSection> getSections() {
+        return sections;
+    }
+
+    /**
+     * Gets the painting operation of the merged path.
+     *
+     * @return FILL or STROKE.
+     */
+    public int getOp() {
+        return op;
+    }
+
+    /**
+     * Empties the batch, after the merged path has been written.
+     */
+    public void clear() {
+        if (nrPaths > 1) {
+            nrMerged += nrPaths;
+            nrWritten++;
+        }
+        sections.clear();
+        nrPaths = 0;
+    }
+
+    /**
+     * Gets the number of paths that were merged with other paths.
+     *
+     * @return The number of paths.
+     */
+    public long getNrMerged() {
+        return nrMerged;
+    }
+
+    /**
+     * Gets the number of merged paths that were written.
+     *
+     * @return The number of merged paths.
+     */
+    public long getNrWritten() {
+        return nrWritten;
+    }
+
+    /**
+     * Gets the index of the last section of a path that is painted. A moveto
+     * at the end of a path, as added after each closepath, is ignored.
+     *
+     * @param path Sections of the path.
+     *
+     * @return Index of the last section that is painted.
+     */
+    private static int lastSection(final List<PathSection> path) {
+        int last = path.size() - 1;
+        if ((last > 0) && (path.get(last) instanceof Moveto)) {
+            last--;
+        }
+        return last;
+    }
+
+    /**
+     * Determines whether a path is a convex polygon, and its orientation. The
+     * polygon consists of a moveto and linetos, optionally followed by a
+     * closepath and a moveto. Collinear points are allowed, polygons that
+     * wind around more than once (e.g. a pentagram) are not convex.
+     *
+     * @param path Sections of the path.
+     *
+     * @return 1 for a counterclockwise convex polygon, -1 for a clockwise
+     * convex polygon, or 0 if the path is not a convex polygon.
+     */
+    static int convexOrientation(final List<PathSection> path) {
+        int last = lastSection(path);
+        if (path.get(last) instanceof Closepath) {
+            last--;
+        }
+
+        // Collect the vertices, without duplicates
+        double[] pts = new double[2 * (last + 1)];
+        int m = 0;
+        for (int i = 0; i <= last; i++) {
+            PathSection section = path.get(i);
+            if ((i == 0) ? !(section instanceof Moveto)
+                    : !(section instanceof Lineto)) {
+                return 0;
+            }
+            double x = section.getParam(0);
+            double y = section.getParam(1);
+            if ((m == 0) || (x != pts[2 * m - 2]) || (y != pts[2 * m - 1])) {
+                pts[2 * m] = x;
+                pts[2 * m + 1] = y;
+                m++;
+            }
+        }
+        if ((m > 1) && (pts[0] == pts[2 * m - 2])
+                && (pts[1] == pts[2 * m - 1])) {
+            m--;
+        }
+        if (m < 3) {
+            return 0;
+        }
+
+        // All turns must be in the same direction, and add up to one turn.
+        int sign = 0;
+        double turning = 0.0;
+        for (int i = 0; i < m; i++) {
+            int j = (i + 1) % m;
+            int k = (i + 2) % m;
+            double ax = pts[2 * j] - pts[2 * i];
+            double ay = pts[2 * j + 1] - pts[2 * i + 1];
+            double bx = pts[2 * k] - pts[2 * j];
+            double by = pts[2 * k + 1] - pts[2 * j + 1];
+            double cross = ax * by - ay * bx;
+            double dot = ax * bx + ay * by;
+            if (cross == 0.0) {
+                if (dot <= 0.0) {
+                    return 0;
+                }
+                continue;
+            }
+            int turn = (cross > 0.0) ? 1 : -1;
+            if (sign == 0) {
+                sign = turn;
+            } else if (turn != sign) {
+                return 0;
+            }
+            turning += Math.atan2(cross, dot);
+        }
+        if (Math.abs(Math.abs(turning) - 2.0 * Math.PI) > 1e-6) {
+            return 0;
+        }
+        return sign;
+    }
+}
@@ -0,0 +1,287 @@
+/*
+ * This file is part of Eps2pgf.
+ *
+ * Copyright 2007-2009 Paul Wagenaars
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sf.eps2pgf.ps.resources.outputdevices;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.sf.eps2pgf.ps.Closepath;
+import net.sf.eps2pgf.ps.Curveto;
+import net.sf.eps2pgf.ps.Lineto;
+import net.sf.eps2pgf.ps.Moveto;
+import net.sf.eps2pgf.ps.PathSection;
+
+/**
+ * Keeps track of paths that are drawn more than once at different
+ * positions, such as hatch patterns, map symbols and plot markers. Paths
+ * are compared after translating their first point to the origin and
+ * rounding the coordinates to the output resolution. The first few times a
+ * path is drawn it is written as usual, after that it is drawn with a
+ * macro. A macro for a path that is drawn only twice would make the output
+ * larger instead of smaller.
+ *
+ * @author Paul Wagenaars
+ */
+public class PathMacros {
+
+    /**
+     * Maximum number of values stored in the keys of all paths. Once this
+     * number is reached, no new paths are stored. It limits the memory usage
+     * for documents with many different paths.
+     */
+    static final int MAX_STORED_VALUES = 1 << 20;
+
+    /** Number of times a path is written as usual, before a macro is used. */
+    static final int MIN_REPEATS = 2;
+
+    /** Minimum number of sections of a path that is replaced by a macro. */
+    private int minSections;
+
+    /**
+     * Size (in micrometer) of the grid to which coordinates are rounded in
+     * the output.
+     */
+    private double resolution;
+
+    /** Macros of all paths that were drawn so far. */
+    private Map<Key, Macro> macros = new HashMap<Key, Macro>();
+
+    /** Number of values stored in the keys of all paths. */
+    private int nrStoredValues = 0;
+
+    /** Number of macros that were defined. */
+    private int nrDefined = 0;
+
+    /** Number of times that a path was drawn with a macro. */
+    private long nrUses = 0;
+
+    /**
+     * Creates a new path macro table.
+     *
+     * @param pMinSections Minimum number of sections of a path that is
+     * replaced by a macro. Zero disables macros.
+     * @param pResolution Size (in micrometer) of the grid to which coordinates
+     * are rounded in the output.
+     */
+    public PathMacros(final int pMinSections, final double pResolution) {
+        minSections = pMinSections;
+        resolution = pResolution;
+    }
+
+    /**
+     * Looks up the macro for a path. If the path was not drawn before, it is
+     * stored and null is returned. Null is also returned as long as the path
+     * has been drawn less than MIN_REPEATS times.
+     *
+     * @param sections Sections of the path.
+     *
+     * @return The macro with which the path must be drawn, or null if the
+     * path must be written as usual.
+     */
+    public Macro getMacro(final List<PathSection> sections) {
+        int n = sections.size();
+        if ((minSections <= 0) || (n < Math.max(minSections, 2))
+                || !(sections.get(0) instanceof Moveto)) {
+            return null;
+        }
+
+        Key key = new Key(sections, resolution);
+        Macro macro = macros.get(key);
+        if (macro == null) {
+            if (nrStoredValues + key.values.length <= MAX_STORED_VALUES) {
+                macro = new Macro();
+                macro.repeats = 1;
+                macros.put(key, macro);
+                nrStoredValues += key.values.length;
+            }
+            return null;
+        }
+        if (macro.repeats < MIN_REPEATS) {
+            macro.repeats++;
+            return null;
+        }
+
+        if (macro.name == null) {
+            macro.name = "epspgfpath" + letters(nrDefined);
+            nrDefined++;
+        }
+        nrUses++;
+        return macro;
+    }
+
+    /**
+     * Converts a number to a sequence of letters: a, b, ..., z, ba, bb, ...
+     * Control sequence names in TeX can't contain digits.
+     *
+     * @param number The number to convert, zero or positive.
+     *
+     * @return The letters.
+     */
+    static String letters(final int number) {
+        StringBuilder str = new StringBuilder();
+        int n = number;
+        do {
+            str.insert(0, (char) ('a' + (n % 26)));
+            n /= 26;
+        } while (n > 0);
+        return str.toString();
+    }
+
+    /**
+     * Gets the number of macros that were defined.
+     *
+     * @return The number of macros.
+     */
+    public int getNrDefined() {
+        return nrDefined;
+    }
+
+    /**
+     * Gets the number of times that a path was drawn with a macro.
+     *
+     * @return The number of uses.
+     */
+    public long getNrUses() {
+        return nrUses;
+    }
+
+    /**
+     * Macro that draws a path with its first point at the origin.
+     */
+    public static class Macro {
+        /** Number of times the path was written without macro. */
+        private int repeats = 0;
+
+        /** Name of the macro, null until it is needed. */
+        private String name = null;
+
+        /** Indicates whether the macro has been written to the output. */
+        private boolean defined = false;
+
+        /**
+         * Gets the name of the macro (without backslash).
+         *
+         * @return The name.
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Checks whether the macro has been written to the output.
+         *
+         * @return True if the macro is defined in the output.
+         */
+        public boolean isDefined() {
+            return defined;
+        }
+
+        /**
+         * Marks the macro as written to the output.
+         */
+        public void setDefined() {
+            defined = true;
+        }
+    }
+
+    /**
+     * Shape of a path: the section types and the rounded coordinates
+     * relative to the first point.
+     */
+    private static class Key {
+        /** Section types and rounded coordinates. */
+        private long[] values;
+
+        /** Hash code of values. */
+        private int hash;
+
+        /**
+         * Creates the key of a path.
+         *
+         * @param sections Sections of the path, the first section must be a
+         * moveto.
+         * @param resolution Size (in micrometer) of the grid to which
+         * coordinates are rounded.
+         */
+        Key(final List<PathSection> sections, final double resolution) {
+            int n = sections.size();
+            double x0 = sections.get(0).getParam(0);
+            double y0 = sections.get(0).getParam(1);
+            long[] buffer = new long[7 * n];
+            int len = 0;
+            for (int i = 0; i < n; i++) {
+                PathSection section = sections.get(i);
+                int nrCoors;
+                if (section instanceof Moveto) {
+                    buffer[len++] = 0;
+                    nrCoors = 2;
+                } else if (section instanceof Lineto) {
+                    buffer[len++] = 1;
+                    nrCoors = 2;
+                } else if (section instanceof Curveto) {
+                    buffer[len++] = 2;
+                    nrCoors = 6;
+                } else if (section instanceof Closepath) {
+                    buffer[len++] = 3;
+                    nrCoors = 0;
+                } else {
+                    buffer[len++] = -1;
+                    nrCoors = 0;
+                }
+                for (int j = 0; j < nrCoors; j += 2) {
+                    buffer[len++] = Math.round((section.getParam(j) - x0)
+                            / resolution);
+                    buffer[len++] = Math.round((section.getParam(j + 1) - y0)
+                            / resolution);
+                }
+            }
+            values = new long[len];
+            System.arraycopy(buffer, 0, values, 0, len);
+            hash = Arrays.hashCode(values);
+        }
+
+        /**
+         * Gets the hash code of this key.
+         *
+         * @return The hash code.
+         */
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        /**
+         * Checks whether this key equals another object.
+         *
+         * @param obj The other object.
+         *
+         * @return True if obj is a key of a path with the same shape.
+         */
+        @Override
+        public boolean equals(final Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return (hash == other.hash) && Arrays.equals(values, other.values);
+        }
+    }
+}
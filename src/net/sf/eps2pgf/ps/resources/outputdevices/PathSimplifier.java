@@ -0,0 +1,351 @@
+/*
+ * This file is part of Eps2pgf.
+ *
+ * Copyright 2007-2009 Paul Wagenaars
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sf.eps2pgf.ps.resources.outputdevices;
+
+import net.sf.eps2pgf.Options.PathSimplification;
+
+/**
+ * Reduces the number of points in polylines (runs of consecutive lineto's)
+ * before they are written to the output. Dense polylines, for example from
+ * scientific plots, often contain many points that are identical after
+ * rounding to the output precision, or that lie (almost) on a straight line.
+ *
+ * The start point (the current point before the first lineto) and the end
+ * point of a polyline are never removed. As a result a polyline with a single
+ * segment is never changed, such that zero-length segments (dots) are
+ * preserved.
+ *
+ * A single simplifier is shared by an output device and all its clones, such
+ * that the statistics are collected over the whole document.
+ *
+ * @author Paul Wagenaars
+ */
+public class PathSimplifier {
+
+    /**
+     * Maximum number of points that are checked against a single straight
+     * segment in the collinear mode. This limits the worst-case run time.
+     */
+    static final int MAX_RUN = 256;
+
+    /** The simplification that is applied. */
+    private PathSimplification mode;
+
+    /** Maximum deviation (in micrometer) of removed points. */
+    private double tolerance;
+
+    /**
+     * Size (in micrometer) of the grid to which coordinates are rounded in
+     * the output.
+     */
+    private double resolution;
+
+    /** Number of points passed to this simplifier. */
+    private long nrPoints = 0;
+
+    /** Number of points removed by this simplifier. */
+    private long nrRemoved = 0;
+
+    /**
+     * Creates a new path simplifier.
+     *
+     * @param pMode The simplification that is applied.
+     * @param pTolerance Maximum deviation (in micrometer) of removed points
+     * from the simplified polyline.
+     * @param pResolution Size (in micrometer) of the grid to which coordinates
+     * are rounded in the output.
+     */
+    public PathSimplifier(final PathSimplification pMode,
+            final double pTolerance, final double pResolution) {
+        mode = pMode;
+        tolerance = Math.max(pTolerance, 0.0);
+        resolution = pResolution;
+    }
+
+    /**
+     * Simplifies a polyline.
+     *
+     * @param start The current point before the polyline {x, y}.
+     * @param pts Points of the polyline, {x0, y0, x1, y1, ...}.
+     * @param nr Number of points in pts.
+     * @param keep For each point it is stored whether the point is kept
+     * (true), or removed (false). It must have room for at least nr elements.
+     *
+     * @return Number of points that is kept.
+     */
+    public int simplify(final double[] start, final double[] pts,
+            final int nr, final boolean[] keep) {
+        for (int i = 0; i < nr; i++) {
+            keep[i] = true;
+        }
+        nrPoints += nr;
+        if ((mode == PathSimplification.NONE) || (nr < 2)) {
+            return nr;
+        }
+
+        int nrKept = removeDuplicates(start, pts, nr, keep);
+        if (mode == PathSimplification.RDP) {
+            nrKept = douglasPeucker(start, pts, nr, keep, nrKept);
+        } else {
+            nrKept = removeCollinear(start, pts, nr, keep, nrKept);
+        }
+
+        nrRemoved += nr - nrKept;
+        return nrKept;
+    }
+
+    /**
+     * Removes points that are identical to the previous point after rounding
+     * to the output resolution.
+     *
+     * @param start The current point before the polyline {x, y}.
+     * @param pts Points of the polyline, {x0, y0, x1, y1, ...}.
+     * @param nr Number of points in pts.
+     * @param keep Indicates for each point whether it is kept.
+     *
+     * @return Number of points that is kept.
+     */
+    private int removeDuplicates(final double[] start, final double[] pts,
+            final int nr, final boolean[] keep) {
+        int nrKept = nr;
+        double prevX = Math.rint(start[0] / resolution);
+        double prevY = Math.rint(start[1] / resolution);
+        int prev = -1;
+        for (int i = 0; i < nr; i++) {
+            double x = Math.rint(pts[2 * i] / resolution);
+            double y = Math.rint(pts[2 * i + 1] / resolution);
+            if ((x == prevX) && (y == prevY)) {
+                if (i < nr - 1) {
+                    keep[i] = false;
+                    nrKept--;
+                } else if (prev >= 0) {
+                    // The end point is always kept, remove the previous point
+                    // instead.
+                    keep[prev] = false;
+                    nrKept--;
+                }
+            } else {
+                prevX = x;
+                prevY = y;
+                prev = i;
+            }
+        }
+        return nrKept;
+    }
+
+    /**
+     * Removes points that lie within the tolerance of the straight segment
+     * between its neighbors. All points that are skipped by a segment are
+     * checked, such that deviations can not accumulate.
+     *
+     * @param start The current point before the polyline {x, y}.
+     * @param pts Points of the polyline, {x0, y0, x1, y1, ...}.
+     * @param nr Number of points in pts.
+     * @param keep Indicates for each point whether it is kept.
+     * @param nrKept Number of points that is currently kept.
+     *
+     * @return Number of points that is kept.
+     */
+    private int removeCollinear(final double[] start, final double[] pts,
+            final int nr, final boolean[] keep, final int nrKept) {
+        int kept = nrKept;
+        double ax = start[0];
+        double ay = start[1];
+        int anchor = -1;
+        int candidate = -1;
+        for (int i = 0; i < nr; i++) {
+            if (!keep[i]) {
+                continue;
+            }
+            if (candidate < 0) {
+                candidate = i;
+                continue;
+            }
+
+            // Check whether the candidate, and all points that were removed
+            // before it, lie within the tolerance of the segment from the
+            // anchor to point i.
+            boolean removable = (candidate - anchor <= MAX_RUN);
+            for (int j = anchor + 1; removable && (j <= candidate); j++) {
+                removable = (distance(ax, ay, pts[2 * i], pts[2 * i + 1],
+                        pts[2 * j], pts[2 * j + 1]) <= tolerance);
+            }
+
+            if (removable) {
+                keep[candidate] = false;
+                kept--;
+            } else {
+                anchor = candidate;
+                ax = pts[2 * anchor];
+                ay = pts[2 * anchor + 1];
+            }
+            candidate = i;
+        }
+        return kept;
+    }
+
+    /**
+     * Simplifies a polyline with the Ramer-Douglas-Peucker algorithm. Only
+     * points that are still kept are considered.
+     *
+     * @param start The current point before the polyline {x, y}.
+     * @param pts Points of the polyline, {x0, y0, x1, y1, ...}.
+     * @param nr Number of points in pts.
+     * @param keep Indicates for each point whether it is kept.
+     * @param nrKept Number of points that is currently kept.
+     *
+     * @return Number of points that is kept.
+     */
+    private int douglasPeucker(final double[] start, final double[] pts,
+            final int nr, final boolean[] keep, final int nrKept) {
+        // Indices of the points that are still kept. Index -1 refers to the
+        // start point.
+        int[] idx = new int[nrKept + 1];
+        int n = 0;
+        idx[n++] = -1;
+        for (int i = 0; i < nr; i++) {
+            if (keep[i]) {
+                idx[n++] = i;
+                keep[i] = false;
+            }
+        }
+        keep[idx[n - 1]] = true;
+        int kept = 1;
+
+        // Explicit stack with ranges (in idx) that still have to be
+        // processed, recursion might overflow the call stack.
+        int[] stack = new int[2 * n];
+        int sp = 0;
+        stack[sp++] = 0;
+        stack[sp++] = n - 1;
+        while (sp > 0) {
+            int last = stack[--sp];
+            int first = stack[--sp];
+            if (last - first < 2) {
+                continue;
+            }
+            double x0 = getX(start, pts, idx[first]);
+            double y0 = getY(start, pts, idx[first]);
+            double x1 = getX(start, pts, idx[last]);
+            double y1 = getY(start, pts, idx[last]);
+            double maxDist = -1.0;
+            int maxIndex = -1;
+            for (int i = first + 1; i < last; i++) {
+                double dist = distance(x0, y0, x1, y1, pts[2 * idx[i]],
+                        pts[2 * idx[i] + 1]);
+                if (dist > maxDist) {
+                    maxDist = dist;
+                    maxIndex = i;
+                }
+            }
+            if (maxDist > tolerance) {
+                keep[idx[maxIndex]] = true;
+                kept++;
+                stack[sp++] = first;
+                stack[sp++] = maxIndex;
+                stack[sp++] = maxIndex;
+                stack[sp++] = last;
+            }
+        }
+        return kept;
+    }
+
+    /**
+     * Gets the X-coordinate of a point.
+     *
+     * @param start The start point.
+     * @param pts Points of the polyline.
+     * @param i Index of the point, -1 refers to the start point.
+     *
+     * @return X-coordinate.
+     */
+    private static double getX(final double[] start, final double[] pts,
+            final int i) {
+        return (i < 0) ? start[0] : pts[2 * i];
+    }
+
+    /**
+     * Gets the Y-coordinate of a point.
+     *
+     * @param start The start point.
+     * @param pts Points of the polyline.
+     * @param i Index of the point, -1 refers to the start point.
+     *
+     * @return Y-coordinate.
+     */
+    private static double getY(final double[] start, final double[] pts,
+            final int i) {
+        return (i < 0) ? start[1] : pts[2 * i + 1];
+    }
+
+    /**
+     * Calculates the distance from a point to a line segment.
+     *
+     * @param x0 X-coordinate of the start of the segment.
+     * @param y0 Y-coordinate of the start of the segment.
+     * @param x1 X-coordinate of the end of the segment.
+     * @param y1 Y-coordinate of the end of the segment.
+     * @param px X-coordinate of the point.
+     * @param py Y-coordinate of the point.
+     *
+     * @return The distance.
+     */
+    static double distance(final double x0, final double y0,
+            final double x1, final double y1, final double px,
+            final double py) {
+        double dx = x1 - x0;
+        double dy = y1 - y0;
+        double lengthSq = dx * dx + dy * dy;
+        double t = 0.0;
+        if (lengthSq > 0.0) {
+            t = ((px - x0) * dx + (py - y0) * dy) / lengthSq;
+            t = Math.max(0.0, Math.min(1.0, t));
+        }
+        double ex = x0 + t * dx - px;
+        double ey = y0 + t * dy - py;
+        return Math.sqrt(ex * ex + ey * ey);
+    }
+
+    /**
+     * Checks whether this simplifier changes polylines.
+     *
+     * @return True if polylines are simplified.
+     */
+    public boolean isEnabled() {
+        return mode != PathSimplification.NONE;
+    }
+
+    /**
+     * Gets the number of points passed to this simplifier.
+     *
+     * @return The number of points.
+     */
+    public long getNrPoints() {
+        return nrPoints;
+    }
+
+    /**
+     * Gets the number of points removed by this simplifier.
+     *
+     * @return The number of removed points.
+     */
+    public long getNrRemoved() {
+        return nrRemoved;
+    }
+}
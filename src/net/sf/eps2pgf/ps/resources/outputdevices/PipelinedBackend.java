@@ -0,0 +1,559 @@
+/*
+ * This file is part of Eps2pgf.
+ *
+ * Copyright 2007-2009 Paul Wagenaars
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sf.eps2pgf.ps.resources.outputdevices;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.logging.Logger;
+
+import net.sf.eps2pgf.ps.PathSection;
+import net.sf.eps2pgf.ps.errors.PSError;
+import net.sf.eps2pgf.ps.errors.PSErrorIOError;
+
+/**
+ * Back-end that renders the display list on a separate thread, such that
+ * interpreting the input and formatting the output run in parallel. The
+ * operations are recorded by a DisplayListWriter, passed in blocks through a
+ * bounded queue, and replayed by a DisplayListReader into the actual
+ * back-end. The bounded queue limits the memory used when the back-end is
+ * slower than the interpreter.
+ *
+ * Errors in the back-end are reported by the first call after the error, or
+ * else by finish().
+ *
+ * @author Paul Wagenaars
+ */
+public class PipelinedBackend implements OutputBackend {
+
+    /** The log. */
+    private static final Logger LOG
+                                  = Logger.getLogger("net.sourceforge.eps2pgf");
+
+    /** Size (in bytes) of the blocks that are passed to the back-end. */
+    static final int BLOCK_SIZE = 64 * 1024;
+
+    /** Maximum number of blocks waiting for the back-end. */
+    static final int QUEUE_LENGTH = 16;
+
+    /** Empty block, marks the end of the display list. */
+    private static final byte[] END_OF_LIST = new byte[0];
+
+    /** Blocks with records that still have to be rendered. */
+    private BlockingQueue<byte[]> queue
+                               = new ArrayBlockingQueue<byte[]>(QUEUE_LENGTH);
+
+    /** Stream to which the records are written. */
+    private BlockOutputStream blockOut = new BlockOutputStream();
+
+    /** Records the display list. */
+    private DisplayListWriter writer = new DisplayListWriter(blockOut);
+
+    /** Thread that renders the display list. */
+    private Thread thread;
+
+    /** Error that occurred in the back-end, or null. */
+    private volatile Throwable failure = null;
+
+    /**
+     * Creates a new pipelined back-end, and starts the thread that renders
+     * the display list.
+     *
+     * @param backend The back-end that renders the display list.
+     * @param pathSpillThreshold Number of sections of a path that is kept in
+     * memory by the back-end. Zero disables spilling.
+     */
+    public PipelinedBackend(final OutputBackend backend,
+            final int pathSpillThreshold) {
+        final BlockInputStream blockIn = new BlockInputStream();
+        final DisplayListReader reader = new DisplayListReader(blockIn,
+                pathSpillThreshold);
+        thread = new Thread("eps2pgf-backend") {
+            @Override
+            public void run() {
+                try {
+                    reader.replay(backend);
+                } catch (Throwable e) {
+                    // Errors, e.g. an OutOfMemoryError, are recorded too.
+                    // Otherwise the output would be silently incomplete.
+                    failure = e;
+                } finally {
+                    // Keep taking blocks, otherwise the interpreter might
+                    // block forever on a full queue.
+                    blockIn.drain();
+                }
+            }
+        };
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Throws the error that occurred in the back-end, if any.
+     *
+     * @throws PSError The error in the back-end, or an IO error caused by
+     * the error if the back-end failed for another reason.
+     */
+    private void checkFailure() throws PSError {
+        Throwable e = failure;
+        if (e == null) {
+            return;
+        }
+        if (e instanceof PSError) {
+            throw (PSError) e;
+        } else if (e instanceof RuntimeException) {
+            throw (RuntimeException) e;
+        }
+        LOG.severe("Unable to render display list: " + e);
+        PSError ioError = new PSErrorIOError();
+        ioError.initCause(e);
+        throw ioError;
+    }
+
+    /**
+     * Starts rendering.
+     *
+     * @throws PSError A PostScript error occurred.
+     */
+    public void init() throws PSError {
+        checkFailure();
+        writer.init();
+    }
+
+    /**
+     * Waits until the back-end has rendered the complete display list, and
+     * stops the thread.
+     *
+     * @throws PSError A PostScript error occurred.
+     */
+    public void finish() throws PSError {
+        try {
+            if (failure == null) {
+                writer.finish();
+            }
+        } finally {
+            try {
+                blockOut.close();
+                thread.join();
+            } catch (InterruptedException e) {
+                throw new PSErrorIOError();
+            } catch (IOException e) {
+                throw new PSErrorIOError();
+            }
+        }
+        checkFailure();
+    }
+
+    /**
+     * Starts a new scope.
+     *
+     * @throws PSError A PostScript error occurred.
+     */
+    public void startScope() throws PSError {
+        checkFailure();
+        writer.startScope();
+    }
+
+    /**
+     * Ends the current scope.
+     *
+     * @throws PSError A PostScript error occurred.
+     */
+    public void endScope() throws PSError {
+        checkFailure();
+        writer.endScope();
+    }
+
+    /**
+     * Sets the color of the following painting operations.
+     *
+     * @param colorSpace Name of the color space family of the color.
+     * @param levels Color values in the color space.
+     * @param model Color model in which the color is written.
+     * @param values Color values (in range from 0.0 to 1.0) in the model.
+     *
+     * @throws PSError A PostScript error occurred.
+     */
+    public void setColor(final String colorSpace, final double[] levels,
+            final String model, final double[] values) throws PSError {
+        checkFailure();
+        writer.setColor(colorSpace, levels, model, values);
+    }
+
+    /**
+     * Sets the line style of the following stroke operations.
+     *
+     * @param width Line width (in micrometer).
+     * @param dashPattern Dash pattern (in micrometer).
+     * @param dashOffset Dash offset (in micrometer).
+     * @param cap Line cap (0, 1 or 2).
+     * @param join Line join (0, 1 or 2).
+     * @param miterLimit Miter limit.
+     *
+     * @throws PSError A PostScript error occurred.
+     */
+    public void setLineStyle(final double width, final double[] dashPattern,
+            final double dashOffset, final int cap, final int join,
+            final double miterLimit) throws PSError {
+        checkFailure();
+        writer.setLineStyle(width, dashPattern, dashOffset, cap, join,
+                miterLimit);
+    }
+
+    /**
+     * Fills a path using the non-zero rule.
+     *
+     * @param path Sections of the path.
+     *
+     * @throws PSError A PostScript error occurred.
+     */
+    public void fill(final List<PathSection> path) throws PSError {
+        checkFailure();
+        writer.fill(path);
+    }
+
+    /**
+     * Fills a path using the even-odd rule.
+     *
+     * @param path Sections of the path.
+     *
+     * @throws PSError A PostScript error occurred.
+     */
+    public void eofill(final List<PathSection> path) throws PSError {
+        checkFailure();
+        writer.eofill(path);
+    }
+
+    /**
+     * Strokes a path.
+     *
+     * @param path Sections of the path.
+     *
+     * @throws PSError A PostScript error occurred.
+     */
+    public void stroke(final List<PathSection> path) throws PSError {
+        checkFailure();
+        writer.stroke(path);
+    }
+
+    /**
+     * Sets a clipping path, using the non-zero rule.
+     *
+     * @param path Sections of the path.
+     *
+     * @throws PSError A PostScript error occurred.
+     */
+    public void clip(final List<PathSection> path) throws PSError {
+        checkFailure();
+        writer.clip(path);
+    }
+
+    /**
+     * Sets a clipping path, using the even-odd rule.
+     *
+     * @param path Sections of the path.
+     *
+     * @throws PSError A PostScript error occurred.
+     */
+    public void eoclip(final List<PathSection> path) throws PSError {
+        checkFailure();
+        writer.eoclip(path);
+    }
+
+    /**
+     * Fills the clipping path with a radial shading.
+     *
+     * @param offset Position of the center of the first circle, relative to
+     * the center of the last circle.
+     * @param radii Radius of each circle.
+     * @param colors RGB color of each circle.
+     * @param position Position of the center of the last circle.
+     * @param angle Rotation (in degrees) of the shading.
+     * @param xScale Horizontal scaling of the shading.
+     * @param yScale Vertical scaling of the shading.
+     *
+     * @throws PSError A PostScript error occurred.
+     */
+    public void radialShading(final double[] offset, final double[] radii,
+            final double[][] colors, final double[] position,
+            final double angle, final double xScale, final double yScale)
+            throws PSError {
+        checkFailure();
+        writer.radialShading(offset, radii, colors, position, angle, xScale,
+                yScale);
+    }
+
+    /**
+     * Draws text.
+     *
+     * @param text Exact text to draw
+     * @param x X-coordinate of text anchor point (in micrometer).
+     * @param y Y-coordinate of text anchor point (in micrometer).
+     * @param angle Text angle in degrees
+     * @param fontsize in PostScript pt (= 1/72 inch), or NaN.
+     * @param anchor String with two characters, see OutputDevice.show().
+     *
+     * @throws PSError A PostScript error occurred.
+     */
+    public void show(final String text, final double x, final double y,
+            final double angle, final double fontsize, final String anchor)
+            throws PSError {
+        checkFailure();
+        writer.show(text, x, y, angle, fontsize, anchor);
+    }
+
+    /**
+     * Includes a bitmap image that was written to a separate file.
+     *
+     * @param name Name of the image file, without extension.
+     * @param x X-coordinate of the lower-left corner (in micrometer).
+     * @param y Y-coordinate of the lower-left corner (in micrometer).
+     * @param width Width (in micrometer) of the image.
+     * @param height Height (in micrometer) of the image.
+     * @param angle Rotation (in degrees) of the image.
+     *
+     * @throws PSError A PostScript error occurred.
+     */
+    public void image(final String name, final double x, final double y,
+            final double width, final double height, final double angle)
+            throws PSError {
+        checkFailure();
+        writer.image(name, x, y, width, height, angle);
+    }
+
+    /**
+     * Draws a red dot (useful for debugging, don't use otherwise).
+     *
+     * @param x X-coordinate of dot.
+     * @param y Y-coordinate of dot.
+     *
+     * @throws PSError A PostScript error occurred.
+     */
+    public void drawDot(final double x, final double y) throws PSError {
+        checkFailure();
+        writer.drawDot(x, y);
+    }
+
+    /**
+     * Draws a blue rectangle (useful for debugging, don't use otherwise).
+     *
+     * @param lowerLeft Lower-left coordinate.
+     * @param upperRight Upper-right coordinate.
+     *
+     * @throws PSError A PostScript error occurred.
+     */
+    public void drawRect(final double[] lowerLeft, final double[] upperRight)
+            throws PSError {
+        checkFailure();
+        writer.drawRect(lowerLeft, upperRight);
+    }
+
+    /**
+     * Output stream that collects bytes in blocks, and puts full blocks in
+     * the queue.
+     */
+    private class BlockOutputStream extends OutputStream {
+        /** Block that is currently being filled. */
+        private byte[] block = new byte[BLOCK_SIZE];
+
+        /** Number of bytes in the current block. */
+        private int count = 0;
+
+        /**
+         * Writes a single byte.
+         *
+         * @param b The byte to write.
+         *
+         * @throws IOException Unable to pass a block to the back-end.
+         */
+        @Override
+        public void write(final int b) throws IOException {
+            if (count == block.length) {
+                flush();
+            }
+            block[count++] = (byte) b;
+        }
+
+        /**
+         * Writes a range of bytes.
+         *
+         * @param b The bytes to write.
+         * @param off Offset of the first byte.
+         * @param len Number of bytes.
+         *
+         * @throws IOException Unable to pass a block to the back-end.
+         */
+        @Override
+        public void write(final byte[] b, final int off, final int len)
+                throws IOException {
+            int done = 0;
+            while (done < len) {
+                if (count == block.length) {
+                    flush();
+                }
+                int n = Math.min(len - done, block.length - count);
+                System.arraycopy(b, off + done, block, count, n);
+                count += n;
+                done += n;
+            }
+        }
+
+        /**
+         * Puts the current block, if it is not empty, in the queue.
+         *
+         * @throws IOException Unable to pass a block to the back-end.
+         */
+        @Override
+        public void flush() throws IOException {
+            if (count == 0) {
+                return;
+            }
+            if (count == block.length) {
+                put(block);
+                block = new byte[BLOCK_SIZE];
+            } else {
+                byte[] partial = new byte[count];
+                System.arraycopy(block, 0, partial, 0, count);
+                put(partial);
+            }
+            count = 0;
+        }
+
+        /**
+         * Puts the current block and the end-of-list marker in the queue.
+         *
+         * @throws IOException Unable to pass a block to the back-end.
+         */
+        @Override
+        public void close() throws IOException {
+            flush();
+            put(END_OF_LIST);
+        }
+
+        /**
+         * Puts a block in the queue. It waits while the queue is full.
+         *
+         * @param b The block.
+         *
+         * @throws IOException The thread was interrupted.
+         */
+        private void put(final byte[] b) throws IOException {
+            try {
+                queue.put(b);
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+        }
+    }
+
+    /**
+     * Input stream that reads the blocks from the queue.
+     */
+    private class BlockInputStream extends InputStream {
+        /** Block that is currently being read. */
+        private byte[] block = new byte[0];
+
+        /** Position of the next byte in the block. */
+        private int pos = 0;
+
+        /** Indicates whether the end of the display list has been reached. */
+        private boolean endOfList = false;
+
+        /**
+         * Reads a single byte.
+         *
+         * @return The byte, or -1 at the end of the display list.
+         *
+         * @throws IOException The thread was interrupted.
+         */
+        @Override
+        public int read() throws IOException {
+            if (!nextBlock()) {
+                return -1;
+            }
+            return block[pos++] & 0xFF;
+        }
+
+        /**
+         * Reads a range of bytes.
+         *
+         * @param b Buffer into which the bytes are read.
+         * @param off Offset in b of the first byte.
+         * @param len Maximum number of bytes to read.
+         *
+         * @return Number of bytes read, or -1 at the end of the display list.
+         *
+         * @throws IOException The thread was interrupted.
+         */
+        @Override
+        public int read(final byte[] b, final int off, final int len)
+                throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (!nextBlock()) {
+                return -1;
+            }
+            int n = Math.min(len, block.length - pos);
+            System.arraycopy(block, pos, b, off, n);
+            pos += n;
+            return n;
+        }
+
+        /**
+         * Makes sure that there is at least one unread byte in the current
+         * block, by taking the next block from the queue if needed.
+         *
+         * @return False if the end of the display list has been reached.
+         *
+         * @throws IOException The thread was interrupted.
+         */
+        private boolean nextBlock() throws IOException {
+            while (!endOfList && (pos == block.length)) {
+                try {
+                    block = queue.take();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+                pos = 0;
+                endOfList = (block == END_OF_LIST);
+            }
+            return !endOfList;
+        }
+
+        /**
+         * Takes and discards all blocks up to the end of the display list.
+         */
+        void drain() {
+            try {
+                while (!endOfList) {
+                    pos = block.length;
+                    nextBlock();
+                }
+            } catch (IOException e) {
+                // The thread was interrupted, stop draining.
+                LOG.fine("Back-end interrupted: " + e.getMessage());
+            }
+        }
+    }
+}
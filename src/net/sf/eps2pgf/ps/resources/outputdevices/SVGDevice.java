@@ -0,0 +1,905 @@
+/*
+ * This file is part of Eps2pgf.
+ *
+ * Copyright 2007-2009 Paul Wagenaars
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sf.eps2pgf.ps.resources.outputdevices;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.util.Date;
+import java.util.List;
+
+import net.sf.eps2pgf.Options;
+import net.sf.eps2pgf.ProgramError;
+import net.sf.eps2pgf.ps.Closepath;
+import net.sf.eps2pgf.ps.Curveto;
+import net.sf.eps2pgf.ps.Lineto;
+import net.sf.eps2pgf.ps.Moveto;
+import net.sf.eps2pgf.ps.PathSection;
+import net.sf.eps2pgf.ps.errors.PSError;
+import net.sf.eps2pgf.ps.errors.PSErrorIOError;
+import net.sf.eps2pgf.ps.errors.PSErrorRangeCheck;
+import net.sf.eps2pgf.ps.errors.PSErrorUnregistered;
+import net.sf.eps2pgf.util.ArrayStack;
+import net.sf.eps2pgf.util.FixedDecimalFormat;
+
+/**
+ * Writes SVG files. The elements are written as soon as they are painted,
+ * no document tree is built, such that the memory usage doesn't depend on
+ * the size of the figure.
+ *
+ * The SVG coordinates are PostScript points, with the y-axis pointing down.
+ * A clipping path is written as a clipPath element and a group that uses
+ * it, the group is closed at the end of the scope. Bitmap images are
+ * embedded as PNG data URI. The output only contains ASCII characters,
+ * other characters in texts are written as character references.
+ *
+ * @author Paul Wagenaars
+ */
+public class SVGDevice implements OutputBackend {
+
+    /** Conversion factor from micrometer (device space) to points. */
+    private static final double PT_PER_MICROMETER = 72.0 / 25400.0;
+
+    /** Default font size (in pt) of texts without font size. */
+    private static final String DEFAULT_FONT_SIZE = "10";
+
+    /** SVG names of the line caps. */
+    private static final String[] LINE_CAPS = {"butt", "round", "square"};
+
+    /** SVG names of the line joins. */
+    private static final String[] LINE_JOINS = {"miter", "round", "bevel"};
+
+    /** Characters used by base64 encoding. */
+    private static final char[] BASE64 = ("ABCDEFGHIJKLMNOPQRSTUVWXYZ"
+            + "abcdefghijklmnopqrstuvwxyz0123456789+/").toCharArray();
+
+    /** Output is written to this writer. */
+    private Writer out;
+
+    /** Bounding box (in pt) of the figure: llx, lly, urx, ury. */
+    private double[] bbox;
+
+    /** Directory with the image files written by the DisplayListDevice. */
+    private File imageDir;
+
+    /** Indicates whether the image files are kept after embedding them. */
+    private boolean keepImageFiles = false;
+
+    /** Writes coordinates and lengths (in pt). */
+    private FixedDecimalFormat coorWriter = new FixedDecimalFormat(2);
+
+    /** Writes other numbers, such as angles and gradient offsets. */
+    private FixedDecimalFormat valueWriter = new FixedDecimalFormat(4);
+
+    /** Current color, as #rrggbb. */
+    private String color = "#000000";
+
+    /** Current line width (in micrometer). */
+    private double lineWidth = 1.0;
+
+    /** Current dash pattern (in micrometer). */
+    private double[] dashPattern = {};
+
+    /** Current dash offset (in micrometer). */
+    private double dashOffset = 0.0;
+
+    /** Current line cap. */
+    private int lineCap = 0;
+
+    /** Current line join. */
+    private int lineJoin = 0;
+
+    /** Current miter limit. */
+    private double miterLimit = 10.0;
+
+    /**
+     * Attributes of a stroked path for the current color and line style.
+     * Null if they have to be determined again.
+     */
+    private String strokeAttributes = null;
+
+    /** Number of clipping groups that were opened in the current scope. */
+    private int nrGroups = 0;
+
+    /** Number of clipping groups of each enclosing scope. */
+    private ArrayStack<Integer> scopes = new ArrayStack<Integer>();
+
+    /** Number of the next clipPath or radialGradient id. */
+    private int nextId = 1;
+
+    /**
+     * Creates a new SVG device.
+     *
+     * @param wOut Writer to where the SVG code will be written.
+     * @param opts Configuration options.
+     * @param pBbox Bounding box (in pt) of the figure: llx, lly, urx, ury.
+     * If it is null, an A4 page is used.
+     */
+    public SVGDevice(final Writer wOut, final Options opts,
+            final double[] pBbox) {
+        out = wOut;
+        if (pBbox != null) {
+            bbox = pBbox.clone();
+        } else {
+            bbox = new double[] {0.0, 0.0, 595.276, 841.890};
+        }
+        imageDir = opts.getOutputFile().getAbsoluteFile().getParentFile();
+    }
+
+    /**
+     * Initialize before any other methods are called. It writes the header.
+     *
+     * @throws PSError A PostScript error occurred.
+     */
+    public void init() throws PSError {
+        try {
+            out.write("<?xml version=\"1.0\" encoding=\"UTF-8\""
+                    + " standalone=\"no\"?>\n");
+            out.write("<!-- Created by " + net.sf.eps2pgf.Main.getNameVersion()
+                    + " on " + new Date() + " -->\n");
+            double width = bbox[2] - bbox[0];
+            double height = bbox[3] - bbox[1];
+            out.write("<svg xmlns=\"http://www.w3.org/2000/svg\""
+                    + " xmlns:xlink=\"http://www.w3.org/1999/xlink\""
+                    + " version=\"1.1\" width=\"");
+            coorWriter.write(out, width);
+            out.write("pt\" height=\"");
+            coorWriter.write(out, height);
+            out.write("pt\" viewBox=\"");
+            coorWriter.write(out, bbox[0]);
+            out.write(' ');
+            coorWriter.write(out, -bbox[3]);
+            out.write(' ');
+            coorWriter.write(out, width);
+            out.write(' ');
+            coorWriter.write(out, height);
+            out.write("\" font-size=\"" + DEFAULT_FONT_SIZE + "\">\n");
+        } catch (IOException e) {
+            throw new PSErrorIOError();
+        }
+    }
+
+    /**
+     * Finalize writing. It closes all groups and writes the footer.
+     *
+     * @throws PSError A PostScript error occurred.
+     */
+    public void finish() throws PSError {
+        while (!scopes.isEmpty()) {
+            endScope();
+        }
+        try {
+            closeGroups();
+            out.write("</svg>\n");
+        } catch (IOException e) {
+            throw new PSErrorIOError();
+        }
+    }
+
+    /**
+     * Starts a new scope.
+     *
+     * @throws PSError A PostScript error occurred.
+     */
+    public void startScope() throws PSError {
+        scopes.push(nrGroups);
+        nrGroups = 0;
+    }
+
+    /**
+     * Ends the current scope. The clipping groups that were opened in it are
+     * closed.
+     *
+     * @throws PSError A PostScript error occurred.
+     */
+    public void endScope() throws PSError {
+        try {
+            closeGroups();
+        } catch (IOException e) {
+            throw new PSErrorIOError();
+        }
+        if (!scopes.isEmpty()) {
+            nrGroups = scopes.pop();
+        }
+    }
+
+    /**
+     * Closes the clipping groups of the current scope.
+     *
+     * @throws IOException Unable to write output.
+     */
+    private void closeGroups() throws IOException {
+        for (; nrGroups > 0; nrGroups--) {
+            out.write("</g>\n");
+        }
+    }
+
+    /**
+     * Sets the color of the following painting operations.
+     *
+     * @param colorSpace Name of the color space family of the color.
+     * @param levels Color values in the color space.
+     * @param model Color model in which the color is written: "CMYK", "RGB"
+     * or "Gray".
+     * @param values Color values (in range from 0.0 to 1.0) in the model.
+     *
+     * @throws PSError A PostScript error occurred.
+     * @throws ProgramError This shouldn't happen, it indicates a bug.
+     */
+    public void setColor(final String colorSpace, final double[] levels,
+            final String model, final double[] values)
+            throws PSError, ProgramError {
+
+        double[] rgb;
+        if (model.equals("CMYK")) {
+            rgb = new double[3];
+            for (int i = 0; i < 3; i++) {
+                rgb[i] = 1.0 - Math.min(1.0, values[i] + values[3]);
+            }
+        } else if (model.equals("RGB")) {
+            rgb = values;
+        } else if (model.equals("Gray")) {
+            rgb = new double[] {values[0], values[0], values[0]};
+        } else {
+            throw new ProgramError("Invalid preferred color space: " + model);
+        }
+        String newColor = toHex(rgb);
+        if (!newColor.equals(color)) {
+            color = newColor;
+            strokeAttributes = null;
+        }
+    }
+
+    /**
+     * Converts an RGB color to the hexadecimal SVG notation.
+     *
+     * @param rgb The color levels (0.0 to 1.0).
+     *
+     * @return The color as #rrggbb.
+     */
+    private static String toHex(final double[] rgb) {
+        StringBuilder str = new StringBuilder("#");
+        for (int i = 0; i < 3; i++) {
+            long level = Math.round(255.0
+                    * Math.max(0.0, Math.min(1.0, rgb[i])));
+            str.append(Character.forDigit((int) (level >> 4), 16));
+            str.append(Character.forDigit((int) (level & 0xf), 16));
+        }
+        return str.toString();
+    }
+
+    /**
+     * Sets the line style of the following stroke operations.
+     *
+     * @param width Line width (in micrometer).
+     * @param pDashPattern Dash pattern (in micrometer).
+     * @param pDashOffset Dash offset (in micrometer).
+     * @param cap Line cap (0, 1 or 2).
+     * @param join Line join (0, 1 or 2).
+     * @param pMiterLimit Miter limit.
+     *
+     * @throws PSError A PostScript error occurred.
+     */
+    public void setLineStyle(final double width, final double[] pDashPattern,
+            final double pDashOffset, final int cap, final int join,
+            final double pMiterLimit) throws PSError {
+
+        if ((cap < 0) || (cap >= LINE_CAPS.length) || (join < 0)
+                || (join >= LINE_JOINS.length)) {
+            throw new PSErrorRangeCheck();
+        }
+        lineWidth = width;
+        dashPattern = pDashPattern.clone();
+        dashOffset = pDashOffset;
+        lineCap = cap;
+        lineJoin = join;
+        miterLimit = pMiterLimit;
+        strokeAttributes = null;
+    }
+
+    /**
+     * Fills a path using the non-zero rule.
+     *
+     * @param path Sections of the path.
+     *
+     * @throws PSError A PostScript error occurred.
+     * @throws ProgramError This shouldn't happen, it indicates a bug.
+     */
+    public void fill(final List<PathSection> path)
+            throws PSError, ProgramError {
+        writeFill(path, "");
+    }
+
+    /**
+     * Fills a path using the even-odd rule.
+     *
+     * @param path Sections of the path.
+     *
+     * @throws PSError A PostScript error occurred.
+     * @throws ProgramError This shouldn't happen, it indicates a bug.
+     */
+    public void eofill(final List<PathSection> path)
+            throws PSError, ProgramError {
+        writeFill(path, " fill-rule=\"evenodd\"");
+    }
+
+    /**
+     * Writes a filled path.
+     *
+     * @param path Sections of the path.
+     * @param rule Attribute with the fill rule, or an empty string for the
+     * non-zero rule.
+     *
+     * @throws PSError A PostScript error occurred.
+     */
+    private void writeFill(final List<PathSection> path, final String rule)
+            throws PSError {
+
+        if (isEmpty(path)) {
+            return;
+        }
+        try {
+            out.write("<path d=\"");
+            writePathData(path);
+            out.write('"');
+            if (!color.equals("#000000")) {
+                out.write(" fill=\"" + color + "\"");
+            }
+            out.write(rule);
+            out.write("/>\n");
+        } catch (IOException e) {
+            throw new PSErrorIOError();
+        }
+    }
+
+    /**
+     * Strokes a path.
+     *
+     * @param path Sections of the path.
+     *
+     * @throws PSError A PostScript error occurred.
+     * @throws ProgramError This shouldn't happen, it indicates a bug.
+     */
+    public void stroke(final List<PathSection> path)
+            throws PSError, ProgramError {
+
+        if (isEmpty(path)) {
+            return;
+        }
+        try {
+            if (strokeAttributes == null) {
+                strokeAttributes = getStrokeAttributes();
+            }
+            out.write("<path d=\"");
+            writePathData(path);
+            out.write('"');
+            out.write(strokeAttributes);
+            out.write("/>\n");
+        } catch (IOException e) {
+            throw new PSErrorIOError();
+        }
+    }
+
+    /**
+     * Determines the attributes of a stroked path for the current color and
+     * line style. Attributes with their default value are left out.
+     *
+     * @return The attributes.
+     */
+    private String getStrokeAttributes() {
+        StringBuilder str = new StringBuilder(" fill=\"none\" stroke=\"");
+        str.append(color);
+        str.append('"');
+
+        // A line width of zero is the thinnest line that the device can
+        // draw, i.e. one pixel.
+        String width = coorWriter.format(PT_PER_MICROMETER * lineWidth);
+        if (Double.parseDouble(width) == 0.0) {
+            str.append(" stroke-width=\"1\"");
+            str.append(" vector-effect=\"non-scaling-stroke\"");
+        } else if (!width.equals("1")) {
+            str.append(" stroke-width=\"" + width + "\"");
+        }
+
+        if (lineCap != 0) {
+            str.append(" stroke-linecap=\"" + LINE_CAPS[lineCap] + "\"");
+        }
+        if (lineJoin != 0) {
+            str.append(" stroke-linejoin=\"" + LINE_JOINS[lineJoin] + "\"");
+        } else if (miterLimit != 4.0) {
+            str.append(" stroke-miterlimit=\""
+                    + valueWriter.format(Math.max(miterLimit, 1.0)) + "\"");
+        }
+
+        boolean dashed = false;
+        for (int i = 0; i < dashPattern.length; i++) {
+            dashed |= (dashPattern[i] > 0.0);
+        }
+        if (dashed) {
+            str.append(" stroke-dasharray=\"");
+            for (int i = 0; i < dashPattern.length; i++) {
+                if (i > 0) {
+                    str.append(',');
+                }
+                str.append(coorWriter.format(
+                        PT_PER_MICROMETER * dashPattern[i]));
+            }
+            str.append('"');
+            if (dashOffset != 0.0) {
+                str.append(" stroke-dashoffset=\""
+                        + coorWriter.format(PT_PER_MICROMETER * dashOffset)
+                        + "\"");
+            }
+        }
+
+        return str.toString();
+    }
+
+    /**
+     * Sets a clipping path, using the non-zero rule.
+     *
+     * @param path Sections of the path.
+     *
+     * @throws PSError A PostScript error occurred.
+     */
+    public void clip(final List<PathSection> path) throws PSError {
+        writeClip(path, "");
+    }
+
+    /**
+     * Sets a clipping path, using the even-odd rule.
+     *
+     * @param path Sections of the path.
+     *
+     * @throws PSError A PostScript error occurred.
+     */
+    public void eoclip(final List<PathSection> path) throws PSError {
+        writeClip(path, " clip-rule=\"evenodd\"");
+    }
+
+    /**
+     * Writes a clipPath element and opens a group that uses it. The group is
+     * closed at the end of the current scope.
+     *
+     * @param path Sections of the clipping path.
+     * @param rule Attribute with the clip rule, or an empty string for the
+     * non-zero rule.
+     *
+     * @throws PSError A PostScript error occurred.
+     */
+    private void writeClip(final List<PathSection> path, final String rule)
+            throws PSError {
+
+        try {
+            String id = "clip" + nextId++;
+            out.write("<clipPath id=\"" + id + "\"><path d=\"");
+            if (isEmpty(path)) {
+                // Nothing is visible
+                out.write("M0 0");
+            } else {
+                writePathData(path);
+            }
+            out.write('"');
+            out.write(rule);
+            out.write("/></clipPath>\n");
+            out.write("<g clip-path=\"url(#" + id + ")\">\n");
+            nrGroups++;
+        } catch (IOException e) {
+            throw new PSErrorIOError();
+        }
+    }
+
+    /**
+     * Checks whether a path paints nothing, i.e. it has no other sections
+     * than movetos.
+     *
+     * @param path Sections of the path.
+     *
+     * @return True if the path is empty.
+     */
+    private static boolean isEmpty(final List<PathSection> path) {
+        for (int i = 0; i < path.size(); i++) {
+            if (!(path.get(i) instanceof Moveto)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Writes the path data (value of the d attribute) of a path.
+     *
+     * @param path Sections of the path.
+     *
+     * @throws IOException Unable to write output.
+     * @throws PSError A PostScript error occurred.
+     */
+    private void writePathData(final List<PathSection> path)
+            throws IOException, PSError {
+
+        int n = path.size();
+        for (int i = 0; i < n; i++) {
+            PathSection section = path.get(i);
+            if (section instanceof Moveto) {
+                // If the path ends with a moveto, the moveto is ignored.
+                if (i < (n - 1)) {
+                    out.write('M');
+                    writePoint(section.getParam(0), section.getParam(1));
+                }
+            } else if (section instanceof Lineto) {
+                out.write('L');
+                writePoint(section.getParam(0), section.getParam(1));
+            } else if (section instanceof Curveto) {
+                out.write('C');
+                writePoint(section.getParam(0), section.getParam(1));
+                out.write(' ');
+                writePoint(section.getParam(2), section.getParam(3));
+                out.write(' ');
+                writePoint(section.getParam(4), section.getParam(5));
+            } else if (section instanceof Closepath) {
+                out.write('Z');
+            } else {
+                throw new PSErrorUnregistered("Can't handle "
+                        + section.getClass().getName());
+            }
+        }
+    }
+
+    /**
+     * Writes a point in SVG coordinates: x y.
+     *
+     * @param x X-coordinate (in micrometer).
+     * @param y Y-coordinate (in micrometer).
+     *
+     * @throws IOException Unable to write output.
+     */
+    private void writePoint(final double x, final double y)
+            throws IOException {
+        coorWriter.write(out, PT_PER_MICROMETER * x);
+        out.write(' ');
+        coorWriter.write(out, -PT_PER_MICROMETER * y);
+    }
+
+    /**
+     * Fills the clipping path with a radial shading. The shading is written
+     * as a radialGradient with the center at the center of the last circle
+     * and the focal point at the center of the first circle. It is painted
+     * on a square around the last circle, just like a PGF radial shading.
+     *
+     * @param offset Position of the center of the first circle, relative to
+     * the center of the last circle.
+     * @param radii Radius of each circle.
+     * @param colors RGB color of each circle.
+     * @param position Position of the center of the last circle.
+     * @param angle Rotation (in degrees) of the shading.
+     * @param xScale Horizontal scaling of the shading.
+     * @param yScale Vertical scaling of the shading.
+     *
+     * @throws PSError A PostScript error occurred.
+     * @throws ProgramError This shouldn't happen, it indicates a bug.
+     */
+    public void radialShading(final double[] offset, final double[] radii,
+            final double[][] colors, final double[] position,
+            final double angle, final double xScale, final double yScale)
+            throws PSError, ProgramError {
+
+        double radius = PT_PER_MICROMETER * radii[radii.length - 1];
+        if (radius <= 0.0) {
+            return;
+        }
+        try {
+            String id = "shading" + nextId++;
+            out.write("<radialGradient id=\"" + id + "\""
+                    + " gradientUnits=\"userSpaceOnUse\" cx=\"0\" cy=\"0\""
+                    + " r=\"");
+            coorWriter.write(out, radius);
+            out.write("\" fx=\"");
+            coorWriter.write(out, PT_PER_MICROMETER * offset[0] / xScale);
+            out.write("\" fy=\"");
+            coorWriter.write(out, -PT_PER_MICROMETER * offset[1] / yScale);
+            out.write("\">\n");
+            for (int i = 0; i < radii.length; i++) {
+                out.write("<stop offset=\"");
+                valueWriter.write(out, PT_PER_MICROMETER * radii[i] / radius);
+                out.write("\" stop-color=\"" + toHex(colors[i]) + "\"/>\n");
+            }
+            out.write("</radialGradient>\n");
+
+            out.write("<rect x=\"");
+            coorWriter.write(out, -radius);
+            out.write("\" y=\"");
+            coorWriter.write(out, -radius);
+            out.write("\" width=\"");
+            coorWriter.write(out, 2.0 * radius);
+            out.write("\" height=\"");
+            coorWriter.write(out, 2.0 * radius);
+            out.write("\" fill=\"url(#" + id + ")\" transform=\"translate(");
+            writePoint(position[0], position[1]);
+            out.write(") rotate(");
+            valueWriter.write(out, -angle);
+            out.write(") scale(");
+            valueWriter.write(out, xScale);
+            out.write(' ');
+            valueWriter.write(out, yScale);
+            out.write(")\"/>\n");
+        } catch (IOException e) {
+            throw new PSErrorIOError();
+        }
+    }
+
+    /**
+     * Draws text.
+     *
+     * @param text Exact text to draw
+     * @param x X-coordinate of text anchor point (in micrometer).
+     * @param y Y-coordinate of text anchor point (in micrometer).
+     * @param angle Text angle in degrees
+     * @param fontsize in PostScript pt (= 1/72 inch). If fontsize is NaN, the
+     * font size is not set and the default font size is used.
+     * @param anchor String with two characters, see OutputDevice.show().
+     *
+     * @throws PSError A PostScript error occurred.
+     * @throws ProgramError This shouldn't happen, it indicates a bug.
+     */
+    public void show(final String text, final double x, final double y,
+            final double angle, final double fontsize, final String anchor)
+            throws PSError, ProgramError {
+
+        try {
+            out.write("<text x=\"");
+            coorWriter.write(out, PT_PER_MICROMETER * x);
+            out.write("\" y=\"");
+            coorWriter.write(out, -PT_PER_MICROMETER * y);
+            out.write('"');
+            if (Math.abs(angle) > 1e-10) {
+                out.write(" transform=\"rotate(");
+                valueWriter.write(out, -angle);
+                out.write(' ');
+                writePoint(x, y);
+                out.write(")\"");
+            }
+            if (!Double.isNaN(fontsize)) {
+                out.write(" font-size=\"");
+                coorWriter.write(out, fontsize);
+                out.write('"');
+            }
+
+            // Vertical alignment, the default is the baseline
+            if (anchor.contains("t")) {
+                out.write(" dominant-baseline=\"text-before-edge\"");
+            } else if (anchor.contains("b")) {
+                out.write(" dominant-baseline=\"text-after-edge\"");
+            } else if (!anchor.contains("B")) {
+                out.write(" dominant-baseline=\"central\"");
+            }
+
+            // Horizontal alignment, the default is left
+            if (anchor.contains("r")) {
+                out.write(" text-anchor=\"end\"");
+            } else if (!anchor.contains("l")) {
+                out.write(" text-anchor=\"middle\"");
+            }
+
+            if (!color.equals("#000000")) {
+                out.write(" fill=\"" + color + "\"");
+            }
+            out.write('>');
+            writeEscaped(text);
+            out.write("</text>\n");
+        } catch (IOException e) {
+            throw new PSErrorIOError();
+        }
+    }
+
+    /**
+     * Writes text as XML character data. Markup characters and non-ASCII
+     * characters are written as character references, control characters
+     * are left out.
+     *
+     * @param text The text.
+     *
+     * @throws IOException Unable to write output.
+     */
+    private void writeEscaped(final String text) throws IOException {
+        int i = 0;
+        while (i < text.length()) {
+            int c = text.codePointAt(i);
+            i += Character.charCount(c);
+            if (c == '&') {
+                out.write("&amp;");
+            } else if (c == '<') {
+                out.write("&lt;");
+            } else if (c == '>') {
+                out.write("&gt;");
+            } else if ((c >= 0x20) && (c < 0x7f)) {
+                out.write(c);
+            } else if ((c >= 0xa0) && ((c < 0xd800) || (c > 0xdfff))) {
+                out.write("&#" + c + ";");
+            }
+        }
+    }
+
+    /**
+     * Includes a bitmap image that was written to a separate PNG file. The
+     * image is embedded as data URI, after which the file is deleted unless
+     * the image files are kept.
+     *
+     * @param name Name of the image file, without extension.
+     * @param x X-coordinate of the lower-left corner (in micrometer).
+     * @param y Y-coordinate of the lower-left corner (in micrometer).
+     * @param width Width (in micrometer) of the image.
+     * @param height Height (in micrometer) of the image.
+     * @param angle Rotation (in degrees) of the image.
+     *
+     * @throws PSError A PostScript error occurred.
+     */
+    public void image(final String name, final double x, final double y,
+            final double width, final double height, final double angle)
+            throws PSError {
+
+        // (x, y) is the lower-left corner of the bounding box of the rotated
+        // image. Determine the upper-left corner of the image itself.
+        double rad = Math.toRadians(angle);
+        double[] cornersX = {0.0, width * Math.cos(rad),
+                -height * Math.sin(rad),
+                width * Math.cos(rad) - height * Math.sin(rad)};
+        double[] cornersY = {0.0, width * Math.sin(rad),
+                height * Math.cos(rad),
+                width * Math.sin(rad) + height * Math.cos(rad)};
+        double minX = 0.0;
+        double minY = 0.0;
+        for (int i = 1; i < 4; i++) {
+            minX = Math.min(minX, cornersX[i]);
+            minY = Math.min(minY, cornersY[i]);
+        }
+        double ulX = x - minX + cornersX[2];
+        double ulY = y - minY + cornersY[2];
+
+        File file = new File(imageDir, name + ".png");
+        try {
+            out.write("<image width=\"");
+            coorWriter.write(out, PT_PER_MICROMETER * width);
+            out.write("\" height=\"");
+            coorWriter.write(out, PT_PER_MICROMETER * height);
+            out.write("\" preserveAspectRatio=\"none\" transform=\"translate(");
+            writePoint(ulX, ulY);
+            out.write(')');
+            if (Math.abs(angle) > 1e-10) {
+                out.write(" rotate(");
+                valueWriter.write(out, -angle);
+                out.write(')');
+            }
+            out.write("\" xlink:href=\"data:image/png;base64,");
+            InputStream in = new BufferedInputStream(new FileInputStream(file));
+            try {
+                writeBase64(in);
+            } finally {
+                in.close();
+            }
+            out.write("\"/>\n");
+        } catch (IOException e) {
+            throw new PSErrorIOError();
+        }
+        if (!keepImageFiles) {
+            file.delete();
+        }
+    }
+
+    /**
+     * Sets whether the image files are kept after embedding them, e.g.
+     * because a stored display list refers to them.
+     *
+     * @param pKeepImageFiles True to keep the image files.
+     */
+    public void setKeepImageFiles(final boolean pKeepImageFiles) {
+        keepImageFiles = pKeepImageFiles;
+    }
+
+    /**
+     * Writes the contents of a stream with base64 encoding.
+     *
+     * @param in The stream.
+     *
+     * @throws IOException Unable to read input or write output.
+     */
+    private void writeBase64(final InputStream in) throws IOException {
+        byte[] bytes = new byte[3 * 1024];
+        char[] chars = new char[4 * 1024];
+        while (true) {
+            // Fill the buffer completely, such that padding only occurs at
+            // the end.
+            int len = 0;
+            int nrRead = 0;
+            while ((len < bytes.length) && (nrRead >= 0)) {
+                nrRead = in.read(bytes, len, bytes.length - len);
+                len += Math.max(nrRead, 0);
+            }
+            if (len == 0) {
+                break;
+            }
+
+            int nrChars = 0;
+            for (int i = 0; i < len; i += 3) {
+                int b0 = bytes[i] & 0xff;
+                int b1 = (i + 1 < len) ? (bytes[i + 1] & 0xff) : 0;
+                int b2 = (i + 2 < len) ? (bytes[i + 2] & 0xff) : 0;
+                chars[nrChars++] = BASE64[b0 >> 2];
+                chars[nrChars++] = BASE64[((b0 & 0x3) << 4) | (b1 >> 4)];
+                chars[nrChars++] = (i + 1 < len)
+                        ? BASE64[((b1 & 0xf) << 2) | (b2 >> 6)] : '=';
+                chars[nrChars++] = (i + 2 < len) ? BASE64[b2 & 0x3f] : '=';
+            }
+            out.write(chars, 0, nrChars);
+            if (nrRead < 0) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Draws a red dot (useful for debugging, don't use otherwise).
+     *
+     * @param x X-coordinate of dot.
+     * @param y Y-coordinate of dot.
+     *
+     * @throws PSError A PostScript error occurred.
+     */
+    public void drawDot(final double x, final double y) throws PSError {
+        try {
+            out.write("<circle cx=\"");
+            coorWriter.write(out, PT_PER_MICROMETER * x);
+            out.write("\" cy=\"");
+            coorWriter.write(out, -PT_PER_MICROMETER * y);
+            out.write("\" r=\"0.5\" fill=\"red\"/>\n");
+        } catch (IOException e) {
+            throw new PSErrorIOError();
+        }
+    }
+
+    /**
+     * Draws a blue rectangle (useful for debugging, don't use otherwise).
+     *
+     * @param lowerLeft Lower-left coordinate.
+     * @param upperRight Upper-right coordinate.
+     *
+     * @throws PSError A PostScript error occurred.
+     */
+    public void drawRect(final double[] lowerLeft, final double[] upperRight)
+            throws PSError {
+        try {
+            out.write("<rect x=\"");
+            coorWriter.write(out, PT_PER_MICROMETER * lowerLeft[0]);
+            out.write("\" y=\"");
+            coorWriter.write(out, -PT_PER_MICROMETER * upperRight[1]);
+            out.write("\" width=\"");
+            coorWriter.write(out,
+                    PT_PER_MICROMETER * (upperRight[0] - lowerLeft[0]));
+            out.write("\" height=\"");
+            coorWriter.write(out,
+                    PT_PER_MICROMETER * (upperRight[1] - lowerLeft[1]));
+            out.write("\" fill=\"none\" stroke=\"blue\"");
+            out.write(" stroke-width=\"0.1\"/>\n");
+        } catch (IOException e) {
+            throw new PSErrorIOError();
+        }
+    }
+}
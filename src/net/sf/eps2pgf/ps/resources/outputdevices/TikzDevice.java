@@ -0,0 +1,269 @@
+/*
+ * This file is part of Eps2pgf.
+ *
+ * Copyright 2007-2009 Paul Wagenaars
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sf.eps2pgf.ps.resources.outputdevices;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.List;
+
+import net.sf.eps2pgf.Options;
+import net.sf.eps2pgf.ps.Closepath;
+import net.sf.eps2pgf.ps.Curveto;
+import net.sf.eps2pgf.ps.Lineto;
+import net.sf.eps2pgf.ps.Moveto;
+import net.sf.eps2pgf.ps.PathSection;
+import net.sf.eps2pgf.ps.errors.PSError;
+import net.sf.eps2pgf.ps.errors.PSErrorIOError;
+import net.sf.eps2pgf.ps.errors.PSErrorUnregistered;
+import net.sf.eps2pgf.util.FixedDecimalFormat;
+
+/**
+ * Writes TikZ files. Paths are written with the TikZ path syntax (\fill,
+ * \draw and \clip with -- and .. controls ..), which is a lot shorter than
+ * the PGF basic layer commands. Line segments are written with coordinates
+ * relative to the previous point. Everything else is written as PGF code,
+ * just like the PGFDevice, which is valid in a tikzpicture as well.
+ *
+ * @author Paul Wagenaars
+ */
+public class TikzDevice extends PGFDevice {
+
+    /** TikZ command that paints a path, for each painting operation. */
+    private static final String[] COMMANDS = {
+        "\\fill",
+        "\\fill[even odd rule]",
+        "\\draw",
+        "\\clip",
+        "\\clip[even odd rule]"
+    };
+
+    /**
+     * Size (in micrometer) of the grid to which coordinates are rounded. The
+     * relative coordinates are computed from rounded coordinates, such that
+     * rounding errors don't accumulate.
+     */
+    private static final double RESOLUTION = 10.0;
+
+    /** Writes coordinates (in cm) with the resolution of RESOLUTION. */
+    private FixedDecimalFormat coorWriter = new FixedDecimalFormat(3);
+
+    /**
+     * Creates a new TikZ device.
+     *
+     * @param wOut Writer to where the TikZ code will be written.
+     * @param opts Configuration options.
+     */
+    public TikzDevice(final Writer wOut, final Options opts) {
+        super(wOut, opts, "tikzpicture");
+    }
+
+    /**
+     * Initialize before any other methods are called. It writes the header
+     * and sets the units of coordinates without unit, in case the document
+     * changed them.
+     *
+     * @throws PSError A PostScript error occurred.
+     */
+    @Override
+    public void init() throws PSError {
+        super.init();
+        try {
+            getWriter().write("\\tikzset{x=1cm,y=1cm}\n");
+        } catch (IOException e) {
+            throw new PSErrorIOError();
+        }
+    }
+
+    /**
+     * Writes a path as a TikZ path command.
+     *
+     * @param sections Sections of the path.
+     * @param op Painting operation: FILL, EOFILL, STROKE, CLIP or EOCLIP.
+     *
+     * @throws PSError A PostScript error occurred.
+     */
+    @Override
+    protected void writePaintedPath(final List<PathSection> sections,
+            final int op) throws PSError {
+
+        Writer out = getWriter();
+        PathSimplifier simplifier = getSimplifier();
+        try {
+            out.write(COMMANDS[op]);
+
+            // Current point and start of the current subpath, rounded to the
+            // output grid. Null if there is no current point.
+            long[] current = null;
+            long[] subpathStart = null;
+            boolean closed = false;
+            int n = sections.size();
+            for (int i = 0; i < n; i++) {
+                PathSection section = sections.get(i);
+                if (section instanceof Moveto) {
+                    // If the path ends with a moveto, the moveto is ignored.
+                    current = round(section.getParam(0), section.getParam(1));
+                    if (i < (n - 1)) {
+                        writeAbsolute(" ", current);
+                    }
+                    subpathStart = current;
+                    closed = false;
+                } else if (section instanceof Lineto) {
+                    if (closed) {
+                        // TikZ has no current point after a cycle, start a
+                        // new subpath explicitly.
+                        writeAbsolute(" ", current);
+                        closed = false;
+                    }
+                    if (current == null) {
+                        current = round(section.getParam(0),
+                                section.getParam(1));
+                        writeAbsolute(" ", current);
+                        subpathStart = current;
+                    } else if (simplifier.isEnabled()) {
+                        current = current.clone();
+                        i = writePolyline(sections, i, current) - 1;
+                    } else {
+                        long[] pt = round(section.getParam(0),
+                                section.getParam(1));
+                        writeRelative(current, pt);
+                        current = pt;
+                    }
+                } else if (section instanceof Curveto) {
+                    if (closed) {
+                        writeAbsolute(" ", current);
+                        closed = false;
+                    }
+                    writeAbsolute(" .. controls ", round(section.getParam(0),
+                            section.getParam(1)));
+                    writeAbsolute(" and ", round(section.getParam(2),
+                            section.getParam(3)));
+                    current = round(section.getParam(4), section.getParam(5));
+                    writeAbsolute(" .. ", current);
+                } else if (section instanceof Closepath) {
+                    if (current != null) {
+                        out.write(" -- cycle");
+                        current = subpathStart;
+                        closed = true;
+                    }
+                } else {
+                    throw new PSErrorUnregistered("Can't handle "
+                            + section.getClass().getName());
+                }
+            }
+
+            out.write(";\n");
+        } catch (IOException e) {
+            throw new PSErrorIOError();
+        }
+    }
+
+    /**
+     * Simplifies a polyline (a run of consecutive lineto's) and writes it to
+     * the output.
+     *
+     * @param sections Sections of the path.
+     * @param first Index of the first lineto of the polyline.
+     * @param current The current point before the first lineto, rounded. It
+     * is updated to the last point of the polyline.
+     *
+     * @return Index of the first section after the polyline.
+     *
+     * @throws IOException Unable to write output.
+     */
+    private int writePolyline(final List<PathSection> sections,
+            final int first, final long[] current) throws IOException {
+        int end = first;
+        while ((end < sections.size())
+                && (sections.get(end) instanceof Lineto)) {
+            end++;
+        }
+
+        int nr = end - first;
+        double[] pts = new double[2 * nr];
+        for (int i = 0; i < nr; i++) {
+            PathSection section = sections.get(first + i);
+            pts[2 * i] = section.getParam(0);
+            pts[2 * i + 1] = section.getParam(1);
+        }
+        double[] start = {RESOLUTION * current[0], RESOLUTION * current[1]};
+        boolean[] keep = new boolean[nr];
+        getSimplifier().simplify(start, pts, nr, keep);
+        for (int i = 0; i < nr; i++) {
+            if (keep[i]) {
+                long[] pt = round(pts[2 * i], pts[2 * i + 1]);
+                writeRelative(current, pt);
+                current[0] = pt[0];
+                current[1] = pt[1];
+            }
+        }
+
+        return end;
+    }
+
+    /**
+     * Rounds a point to the output grid.
+     *
+     * @param x X-coordinate (in device space).
+     * @param y Y-coordinate (in device space).
+     *
+     * @return The point in units of RESOLUTION.
+     */
+    private static long[] round(final double x, final double y) {
+        return new long[] {Math.round(x / RESOLUTION),
+                Math.round(y / RESOLUTION)};
+    }
+
+    /**
+     * Writes a point with absolute coordinates: (x,y).
+     *
+     * @param prefix Written before the point.
+     * @param pt The point, in units of RESOLUTION.
+     *
+     * @throws IOException Unable to write output.
+     */
+    private void writeAbsolute(final String prefix, final long[] pt)
+            throws IOException {
+        Writer out = getWriter();
+        out.write(prefix);
+        out.write('(');
+        coorWriter.write(out, 1e-4 * RESOLUTION * pt[0]);
+        out.write(',');
+        coorWriter.write(out, 1e-4 * RESOLUTION * pt[1]);
+        out.write(')');
+    }
+
+    /**
+     * Writes a line segment to a point, relative to the current point:
+     * --++(dx,dy).
+     *
+     * @param current The current point, in units of RESOLUTION.
+     * @param pt The end point of the line, in units of RESOLUTION.
+     *
+     * @throws IOException Unable to write output.
+     */
+    private void writeRelative(final long[] current, final long[] pt)
+            throws IOException {
+        Writer out = getWriter();
+        out.write(" --++(");
+        coorWriter.write(out, 1e-4 * RESOLUTION * (pt[0] - current[0]));
+        out.write(',');
+        coorWriter.write(out, 1e-4 * RESOLUTION * (pt[1] - current[1]));
+        out.write(')');
+    }
+}
@@ -0,0 +1,194 @@
+/*
+ * This file is part of Eps2pgf.
+ *
+ * Copyright 2007-2009 Paul Wagenaars
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sf.eps2pgf.util;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.text.DecimalFormat;
+import java.text.DecimalFormatSymbols;
+import java.util.Locale;
+
+/**
+ * Formats numbers with a fixed maximum number of decimals. The output is
+ * identical to that of a DecimalFormat with pattern "#.###" (for three
+ * decimals) in the US locale, but numbers are written directly to a Writer
+ * without creating intermediate objects.
+ *
+ * Values that are very large, not finite, or that lie (almost) exactly
+ * halfway between two rounded values are formatted by a DecimalFormat, such
+ * that its rounding is reproduced exactly.
+ *
+ * Objects of this class are not thread-safe.
+ *
+ * @author Paul Wagenaars
+ */
+public class FixedDecimalFormat {
+
+    /**
+     * Scaled values (value times 10^nrDecimals) must be smaller than this to
+     * be formatted without DecimalFormat.
+     */
+    private static final double MAX_SCALED = 1e15;
+
+    /**
+     * Relative accuracy of scaled values. Scaled values that are closer to a
+     * tie than this are formatted by DecimalFormat.
+     */
+    private static final double TIE_MARGIN = 1e-15;
+
+    /** Maximum number of decimals. */
+    private int nrDecimals;
+
+    /** 10^nrDecimals. */
+    private long scale;
+
+    /** Reference formatter, used for values that can't be handled here. */
+    private DecimalFormat reference;
+
+    /** Buffer in which the characters are collected. */
+    private char[] buffer = new char[32];
+
+    /**
+     * Creates a new formatter.
+     *
+     * @param pNrDecimals Maximum number of decimals (0 to 9).
+     */
+    public FixedDecimalFormat(final int pNrDecimals) {
+        if ((pNrDecimals < 0) || (pNrDecimals > 9)) {
+            throw new IllegalArgumentException("Number of decimals must be"
+                    + " between 0 and 9.");
+        }
+        nrDecimals = pNrDecimals;
+        scale = 1;
+        StringBuilder pattern = new StringBuilder("#");
+        if (nrDecimals > 0) {
+            pattern.append('.');
+        }
+        for (int i = 0; i < nrDecimals; i++) {
+            scale *= 10;
+            pattern.append('#');
+        }
+        reference = new DecimalFormat(pattern.toString(),
+                new DecimalFormatSymbols(Locale.US));
+    }
+
+    /**
+     * Writes a formatted number.
+     *
+     * @param out The number is written to this writer.
+     * @param value The number to format.
+     *
+     * @throws IOException Unable to write to out.
+     */
+    public void write(final Writer out, final double value)
+            throws IOException {
+        int len = formatToBuffer(value);
+        if (len < 0) {
+            out.write(reference.format(value));
+        } else {
+            out.write(buffer, 0, len);
+        }
+    }
+
+    /**
+     * Formats a number.
+     *
+     * @param value The number to format.
+     *
+     * @return String with the formatted number.
+     */
+    public String format(final double value) {
+        int len = formatToBuffer(value);
+        if (len < 0) {
+            return reference.format(value);
+        } else {
+            return new String(buffer, 0, len);
+        }
+    }
+
+    /**
+     * Formats a number in the buffer.
+     *
+     * @param value The number to format.
+     *
+     * @return The number of characters in the buffer, or -1 if the number
+     * must be formatted by the reference formatter.
+     */
+    private int formatToBuffer(final double value) {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            return -1;
+        }
+
+        // DecimalFormat keeps the minus sign of negative values, even if they
+        // are rounded to zero (including -0.0).
+        boolean negative = (value < 0.0)
+                || ((value == 0.0) && (1.0 / value < 0.0));
+        double scaled = Math.abs(value) * scale;
+        if (scaled >= MAX_SCALED) {
+            return -1;
+        }
+        double floor = Math.floor(scaled);
+        double frac = scaled - floor;
+        if (Math.abs(frac - 0.5) <= TIE_MARGIN * scaled + TIE_MARGIN) {
+            return -1;
+        }
+        long rounded = (long) floor;
+        if (frac > 0.5) {
+            rounded++;
+        }
+
+        long intPart = rounded / scale;
+        long fracPart = rounded % scale;
+        int nrFracDigits = nrDecimals;
+        while ((nrFracDigits > 0) && (fracPart % 10 == 0)) {
+            fracPart /= 10;
+            nrFracDigits--;
+        }
+
+        // Count the number of characters
+        int len = negative ? 1 : 0;
+        long tmp = intPart;
+        do {
+            len++;
+            tmp /= 10;
+        } while (tmp > 0);
+        if (nrFracDigits > 0) {
+            len += 1 + nrFracDigits;
+        }
+
+        // Write the characters from back to front
+        int pos = len;
+        for (int i = 0; i < nrFracDigits; i++) {
+            buffer[--pos] = (char) ('0' + (fracPart % 10));
+            fracPart /= 10;
+        }
+        if (nrFracDigits > 0) {
+            buffer[--pos] = '.';
+        }
+        do {
+            buffer[--pos] = (char) ('0' + (intPart % 10));
+            intPart /= 10;
+        } while (intPart > 0);
+        if (negative) {
+            buffer[--pos] = '-';
+        }
+
+        return len;
+    }
+}
@@ -23,6 +23,7 @@ import org.junit.runners.Suite;
 
 import net.sf.eps2pgf.testsuite.figures.AllFigures;
 import net.sf.eps2pgf.testsuite.pstests.AllPSTests;
+import net.sf.eps2pgf.testsuite.unittests.AllUnitTests;
 
 /**
  * Test suite for all synthetic PostScript tests.
@@ -30,6 +31,7 @@ import net.sf.eps2pgf.testsuite.pstests.AllPSTests;
 @RunWith(Suite.class)
 @Suite.SuiteClasses({
     AllPSTests.class,
+    AllUnitTests.class,
     AllFigures.class
 })
 
@@ -0,0 +1,126 @@
+/*
+ * This file is part of Eps2pgf.
+ *
+ * Copyright 2007-2009 Paul Wagenaars
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sf.eps2pgf.testsuite.benchmarks;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Locale;
+import java.util.Random;
+
+import net.sf.eps2pgf.io.ChannelWriter;
+
+/**
+ * Compares the throughput of ChannelWriter with a BufferedWriter around an
+ * OutputStreamWriter, for lines like the path commands in the output. Both
+ * write the same lines to a temporary file.
+ *
+ * Usage: ChannelWriterBenchmark [nrLines [nrRounds]]
+ */
+public final class ChannelWriterBenchmark {
+    
+    /** Number of different lines, which are written repeatedly. */
+    private static final int NR_DIFFERENT_LINES = 4096;
+    
+    /**
+     * "Hidden" constructor.
+     */
+    private ChannelWriterBenchmark() {
+        /* empty block */
+    }
+    
+    /**
+     * Runs the benchmark.
+     * 
+     * @param args Number of lines and number of rounds.
+     * 
+     * @throws IOException Unable to write the temporary file.
+     */
+    public static void main(final String[] args) throws IOException {
+        int nrLines = 5000000;
+        int nrRounds = 5;
+        if (args.length > 0) {
+            nrLines = Integer.parseInt(args[0]);
+        }
+        if (args.length > 1) {
+            nrRounds = Integer.parseInt(args[1]);
+        }
+        
+        Random random = new Random(1);
+        String[] lines = new String[NR_DIFFERENT_LINES];
+        long nrBytes = 0;
+        for (int i = 0; i < lines.length; i++) {
+            lines[i] = String.format(Locale.US,
+                    "\\pgfpathlineto{\\pgfqpoint{%.3fcm}{%.3fcm}}\n",
+                    random.nextDouble() * 20.0, random.nextDouble() * 20.0);
+        }
+        for (int i = 0; i < nrLines; i++) {
+            nrBytes += lines[i % lines.length].length();
+        }
+        
+        File file = File.createTempFile("eps2pgf", ".bench");
+        file.deleteOnExit();
+        try {
+            for (int round = 0; round < nrRounds; round++) {
+                FileOutputStream stream = new FileOutputStream(file);
+                long start = System.nanoTime();
+                Writer reference = new BufferedWriter(
+                        new OutputStreamWriter(stream));
+                writeLines(reference, lines, nrLines);
+                reference.close();
+                long referenceTime = System.nanoTime() - start;
+                
+                stream = new FileOutputStream(file);
+                start = System.nanoTime();
+                Writer writer = new ChannelWriter(stream.getChannel(),
+                        ChannelWriter.DEFAULT_BUFFER_SIZE);
+                writeLines(writer, lines, nrLines);
+                writer.close();
+                long channelTime = System.nanoTime() - start;
+                
+                System.out.println(String.format(Locale.US, "round %d:"
+                        + " BufferedWriter %.0f MB/s, ChannelWriter %.0f MB/s"
+                        + " (%.2fx)", round + 1,
+                        nrBytes * 1000.0 / referenceTime,
+                        nrBytes * 1000.0 / channelTime,
+                        (double) referenceTime / channelTime));
+            }
+        } finally {
+            file.delete();
+        }
+    }
+    
+    /**
+     * Writes lines.
+     * 
+     * @param writer The lines are written to this writer.
+     * @param lines The lines, which are written repeatedly.
+     * @param nrLines Number of lines to write.
+     * 
+     * @throws IOException Unable to write.
+     */
+    private static void writeLines(final Writer writer, final String[] lines,
+            final int nrLines) throws IOException {
+        for (int i = 0; i < nrLines; i++) {
+            writer.write(lines[i % lines.length]);
+        }
+    }
+}
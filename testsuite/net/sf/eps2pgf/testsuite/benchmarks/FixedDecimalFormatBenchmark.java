@@ -0,0 +1,155 @@
+/*
+ * This file is part of Eps2pgf.
+ *
+ * Copyright 2007-2009 Paul Wagenaars
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sf.eps2pgf.testsuite.benchmarks;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.text.DecimalFormat;
+import java.text.DecimalFormatSymbols;
+import java.util.Locale;
+import java.util.Random;
+
+import net.sf.eps2pgf.util.FixedDecimalFormat;
+
+/**
+ * Compares the speed of FixedDecimalFormat with DecimalFormat, for values
+ * like the path coordinates in the output.
+ *
+ * Usage: FixedDecimalFormatBenchmark [nrValues [nrRounds]]
+ */
+public final class FixedDecimalFormatBenchmark {
+    
+    /** Number of decimals, as used for coordinates in the output. */
+    private static final int NR_DECIMALS = 3;
+    
+    /**
+     * "Hidden" constructor.
+     */
+    private FixedDecimalFormatBenchmark() {
+        /* empty block */
+    }
+    
+    /**
+     * Runs the benchmark.
+     * 
+     * @param args Number of values and number of rounds.
+     * 
+     * @throws IOException This shouldn't happen.
+     */
+    public static void main(final String[] args) throws IOException {
+        int nrValues = 1000000;
+        int nrRounds = 10;
+        if (args.length > 0) {
+            nrValues = Integer.parseInt(args[0]);
+        }
+        if (args.length > 1) {
+            nrRounds = Integer.parseInt(args[1]);
+        }
+        
+        // Coordinates in millimeters, with a few digits more than needed.
+        Random random = new Random(1);
+        double[] values = new double[nrValues];
+        for (int i = 0; i < nrValues; i++) {
+            values[i] = (random.nextDouble() - 0.2) * 300.0;
+        }
+        
+        DecimalFormat reference = new DecimalFormat("#.###",
+                new DecimalFormatSymbols(Locale.US));
+        FixedDecimalFormat format = new FixedDecimalFormat(NR_DECIMALS);
+        CountingWriter out = new CountingWriter();
+        for (int round = 0; round < nrRounds; round++) {
+            long start = System.nanoTime();
+            for (double value : values) {
+                out.write(reference.format(value));
+            }
+            long referenceTime = System.nanoTime() - start;
+            
+            start = System.nanoTime();
+            for (double value : values) {
+                format.write(out, value);
+            }
+            long fixedTime = System.nanoTime() - start;
+            
+            System.out.println(String.format(Locale.US, "round %d:"
+                    + " DecimalFormat %.1f ns, FixedDecimalFormat %.1f ns"
+                    + " per value (%.1fx)", round + 1,
+                    (double) referenceTime / nrValues,
+                    (double) fixedTime / nrValues,
+                    (double) referenceTime / fixedTime));
+        }
+        
+        // Use the result, such that the formatting can't be optimized away.
+        System.out.println(out.getCount() + " characters written");
+    }
+    
+    /**
+     * Writer that only counts the characters.
+     */
+    private static class CountingWriter extends Writer {
+        /** Number of characters written. */
+        private long count = 0;
+        
+        /**
+         * Counts characters.
+         * 
+         * @param cbuf The characters.
+         * @param off Index of the first character.
+         * @param len Number of characters.
+         */
+        @Override
+        public void write(final char[] cbuf, final int off, final int len) {
+            count += len;
+        }
+        
+        /**
+         * Counts the characters of a string.
+         * 
+         * @param str The string.
+         */
+        @Override
+        public void write(final String str) {
+            count += str.length();
+        }
+        
+        /**
+         * Does nothing.
+         */
+        @Override
+        public void flush() {
+            /* empty block */
+        }
+        
+        /**
+         * Does nothing.
+         */
+        @Override
+        public void close() {
+            /* empty block */
+        }
+        
+        /**
+         * Gets the number of characters written.
+         * 
+         * @return The number of characters.
+         */
+        public long getCount() {
+            return count;
+        }
+    }
+}
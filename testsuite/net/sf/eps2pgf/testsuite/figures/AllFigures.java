@@ -209,4 +209,129 @@ public final class AllFigures {
         assertTrue(Common.testFigure(conv, "quartz1.eps"));
     }
 
+    /** Test. @throws Exception the exception */
+    @Test
+    public void creohnSheepInGrayMergePaths() throws Exception {
+        conv.getOpts().setMergePathsEnabled(true);
+        assertTrue(Common.testFigure(conv, "creohn_Sheep_in_gray.eps"));
+    }
+
+    /** Test. @throws Exception the exception */
+    @Test
+    public void matlabBitmap1MergePaths() throws Exception {
+        conv.getOpts().setMergePathsEnabled(true);
+        assertTrue(Common.testFigure(conv, "matlab_bitmap1.eps"));
+    }
+
+    /** Test. @throws Exception the exception */
+    @Test
+    public void matplotlib1MergePaths() throws Exception {
+        conv.getOpts().setMergePathsEnabled(true);
+        assertTrue(Common.testFigure(conv, "matplotlib1.eps"));
+    }
+
+    /** Test. @throws Exception the exception */
+    @Test
+    public void rproject1MergePaths() throws Exception {
+        conv.getOpts().setMergePathsEnabled(true);
+        assertTrue(Common.testFigure(conv, "rproject1.eps"));
+    }
+
+    /** Test. @throws Exception the exception */
+    @Test
+    public void rproject1PathMacros() throws Exception {
+        conv.getOpts().setPathMacroSize(2);
+        assertTrue(Common.testFigure(conv, "rproject1.eps"));
+    }
+
+    /** Test. @throws Exception the exception */
+    @Test
+    public void growPathMacros() throws Exception {
+        conv.getOpts().setPathMacroSize(2);
+        assertTrue(Common.testFigure(conv, "grow.ps"));
+    }
+
+    /** Test. @throws Exception the exception */
+    @Test
+    public void alphabetTikz() throws Exception {
+        Options opts = conv.getOpts();
+        opts.setOutputType(Options.OutputType.TIKZ);
+        assertTrue(Common.testFigure(conv, "alphabet.ps"));
+    }
+
+    /** Test. @throws Exception the exception */
+    @Test
+    public void coreldrawGraphic1Tikz() throws Exception {
+        Options opts = conv.getOpts();
+        opts.setOutputType(Options.OutputType.TIKZ);
+        opts.setTextmode(Options.TextMode.DIRECT_COPY);
+        assertTrue(Common.testFigure(conv, "coreldraw_Graphic1.eps"));
+    }
+
+    /** Test. @throws Exception the exception */
+    @Test
+    public void creohnSheepInGrayTikz() throws Exception {
+        Options opts = conv.getOpts();
+        opts.setOutputType(Options.OutputType.TIKZ);
+        assertTrue(Common.testFigure(conv, "creohn_Sheep_in_gray.eps"));
+    }
+
+    /** Test. @throws Exception the exception */
+    @Test
+    public void fig2dev1Tikz() throws Exception {
+        Options opts = conv.getOpts();
+        opts.setOutputType(Options.OutputType.TIKZ);
+        assertTrue(Common.testFigure(conv, "fig2dev1.eps"));
+    }
+
+    /** Test. @throws Exception the exception */
+    @Test
+    public void golferTikz() throws Exception {
+        Options opts = conv.getOpts();
+        opts.setOutputType(Options.OutputType.TIKZ);
+        assertTrue(Common.testFigure(conv, "golfer.ps"));
+    }
+
+    /** Test. @throws Exception the exception */
+    @Test
+    public void mathPSfragExAutoPsfragTikz() throws Exception {
+        Options opts = conv.getOpts();
+        opts.setOutputType(Options.OutputType.TIKZ);
+        opts.setTextreplacefile(new File("%figureDir%",
+                "MathPSfrag_ex_auto-psfrag.tex"));
+        assertTrue(Common.testFigure(conv, "MathPSfrag_ex_auto-psfrag.eps"));
+    }
+
+    /** Test. @throws Exception the exception */
+    @Test
+    public void matlabBitmap1Tikz() throws Exception {
+        Options opts = conv.getOpts();
+        opts.setOutputType(Options.OutputType.TIKZ);
+        assertTrue(Common.testFigure(conv, "matlab_bitmap1.eps"));
+    }
+
+    /** Test. @throws Exception the exception */
+    @Test
+    public void matplotlib1Tikz() throws Exception {
+        Options opts = conv.getOpts();
+        opts.setOutputType(Options.OutputType.TIKZ);
+        assertTrue(Common.testFigure(conv, "matplotlib1.eps"));
+    }
+
+    /** Test. @throws Exception the exception */
+    @Test
+    public void rproject1Tikz() throws Exception {
+        Options opts = conv.getOpts();
+        opts.setOutputType(Options.OutputType.TIKZ);
+        assertTrue(Common.testFigure(conv, "rproject1.eps"));
+    }
+
+    /** Test. @throws Exception the exception */
+    @Test
+    public void tigerTikz() throws Exception {
+        Options opts = conv.getOpts();
+        opts.setOutputType(Options.OutputType.TIKZ);
+        assertTrue(Common.testFigure(conv, "tiger.eps"));
+    }
+
 }
@@ -341,6 +341,62 @@ public final class Common {
         return (maxDiff == 0);
     }
     
+    /**
+     * Gets the working directory, in which the output is written.
+     * 
+     * @return The working directory.
+     * 
+     * @throws FileNotFoundException Unable to find or create the directory.
+     */
+    public static File getWorkDir() throws FileNotFoundException {
+        if (workDir == null) {
+            workDir = findAndCreateWorkDir();
+        }
+        return workDir;
+    }
+    
+    /**
+     * Convert a single PostScript figure, without compiling or comparing the
+     * result. The output is written to the working directory.
+     * 
+     * @param conv Converter that will be used to convert the figure.
+     * @param figureFilename Filename of the figure to convert.
+     * @param extension Extension of the output file, e.g. ".svg".
+     * 
+     * @return The output file.
+     * 
+     * @throws Exception the exception
+     */
+    public static File convertFigure(final Converter conv,
+            final String figureFilename, final String extension)
+            throws Exception {
+        
+        if (figureDir == null) {
+            figureDir = findFigureDir();
+        }
+        if (workDir == null) {
+            workDir = findAndCreateWorkDir();
+        }
+        
+        File inputFile = new File(figureDir, figureFilename);
+        if (!inputFile.exists()) {
+            throw new FileNotFoundException("Unable to find figure ("
+                    + inputFile + ").");
+        }
+        
+        int index = figureFilename.lastIndexOf('.');
+        String baseFilename;
+        if (index > 0) {
+            baseFilename = figureFilename.substring(0, index);
+        } else {
+            baseFilename = figureFilename;
+        }
+        
+        File outputFile = new File(workDir, baseFilename + extension);
+        convertEps2pgf(conv, inputFile, outputFile);
+        return outputFile;
+    }
+    
     /**
      * Convert a PostScript figure to pgf.
      * 
@@ -0,0 +1,266 @@
+/*
+ * This file is part of Eps2pgf.
+ *
+ * Copyright 2007-2009 Paul Wagenaars
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sf.eps2pgf.testsuite.figures;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import net.sf.eps2pgf.Converter;
+import net.sf.eps2pgf.Options;
+import net.sf.eps2pgf.ps.errors.PSErrorIOError;
+
+/**
+ * Stores the display lists of test figures, renders them again and compares
+ * the result with a direct conversion. These tests don't need LaTeX or
+ * Ghostscript.
+ */
+public final class DisplayListFigures {
+    
+    /** Figures that are converted to PGF and TikZ. */
+    private static final String[] PGF_FIGURES = {"alphabet.ps",
+        "creohn_Sheep_in_gray.eps", "golfer.ps", "matlab_bitmap1.eps",
+        "MathPSfrag_ex_auto-psfrag.eps", "tiger.eps"};
+    
+    /** Figures that are converted to SVG. */
+    private static final String[] SVG_FIGURES = {"alphabet.ps",
+        "creohn_Sheep_in_gray.eps", "matlab_bitmap1.eps"};
+    
+    /**
+     * Sets up the class.
+     * 
+     * @throws Exception the exception
+     */
+    @BeforeClass
+    public static void setUpClass() throws Exception {
+        Logger.getLogger("net.sourceforge.eps2pgf").setLevel(Level.OFF);
+    }
+    
+    /** Test. @throws Exception the exception */
+    @Test
+    public void pgfAndTikz() throws Exception {
+        for (String figure : PGF_FIGURES) {
+            File listFile = listFile(figure);
+            try {
+                String direct = convert(figure, Options.OutputType.PGF, null);
+                String saved = convert(figure, Options.OutputType.PGF,
+                        listFile);
+                assertEquals(figure, direct, saved);
+                assertEquals(figure, direct,
+                        replay(listFile, Options.OutputType.PGF));
+                assertEquals(figure,
+                        convert(figure, Options.OutputType.TIKZ, null),
+                        replay(listFile, Options.OutputType.TIKZ));
+            } finally {
+                deleteFiles(figure);
+            }
+        }
+    }
+    
+    /** Test. @throws Exception the exception */
+    @Test
+    public void svg() throws Exception {
+        for (String figure : SVG_FIGURES) {
+            File listFile = listFile(figure);
+            try {
+                String direct = convert(figure, Options.OutputType.SVG, null);
+                String saved = convert(figure, Options.OutputType.SVG,
+                        listFile);
+                assertEquals(figure, direct, saved);
+                
+                // The image files are kept, so it can be rendered twice.
+                assertEquals(figure, direct,
+                        replay(listFile, Options.OutputType.SVG));
+                assertEquals(figure, direct,
+                        replay(listFile, Options.OutputType.SVG));
+            } finally {
+                deleteFiles(figure);
+            }
+        }
+    }
+    
+    /** Test. @throws Exception the exception */
+    @Test(expected = PSErrorIOError.class)
+    public void pgfToSvg() throws Exception {
+        File listFile = listFile("golfer.ps");
+        try {
+            convert("golfer.ps", Options.OutputType.PGF, listFile);
+            replay(listFile, Options.OutputType.SVG);
+        } finally {
+            deleteFiles("golfer.ps");
+        }
+    }
+    
+    /** Test. @throws Exception the exception */
+    @Test(expected = PSErrorIOError.class)
+    public void svgToTikz() throws Exception {
+        File listFile = listFile("golfer.ps");
+        try {
+            convert("golfer.ps", Options.OutputType.SVG, listFile);
+            replay(listFile, Options.OutputType.TIKZ);
+        } finally {
+            deleteFiles("golfer.ps");
+        }
+    }
+    
+    /**
+     * Gets the display list file of a figure.
+     * 
+     * @param figure Filename of the figure.
+     * 
+     * @return The display list file, in the working directory.
+     * 
+     * @throws Exception the exception
+     */
+    private static File listFile(final String figure) throws Exception {
+        return new File(Common.getWorkDir(), baseName(figure) + ".dl");
+    }
+    
+    /**
+     * Deletes the display list, image and output files of a figure from the
+     * working directory.
+     * 
+     * @param figure Filename of the figure.
+     * 
+     * @throws Exception the exception
+     */
+    private static void deleteFiles(final String figure) throws Exception {
+        String base = baseName(figure);
+        for (File file : Common.getWorkDir().listFiles()) {
+            String name = file.getName();
+            if (name.startsWith(base + ".")
+                    || name.startsWith(base + "-image")) {
+                assertTrue(file.delete());
+            }
+        }
+    }
+    
+    /**
+     * Converts a figure.
+     * 
+     * @param figure Filename of the figure.
+     * @param type The output type.
+     * @param listFile The display list is stored in this file. If it is
+     * null, the display list is not stored.
+     * 
+     * @return The output, without the line that contains the date.
+     * 
+     * @throws Exception the exception
+     */
+    private static String convert(final String figure,
+            final Options.OutputType type, final File listFile)
+            throws Exception {
+        Options opts = new Options();
+        opts.parse(new String[0]);
+        opts.setOutputType(type);
+        opts.setDisplayListFile(listFile);
+        File outputFile = Common.convertFigure(new Converter(opts), figure,
+                extension(type));
+        return readAndDelete(outputFile);
+    }
+    
+    /**
+     * Renders a stored display list. The output file has the same name as
+     * that of the conversion that stored the display list, such that the
+     * same image files are referenced.
+     * 
+     * @param listFile The display list file.
+     * @param type The output type.
+     * 
+     * @return The output, without the line that contains the date.
+     * 
+     * @throws Exception the exception
+     */
+    private static String replay(final File listFile,
+            final Options.OutputType type) throws Exception {
+        Options opts = new Options();
+        opts.parse(new String[0]);
+        opts.setOutputType(type);
+        opts.setInputFile(listFile);
+        File outputFile = new File(listFile.getParentFile(),
+                baseName(listFile.getName()) + extension(type));
+        opts.setOutputFile(outputFile);
+        new Converter(opts).convert();
+        return readAndDelete(outputFile);
+    }
+    
+    /**
+     * Gets the extension of output files.
+     * 
+     * @param type The output type.
+     * 
+     * @return The extension, including the dot.
+     */
+    private static String extension(final Options.OutputType type) {
+        return "." + type.toString().toLowerCase();
+    }
+    
+    /**
+     * Removes the extension from a filename.
+     * 
+     * @param filename The filename.
+     * 
+     * @return The filename without extension.
+     */
+    private static String baseName(final String filename) {
+        int index = filename.lastIndexOf('.');
+        if (index > 0) {
+            return filename.substring(0, index);
+        }
+        return filename;
+    }
+    
+    /**
+     * Reads an output file and deletes it. The line with the creation date
+     * is skipped.
+     * 
+     * @param file The output file.
+     * 
+     * @return The contents of the file.
+     * 
+     * @throws IOException Unable to read or delete the file.
+     */
+    private static String readAndDelete(final File file) throws IOException {
+        StringBuilder str = new StringBuilder();
+        BufferedReader reader = new BufferedReader(new FileReader(file));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.contains("Created by Eps2pgf")) {
+                    str.append(line).append('\n');
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        if (!file.delete()) {
+            throw new IOException("Unable to delete output file (" + file
+                    + ").");
+        }
+        return str.toString();
+    }
+}
@@ -0,0 +1,315 @@
+/*
+ * This file is part of Eps2pgf.
+ *
+ * Copyright 2007-2009 Paul Wagenaars
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sf.eps2pgf.testsuite.figures;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.imageio.ImageIO;
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+import net.sf.eps2pgf.Converter;
+import net.sf.eps2pgf.Options;
+
+/**
+ * Converts the test figures to SVG and checks the resulting XML. Unlike
+ * AllFigures, these tests don't need LaTeX or Ghostscript.
+ */
+public final class SvgFigures {
+    
+    /** SVG namespace. */
+    private static final String SVG_NS = "http://www.w3.org/2000/svg";
+    
+    /** XLink namespace. */
+    private static final String XLINK_NS = "http://www.w3.org/1999/xlink";
+    
+    /** Prefix of embedded PNG images. */
+    private static final String PNG_DATA = "data:image/png;base64,";
+    
+    /** Local reference in an attribute value, e.g. url(#clip1). */
+    private static final Pattern URL_REF = Pattern.compile("url\\(#([^)]*)\\)");
+    
+    /** Base64 alphabet. */
+    private static final String BASE64 = "ABCDEFGHIJKLMNOPQRSTUVWXYZ"
+            + "abcdefghijklmnopqrstuvwxyz0123456789+/";
+    
+    /** All test figures. */
+    private static final String[] FIGURES = {"alphabet.ps",
+        "autocad_columbia.ps", "autocad_nozzle.ps", "CIEBased.eps",
+        "colorcir.ps", "coreldraw_Graphic1.eps", "creohn_Sheep_in_gray.eps",
+        "dvips1.ps", "fig2dev1.eps", "golfer.ps", "grow.ps",
+        "illustrator_vw.ps", "ipe-figure1.eps", "maple_cubic.eps",
+        "mathematica2.eps", "MathPSfrag_ex_auto-psfrag.eps",
+        "matlab_bitmap1.eps", "matplotlib1.eps", "quartz1.eps",
+        "rect_test.eps", "rproject1.eps", "showtext_mathematica1.ps",
+        "tiger.eps"};
+    
+    /** The PostScript interpreter. */
+    private Converter conv;
+    
+    /**
+     * Sets up the class.
+     * 
+     * @throws Exception the exception
+     */
+    @BeforeClass
+    public static void setUpClass() throws Exception {
+        Logger.getLogger("net.sourceforge.eps2pgf").setLevel(Level.OFF);
+    }
+    
+    /**
+     * Set up a single test.
+     * 
+     * @throws Exception An exception occurred.
+     */
+    @Before
+    public void setUp() throws Exception {
+        conv = createConverter();
+    }
+    
+    /** Test. @throws Exception the exception */
+    @Test
+    public void allFigures() throws Exception {
+        for (String figure : FIGURES) {
+            Document doc = convert(createConverter(), figure);
+            Element root = doc.getDocumentElement();
+            assertEquals(figure, SVG_NS, root.getNamespaceURI());
+            assertEquals(figure, "svg", root.getLocalName());
+            assertReferencesResolve(figure, doc);
+        }
+    }
+    
+    /** Test. @throws Exception the exception */
+    @Test
+    public void alphabetText() throws Exception {
+        Document doc = convert(conv, "alphabet.ps");
+        NodeList texts = doc.getElementsByTagNameNS(SVG_NS, "text");
+        assertTrue(texts.getLength() > 0);
+        boolean found = false;
+        for (int i = 0; i < texts.getLength(); i++) {
+            String content = texts.item(i).getTextContent();
+            if (content.equals("ABCDEFGHIJKLMNOPQRSTUVWXYZ")) {
+                found = true;
+            }
+        }
+        assertTrue(found);
+    }
+    
+    /** Test. @throws Exception the exception */
+    @Test
+    public void golferClipPath() throws Exception {
+        Document doc = convert(conv, "golfer.ps");
+        NodeList clipPaths = doc.getElementsByTagNameNS(SVG_NS, "clipPath");
+        assertTrue(clipPaths.getLength() > 0);
+        for (int i = 0; i < clipPaths.getLength(); i++) {
+            Element clipPath = (Element) clipPaths.item(i);
+            assertTrue(clipPath.getAttribute("id").length() > 0);
+            assertTrue(clipPath.getElementsByTagNameNS(SVG_NS, "path")
+                    .getLength() > 0);
+        }
+        assertTrue(countReferencing(doc, "clip-path", clipPaths) > 0);
+    }
+    
+    /** Test. @throws Exception the exception */
+    @Test
+    public void creohnSheepInGrayRadialGradient() throws Exception {
+        Document doc = convert(conv, "creohn_Sheep_in_gray.eps");
+        NodeList gradients = doc.getElementsByTagNameNS(SVG_NS,
+                "radialGradient");
+        assertTrue(gradients.getLength() > 0);
+        for (int i = 0; i < gradients.getLength(); i++) {
+            Element gradient = (Element) gradients.item(i);
+            assertTrue(Double.parseDouble(gradient.getAttribute("r")) > 0);
+            assertTrue(gradient.getElementsByTagNameNS(SVG_NS, "stop")
+                    .getLength() >= 2);
+        }
+        assertTrue(countReferencing(doc, "fill", gradients) > 0);
+    }
+    
+    /** Test. @throws Exception the exception */
+    @Test
+    public void matlabBitmap1Image() throws Exception {
+        Document doc = convert(conv, "matlab_bitmap1.eps");
+        NodeList images = doc.getElementsByTagNameNS(SVG_NS, "image");
+        assertTrue(images.getLength() > 0);
+        for (int i = 0; i < images.getLength(); i++) {
+            Element image = (Element) images.item(i);
+            String href = image.getAttributeNS(XLINK_NS, "href");
+            assertTrue(href.startsWith(PNG_DATA));
+            byte[] png = decodeBase64(href.substring(PNG_DATA.length()));
+            BufferedImage img = ImageIO.read(new ByteArrayInputStream(png));
+            assertTrue(img.getWidth() > 0);
+            assertTrue(img.getHeight() > 0);
+        }
+    }
+    
+    /**
+     * Creates a converter with default options and SVG output.
+     * 
+     * @return The converter.
+     * 
+     * @throws Exception the exception
+     */
+    private static Converter createConverter() throws Exception {
+        Options opts = new Options();
+        opts.parse(new String[0]);
+        opts.setOutputType(Options.OutputType.SVG);
+        return new Converter(opts);
+    }
+    
+    /**
+     * Converts a figure to SVG and parses it. Parsing fails if the output is
+     * not well-formed XML.
+     * 
+     * @param pConv The converter.
+     * @param figure Filename of the figure.
+     * 
+     * @return The parsed SVG document.
+     * 
+     * @throws Exception the exception
+     */
+    private static Document convert(final Converter pConv,
+            final String figure) throws Exception {
+        File svgFile = Common.convertFigure(pConv, figure, ".svg");
+        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        factory.setNamespaceAware(true);
+        Document doc = factory.newDocumentBuilder().parse(svgFile);
+        assertTrue(svgFile.delete());
+        return doc;
+    }
+    
+    /**
+     * Checks that all local url(#...) references in a document point to an
+     * element that exists.
+     * 
+     * @param figure Filename of the figure, used in failure messages.
+     * @param doc The document.
+     */
+    private static void assertReferencesResolve(final String figure,
+            final Document doc) {
+        Set<String> ids = new HashSet<String>();
+        Set<String> refs = new HashSet<String>();
+        collect(doc.getDocumentElement(), ids, refs);
+        for (String ref : refs) {
+            assertTrue(figure + ": #" + ref, ids.contains(ref));
+        }
+    }
+    
+    /**
+     * Collects the ids and local references of an element and all its
+     * descendants.
+     * 
+     * @param element The element.
+     * @param ids The ids are added to this set.
+     * @param refs The referenced ids are added to this set.
+     */
+    private static void collect(final Element element, final Set<String> ids,
+            final Set<String> refs) {
+        NamedNodeMap attrs = element.getAttributes();
+        for (int i = 0; i < attrs.getLength(); i++) {
+            Node attr = attrs.item(i);
+            if ("id".equals(attr.getLocalName())) {
+                ids.add(attr.getNodeValue());
+            }
+            Matcher matcher = URL_REF.matcher(attr.getNodeValue());
+            while (matcher.find()) {
+                refs.add(matcher.group(1));
+            }
+        }
+        NodeList children = element.getChildNodes();
+        for (int i = 0; i < children.getLength(); i++) {
+            if (children.item(i) instanceof Element) {
+                collect((Element) children.item(i), ids, refs);
+            }
+        }
+    }
+    
+    /**
+     * Counts the elements of which an attribute references one of the given
+     * elements.
+     * 
+     * @param doc The document.
+     * @param attrName Name of the attribute, e.g. "fill".
+     * @param targets The referenced elements.
+     * 
+     * @return The number of referencing elements.
+     */
+    private static int countReferencing(final Document doc,
+            final String attrName, final NodeList targets) {
+        Set<String> ids = new HashSet<String>();
+        for (int i = 0; i < targets.getLength(); i++) {
+            ids.add(((Element) targets.item(i)).getAttribute("id"));
+        }
+        int count = 0;
+        NodeList all = doc.getElementsByTagNameNS(SVG_NS, "*");
+        for (int i = 0; i < all.getLength(); i++) {
+            Matcher matcher = URL_REF.matcher(
+                    ((Element) all.item(i)).getAttribute(attrName));
+            if (matcher.matches() && ids.contains(matcher.group(1))) {
+                count++;
+            }
+        }
+        return count;
+    }
+    
+    /**
+     * Decodes base64 data. Whitespace and padding are skipped.
+     * 
+     * @param data The base64 encoded data.
+     * 
+     * @return The decoded bytes.
+     */
+    private static byte[] decodeBase64(final String data) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int bits = 0;
+        int nrBits = 0;
+        for (int i = 0; i < data.length(); i++) {
+            int value = BASE64.indexOf(data.charAt(i));
+            if (value < 0) {
+                continue;
+            }
+            bits = (bits << 6) | value;
+            nrBits += 6;
+            if (nrBits >= 8) {
+                nrBits -= 8;
+                out.write((bits >> nrBits) & 0xFF);
+            }
+        }
+        return out.toByteArray();
+    }
+}
@@ -41,6 +41,7 @@ import org.junit.runners.Suite;
     GraphicsPSTest.class,
     OutputPSTest.class,
     FilePSTest.class,
+    ImagePSTest.class,
     ResourcePSTest.class,
     VirtualMemoryPSTest.class
 })
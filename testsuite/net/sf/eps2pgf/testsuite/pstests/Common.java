@@ -18,6 +18,8 @@
 
 package net.sf.eps2pgf.testsuite.pstests;
 
+import java.io.InputStream;
+
 import net.sf.eps2pgf.ProgramError;
 import net.sf.eps2pgf.io.StringInputStream;
 import net.sf.eps2pgf.ps.Interpreter;
@@ -57,8 +59,27 @@ public final class Common {
             final String postscriptCommands, final int nrStackObj)
             throws Exception {
         
-        PSObjectFile cmds =
-            new PSObjectFile(new StringInputStream(postscriptCommands), interp);
+        return testStream(interp, new StringInputStream(postscriptCommands),
+                nrStackObj);
+    }
+    
+    /**
+     * Test some PostScript commands that are read from a stream.
+     * 
+     * @param interp The interpreter in which the commands are tested.
+     * @param in The postscript commands are read from this stream.
+     * @param nrStackObj The number of object that should be on the operand
+     * stack after running.
+     * 
+     * @return True, if all booleans where true. False, if there were no
+     * booleans, or if at least one of the booleans was false.
+     * 
+     * @throws Exception the exception
+     */
+    public static boolean testStream(final Interpreter interp,
+            final InputStream in, final int nrStackObj) throws Exception {
+        
+        PSObjectFile cmds = new PSObjectFile(in, interp);
 
         PSObjectArray he = new PSObjectArray("{errordict /handleerror"
                 + " {/errorhandled true def eps2pgfhandleerror} put}", interp);
@@ -18,6 +18,11 @@
 
 package net.sf.eps2pgf.testsuite.pstests;
 
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -27,7 +32,10 @@ import org.junit.Test;
 
 import static org.junit.Assert.assertTrue;
 
+import net.sf.eps2pgf.io.LimitedSectionInputStream;
+import net.sf.eps2pgf.io.StringInputStream;
 import net.sf.eps2pgf.ps.Interpreter;
+import net.sf.eps2pgf.ps.resources.filters.ASCII85Encode;
 
 /**
  * This class contains some test to test the PostScript parser.
@@ -184,6 +192,277 @@ public class FilePSTest {
         assertTrue(Common.testString(interp, cmd, 6));
     }
     
-
+    /** Test. @throws Exception the exception. */
+    @Test
+    public void subFileDecodeEod1() throws Exception {
+        String cmd = "currentfile 0 (EOD) /SubFileDecode filter dup 99 string"
+            + " readstring abcEOD false eq exch (abc) eq"
+            + " 3 -1 roll 99 string readstring false eq exch () eq";
+        assertTrue(Common.testString(interp, cmd, 4));
+    }
+    
+    /** Test. @throws Exception the exception. */
+    @Test
+    public void subFileDecodeEod2() throws Exception {
+        String cmd = "currentfile 2 (X) /SubFileDecode filter dup 99 string"
+            + " readstring aXbX false eq exch (aXbX) eq"
+            + " 3 -1 roll 99 string readstring false eq exch () eq";
+        assertTrue(Common.testString(interp, cmd, 4));
+    }
+    
+    /** Test. @throws Exception the exception. */
+    @Test
+    public void limitedSection1() throws Exception {
+        String cmd = "{currentfile 10 string readstring exch (abc) eq exch not}"
+            + " exec\nabc";
+        String data = "%junk%" + cmd + "XYZXYZXYZXYZ";
+        InputStream in = new LimitedSectionInputStream(
+                new OneByteInputStream(new StringInputStream(data)), 6,
+                cmd.length());
+        assertTrue(Common.testStream(interp, in, 2));
+    }
+    
+    /** Test. @throws Exception the exception. */
+    @Test
+    public void limitedSection2() throws Exception {
+        String cmd = "currentfile 8 string readline\nline one\n"
+            + "exch (line one) eq\n"
+            + "{currentfile 99 string readstring exch (tail) eq exch not}"
+            + " exec\ntail";
+        String data = "%!PS-Adobe-3.0 EPSF-3.0\n" + cmd + "\nnot read";
+        InputStream in = new LimitedSectionInputStream(
+                new OneByteInputStream(new StringInputStream(data)), 24,
+                cmd.length());
+        assertTrue(Common.testStream(interp, in, 4));
+    }
+    
+    /** Test. @throws Exception the exception. */
+    @Test
+    public void imageReadHexString1() throws Exception {
+        // The string length doesn't divide the row length (10 bytes), the
+        // last string is only partly used by the image.
+        String cmd = imageCmd("{currentfile str readhexstring pop}", 7, true)
+            + imageCmd("{currentfile str readhexstring pop}", 4, true)
+            + imageCmd("{currentfile str readhexstring pop}", 30, true);
+        assertTrue(Common.testString(interp, cmd, 3));
+    }
+    
+    /** Test. @throws Exception the exception. */
+    @Test
+    public void imageReadHexString2() throws Exception {
+        // Same as imageReadHexString1, but with procedures that are not the
+        // currentfile/readhexstring idiom.
+        String cmd = imageCmd("{currentfile str readhexstring pop dup pop}", 7,
+                true)
+            + imageCmd("{currentfile str readhexstring pop dup pop}", 4, true)
+            + imageCmd("{currentfile str readhexstring pop dup pop}", 30,
+                    true);
+        assertTrue(Common.testString(interp, cmd, 3));
+    }
     
+    /** Test. @throws Exception the exception. */
+    @Test
+    public void imageReadString1() throws Exception {
+        String cmd = imageCmd("{currentfile str readstring pop}", 7, false)
+            + imageCmd("{currentfile str readstring pop}", 4, false)
+            + imageCmd("{currentfile str readstring pop dup pop}", 7, false)
+            + imageCmd("{currentfile str readstring pop dup pop}", 4, false);
+        assertTrue(Common.testString(interp, cmd, 4));
+    }
+    
+    /** Test. @throws Exception the exception. */
+    @Test
+    public void ascii85Decode1() throws Exception {
+        // Partial final groups must be padded with 'u', otherwise the last
+        // byte comes out one too low.
+        String cmd = "currentfile /ASCII85Decode filter 99 string readstring"
+            + " 87cURDZ~> false eq exch (Hello) eq\n"
+            + "currentfile /ASCII85Decode filter 99 string readstring"
+            + " @:E^~> false eq exch (abc) eq\n"
+            + "currentfile /ASCII85Decode filter 99 string readstring"
+            + " s8W*~> false eq exch <ffffff> eq";
+        assertTrue(Common.testString(interp, cmd, 6));
+    }
+    
+    /** Test. @throws Exception the exception. */
+    @Test
+    public void ascii85Decode2() throws Exception {
+        String cmd = "currentfile /ASCII85Decode filter 99 string readstring"
+            + " !!!~> false eq exch <0000> eq\n"
+            + "currentfile /ASCII85Decode filter 99 string readstring"
+            + " z!!~> false eq exch <0000000000> eq";
+        assertTrue(Common.testString(interp, cmd, 4));
+    }
+    
+    /** Test. @throws Exception the exception. */
+    @Test
+    public void ascii85Encode1() throws Exception {
+        // Data encoded by ASCII85Encode must decode to the same bytes: no
+        // 'z' for a partial group of zeros, and no extra group at close.
+        byte[][] data = {
+            {0, 0},
+            {0, 0, 0, 0},
+            {0, 0, 0, 0, 0},
+            {'H', 'e', 'l', 'l'},
+            {'H', 'e', 'l', 'l', 'o'},
+            {(byte) 0xFF, (byte) 0xFF, (byte) 0xFF},
+        };
+        StringBuilder cmd = new StringBuilder();
+        for (int i = 0; i < data.length; i++) {
+            ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+            OutputStream out = new ASCII85Encode(encoded, null);
+            out.write(data[i]);
+            out.close();
+            
+            cmd.append("currentfile /ASCII85Decode filter 99 string"
+                    + " readstring ");
+            cmd.append(encoded.toString("ISO-8859-1"));
+            cmd.append(" false eq exch <");
+            for (int j = 0; j < data[i].length; j++) {
+                cmd.append(Integer.toHexString(0x100 | (data[i][j] & 0xFF))
+                        .substring(1));
+            }
+            cmd.append("> eq\n");
+        }
+        assertTrue(Common.testString(interp, cmd.toString(),
+                2 * data.length));
+    }
+    
+    /** Test. @throws Exception the exception. */
+    @Test
+    public void dctSkip1() throws Exception {
+        // The image isn't painted by the null device, its data is skipped.
+        // The hex source is read up to its '>'.
+        StringBuilder hex = new StringBuilder();
+        byte[] jpeg = jpegData();
+        for (int i = 0; i < jpeg.length; i++) {
+            hex.append(Integer.toHexString(0x100 | (jpeg[i] & 0xFF))
+                    .substring(1));
+            if (i % 16 == 15) {
+                hex.append('\n');
+            }
+        }
+        String cmd = "8 8 8 [8 0 0 8 0 0] currentfile /ASCIIHexDecode filter"
+            + " /DCTDecode filter image\n" + hex + "\n> (end) (end) eq\n"
+            + "8 8 8 [8 0 0 8 0 0] currentfile /ASCIIHexDecode filter"
+            + " /DCTDecode filter image " + hex + ">(end) (end) eq";
+        assertTrue(Common.testString(interp, cmd, 2));
+    }
+    
+    /** Test. @throws Exception the exception. */
+    @Test
+    public void dctSkip2() throws Exception {
+        // Binary JPEG data is read up to and including the EOI marker.
+        String jpeg = new String(jpegData(), "ISO-8859-1");
+        String cmd = "8 8 8 [8 0 0 8 0 0] currentfile /DCTDecode filter image\n"
+            + jpeg + "(end) (end) eq\n"
+            + "8 8 8 [8 0 0 8 0 0] currentfile /DCTDecode filter image "
+            + jpeg + "\n(end) (end) eq";
+        assertTrue(Common.testString(interp, cmd, 2));
+    }
+    
+    /** Test. @throws Exception the exception. */
+    @Test
+    public void dctSkip3() throws Exception {
+        // Truncated JPEG data
+        String jpeg = new String(jpegData(), "ISO-8859-1");
+        String cmd = "{{8 8 8 [8 0 0 8 0 0] currentfile /DCTDecode filter"
+            + " image} stopped"
+            + " {$error /errorname get /ioerror eq} {false} ifelse"
+            + " count 1 roll 1 1 count 3 sub {pop pop} for} exec\n"
+            + jpeg.substring(0, jpeg.length() - 1);
+        assertTrue(Common.testString(interp, cmd, 1));
+    }
+    
+    /**
+     * Gets a small sequence of JPEG markers and segments. It isn't a valid
+     * image, but it has the structures that must be followed to find the
+     * end of the data: an EOI code inside a segment, stuffed 0xFF bytes and
+     * restart markers in the entropy-coded data, and fill bytes before a
+     * marker.
+     * 
+     * @return The JPEG data, from SOI up to and including EOI.
+     */
+    private static byte[] jpegData() {
+        int[] data = {
+            0xFF, 0xD8,
+            0xFF, 0xE0, 0x00, 0x08, 'J', 'F', 0xFF, 0xD9, 0x00, 0x00,
+            0xFF, 0xFF, 0xDB, 0x00, 0x04, 0xFF, 0xD9,
+            0xFF, 0xDA, 0x00, 0x04, 0x00, 0x00,
+            0x12, 0xFF, 0x00, 0x34, 0xFF, 0xD0, 0x56, 0xFF, 0xFF, 0xD1, 0x78,
+            0xFF, 0x00, 0xFF, 0xFF, 0xFF, 0xD9,
+        };
+        byte[] jpeg = new byte[data.length];
+        for (int i = 0; i < data.length; i++) {
+            jpeg[i] = (byte) data[i];
+        }
+        return jpeg;
+    }
+    
+    /**
+     * Creates the commands for an image of 10x3 pixels (8 bits) that reads
+     * its data with a procedure, followed by the data that the procedure
+     * reads and a check that the file is positioned after the data.
+     * 
+     * @param proc The data source procedure, which reads strings /str.
+     * @param strLength The length of /str.
+     * @param hex Indicates whether the data is written as hexadecimal.
+     * 
+     * @return The commands.
+     */
+    private static String imageCmd(final String proc, final int strLength,
+            final boolean hex) {
+        StringBuilder cmd = new StringBuilder();
+        cmd.append("/str " + strLength + " string def\n");
+        cmd.append("10 3 8 [10 0 0 3 0 0] " + proc + " image\n");
+        // The procedure reads whole strings, also beyond the 30 bytes of the
+        // image.
+        int nrBytes = (30 + strLength - 1) / strLength * strLength;
+        for (int i = 0; i < nrBytes; i++) {
+            int b = (i * 37 + 11) & 0xFF;
+            if (hex) {
+                cmd.append(Integer.toHexString(0x100 | b).substring(1));
+                if (i % 8 == 7) {
+                    cmd.append('\n');
+                }
+            } else {
+                cmd.append((char) b);
+            }
+        }
+        cmd.append(" (end) (end) eq\n");
+        return cmd.toString();
+    }
+    
+    /**
+     * Input stream that returns at most one byte per bulk read, like a
+     * stream that has little data available.
+     */
+    private static class OneByteInputStream extends FilterInputStream {
+        /**
+         * Creates a new stream.
+         * 
+         * @param in The stream from which the data is read.
+         */
+        OneByteInputStream(final InputStream in) {
+            super(in);
+        }
+        
+        /**
+         * Reads at most one byte into an array.
+         * 
+         * @param b The buffer into which the data is read.
+         * @param off Offset in b at which the data is written.
+         * @param len Maximum number of bytes to read.
+         * 
+         * @return The number of bytes read, or -1 at the end of the stream.
+         * 
+         * @throws IOException An I/O error occurred.
+         */
+        @Override
+        public int read(final byte[] b, final int off, final int len)
+                throws IOException {
+            return super.read(b, off, Math.min(len, 1));
+        }
+    }
+
 }
@@ -0,0 +1,277 @@
+/*
+ * This file is part of Eps2pgf.
+ *
+ * Copyright 2007-2009 Paul Wagenaars
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sf.eps2pgf.testsuite.pstests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import net.sf.eps2pgf.ps.Image;
+import net.sf.eps2pgf.ps.ImageRowTranscoder;
+import net.sf.eps2pgf.ps.Interpreter;
+import net.sf.eps2pgf.ps.resources.outputdevices.NullDevice;
+
+/**
+ * Tests the image, colorimage and imagemask operators, and checks the
+ * samples of the resulting images.
+ */
+public class ImagePSTest {
+    
+    /** The PostScript interpreter. */
+    private Interpreter interp = null;
+    
+    /** Captures the images painted by the interpreter. */
+    private CaptureDevice device = null;
+    
+    /**
+     * Sets up the class.
+     * 
+     * @throws Exception the exception
+     */
+    @BeforeClass
+    public static void setUpClass() throws Exception {
+        Logger.getLogger("net.sourceforge.eps2pgf").setLevel(Level.OFF);
+    }
+    
+    /**
+     * Set up a single test.
+     * 
+     * @throws Exception An exception occurred.
+     */
+    @Before
+    public void setUp() throws Exception {
+        interp = new Interpreter();
+        device = new CaptureDevice();
+        interp.getGstate().current().setDevice(device);
+    }
+    
+    /** Test. @throws Exception the exception */
+    @Test
+    public void imagemaskPolarityTrue() throws Exception {
+        String cmd = chunkProc("m", "A53C", 1)
+            + "8 2 true [8 0 0 -2 0 2] /mproc load imagemask mi 2 eq";
+        assertTrue(Common.testString(interp, cmd, 1));
+        assertMask("10100101 00111100");
+    }
+    
+    /** Test. @throws Exception the exception */
+    @Test
+    public void imagemaskPolarityFalse() throws Exception {
+        String cmd = chunkProc("m", "A53C", 1)
+            + "8 2 false [8 0 0 -2 0 2] /mproc load imagemask mi 2 eq";
+        assertTrue(Common.testString(interp, cmd, 1));
+        assertMask("01011010 11000011");
+    }
+    
+    /** Test. @throws Exception the exception */
+    @Test
+    public void imagemaskDict() throws Exception {
+        // 6 pixels wide, so each line is padded to a whole byte.
+        String cmd = chunkProc("m", "F0A45C", 2)
+            + "<< /ImageType 1 /Width 6 /Height 3 /ImageMatrix"
+            + " [6 0 0 -3 0 3] /DataSource /mproc load /BitsPerComponent 1"
+            + " /Decode [1 0] >> imagemask mi 4 eq";
+        assertTrue(Common.testString(interp, cmd, 1));
+        assertMask("111100 101001 010111");
+    }
+    
+    /** Test. @throws Exception the exception */
+    @Test
+    public void colorimageThreeProcs() throws Exception {
+        // Different chunk sizes, such that the procedures are called a
+        // different number of times.
+        String cmd = chunkProc("r", "0102030405060708", 3)
+            + chunkProc("g", "1112131415161718", 5)
+            + chunkProc("b", "2122232425262728", 8)
+            + "4 2 8 [4 0 0 -2 0 2] /rproc load /gproc load"
+            + " /bproc load true 3 colorimage"
+            + " ri 9 eq gi 10 eq bi 8 eq";
+        assertTrue(Common.testString(interp, cmd, 3));
+        assertSamples(3, new int[][] {
+            {0x01, 0x11, 0x21, 0x02, 0x12, 0x22, 0x03, 0x13, 0x23,
+                0x04, 0x14, 0x24},
+            {0x05, 0x15, 0x25, 0x06, 0x16, 0x26, 0x07, 0x17, 0x27,
+                0x08, 0x18, 0x28}});
+    }
+    
+    /** Test. @throws Exception the exception */
+    @Test
+    public void colorimageFourProcs() throws Exception {
+        String cmd = chunkProc("c", "0A0B0C", 1)
+            + chunkProc("m", "1A1B1C", 2)
+            + chunkProc("y", "2A2B2C", 3)
+            + chunkProc("k", "3A3B3C", 1)
+            + "3 1 8 [3 0 0 -1 0 1] /cproc load /mproc load"
+            + " /yproc load /kproc load true 4"
+            + " colorimage ci 3 eq mi 4 eq yi 3 eq ki 3 eq";
+        assertTrue(Common.testString(interp, cmd, 4));
+        assertSamples(4, new int[][] {
+            {0x0A, 0x1A, 0x2A, 0x3A, 0x0B, 0x1B, 0x2B, 0x3B,
+                0x0C, 0x1C, 0x2C, 0x3C}});
+    }
+    
+    /** Test. @throws Exception the exception */
+    @Test
+    public void multipleDataSourcesDict() throws Exception {
+        // 4-bit samples, each source has one byte per line.
+        String cmd = chunkProc("r", "12345678", 1)
+            + chunkProc("g", "9ABCDEF0", 3)
+            + chunkProc("b", "0F1E2D3C", 2)
+            + "/DeviceRGB setcolorspace"
+            + " << /ImageType 1 /Width 2 /Height 4 /ImageMatrix"
+            + " [2 0 0 -4 0 4] /MultipleDataSources true"
+            + " /DataSource [/rproc load /gproc load /bproc load]"
+            + " /BitsPerComponent 4 /Decode [0 1 0 1 0 1] >> image"
+            + " ri 4 eq gi 6 eq bi 4 eq";
+        assertTrue(Common.testString(interp, cmd, 3));
+        assertSamples(3, new int[][] {
+            {0x1, 0x9, 0x0, 0x2, 0xA, 0xF},
+            {0x3, 0xB, 0x1, 0x4, 0xC, 0xE},
+            {0x5, 0xD, 0x2, 0x6, 0xE, 0xD},
+            {0x7, 0xF, 0x3, 0x8, 0x0, 0xC}});
+    }
+    
+    /**
+     * Creates PostScript code that defines a procedure which returns the
+     * next chunk of a string each time it is called. The procedure is named
+     * &lt;name&gt;proc, and &lt;name&gt;i is the index in the string after
+     * the last returned chunk.
+     * 
+     * @param name Prefix of the names.
+     * @param hex The string, in hexadecimal form.
+     * @param chunk Length of the chunks.
+     * 
+     * @return The PostScript code.
+     */
+    private static String chunkProc(final String name, final String hex,
+            final int chunk) {
+        int length = hex.length() / 2;
+        return "/" + name + "s <" + hex + "> def /" + name + "i 0 def\n"
+            + "/" + name + "proc {" + name + "s " + name + "i " + chunk + " "
+            + name + "i " + (length - chunk) + " gt {pop " + length + " "
+            + name + "i sub} if getinterval /" + name + "i " + name + "i "
+            + chunk + " add def} def\n";
+    }
+    
+    /**
+     * Checks the samples of the captured image.
+     * 
+     * @param nrComponents Expected number of components.
+     * @param expected Expected samples of each row, from top to bottom.
+     * 
+     * @throws Exception the exception
+     */
+    private void assertSamples(final int nrComponents,
+            final int[][] expected) throws Exception {
+        device.rethrow();
+        assertEquals(1, device.images.size());
+        Image img = device.images.get(0);
+        assertEquals(nrComponents, img.getNrComponents());
+        List<int[]> rows = device.rows.get(0);
+        assertEquals(expected.length, rows.size());
+        for (int y = 0; y < expected.length; y++) {
+            assertTrue("row " + y + ": " + Arrays.toString(rows.get(y)),
+                    Arrays.equals(expected[y], rows.get(y)));
+        }
+    }
+    
+    /**
+     * Checks which pixels of the captured mask are painted.
+     * 
+     * @param painted Rows from top to bottom, separated by spaces, with a 1
+     * for each painted pixel.
+     * 
+     * @throws Exception the exception
+     */
+    private void assertMask(final String painted) throws Exception {
+        device.rethrow();
+        assertEquals(1, device.images.size());
+        Image img = device.images.get(0);
+        assertTrue(img.isMask());
+        double[] decode = img.getDecode();
+        String[] expected = painted.split(" ");
+        List<int[]> rows = device.rows.get(0);
+        assertEquals(expected.length, rows.size());
+        for (int y = 0; y < expected.length; y++) {
+            StringBuilder row = new StringBuilder();
+            for (int sample : rows.get(y)) {
+                // A mask paints the pixels of which the sample decodes to 0.
+                double value = decode[0] + sample * (decode[1] - decode[0]);
+                row.append((value == 0.0) ? '1' : '0');
+            }
+            assertEquals(expected[y], row.toString());
+        }
+    }
+    
+    /**
+     * Device that reads the samples of all images that are painted.
+     */
+    private static class CaptureDevice extends NullDevice {
+        /** The painted images. */
+        private List<Image> images = new ArrayList<Image>();
+        
+        /** Samples of each image, one array per row from top to bottom. */
+        private List<List<int[]>> rows = new ArrayList<List<int[]>>();
+        
+        /** Error that occurred while reading an image, or null. */
+        private Exception error = null;
+        
+        /**
+         * Reads the samples of an image.
+         * 
+         * @param img The image.
+         */
+        @Override
+        public void image(final Image img) {
+            try {
+                ImageRowTranscoder transcoder = img.getTopDownRowTranscoder();
+                List<int[]> imgRows = new ArrayList<int[]>();
+                for (int y = 0; y < transcoder.getHeight(); y++) {
+                    int[] row = new int[transcoder.getWidth()
+                                        * img.getNrComponents()];
+                    transcoder.readRow(row);
+                    imgRows.add(row);
+                }
+                images.add(img);
+                rows.add(imgRows);
+            } catch (Exception e) {
+                error = e;
+            }
+        }
+        
+        /**
+         * Throws the error that occurred while reading an image, if any.
+         * 
+         * @throws Exception The error.
+         */
+        void rethrow() throws Exception {
+            if (error != null) {
+                throw error;
+            }
+        }
+    }
+}
@@ -241,6 +241,26 @@ public class PathPSTest {
         assertTrue(Common.testString(interp, cmd, 4));
     }
 
+    /** Test. @throws Exception the exception */
+    @Test
+    public void clippath2() throws Exception {
+        String cmd = "0 0 100 100 rectclip 50 -10 100 30 rectclip"
+            + " clippath pathbbox 20 sub abs 1e-6 lt"
+            + " 4 1 roll 100 sub abs 1e-6 lt"
+            + " 4 1 roll 0 sub abs 1e-6 lt 4 1 roll 50 sub abs 1e-6 lt";
+        assertTrue(Common.testString(interp, cmd, 4));
+    }
+
+    /** Test. @throws Exception the exception */
+    @Test
+    public void clippath3() throws Exception {
+        String cmd = "newpath 10 10 moveto 90 10 lineto 50 90 lineto closepath"
+            + " clip newpath -10 -10 200 200 rectclip clippath pathbbox"
+            + " 90 sub abs 1e-6 lt 4 1 roll 90 sub abs 1e-6 lt"
+            + " 4 1 roll 10 sub abs 1e-6 lt 4 1 roll 10 sub abs 1e-6 lt";
+        assertTrue(Common.testString(interp, cmd, 4));
+    }
+
     /** Test. @throws Exception the exception */
     @Test
     public void pathforall1() throws Exception {
@@ -258,6 +278,18 @@ public class PathPSTest {
         assertTrue(Common.testString(interp, cmd, 2));
     }
 
+    /** Test. @throws Exception the exception */
+    @Test
+    public void pathspill() throws Exception {
+        interp.getOptions().setPathSpillThreshold(16);
+        String cmd = "newpath 0 0 moveto 1 1 20000 {dup lineto} for gsave"
+            + " 5 -5 lineto pathbbox pop pop exch pop round -5 eq grestore"
+            + " pathbbox round 20000 eq 4 1 roll round 20000 eq 4 1 roll round"
+            + " 0 eq 4 1 roll round 0 eq 0 {pop pop 1 add} {pop pop 1 add} {}"
+            + " {} pathforall 20001 eq";
+        assertTrue(Common.testString(interp, cmd, 6));
+    }
+
     /** Test. @throws Exception the exception */
     @Test
     public void charpath() throws Exception {
@@ -0,0 +1,273 @@
+/*
+ * This file is part of Eps2pgf.
+ *
+ * Copyright 2007-2009 Paul Wagenaars
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sf.eps2pgf.testsuite.unittests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+import net.sf.eps2pgf.io.ChannelWriter;
+
+/**
+ * Compares the bytes written by ChannelWriter with those of an
+ * OutputStreamWriter.
+ */
+public class ChannelWriterTest {
+    
+    /** UTF-8 character set. */
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    
+    /** Musical G clef (U+1D11E), a character outside the BMP. */
+    private static final String CLEF = "\uD834\uDD1E";
+    
+    /** Test. @throws Exception the exception */
+    @Test
+    public void randomWrites() throws Exception {
+        String[] charsets = {"UTF-8", "ISO-8859-1", "UTF-16"};
+        Random random = new Random(1);
+        for (String charsetName : charsets) {
+            Charset charset = Charset.forName(charsetName);
+            for (int bufferSize = 1; bufferSize <= 56; bufferSize += 5) {
+                for (int run = 0; run < 20; run++) {
+                    String text = randomText(random, random.nextInt(300));
+                    long seed = random.nextLong();
+                    int maxWrite = 1 + random.nextInt(7);
+                    
+                    ByteArrayOutputStream expected
+                                                = new ByteArrayOutputStream();
+                    Writer reference = new OutputStreamWriter(expected,
+                            charset);
+                    writeRandomly(reference, text, new Random(seed));
+                    reference.close();
+                    
+                    LimitedChannel channel = new LimitedChannel(maxWrite);
+                    Writer writer = new ChannelWriter(channel, bufferSize,
+                            charset);
+                    writeRandomly(writer, text, new Random(seed));
+                    writer.close();
+                    
+                    assertTrue(charsetName + " " + bufferSize + ": " + text,
+                            Arrays.equals(expected.toByteArray(),
+                                    channel.toByteArray()));
+                }
+            }
+        }
+    }
+    
+    /** Test. @throws Exception the exception */
+    @Test
+    public void surrogatePairSplitOverWrites() throws Exception {
+        LimitedChannel channel = new LimitedChannel(100);
+        Writer writer = new ChannelWriter(channel, 16, UTF8);
+        writer.write("a" + CLEF.charAt(0));
+        writer.write(CLEF.charAt(1));
+        writer.write(new char[] {'b', CLEF.charAt(0)}, 0, 2);
+        writer.write(CLEF.substring(1) + "c", 0, 2);
+        writer.close();
+        assertEquals("a" + CLEF + "b" + CLEF + "c",
+                new String(channel.toByteArray(), UTF8));
+    }
+    
+    /** Test. @throws Exception the exception */
+    @Test
+    public void surrogatePairSplitOverFlush() throws Exception {
+        LimitedChannel channel = new LimitedChannel(100);
+        Writer writer = new ChannelWriter(channel, 16, UTF8);
+        writer.write("x" + CLEF.charAt(0));
+        writer.flush();
+        assertEquals("x", new String(channel.toByteArray(), UTF8));
+        writer.write(CLEF.charAt(1));
+        writer.flush();
+        assertEquals("x" + CLEF, new String(channel.toByteArray(), UTF8));
+        writer.close();
+    }
+    
+    /** Test. @throws Exception the exception */
+    @Test
+    public void loneSurrogates() throws Exception {
+        LimitedChannel channel = new LimitedChannel(100);
+        Writer writer = new ChannelWriter(channel, 16, UTF8);
+        writer.write("a" + CLEF.charAt(1) + "b" + CLEF.charAt(0));
+        writer.close();
+        assertEquals("a?b?", new String(channel.toByteArray(), UTF8));
+    }
+    
+    /** Test. @throws Exception the exception */
+    @Test
+    public void bufferSmallerThanCharacter() throws Exception {
+        // The buffer is enlarged to hold at least one encoded character,
+        // and the channel only accepts one byte per call.
+        String text = "\u00E9" + CLEF + "\u20AC" + CLEF;
+        Charset[] charsets = {UTF8, Charset.forName("UTF-16")};
+        for (Charset charset : charsets) {
+            for (int bufferSize = 0; bufferSize < 5; bufferSize++) {
+                LimitedChannel channel = new LimitedChannel(1);
+                Writer writer = new ChannelWriter(channel, bufferSize,
+                        charset);
+                for (int i = 0; i < text.length(); i++) {
+                    writer.write(text.charAt(i));
+                }
+                writer.close();
+                assertTrue(Arrays.equals(text.getBytes(charset.name()),
+                        channel.toByteArray()));
+            }
+        }
+    }
+    
+    /**
+     * Creates random text with ASCII, Latin-1 and other BMP characters, and
+     * surrogate pairs.
+     * 
+     * @param random Random number generator.
+     * @param length Approximate number of characters.
+     * 
+     * @return The text.
+     */
+    private static String randomText(final Random random, final int length) {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < length; i++) {
+            int kind = random.nextInt(10);
+            if (kind < 6) {
+                text.append((char) (0x20 + random.nextInt(0x5F)));
+            } else if (kind < 7) {
+                text.append('\n');
+            } else if (kind < 8) {
+                text.append((char) (0xA0 + random.nextInt(0x60)));
+            } else if (kind < 9) {
+                text.append((char) (0x400 + random.nextInt(0x1000)));
+            } else {
+                text.appendCodePoint(0x10000 + random.nextInt(0x10000));
+            }
+        }
+        return text.toString();
+    }
+    
+    /**
+     * Writes text in random pieces, using all write methods, with flushes in
+     * between. Pieces may end between the two characters of a surrogate
+     * pair.
+     * 
+     * @param writer The text is written to this writer.
+     * @param text The text.
+     * @param random Random number generator.
+     * 
+     * @throws Exception the exception
+     */
+    private static void writeRandomly(final Writer writer, final String text,
+            final Random random) throws Exception {
+        int i = 0;
+        while (i < text.length()) {
+            int n = Math.min(text.length() - i, 1 + random.nextInt(40));
+            switch (random.nextInt(4)) {
+                case 0:
+                    writer.write(text.charAt(i));
+                    n = 1;
+                    break;
+                case 1:
+                    writer.write(text, i, n);
+                    break;
+                case 2:
+                    char[] chars = new char[n + 4];
+                    text.getChars(i, i + n, chars, 2);
+                    writer.write(chars, 2, n);
+                    break;
+                default:
+                    writer.write(text.substring(i, i + n));
+                    break;
+            }
+            i += n;
+            if (random.nextInt(8) == 0) {
+                writer.flush();
+            }
+        }
+    }
+    
+    /**
+     * Channel that collects the bytes, and accepts only a limited number of
+     * bytes per call.
+     */
+    private static class LimitedChannel implements WritableByteChannel {
+        /** Maximum number of bytes accepted per call. */
+        private int maxWrite;
+        
+        /** The written bytes. */
+        private ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        
+        /** Indicates whether the channel is open. */
+        private boolean open = true;
+        
+        /**
+         * Creates a new channel.
+         * 
+         * @param pMaxWrite Maximum number of bytes accepted per call.
+         */
+        LimitedChannel(final int pMaxWrite) {
+            maxWrite = pMaxWrite;
+        }
+        
+        /**
+         * Writes some of the bytes.
+         * 
+         * @param src The bytes.
+         * 
+         * @return Number of bytes written.
+         */
+        public int write(final ByteBuffer src) {
+            int n = Math.min(src.remaining(), maxWrite);
+            for (int i = 0; i < n; i++) {
+                bytes.write(src.get());
+            }
+            return n;
+        }
+        
+        /**
+         * Checks whether the channel is open.
+         * 
+         * @return True if the channel is open.
+         */
+        public boolean isOpen() {
+            return open;
+        }
+        
+        /**
+         * Closes the channel.
+         */
+        public void close() {
+            open = false;
+        }
+        
+        /**
+         * Gets the written bytes.
+         * 
+         * @return The bytes.
+         */
+        public byte[] toByteArray() {
+            return bytes.toByteArray();
+        }
+    }
+}
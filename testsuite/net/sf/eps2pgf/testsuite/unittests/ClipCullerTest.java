@@ -0,0 +1,197 @@
+/*
+ * This file is part of Eps2pgf.
+ *
+ * Copyright 2007-2009 Paul Wagenaars
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sf.eps2pgf.testsuite.unittests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Tests which painting operations are skipped because they are outside the
+ * clipping path.
+ */
+public class ClipCullerTest {
+    
+    /** Clipping path used by most tests. */
+    private static final String CLIP = "0 0 10 10 rectclip\n";
+    
+    /** A small image. */
+    private static final String IMAGE = "gsave 50 50 translate 10 10 scale"
+        + " 2 2 8 [2 0 0 2 0 0] {<00FF00FF>} image grestore\n";
+    
+    /** Directory for the input and output files. */
+    private File dir = null;
+    
+    /**
+     * Sets up the class.
+     * 
+     * @throws Exception the exception
+     */
+    @BeforeClass
+    public static void setUpClass() throws Exception {
+        Logger.getLogger("net.sourceforge.eps2pgf").setLevel(Level.OFF);
+    }
+    
+    /**
+     * Set up a single test.
+     * 
+     * @throws Exception An exception occurred.
+     */
+    @Before
+    public void setUp() throws Exception {
+        dir = Common.createTempDir();
+    }
+    
+    /**
+     * Cleans up after a single test.
+     */
+    @After
+    public void tearDown() {
+        Common.deleteDir(dir);
+    }
+    
+    /** Test. @throws Exception the exception */
+    @Test
+    public void fillOutsideClip() throws Exception {
+        String body = CLIP + "50 50 10 10 rectfill 5 5 2 2 rectfill";
+        assertEquals(1, count(Common.convert(dir, body), "\\pgfusepath{fill}"));
+        assertEquals(2, count(Common.convert(dir, body, "--no-culling"),
+                "\\pgfusepath{fill}"));
+    }
+    
+    /** Test. @throws Exception the exception */
+    @Test
+    public void strokeOutsideClip() throws Exception {
+        String body = CLIP + "6 setlinewidth 1 setlinejoin"
+            + " newpath 17 5 moveto 40 5 lineto stroke";
+        assertEquals(0, count(Common.convert(dir, body),
+                "\\pgfusepath{stroke}"));
+        assertEquals(1, count(Common.convert(dir, body, "--no-culling"),
+                "\\pgfusepath{stroke}"));
+    }
+    
+    /** Test. @throws Exception the exception */
+    @Test
+    public void strokeCapIntoClip() throws Exception {
+        // The path is outside the clipping path, but the square cap is not.
+        String body = CLIP + "6 setlinewidth 1 setlinejoin 2 setlinecap"
+            + " newpath 12.5 5 moveto 40 5 lineto stroke";
+        assertEquals(1, count(Common.convert(dir, body),
+                "\\pgfusepath{stroke}"));
+    }
+    
+    /** Test. @throws Exception the exception */
+    @Test
+    public void strokeMiterIntoClip() throws Exception {
+        // Same path as in strokeOutsideClip, but now the miter join of the
+        // sharp corner might reach into the clipping path.
+        String body = CLIP + "6 setlinewidth 0 setlinejoin 10 setmiterlimit"
+            + " newpath 17 5 moveto 40 5 lineto 17 6 lineto stroke";
+        assertEquals(1, count(Common.convert(dir, body),
+                "\\pgfusepath{stroke}"));
+    }
+    
+    /** Test. @throws Exception the exception */
+    @Test
+    public void textOutsideClip() throws Exception {
+        // The margin around the text depends on the length of the LaTeX
+        // code, so a small font is used.
+        String font = "/Helvetica findfont 2 scalefont setfont\n";
+        String body = CLIP + font + "80 80 moveto (Hi) show";
+        assertEquals(0, count(Common.convert(dir, body), "\\pgftext"));
+        assertEquals(1, count(Common.convert(dir, body, "--no-culling"),
+                "\\pgftext"));
+        
+        // Text near the clipping path is kept, the extent of the typeset
+        // text is unknown.
+        body = CLIP + font + "15 15 moveto (Hi) show";
+        assertEquals(1, count(Common.convert(dir, body), "\\pgftext"));
+    }
+    
+    /** Test. @throws Exception the exception */
+    @Test
+    public void imageOutsideClip() throws Exception {
+        String output = Common.convert(dir, CLIP + IMAGE);
+        assertEquals(0, count(output, "\\includegraphics"));
+        assertTrue(!new File(dir, "test-image1.pdf").exists());
+        
+        output = Common.convert(dir, "0 0 52 52 rectclip\n" + IMAGE);
+        assertEquals(1, count(output, "\\includegraphics"));
+        assertTrue(new File(dir, "test-image1.pdf").exists());
+    }
+    
+    /** Test. @throws Exception the exception */
+    @Test
+    public void emptyClip() throws Exception {
+        String body = "newpath clip newpath 50 50 10 10 rectfill";
+        assertEquals(1, count(Common.convert(dir, body), "\\pgfusepath{fill}"));
+    }
+    
+    /** Test. @throws Exception the exception */
+    @Test
+    public void degenerateClip() throws Exception {
+        // Clipping paths with a zero width or height
+        String body = "newpath 5 5 moveto clip newpath 50 50 10 10 rectfill";
+        assertEquals(1, count(Common.convert(dir, body), "\\pgfusepath{fill}"));
+        body = "newpath 0 5 moveto 100 5 lineto clip"
+            + " newpath 50 50 10 10 rectfill";
+        assertEquals(1, count(Common.convert(dir, body), "\\pgfusepath{fill}"));
+    }
+    
+    /** Test. @throws Exception the exception */
+    @Test
+    public void changedClip() throws Exception {
+        // The first, second and last fill are inside their clipping path,
+        // the third fill isn't.
+        String body = "gsave " + CLIP + "5 5 2 2 rectfill grestore\n"
+            + "gsave 50 50 10 10 rectclip 55 55 2 2 rectfill grestore\n"
+            + "gsave 50 50 10 10 rectclip 6 6 2 2 rectfill grestore\n"
+            + "5 5 2 2 rectfill";
+        String output = Common.convert(dir, body);
+        assertEquals(3, count(output, "\\pgfusepath{fill}"));
+        assertEquals(1, count(output, "\\pgfqpoint{1.94cm}{1.94cm}"));
+        assertEquals(0, count(output, "\\pgfqpoint{0.212cm}{0.212cm}"));
+    }
+    
+    /**
+     * Counts the number of times a string occurs in the output.
+     * 
+     * @param output The output.
+     * @param str The string to look for.
+     * 
+     * @return The number of occurrences.
+     */
+    private static int count(final String output, final String str) {
+        int n = 0;
+        int i = output.indexOf(str);
+        while (i >= 0) {
+            n++;
+            i = output.indexOf(str, i + str.length());
+        }
+        return n;
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * This file is part of Eps2pgf.
+ *
+ * Copyright 2007-2009 Paul Wagenaars
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sf.eps2pgf.testsuite.unittests;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import net.sf.eps2pgf.Converter;
+import net.sf.eps2pgf.Options;
+
+/**
+ * Some utility methods for the unit tests that convert files or use
+ * temporary files.
+ */
+public final class Common {
+    
+    /**
+     * "Hidden" constructor.
+     */
+    private Common() {
+        /* empty block */
+    }
+    
+    /**
+     * Converts a small EPS figure. The input file <code>test.eps</code> and
+     * the output file <code>test.pgf</code> are created in the given
+     * directory.
+     * 
+     * @param dir Directory for the input and output files.
+     * @param body The PostScript code after the header, using a bounding box
+     * of 0 0 100 100.
+     * @param args Extra command line arguments.
+     * 
+     * @return The output.
+     * 
+     * @throws Exception the exception
+     */
+    public static String convert(final File dir, final String body,
+            final String... args) throws Exception {
+        File input = new File(dir, "test.eps");
+        writeFile(input, ("%!PS-Adobe-3.0 EPSF-3.0\n"
+                + "%%BoundingBox: 0 0 100 100\n"
+                + body + "\n").getBytes("ISO-8859-1"));
+        
+        Options opts = new Options();
+        opts.parse(args);
+        opts.setInputFile(input);
+        opts.setOutputFile(new File(dir, "test.pgf"));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new Converter(opts).convert(out);
+        return out.toString("ISO-8859-1");
+    }
+    
+    /**
+     * Reads a file.
+     * 
+     * @param file The file.
+     * 
+     * @return The contents of the file.
+     * 
+     * @throws IOException An I/O error occurred.
+     */
+    public static byte[] readFile(final File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            ByteArrayOutputStream data = new ByteArrayOutputStream();
+            byte[] buf = new byte[4096];
+            int n;
+            while ((n = in.read(buf)) > 0) {
+                data.write(buf, 0, n);
+            }
+            return data.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+    
+    /**
+     * Writes a file.
+     * 
+     * @param file The file.
+     * @param data The new contents of the file.
+     * 
+     * @throws IOException An I/O error occurred.
+     */
+    public static void writeFile(final File file, final byte[] data)
+            throws IOException {
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+    }
+    
+    /**
+     * Creates an empty temporary directory.
+     * 
+     * @return The directory.
+     * 
+     * @throws IOException Unable to create the directory.
+     */
+    public static File createTempDir() throws IOException {
+        File dir = File.createTempFile("eps2pgf", ".dir");
+        if (!dir.delete() || !dir.mkdir()) {
+            throw new IOException("Unable to create " + dir);
+        }
+        return dir;
+    }
+    
+    /**
+     * Deletes a directory, including its subdirectories and the files in it.
+     * 
+     * @param dir The directory.
+     */
+    public static void deleteDir(final File dir) {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.isDirectory()) {
+                    deleteDir(file);
+                } else {
+                    file.delete();
+                }
+            }
+        }
+        dir.delete();
+    }
+}
@@ -0,0 +1,315 @@
+/*
+ * This file is part of Eps2pgf.
+ *
+ * Copyright 2007-2009 Paul Wagenaars
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sf.eps2pgf.testsuite.unittests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import net.sf.eps2pgf.Converter;
+import net.sf.eps2pgf.Options;
+import net.sf.eps2pgf.ps.Interpreter;
+import net.sf.eps2pgf.ps.objects.PSObjectDict;
+import net.sf.eps2pgf.ps.resources.filters.ASCII85Decode;
+import net.sf.eps2pgf.ps.resources.filters.ASCIIHexDecode;
+import net.sf.eps2pgf.ps.resources.filters.DCTDecode;
+
+/**
+ * Tests copying and skipping of JPEG data by the DCTDecode filter.
+ */
+public class DCTDecodeTest {
+    
+    /** Data after the JPEG data in the source. */
+    private static final String TRAILER = " (end) (end) eq\n";
+    
+    /**
+     * Sets up the class.
+     * 
+     * @throws Exception the exception
+     */
+    @BeforeClass
+    public static void setUpClass() throws Exception {
+        Logger.getLogger("net.sourceforge.eps2pgf").setLevel(Level.OFF);
+    }
+    
+    /** Test. @throws Exception the exception */
+    @Test
+    public void copyBinary() throws Exception {
+        byte[] jpeg = jpegData();
+        InputStream in = new ByteArrayInputStream(
+                concat(jpeg, TRAILER.getBytes("ISO-8859-1")));
+        DCTDecode dct = new DCTDecode(in, new PSObjectDict(new Interpreter()));
+        assertTrue(dct.canCopyCompressedData());
+        
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        dct.copyCompressedData(out);
+        assertTrue(Arrays.equals(jpeg, out.toByteArray()));
+        assertEquals(TRAILER, remaining(in));
+        assertTrue(!dct.canCopyCompressedData());
+        assertEquals(-1, dct.read());
+    }
+    
+    /** Test. @throws Exception the exception */
+    @Test
+    public void copyHex() throws Exception {
+        // The hex source is read up to its end-of-data marker.
+        byte[] jpeg = jpegData();
+        StringBuilder hex = new StringBuilder();
+        for (int i = 0; i < jpeg.length; i++) {
+            hex.append(Integer.toHexString(0x100 | (jpeg[i] & 0xFF))
+                    .substring(1));
+            if (i % 16 == 15) {
+                hex.append('\n');
+            }
+        }
+        hex.append("\n>");
+        InputStream in = new ByteArrayInputStream(
+                (hex + TRAILER).getBytes("ISO-8859-1"));
+        PSObjectDict dict = new PSObjectDict(new Interpreter());
+        DCTDecode dct = new DCTDecode(new ASCIIHexDecode(in, dict, true),
+                dict);
+        
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        dct.copyCompressedData(out);
+        assertTrue(Arrays.equals(jpeg, out.toByteArray()));
+        assertEquals(TRAILER, remaining(in));
+    }
+    
+    /** Test. @throws Exception the exception */
+    @Test
+    public void skip() throws Exception {
+        byte[] jpeg = jpegData();
+        InputStream in = new ByteArrayInputStream(
+                concat(jpeg, TRAILER.getBytes("ISO-8859-1")));
+        DCTDecode dct = new DCTDecode(in, new PSObjectDict(new Interpreter()));
+        dct.copyCompressedData(null);
+        assertEquals(TRAILER, remaining(in));
+    }
+    
+    /** Test. @throws Exception the exception */
+    @Test(expected = EOFException.class)
+    public void truncated() throws Exception {
+        byte[] jpeg = jpegData();
+        InputStream in = new ByteArrayInputStream(jpeg, 0, jpeg.length - 1);
+        DCTDecode dct = new DCTDecode(in, new PSObjectDict(new Interpreter()));
+        dct.copyCompressedData(new ByteArrayOutputStream());
+    }
+    
+    /** Test. @throws Exception the exception */
+    @Test
+    public void culledImage() throws Exception {
+        // The image is outside the clipping path, its data is skipped and
+        // the fill after it must still be painted.
+        File dir = createTempDir();
+        try {
+            String output = convert(dir, "0 0 10 10 rectclip");
+            assertTrue(output.contains("\\pgfusepath{fill}"));
+            assertTrue(!output.contains("\\includegraphics"));
+            assertTrue(!new File(dir, "test-image1.pdf").exists());
+        } finally {
+            deleteDir(dir);
+        }
+    }
+    
+    /** Test. @throws Exception the exception */
+    @Test
+    public void copiedImage() throws Exception {
+        // The JPEG data is copied as it is into the PDF image file.
+        File dir = createTempDir();
+        try {
+            String output = convert(dir, "");
+            assertTrue(output.contains("\\pgfusepath{fill}"));
+            assertTrue(output.contains("\\includegraphics"));
+            String pdf = new String(readFile(new File(dir,
+                    "test-image1.pdf")), "ISO-8859-1");
+            int start = pdf.indexOf("/Filter [/ASCII85Decode /DCTDecode]");
+            assertTrue(start >= 0);
+            start = pdf.indexOf("stream\n", start) + "stream\n".length();
+            int end = pdf.indexOf("endstream", start);
+            InputStream in = new ASCII85Decode(new ByteArrayInputStream(
+                    pdf.substring(start, end).getBytes("ISO-8859-1")), null);
+            assertEquals(new String(jpegData(), "ISO-8859-1"), remaining(in));
+        } finally {
+            deleteDir(dir);
+        }
+    }
+    
+    /**
+     * Converts a file with a JPEG image, followed by a filled rectangle.
+     * 
+     * @param dir The input and output files are created in this directory.
+     * @param clip Commands that set the clipping path.
+     * 
+     * @return The output.
+     * 
+     * @throws Exception the exception
+     */
+    private static String convert(final File dir, final String clip)
+            throws Exception {
+        File input = new File(dir, "test.eps");
+        OutputStream out = new FileOutputStream(input);
+        try {
+            String header = "%!PS-Adobe-3.0 EPSF-3.0\n"
+                + "%%BoundingBox: 0 0 100 100\n"
+                + clip + "\n"
+                + "gsave 50 50 translate 20 20 scale\n"
+                + "8 8 8 [8 0 0 8 0 0] currentfile /DCTDecode filter image\n";
+            out.write(header.getBytes("ISO-8859-1"));
+            out.write(jpegData());
+            out.write("\ngrestore\n0 0 5 5 rectfill\n".getBytes("ISO-8859-1"));
+        } finally {
+            out.close();
+        }
+        
+        Options opts = new Options();
+        opts.parse(new String[0]);
+        opts.setInputFile(input);
+        opts.setOutputFile(new File(dir, "test.pgf"));
+        ByteArrayOutputStream pgf = new ByteArrayOutputStream();
+        new Converter(opts).convert(pgf);
+        return pgf.toString("ISO-8859-1");
+    }
+    
+    /**
+     * Gets a small sequence of JPEG markers and segments. It isn't a valid
+     * image, but it has the structures that must be followed to find the
+     * end of the data: an EOI code inside a segment, stuffed 0xFF bytes and
+     * restart markers in the entropy-coded data, and fill bytes before a
+     * marker.
+     * 
+     * @return The JPEG data, from SOI up to and including EOI.
+     */
+    private static byte[] jpegData() {
+        int[] data = {
+            0xFF, 0xD8,
+            0xFF, 0xE0, 0x00, 0x08, 'J', 'F', 0xFF, 0xD9, 0x00, 0x00,
+            0xFF, 0xFF, 0xDB, 0x00, 0x04, 0xFF, 0xD9,
+            0xFF, 0xDA, 0x00, 0x04, 0x00, 0x00,
+            0x12, 0xFF, 0x00, 0x34, 0xFF, 0xD0, 0x56, 0xFF, 0xFF, 0xD1, 0x78,
+            0xFF, 0x00, 0xFF, 0xFF, 0xFF, 0xD9,
+        };
+        byte[] jpeg = new byte[data.length];
+        for (int i = 0; i < data.length; i++) {
+            jpeg[i] = (byte) data[i];
+        }
+        return jpeg;
+    }
+    
+    /**
+     * Concatenates two arrays.
+     * 
+     * @param a The first array.
+     * @param b The second array.
+     * 
+     * @return The concatenated array.
+     */
+    private static byte[] concat(final byte[] a, final byte[] b) {
+        byte[] c = new byte[a.length + b.length];
+        System.arraycopy(a, 0, c, 0, a.length);
+        System.arraycopy(b, 0, c, a.length, b.length);
+        return c;
+    }
+    
+    /**
+     * Reads the rest of a stream.
+     * 
+     * @param in The stream.
+     * 
+     * @return The remaining characters.
+     * 
+     * @throws IOException An I/O error occurred.
+     */
+    private static String remaining(final InputStream in) throws IOException {
+        StringBuilder str = new StringBuilder();
+        int c;
+        while ((c = in.read()) >= 0) {
+            str.append((char) c);
+        }
+        return str.toString();
+    }
+    
+    /**
+     * Reads a file.
+     * 
+     * @param file The file.
+     * 
+     * @return The contents of the file.
+     * 
+     * @throws IOException An I/O error occurred.
+     */
+    private static byte[] readFile(final File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            ByteArrayOutputStream data = new ByteArrayOutputStream();
+            byte[] buf = new byte[4096];
+            int n;
+            while ((n = in.read(buf)) > 0) {
+                data.write(buf, 0, n);
+            }
+            return data.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+    
+    /**
+     * Creates an empty temporary directory.
+     * 
+     * @return The directory.
+     * 
+     * @throws IOException Unable to create the directory.
+     */
+    private static File createTempDir() throws IOException {
+        File dir = File.createTempFile("eps2pgf", ".dir");
+        if (!dir.delete() || !dir.mkdir()) {
+            throw new IOException("Unable to create " + dir);
+        }
+        return dir;
+    }
+    
+    /**
+     * Deletes a directory and the files in it.
+     * 
+     * @param dir The directory.
+     */
+    private static void deleteDir(final File dir) {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+}
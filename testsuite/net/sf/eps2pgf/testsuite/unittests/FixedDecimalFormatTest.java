@@ -0,0 +1,126 @@
+/*
+ * This file is part of Eps2pgf.
+ *
+ * Copyright 2007-2009 Paul Wagenaars
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sf.eps2pgf.testsuite.unittests;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.StringWriter;
+import java.text.DecimalFormat;
+import java.text.DecimalFormatSymbols;
+import java.util.Locale;
+import java.util.Random;
+
+import org.junit.Test;
+
+import net.sf.eps2pgf.util.FixedDecimalFormat;
+
+/**
+ * Compares FixedDecimalFormat with the DecimalFormat that it replaces.
+ */
+public class FixedDecimalFormatTest {
+    
+    /** Test. @throws Exception the exception */
+    @Test
+    public void ties() throws Exception {
+        // Exact ties are rounded to even, values just next to a tie are not.
+        double[] values = {0.5, 1.5, 2.5, -0.5, -2.5, 0.125, 0.375, -0.625,
+            0.0625, 1.0005, 2.0005, 0.0015, 0.0025, 1234.5675,
+            Math.nextUp(0.125), Math.nextAfter(0.125, 0.0),
+            Math.nextUp(2.5), Math.nextAfter(2.5, 0.0)};
+        for (int d = 0; d <= 9; d++) {
+            for (double value : values) {
+                assertSame(d, value);
+            }
+        }
+    }
+    
+    /** Test. @throws Exception the exception */
+    @Test
+    public void negativeZero() throws Exception {
+        double[] values = {-0.0, 0.0, -0.0004, -0.0005, -0.0006, -1e-12,
+            1e-12, -Double.MIN_VALUE};
+        for (int d = 0; d <= 9; d++) {
+            for (double value : values) {
+                assertSame(d, value);
+            }
+        }
+    }
+    
+    /** Test. @throws Exception the exception */
+    @Test
+    public void largeValues() throws Exception {
+        double[] values = {1e6, 123456789.123456789, 1e12 + 0.5, 1e14,
+            999999999999.9999, 1e15, -1e15, 1e20, 1.5e300, Long.MAX_VALUE,
+            Double.MAX_VALUE, -Double.MAX_VALUE, Double.POSITIVE_INFINITY,
+            Double.NEGATIVE_INFINITY, Double.NaN};
+        for (int d = 0; d <= 9; d++) {
+            for (double value : values) {
+                assertSame(d, value);
+            }
+        }
+    }
+    
+    /** Test. @throws Exception the exception */
+    @Test
+    public void randomValues() throws Exception {
+        Random random = new Random(31);
+        for (int d = 0; d <= 9; d++) {
+            for (int i = 0; i < 5000; i++) {
+                double value = (random.nextDouble() - 0.5)
+                        * Math.pow(10.0, random.nextInt(16) - 6);
+                assertSame(d, value);
+                
+                // Values that are rounded to a few decimals, as they often
+                // are in PostScript files.
+                double rounded = Math.rint(value * 1000.0) / 1000.0;
+                assertSame(d, rounded);
+            }
+        }
+    }
+    
+    /**
+     * Checks that a value is formatted the same by FixedDecimalFormat and by
+     * DecimalFormat.
+     * 
+     * @param nrDecimals Maximum number of decimals.
+     * @param value The value.
+     * 
+     * @throws Exception the exception
+     */
+    private static void assertSame(final int nrDecimals, final double value)
+            throws Exception {
+        StringBuilder pattern = new StringBuilder("#");
+        if (nrDecimals > 0) {
+            pattern.append('.');
+        }
+        for (int i = 0; i < nrDecimals; i++) {
+            pattern.append('#');
+        }
+        DecimalFormat reference = new DecimalFormat(pattern.toString(),
+                new DecimalFormatSymbols(Locale.US));
+        FixedDecimalFormat format = new FixedDecimalFormat(nrDecimals);
+        
+        String expected = reference.format(value);
+        String message = value + " with " + nrDecimals + " decimals";
+        assertEquals(message, expected, format.format(value));
+        StringWriter out = new StringWriter();
+        format.write(out, value);
+        assertEquals(message, expected, out.toString());
+    }
+}
@@ -0,0 +1,340 @@
+/*
+ * This file is part of Eps2pgf.
+ *
+ * Copyright 2007-2009 Paul Wagenaars
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sf.eps2pgf.testsuite.unittests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import net.sf.eps2pgf.io.images.ImageCache;
+import net.sf.eps2pgf.ps.Image;
+import net.sf.eps2pgf.ps.Interpreter;
+import net.sf.eps2pgf.ps.resources.outputdevices.NullDevice;
+
+/**
+ * Tests the cache of encoded bitmap images.
+ */
+public class ImageCacheTest {
+    
+    /** Dictionary of the image of which the keys are compared. */
+    private static final String IMAGE = "<< /ImageType 1 /Width 4 /Height 2"
+        + " /ImageMatrix [4 0 0 -2 0 2] /DataSource {<0011223344556677>}"
+        + " /BitsPerComponent 8 /Decode [0 1] /Interpolate false >>";
+    
+    /** The temporary cache directory. */
+    private File dir = null;
+    
+    /** The image cache. */
+    private ImageCache cache = null;
+    
+    /**
+     * Sets up the class.
+     * 
+     * @throws Exception the exception
+     */
+    @BeforeClass
+    public static void setUpClass() throws Exception {
+        Logger.getLogger("net.sourceforge.eps2pgf").setLevel(Level.OFF);
+    }
+    
+    /**
+     * Set up a single test.
+     * 
+     * @throws Exception An exception occurred.
+     */
+    @Before
+    public void setUp() throws Exception {
+        dir = Common.createTempDir();
+        cache = new ImageCache(dir, 0);
+    }
+    
+    /**
+     * Clean up after a single test.
+     * 
+     * @throws Exception An exception occurred.
+     */
+    @After
+    public void tearDown() throws Exception {
+        Common.deleteDir(dir);
+    }
+    
+    /** Test. @throws Exception the exception */
+    @Test
+    public void keyStability() throws Exception {
+        String key = key(IMAGE, ".png", 9);
+        assertTrue(key.matches("[0-9a-f]{40}"));
+        assertEquals(key, key(IMAGE, ".png", 9));
+        
+        // The key doesn't depend on the cache or on how the image is painted
+        cache = new ImageCache(new File(dir, "other"), 1000);
+        assertEquals(key, key("10 20 translate 3 dup scale " + IMAGE,
+                ".png", 9));
+    }
+    
+    /** Test. @throws Exception the exception */
+    @Test
+    public void keyParameters() throws Exception {
+        List<String> keys = new ArrayList<String>();
+        keys.add(key(IMAGE, ".png", 9));
+        keys.add(key(IMAGE, ".eps", 9));
+        keys.add(key(IMAGE, ".png", 1));
+        keys.add(key(IMAGE.replace("77>", "78>"), ".png", 9));
+        keys.add(key(IMAGE.replace("[0 1]", "[1 0]"), ".png", 9));
+        keys.add(key(IMAGE.replace("false", "true"), ".png", 9));
+        
+        // The rows are read in the same order if the first line is at the
+        // bottom of the output.
+        keys.add(key(IMAGE.replace("[4 0 0 -2 0 2]", "[4 0 0 2 0 0]"),
+                ".png", 9));
+        
+        // The packed rows of these images are all 1110 followed by zero
+        // bits, only the width, height or number of bits differ.
+        String bits = IMAGE.replace("0011223344556677", "E0E0")
+            .replace("/BitsPerComponent 8", "/BitsPerComponent 1");
+        keys.add(key(bits, ".png", 9));
+        keys.add(key(bits.replace("/Width 4", "/Width 3")
+                .replace("[4 0 0", "[3 0 0"), ".png", 9));
+        keys.add(key(bits.replace("/BitsPerComponent 1",
+                "/BitsPerComponent 2"), ".png", 9));
+        keys.add(key(bits.replace("/Height 2", "/Height 1")
+                .replace("-2 0 2]", "-1 0 1]").replace("E0E0", "E0"),
+                ".png", 9));
+        keys.add(key("[/CIEBasedA << /WhitePoint [0.9505 1 1.089] >>]"
+                + " setcolorspace " + IMAGE, ".png", 9));
+        
+        // Masks with different colors
+        String mask = "4 2 true [4 0 0 -2 0 2] {<50A0>} imagemask";
+        keys.add(key("0 setgray " + mask, ".png", 9));
+        keys.add(key("0.5 setgray " + mask, ".png", 9));
+        
+        for (int i = 0; i < keys.size(); i++) {
+            for (int j = 0; j < i; j++) {
+                assertFalse("keys " + j + " and " + i,
+                        keys.get(i).equals(keys.get(j)));
+            }
+        }
+    }
+    
+    /** Test. @throws Exception the exception */
+    @Test
+    public void cacheHit() throws Exception {
+        String key = key(IMAGE, ".png", 9);
+        assertNull(cache.openEntry(key, ".png"));
+        
+        // Only the part of the file at the offset is added
+        File src = new File(dir, "src.bin");
+        Common.writeFile(src, "headerDATA trailer".getBytes("ISO-8859-1"));
+        cache.addEntry(key, ".png", src, 6, 4);
+        assertEquals("DATA", read(cache.openEntry(key, ".png")));
+        assertNull(cache.openEntry(key, ".eps"));
+        
+        // The entry is shared with other caches in the same directory
+        ImageCache other = new ImageCache(dir, 0);
+        assertEquals("DATA", read(other.openEntry(key, ".png")));
+    }
+    
+    /** Test. @throws Exception the exception */
+    @Test
+    public void atomicPublish() throws Exception {
+        File src = new File(dir, "src.bin");
+        Common.writeFile(src, "0123456789".getBytes("ISO-8859-1"));
+        String key = entryKey('a');
+        cache.addEntry(key, ".png", src, 0, 10);
+        
+        // Only the entry is added, no temporary files are left behind
+        assertEquals(Arrays.asList(key + ".png", "src.bin"), list(dir));
+        
+        // An entry is never replaced by an incomplete one. If the data
+        // can't be read, nothing is published and the cache is disabled.
+        cache.addEntry(entryKey('b'), ".png", src, 5, 10);
+        assertEquals(Arrays.asList(key + ".png", "src.bin"), list(dir));
+        assertNull(cache.openEntry(key, ".png"));
+        
+        // Adding an entry that was added by another conversion in the
+        // meantime
+        ImageCache other = new ImageCache(dir, 0);
+        other.addEntry(key, ".png", src, 0, 10);
+        assertEquals(Arrays.asList(key + ".png", "src.bin"), list(dir));
+        assertEquals("0123456789", read(other.openEntry(key, ".png")));
+    }
+    
+    /** Test. @throws Exception the exception */
+    @Test
+    public void leastRecentlyUsed() throws Exception {
+        cache = new ImageCache(dir, 25);
+        File src = new File(dir, "src.bin");
+        Common.writeFile(src, "0123456789".getBytes("ISO-8859-1"));
+        
+        // Files that are no entries are neither counted nor removed
+        File other = new File(dir, "notes.txt");
+        Common.writeFile(other, new byte[100]);
+        
+        long now = System.currentTimeMillis();
+        cache.addEntry(entryKey('a'), ".png", src, 0, 10);
+        new File(dir, entryKey('a') + ".png").setLastModified(now - 30000);
+        cache.addEntry(entryKey('b'), ".eps", src, 0, 10);
+        new File(dir, entryKey('b') + ".eps").setLastModified(now - 20000);
+        assertEquals(4, list(dir).size());
+        
+        // Opening the oldest entry makes it the most recently used one
+        read(cache.openEntry(entryKey('a'), ".png"));
+        cache.addEntry(entryKey('c'), ".png", src, 0, 10);
+        assertEquals(Arrays.asList(entryKey('a') + ".png",
+                entryKey('c') + ".png", "notes.txt", "src.bin"), list(dir));
+        
+        // Entries are removed until the total size is within the limit
+        cache = new ImageCache(dir, 5);
+        new File(dir, entryKey('c') + ".png").setLastModified(now - 10000);
+        new File(dir, entryKey('a') + ".png").setLastModified(now - 5000);
+        cache.addEntry(entryKey('d'), ".png", src, 0, 4);
+        assertEquals(Arrays.asList(entryKey('d') + ".png", "notes.txt",
+                "src.bin"), list(dir));
+    }
+    
+    /**
+     * Paints an image and computes its key.
+     * 
+     * @param cmd PostScript code that paints the image.
+     * @param extension Extension of the entry.
+     * @param level Compression level.
+     * 
+     * @return The key.
+     * 
+     * @throws Exception the exception
+     */
+    private String key(final String cmd, final String extension,
+            final int level) throws Exception {
+        Interpreter interp = new Interpreter();
+        interp.getOptions().setCompressionLevel(level);
+        KeyDevice device = new KeyDevice(interp, extension);
+        interp.getGstate().current().setDevice(device);
+        String image = cmd.endsWith(">>") ? cmd + " image" : cmd;
+        assertTrue(net.sf.eps2pgf.testsuite.pstests.Common.testString(
+                interp, image + " true", 1));
+        if (device.error != null) {
+            throw device.error;
+        }
+        assertNotNull(device.key);
+        return device.key;
+    }
+    
+    /**
+     * Creates a key of an entry.
+     * 
+     * @param c Hexadecimal digit that is repeated.
+     * 
+     * @return The key.
+     */
+    private static String entryKey(final char c) {
+        char[] key = new char[40];
+        Arrays.fill(key, c);
+        return new String(key);
+    }
+    
+    /**
+     * Reads and closes an entry.
+     * 
+     * @param in Stream from which the entry is read.
+     * 
+     * @return Contents of the entry.
+     * 
+     * @throws Exception the exception
+     */
+    private static String read(final FileInputStream in) throws Exception {
+        assertNotNull(in);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            ImageCache.copy(in, out, -1);
+        } finally {
+            in.close();
+        }
+        return out.toString("ISO-8859-1");
+    }
+    
+    /**
+     * Lists the names of the files in a directory, sorted by name.
+     * 
+     * @param directory The directory.
+     * 
+     * @return The sorted names.
+     */
+    private static List<String> list(final File directory) {
+        String[] names = directory.list();
+        Arrays.sort(names);
+        return Arrays.asList(names);
+    }
+    
+    /**
+     * Device that computes the key of the painted image.
+     */
+    private class KeyDevice extends NullDevice {
+        /** The interpreter. */
+        private Interpreter interp;
+        
+        /** Extension of the entry. */
+        private String extension;
+        
+        /** Key of the last image. */
+        private String key = null;
+        
+        /** Error that occurred while computing the key, or null. */
+        private Exception error = null;
+        
+        /**
+         * Creates a new device.
+         * 
+         * @param pInterp The interpreter.
+         * @param pExtension Extension of the entry.
+         */
+        KeyDevice(final Interpreter pInterp, final String pExtension) {
+            interp = pInterp;
+            extension = pExtension;
+        }
+        
+        /**
+         * Computes the key of an image.
+         * 
+         * @param img The image.
+         */
+        @Override
+        public void image(final Image img) {
+            try {
+                key = cache.computeKey(img, extension, interp);
+            } catch (Exception e) {
+                error = e;
+            }
+        }
+    }
+}
@@ -0,0 +1,566 @@
+/*
+ * This file is part of Eps2pgf.
+ *
+ * Copyright 2007-2009 Paul Wagenaars
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sf.eps2pgf.testsuite.unittests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import net.sf.eps2pgf.ps.Image;
+import net.sf.eps2pgf.ps.ImageRowTranscoder;
+import net.sf.eps2pgf.ps.Interpreter;
+import net.sf.eps2pgf.ps.resources.outputdevices.NullDevice;
+
+/**
+ * Tests reading bitmap images in all eight orientations with the row
+ * transcoder. The rows are compared with the samples expected from the
+ * image matrix, and with the samples read pixel by pixel. The data is read
+ * while it is streamed from the data source, from memory and from a
+ * temporary file.
+ */
+public class ImageRowTranscoderTest {
+    
+    /** Width (in pixels) of the test images. */
+    private static final int WIDTH = 5;
+    
+    /** Height (in pixels) of the test images. */
+    private static final int HEIGHT = 3;
+    
+    /** Number of orientations: four rotations, with and without flip. */
+    private static final int NR_ORIENTATIONS = 8;
+    
+    /** The tested numbers of bits per component. */
+    private static final int[] BITS_PER_COMPONENT = {1, 2, 4, 8, 12, 16};
+    
+    /** The PostScript interpreter. */
+    private Interpreter interp = null;
+    
+    /** Reads the images painted by the interpreter. */
+    private ReadDevice device = null;
+    
+    /** Random generator for the image data. */
+    private Random random = new Random(42);
+    
+    /**
+     * Sets up the class.
+     * 
+     * @throws Exception the exception
+     */
+    @BeforeClass
+    public static void setUpClass() throws Exception {
+        Logger.getLogger("net.sourceforge.eps2pgf").setLevel(Level.OFF);
+    }
+    
+    /**
+     * Set up a single test.
+     * 
+     * @throws Exception An exception occurred.
+     */
+    @Before
+    public void setUp() throws Exception {
+        interp = new Interpreter();
+        device = new ReadDevice();
+        interp.getGstate().current().setDevice(device);
+    }
+    
+    /** Test. @throws Exception the exception */
+    @Test
+    public void grayOrientations() throws Exception {
+        for (int bpc : BITS_PER_COMPONENT) {
+            for (int i = 0; i < NR_ORIENTATIONS; i++) {
+                checkImage(matrix(i, WIDTH, HEIGHT), bpc, 1);
+            }
+        }
+    }
+    
+    /** Test. @throws Exception the exception */
+    @Test
+    public void rgbOrientations() throws Exception {
+        for (int bpc : BITS_PER_COMPONENT) {
+            for (int i = 0; i < NR_ORIENTATIONS; i++) {
+                checkImage(matrix(i, WIDTH, HEIGHT), bpc, 3);
+            }
+        }
+    }
+    
+    /** Test. @throws Exception the exception */
+    @Test
+    public void downsampleAverage() throws Exception {
+        // The image is painted in a square of 1pt by 1pt, so it has
+        // a resolution of 360 by 288 dpi. At 144 dpi, blocks of 2 by 2
+        // pixels are averaged, and the last block of each row is a single
+        // column wide.
+        String cmd = "5 4 8 [5 0 0 -4 0 4] {<"
+            + "0A141E2832 0B16212C37 0000FFFF07 0102FEFF08>} image";
+        checkDownsampled(cmd, 144.0, 8, new int[][] {
+            {16, 37, 53},
+            {1, 255, 8}});
+    }
+    
+    /** Test. @throws Exception the exception */
+    @Test
+    public void downsampleLastRow() throws Exception {
+        // At 100 dpi, blocks of 3 by 2 pixels are averaged. The last block
+        // of each row is two columns wide, and the last row is a single
+        // line high.
+        String cmd = "5 3 8 [5 0 0 -3 0 3] {<"
+            + "0A141E2832 0B16212C37 0000FFFF07>} image";
+        checkDownsampled(cmd, 100.0, 8, new int[][] {
+            {21, 47},
+            {85, 131}});
+    }
+    
+    /** Test. @throws Exception the exception */
+    @Test
+    public void downsampleRgb() throws Exception {
+        // Components are averaged separately, halves are rounded up.
+        String cmd = "4 1 8 [4 0 0 -1 0 1] {<"
+            + "0A141E 141E29 000000 FFFFFF>} false 3 colorimage";
+        checkDownsampled(cmd, 144.0, 8, new int[][] {
+            {15, 25, 36, 128, 128, 128}});
+    }
+    
+    /** Test. @throws Exception the exception */
+    @Test
+    public void downsampleOneBit() throws Exception {
+        // 1-bit samples can't be averaged, the first pixel of each block is
+        // taken. Lines 1 and 3 are the inverse of lines 0 and 2, such that
+        // averaging would change the result.
+        String cmd = "5 4 1 [5 0 0 -4 0 4] {<98 60 60 98>} image";
+        checkDownsampled(cmd, 144.0, 1, new int[][] {
+            {1, 0, 1},
+            {0, 1, 0}});
+    }
+    
+    /** Test. @throws Exception the exception */
+    @Test
+    public void downsampleIndexed() throws Exception {
+        // Indices in the color table can't be averaged either.
+        String cmd = "[/Indexed /DeviceRGB 3 <FF0000 00FF00 0000FF 000000>]"
+            + " setcolorspace"
+            + " << /ImageType 1 /Width 5 /Height 4 /ImageMatrix"
+            + " [5 0 0 -4 0 4] /DataSource {<0001020301 0303030303"
+            + " 0200010003 0000000000>} /BitsPerComponent 8"
+            + " /Decode [0 255] >> image";
+        checkDownsampled(cmd, 144.0, 8, new int[][] {
+            {0, 2, 1},
+            {2, 1, 3}});
+    }
+    
+    /** Test. @throws Exception the exception */
+    @Test
+    public void spilledSidecars() throws Exception {
+        // The image files must be the same whether the data of rotated
+        // images is stored on the heap or in a temporary file, and whether
+        // the data of the other images is streamed.
+        int width = 40;
+        int height = 30;
+        byte[] data = new byte[3 * width * height];
+        random.nextBytes(data);
+        File dir = Common.createTempDir();
+        try {
+            File heapDir = new File(dir, "heap");
+            File spillDir = new File(dir, "spill");
+            for (int i = 0; i < NR_ORIENTATIONS; i++) {
+                StringBuilder body = new StringBuilder("10 10 translate"
+                        + " 80 80 scale " + width + " " + height + " 8 [");
+                for (int m : matrix(i, width, height)) {
+                    body.append(" " + m);
+                }
+                body.append("] {<" + toHex(data) + ">} false 3 colorimage");
+                
+                heapDir.mkdir();
+                spillDir.mkdir();
+                String heap = Common.convert(heapDir, body.toString());
+                String spill = Common.convert(spillDir, body.toString(),
+                        "--image-spill", "1");
+                assertEquals(heap, spill);
+                assertEquals(sidecar(heapDir), sidecar(spillDir));
+                Common.deleteDir(heapDir);
+                Common.deleteDir(spillDir);
+            }
+        } finally {
+            Common.deleteDir(dir);
+        }
+    }
+    
+    /**
+     * Gets the image matrix of one of the eight orientations.
+     * 
+     * @param orientation The orientation, from 0 up to NR_ORIENTATIONS.
+     * @param width Width (in pixels) of the image.
+     * @param height Height (in pixels) of the image.
+     * 
+     * @return The image matrix, mapping the unit square onto the image.
+     */
+    private static int[] matrix(final int orientation, final int width,
+            final int height) {
+        int[][] matrices = {
+            {width, 0, 0, height, 0, 0},
+            {width, 0, 0, -height, 0, height},
+            {-width, 0, 0, height, width, 0},
+            {-width, 0, 0, -height, width, height},
+            {0, height, width, 0, 0, 0},
+            {0, -height, width, 0, 0, height},
+            {0, height, -width, 0, width, 0},
+            {0, -height, -width, 0, width, height},
+        };
+        return matrices[orientation];
+    }
+    
+    /**
+     * Reads the PDF image file written by a conversion, without its creation
+     * date and file identifier.
+     * 
+     * @param dir The directory with the output of the conversion.
+     * 
+     * @return Contents of the file.
+     * 
+     * @throws Exception the exception
+     */
+    private static String sidecar(final File dir) throws Exception {
+        String pdf = new String(Common.readFile(new File(dir,
+                "test-image1.pdf")), "ISO-8859-1");
+        pdf = pdf.replaceAll("/CreationDate \\(D:[^)]*\\)", "");
+        return pdf.replaceAll("/ID \\[[^]]*\\]", "");
+    }
+    
+    /**
+     * Converts data to a hexadecimal string.
+     * 
+     * @param data The data.
+     * 
+     * @return The hexadecimal string.
+     */
+    private static String toHex(final byte[] data) {
+        StringBuilder hex = new StringBuilder();
+        for (byte b : data) {
+            hex.append(Integer.toHexString(0x100 | (b & 0xff)).substring(1));
+        }
+        return hex.toString();
+    }
+    
+    /**
+     * Paints an image with random data in all read modes, and checks the
+     * samples that are read.
+     * 
+     * @param matrix The image matrix.
+     * @param bpc Number of bits per component.
+     * @param nrComponents Number of components per pixel.
+     * 
+     * @throws Exception the exception
+     */
+    private void checkImage(final int[] matrix, final int bpc,
+            final int nrComponents) throws Exception {
+        // The padding bits at the end of the lines are random too.
+        int bytesPerLine = (WIDTH * nrComponents * bpc + 7) / 8;
+        byte[] data = new byte[bytesPerLine * HEIGHT];
+        random.nextBytes(data);
+        String msg = Arrays.toString(matrix) + " " + bpc + " bits, "
+            + nrComponents + " components";
+        
+        StringBuilder cmd = new StringBuilder(WIDTH + " " + HEIGHT + " "
+                + bpc + " [");
+        for (int m : matrix) {
+            cmd.append(" " + m);
+        }
+        cmd.append("] {<" + toHex(data) + ">} ");
+        cmd.append((nrComponents == 1) ? "image" : "false 3 colorimage");
+        cmd.append(" true");
+        
+        List<int[]> expected = expectedRows(data, matrix, bpc, nrComponents);
+        List<byte[]> expectedPacked = new ArrayList<byte[]>();
+        for (int[] row : expected) {
+            expectedPacked.add(pack(row, bpc));
+        }
+        
+        for (int mode = ReadDevice.ROWS; mode <= ReadDevice.STORED; mode++) {
+            for (long spill = 0; spill <= 1; spill++) {
+                // With a threshold of one byte, stored data is always
+                // spilled to a temporary file.
+                interp.getOptions().setImageSpillThreshold(spill);
+                device.mode = mode;
+                device.clear();
+                assertTrue(net.sf.eps2pgf.testsuite.pstests.Common.testString(
+                        interp, cmd.toString(), 1));
+                device.rethrow();
+                String modeMsg = msg + ", mode " + mode + ", spill " + spill;
+                if (mode != ReadDevice.PACKED) {
+                    assertRows(modeMsg, expected, device.rows);
+                }
+                if (mode != ReadDevice.ROWS) {
+                    assertPackedRows(modeMsg, expectedPacked, device.packed);
+                }
+                if (mode == ReadDevice.STORED) {
+                    assertRows(modeMsg + ", pixels", expected, device.pixels);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Paints a downsampled image, and checks the rows that are read while
+     * the data is streamed and from the stored data.
+     * 
+     * @param cmd PostScript code that paints the image.
+     * @param dpi Resolution to which the image is downsampled.
+     * @param bpc Number of bits per component.
+     * @param expected The expected rows, from top to bottom.
+     * 
+     * @throws Exception the exception
+     */
+    private void checkDownsampled(final String cmd, final double dpi,
+            final int bpc, final int[][] expected) throws Exception {
+        List<int[]> expectedRows = Arrays.asList(expected);
+        List<byte[]> expectedPacked = new ArrayList<byte[]>();
+        for (int[] row : expected) {
+            expectedPacked.add(pack(row, bpc));
+        }
+        device.dpi = dpi;
+        for (int mode = ReadDevice.ROWS; mode <= ReadDevice.STORED; mode++) {
+            device.mode = mode;
+            device.clear();
+            // The image is painted in a square of 1pt by 1pt.
+            assertTrue(net.sf.eps2pgf.testsuite.pstests.Common.testString(
+                    interp, "matrix currentmatrix 25400 72 div dup scale "
+                    + cmd + " setmatrix true", 1));
+            device.rethrow();
+            String msg = "mode " + mode;
+            if (mode != ReadDevice.PACKED) {
+                assertRows(msg, expectedRows, device.rows);
+            }
+            if (mode != ReadDevice.ROWS) {
+                assertPackedRows(msg, expectedPacked, device.packed);
+            }
+        }
+    }
+    
+    /**
+     * Determines the expected samples of an image, by looking up the image
+     * pixel at the center of each output pixel.
+     * 
+     * @param data The image data.
+     * @param matrix The image matrix.
+     * @param bpc Number of bits per component.
+     * @param nrComponents Number of components per pixel.
+     * 
+     * @return The rows of the image in the output, from top to bottom.
+     */
+    private static List<int[]> expectedRows(final byte[] data,
+            final int[] matrix, final int bpc, final int nrComponents) {
+        // The image is painted in the unit square, the output rows are
+        // lines of the data if the image isn't rotated.
+        boolean rotated = (matrix[0] == 0);
+        int outWidth = rotated ? HEIGHT : WIDTH;
+        int outHeight = rotated ? WIDTH : HEIGHT;
+        int bytesPerLine = (WIDTH * nrComponents * bpc + 7) / 8;
+        List<int[]> rows = new ArrayList<int[]>();
+        for (int y = outHeight - 1; y >= 0; y--) {
+            int[] row = new int[outWidth * nrComponents];
+            for (int x = 0; x < outWidth; x++) {
+                double u = (x + 0.5) / outWidth;
+                double v = (y + 0.5) / outHeight;
+                int col = (int) Math.floor(matrix[0] * u + matrix[2] * v
+                        + matrix[4]);
+                int line = (int) Math.floor(matrix[1] * u + matrix[3] * v
+                        + matrix[5]);
+                for (int c = 0; c < nrComponents; c++) {
+                    int bit = 8 * bytesPerLine * line
+                        + bpc * (nrComponents * col + c);
+                    int sample = 0;
+                    for (int b = bit; b < bit + bpc; b++) {
+                        sample = (sample << 1)
+                            | ((data[b / 8] >> (7 - b % 8)) & 1);
+                    }
+                    row[x * nrComponents + c] = sample;
+                }
+            }
+            rows.add(row);
+        }
+        return rows;
+    }
+    
+    /**
+     * Packs samples into bytes, padded with zero bits.
+     * 
+     * @param samples The samples.
+     * @param bpc Number of bits per sample.
+     * 
+     * @return The packed samples.
+     */
+    private static byte[] pack(final int[] samples, final int bpc) {
+        byte[] packed = new byte[(samples.length * bpc + 7) / 8];
+        for (int i = 0; i < samples.length; i++) {
+            for (int b = 0; b < bpc; b++) {
+                if (((samples[i] >> (bpc - 1 - b)) & 1) != 0) {
+                    int bit = i * bpc + b;
+                    packed[bit / 8] |= (byte) (0x80 >> (bit % 8));
+                }
+            }
+        }
+        return packed;
+    }
+    
+    /**
+     * Checks the unpacked rows that were read.
+     * 
+     * @param msg Message that describes the image.
+     * @param expected The expected rows, from top to bottom.
+     * @param rows The rows that were read, from top to bottom.
+     */
+    private static void assertRows(final String msg,
+            final List<int[]> expected, final List<int[]> rows) {
+        assertEquals(msg, expected.size(), rows.size());
+        for (int y = 0; y < expected.size(); y++) {
+            assertTrue(msg + ", row " + y + ": "
+                    + Arrays.toString(rows.get(y)),
+                    Arrays.equals(expected.get(y), rows.get(y)));
+        }
+    }
+    
+    /**
+     * Checks the packed rows that were read.
+     * 
+     * @param msg Message that describes the image.
+     * @param expected The expected rows, from top to bottom.
+     * @param rows The rows that were read, from top to bottom.
+     */
+    private static void assertPackedRows(final String msg,
+            final List<byte[]> expected, final List<byte[]> rows) {
+        assertEquals(msg, expected.size(), rows.size());
+        for (int y = 0; y < expected.size(); y++) {
+            assertTrue(msg + ", packed row " + y,
+                    Arrays.equals(expected.get(y), rows.get(y)));
+        }
+    }
+    
+    /**
+     * Device that reads the samples of the painted images.
+     */
+    private static class ReadDevice extends NullDevice {
+        /** Read unpacked rows while the data is streamed. */
+        static final int ROWS = 0;
+        
+        /** Read packed rows while the data is streamed. */
+        static final int PACKED = 1;
+        
+        /**
+         * Store the data first, then read unpacked rows, packed rows and
+         * the individual pixels.
+         */
+        static final int STORED = 2;
+        
+        /** How the images are read. */
+        private int mode = ROWS;
+        
+        /** Resolution to which images are downsampled, zero for none. */
+        private double dpi = 0.0;
+        
+        /** Unpacked rows of the last image, from top to bottom. */
+        private List<int[]> rows = new ArrayList<int[]>();
+        
+        /** Packed rows of the last image, from top to bottom. */
+        private List<byte[]> packed = new ArrayList<byte[]>();
+        
+        /** Rows of the last image read pixel by pixel, top to bottom. */
+        private List<int[]> pixels = new ArrayList<int[]>();
+        
+        /** Error that occurred while reading an image, or null. */
+        private Exception error = null;
+        
+        /**
+         * Reads the samples of an image.
+         * 
+         * @param img The image.
+         */
+        @Override
+        public void image(final Image img) {
+            try {
+                int nrComponents = img.getNrComponents();
+                if (dpi > 0.0) {
+                    img.downsample(dpi);
+                }
+                if (mode == STORED) {
+                    img.storeData();
+                    for (int y = img.getOutputHeightPx() - 1; y >= 0; y--) {
+                        int[] row = new int[img.getOutputWidthPx()
+                                            * nrComponents];
+                        for (int x = 0; x < img.getOutputWidthPx(); x++) {
+                            System.arraycopy(img.getPixelInputIntValues(x, y),
+                                    0, row, x * nrComponents, nrComponents);
+                        }
+                        pixels.add(row);
+                    }
+                }
+                if (mode != PACKED) {
+                    ImageRowTranscoder transcoder = img.getRowTranscoder();
+                    for (int y = 0; y < transcoder.getHeight(); y++) {
+                        int[] row = new int[transcoder.getWidth()
+                                            * nrComponents];
+                        transcoder.readRow(row);
+                        rows.add(transcoder.isTopDown() ? rows.size() : 0,
+                                row);
+                    }
+                }
+                if (mode != ROWS) {
+                    ImageRowTranscoder transcoder = img.getRowTranscoder();
+                    for (int y = 0; y < transcoder.getHeight(); y++) {
+                        byte[] row = new byte[transcoder.getPackedRowLength()];
+                        transcoder.readPackedRow(row);
+                        packed.add(transcoder.isTopDown() ? packed.size() : 0,
+                                row);
+                    }
+                }
+            } catch (Exception e) {
+                error = e;
+            }
+        }
+        
+        /**
+         * Removes the rows of the previous image.
+         */
+        void clear() {
+            rows.clear();
+            packed.clear();
+            pixels.clear();
+        }
+        
+        /**
+         * Throws the error that occurred while reading an image, if any.
+         * 
+         * @throws Exception The error.
+         */
+        void rethrow() throws Exception {
+            if (error != null) {
+                throw error;
+            }
+        }
+    }
+}
@@ -0,0 +1,219 @@
+/*
+ * This file is part of Eps2pgf.
+ *
+ * Copyright 2007-2009 Paul Wagenaars
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sf.eps2pgf.testsuite.unittests;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import net.sf.eps2pgf.Options;
+import net.sf.eps2pgf.ps.Closepath;
+import net.sf.eps2pgf.ps.Lineto;
+import net.sf.eps2pgf.ps.Moveto;
+import net.sf.eps2pgf.ps.PathSection;
+import net.sf.eps2pgf.ps.resources.outputdevices.PGFDevice;
+
+/**
+ * Tests which scopes and which graphics state settings are written by the
+ * PGF device.
+ */
+public class PGFDeviceTest {
+    
+    /** Red in the RGB color model. */
+    private static final double[] RED = {1, 0, 0};
+    
+    /** Blue in the RGB color model. */
+    private static final double[] BLUE = {0, 0, 1};
+    
+    /** Output of the device. */
+    private StringWriter out = null;
+    
+    /** The device. */
+    private PGFDevice device = null;
+    
+    /**
+     * Set up a single test.
+     * 
+     * @throws Exception An exception occurred.
+     */
+    @Before
+    public void setUp() throws Exception {
+        Options opts = new Options();
+        opts.parse(new String[0]);
+        out = new StringWriter();
+        device = new PGFDevice(out, opts);
+        device.init();
+    }
+    
+    /** Test. @throws Exception the exception */
+    @Test
+    public void emptyScopes() throws Exception {
+        device.startScope();
+        device.endScope();
+        device.startScope();
+        device.startScope();
+        setColor(RED);
+        device.endScope();
+        device.endScope();
+        assertOutput();
+    }
+    
+    /** Test. @throws Exception the exception */
+    @Test
+    public void singleScope() throws Exception {
+        // Enclosing scopes that are still empty are not written.
+        device.startScope();
+        device.startScope();
+        setColor(RED);
+        device.fill(square(0));
+        device.endScope();
+        device.endScope();
+        assertOutput("\\begin{pgfscope}", "red", "fill", "\\end{pgfscope}");
+    }
+    
+    /** Test. @throws Exception the exception */
+    @Test
+    public void stateRestoredAfterScope() throws Exception {
+        // The color that was set before the scope is used in the scope and
+        // after it, it is written only once.
+        setColor(RED);
+        device.fill(square(0));
+        device.startScope();
+        device.fill(square(1));
+        device.endScope();
+        device.fill(square(2));
+        
+        // The color in the output is red again after the scope, so blue must
+        // be written again.
+        device.startScope();
+        setColor(BLUE);
+        device.fill(square(3));
+        device.endScope();
+        device.fill(square(4));
+        
+        // Same, but now the color in the output is blue after the scope.
+        device.startScope();
+        setColor(RED);
+        device.fill(square(5));
+        device.endScope();
+        device.fill(square(6));
+        assertOutput("red", "fill",
+                "\\begin{pgfscope}", "fill", "\\end{pgfscope}",
+                "fill",
+                "\\begin{pgfscope}", "blue", "fill", "\\end{pgfscope}",
+                "blue", "fill",
+                "\\begin{pgfscope}", "red", "fill", "\\end{pgfscope}",
+                "red", "fill");
+    }
+    
+    /** Test. @throws Exception the exception */
+    @Test
+    public void nestedScopes() throws Exception {
+        setColor(RED);
+        device.startScope();
+        setColor(BLUE);
+        device.fill(square(0));
+        device.startScope();
+        device.setLineStyle(2000.0, new double[0], 0.0, 0, 0, 10.0);
+        device.stroke(square(1));
+        device.endScope();
+        
+        // The output restores the line width at the end of the inner scope,
+        // and the color at the end of the outer scope. Both must be written
+        // again.
+        device.stroke(square(2));
+        device.endScope();
+        device.fill(square(3));
+        device.setLineStyle(2000.0, new double[0], 0.0, 0, 0, 10.0);
+        device.stroke(square(4));
+        assertOutput("\\begin{pgfscope}", "blue", "fill",
+                "\\begin{pgfscope}", "\\pgfsetlinewidth{2mm}", "stroke",
+                "\\end{pgfscope}",
+                "\\pgfsetlinewidth{2mm}", "stroke", "\\end{pgfscope}",
+                "blue", "fill", "\\pgfsetlinewidth{2mm}", "stroke");
+    }
+    
+    /**
+     * Sets the color.
+     * 
+     * @param rgb The color in the RGB color model.
+     */
+    private void setColor(final double[] rgb) {
+        device.setColor("DeviceRGB", rgb, "RGB", rgb);
+    }
+    
+    /**
+     * Finishes the output and checks it. Path construction, comments and the
+     * picture environment are ignored, color definitions are abbreviated to
+     * the color name, and paint operations to fill and stroke.
+     * 
+     * @param expected The expected lines.
+     * 
+     * @throws Exception the exception
+     */
+    private void assertOutput(final String... expected) throws Exception {
+        device.finish();
+        List<String> lines = new ArrayList<String>();
+        for (String line : out.toString().split("\n")) {
+            if (line.startsWith("%") || line.startsWith("\\pgfpath")
+                    || line.contains("{pgfpicture}")) {
+                continue;
+            } else if (line.startsWith("\\definecolor")) {
+                if (line.contains("{rgb}{1,0,0}")) {
+                    line = "red";
+                } else if (line.contains("{rgb}{0,0,1}")) {
+                    line = "blue";
+                }
+            } else if (line.equals("\\pgfusepath{fill}")) {
+                line = "fill";
+            } else if (line.equals("\\pgfusepath{stroke}")) {
+                line = "stroke";
+            }
+            lines.add(line);
+        }
+        assertEquals(out.toString(), Arrays.asList(expected).toString(),
+                lines.toString());
+    }
+    
+    /**
+     * Creates a closed square path, which doesn't overlap the squares with
+     * another index.
+     * 
+     * @param index Index of the square.
+     * 
+     * @return The sections of the path.
+     */
+    private static List<PathSection> square(final int index) {
+        double x = 1000.0 * index;
+        List<PathSection> path = new ArrayList<PathSection>();
+        path.add(new Moveto(x, 0));
+        path.add(new Lineto(x + 500, 0));
+        path.add(new Lineto(x + 500, 500));
+        path.add(new Lineto(x, 500));
+        path.add(new Closepath());
+        path.add(new Moveto(x, 0));
+        return path;
+    }
+}
@@ -0,0 +1,207 @@
+/*
+ * This file is part of Eps2pgf.
+ *
+ * Copyright 2007-2009 Paul Wagenaars
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sf.eps2pgf.testsuite.unittests;
+
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import org.junit.Test;
+
+import net.sf.eps2pgf.io.ParallelDeflaterOutputStream;
+
+/**
+ * Tests the deflater that compresses with several threads.
+ */
+public class ParallelDeflaterOutputStreamTest {
+    
+    /** Size (in bytes) of the blocks that are compressed independently. */
+    private static final int BLOCK_SIZE = 128 * 1024;
+    
+    /** Test. @throws Exception the exception */
+    @Test
+    public void concurrentStreams() throws Exception {
+        final byte[] data = testData(3 * BLOCK_SIZE + 1000, 1);
+        final Throwable[] failure = new Throwable[2];
+        Thread[] threads = new Thread[2];
+        for (int t = 0; t < threads.length; t++) {
+            final int index = t;
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        // The streams of both threads use different numbers
+                        // of threads, which used to shut down the pool of
+                        // the other stream.
+                        for (int i = 0; i < 20; i++) {
+                            byte[] compressed = compress(data, 6,
+                                    2 + (i + index) % 2);
+                            if (!Arrays.equals(data, inflate(compressed))) {
+                                throw new AssertionError("Data differs.");
+                            }
+                        }
+                    } catch (Throwable e) {
+                        failure[index] = e;
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertTrue(String.valueOf(failure[0]), failure[0] == null);
+        assertTrue(String.valueOf(failure[1]), failure[1] == null);
+    }
+    
+    /** Test. @throws Exception the exception */
+    @Test
+    public void roundTrip() throws Exception {
+        int[] lengths = {0, 1, BLOCK_SIZE, 5 * BLOCK_SIZE + 123};
+        int[] levels = {0, 1, 6, 9};
+        int[] threads = {1, 2, 4};
+        for (int nrThreads : threads) {
+            for (int level : levels) {
+                for (int length : lengths) {
+                    byte[] data = testData(length, length + level);
+                    String message = length + " bytes, level " + level + ", "
+                        + nrThreads + " threads";
+                    assertTrue(message, Arrays.equals(data,
+                            inflate(compress(data, level, nrThreads))));
+                    assertTrue(message, Arrays.equals(data,
+                            inflate(compressMixed(data, level, nrThreads))));
+                }
+            }
+        }
+    }
+    
+    /**
+     * Compresses data with a ParallelDeflaterOutputStream. The data is
+     * written in pieces of different sizes, partly byte by byte, such that
+     * writes cross the block boundaries.
+     * 
+     * @param data The data.
+     * @param level Compression level.
+     * @param nrThreads Number of threads.
+     * 
+     * @return The compressed data.
+     * 
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    private static byte[] compressMixed(final byte[] data, final int level,
+            final int nrThreads) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ParallelDeflaterOutputStream out = new ParallelDeflaterOutputStream(
+                bytes, level, nrThreads);
+        Random random = new Random(data.length);
+        int pos = 0;
+        while (pos < data.length) {
+            if (random.nextInt(4) == 0) {
+                int end = Math.min(data.length, pos + random.nextInt(300));
+                while (pos < end) {
+                    out.write(data[pos++]);
+                }
+            } else {
+                int n = Math.min(data.length - pos,
+                        random.nextInt(BLOCK_SIZE / 2));
+                out.write(data, pos, n);
+                pos += n;
+            }
+        }
+        out.close();
+        return bytes.toByteArray();
+    }
+    
+    /**
+     * Compresses data with a ParallelDeflaterOutputStream.
+     * 
+     * @param data The data.
+     * @param level Compression level.
+     * @param nrThreads Number of threads.
+     * 
+     * @return The compressed data.
+     * 
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    static byte[] compress(final byte[] data, final int level,
+            final int nrThreads) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ParallelDeflaterOutputStream out = new ParallelDeflaterOutputStream(
+                bytes, level, nrThreads);
+        out.write(data, 0, data.length);
+        out.close();
+        return bytes.toByteArray();
+    }
+    
+    /**
+     * Inflates a zlib stream, and checks that it has no trailing data.
+     * 
+     * @param compressed The zlib stream.
+     * 
+     * @return The inflated data.
+     * 
+     * @throws DataFormatException The zlib stream is invalid.
+     */
+    static byte[] inflate(final byte[] compressed)
+            throws DataFormatException {
+        Inflater inf = new Inflater();
+        inf.setInput(compressed);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buf = new byte[8192];
+        while (!inf.finished()) {
+            int n = inf.inflate(buf);
+            if ((n == 0) && !inf.finished()
+                    && (inf.needsInput() || inf.needsDictionary())) {
+                throw new DataFormatException("Truncated zlib stream.");
+            }
+            bytes.write(buf, 0, n);
+        }
+        if (inf.getRemaining() != 0) {
+            throw new DataFormatException("Data after zlib stream.");
+        }
+        inf.end();
+        return bytes.toByteArray();
+    }
+    
+    /**
+     * Creates compressible test data: random words from a small vocabulary.
+     * 
+     * @param length Number of bytes.
+     * @param seed Seed of the random number generator.
+     * 
+     * @return The data.
+     */
+    static byte[] testData(final int length, final long seed) {
+        Random random = new Random(seed);
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            if (random.nextInt(8) == 0) {
+                data[i] = (byte) random.nextInt(256);
+            } else {
+                data[i] = (byte) ('a' + random.nextInt(4));
+            }
+        }
+        return data;
+    }
+}
@@ -0,0 +1,227 @@
+/*
+ * This file is part of Eps2pgf.
+ *
+ * Copyright 2007-2009 Paul Wagenaars
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sf.eps2pgf.testsuite.unittests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import net.sf.eps2pgf.ps.Closepath;
+import net.sf.eps2pgf.ps.Curveto;
+import net.sf.eps2pgf.ps.Lineto;
+import net.sf.eps2pgf.ps.Moveto;
+import net.sf.eps2pgf.ps.PathSection;
+import net.sf.eps2pgf.ps.resources.outputdevices.PGFDevice;
+import net.sf.eps2pgf.ps.resources.outputdevices.PathBatch;
+
+/**
+ * Tests which paths are merged, and how merged fills are written.
+ */
+public class PathBatchTest {
+    
+    /** Test. @throws Exception the exception */
+    @Test
+    public void counterclockwiseQuad() throws Exception {
+        double[] quad = {0, 0, 2, 0, 3, 2, 0, 1};
+        List<PathSection> path = polygon(quad, true);
+        PathBatch batch = new PathBatch(true);
+        assertEquals(PGFDevice.FILL, batch.getMergeOp(path, PGFDevice.FILL));
+        assertEquals(PGFDevice.FILL,
+                batch.getMergeOp(path, PGFDevice.EOFILL));
+        batch.add(path, PGFDevice.FILL, 0);
+        assertSections(quad, batch.getSections());
+    }
+    
+    /** Test. @throws Exception the exception */
+    @Test
+    public void clockwiseQuad() throws Exception {
+        // Clockwise polygons are written counterclockwise.
+        double[] quad = {0, 0, 0, 1, 3, 2, 2, 0};
+        PathBatch batch = new PathBatch(true);
+        List<PathSection> path = polygon(quad, true);
+        assertEquals(PGFDevice.FILL, batch.getMergeOp(path, PGFDevice.FILL));
+        batch.add(path, PGFDevice.FILL, 0);
+        assertSections(new double[] {0, 0, 2, 0, 3, 2, 0, 1},
+                batch.getSections());
+    }
+    
+    /** Test. @throws Exception the exception */
+    @Test
+    public void mergedFills() throws Exception {
+        PathBatch batch = new PathBatch(true);
+        List<PathSection> ccw = polygon(new double[] {0, 0, 1, 0, 1, 1}, true);
+        List<PathSection> cw = polygon(new double[] {5, 5, 5, 6, 6, 6}, false);
+        batch.add(ccw, batch.getMergeOp(ccw, PGFDevice.FILL), 3);
+        assertTrue(batch.canAdd(cw, batch.getMergeOp(cw, PGFDevice.FILL), 3));
+        assertTrue(!batch.canAdd(cw, batch.getMergeOp(cw, PGFDevice.FILL),
+                4));
+        assertTrue(!batch.canAdd(cw, PGFDevice.STROKE, 3));
+        batch.add(cw, PGFDevice.FILL, 3);
+        assertSections(new double[] {0, 0, 1, 0, 1, 1, 5, 5, 6, 6, 5, 6},
+                batch.getSections());
+    }
+    
+    /** Test. @throws Exception the exception */
+    @Test
+    public void collinearVertices() throws Exception {
+        // Points halfway an edge, also on the closing edge
+        PathBatch batch = new PathBatch(true);
+        double[] square = {0, 0, 1, 0, 2, 0, 2, 2, 0, 2, 0, 1};
+        assertEquals(PGFDevice.FILL, batch.getMergeOp(polygon(square, true),
+                PGFDevice.FILL));
+        double[] cwSquare = {0, 0, 0, 1, 0, 2, 2, 2, 2, 0, 1, 0};
+        List<PathSection> path = polygon(cwSquare, false);
+        assertEquals(PGFDevice.FILL, batch.getMergeOp(path, PGFDevice.FILL));
+        batch.add(path, PGFDevice.FILL, 0);
+        assertSections(new double[] {0, 0, 1, 0, 2, 0, 2, 2, 0, 2, 0, 1},
+                batch.getSections());
+        
+        // An edge that goes back on itself
+        double[] spike = {0, 0, 2, 0, 1, 0, 1, 1};
+        assertEquals(-1, batch.getMergeOp(polygon(spike, true),
+                PGFDevice.FILL));
+        
+        // All points on a line
+        double[] line = {0, 0, 1, 1, 2, 2};
+        assertEquals(-1, batch.getMergeOp(polygon(line, true),
+                PGFDevice.FILL));
+    }
+    
+    /** Test. @throws Exception the exception */
+    @Test
+    public void duplicateVertices() throws Exception {
+        PathBatch batch = new PathBatch(true);
+        
+        // Repeated point, and an explicit lineto back to the start
+        double[] triangle = {0, 0, 1, 0, 1, 0, 1, 1, 1, 1, 0, 0};
+        assertEquals(PGFDevice.FILL, batch.getMergeOp(polygon(triangle, true),
+                PGFDevice.FILL));
+        assertEquals(PGFDevice.FILL, batch.getMergeOp(polygon(triangle,
+                false), PGFDevice.FILL));
+        
+        // Only two different points
+        double[] degenerate = {0, 0, 1, 0, 1, 0, 0, 0};
+        assertEquals(-1, batch.getMergeOp(polygon(degenerate, true),
+                PGFDevice.FILL));
+    }
+    
+    /** Test. @throws Exception the exception */
+    @Test
+    public void pentagram() throws Exception {
+        // Every turn is in the same direction, but it winds around twice.
+        double[] star = new double[10];
+        for (int i = 0; i < 5; i++) {
+            double angle = Math.PI / 2.0 + i * 4.0 * Math.PI / 5.0;
+            star[2 * i] = Math.cos(angle);
+            star[2 * i + 1] = Math.sin(angle);
+        }
+        PathBatch batch = new PathBatch(true);
+        assertEquals(-1, batch.getMergeOp(polygon(star, true),
+                PGFDevice.FILL));
+        assertEquals(-1, batch.getMergeOp(polygon(star, true),
+                PGFDevice.EOFILL));
+        assertEquals(PGFDevice.STROKE, batch.getMergeOp(polygon(star, true),
+                PGFDevice.STROKE));
+    }
+    
+    /** Test. @throws Exception the exception */
+    @Test
+    public void concavePolygon() throws Exception {
+        double[] arrow = {0, 0, 2, 1, 0, 2, 1, 1};
+        PathBatch batch = new PathBatch(true);
+        assertEquals(-1, batch.getMergeOp(polygon(arrow, true),
+                PGFDevice.FILL));
+        assertEquals(PGFDevice.STROKE, batch.getMergeOp(polygon(arrow, true),
+                PGFDevice.STROKE));
+    }
+    
+    /** Test. @throws Exception the exception */
+    @Test
+    public void notPolygons() throws Exception {
+        PathBatch batch = new PathBatch(true);
+        
+        // Curve
+        List<PathSection> path = polygon(new double[] {0, 0, 1, 0, 1, 1},
+                true);
+        path.add(2, new Curveto(new double[] {1, 0.5}, new double[] {1, 0.5},
+                new double[] {1, 1}));
+        assertEquals(-1, batch.getMergeOp(path, PGFDevice.FILL));
+        
+        // Two subpaths
+        path = polygon(new double[] {0, 0, 1, 0, 1, 1}, true);
+        path.addAll(polygon(new double[] {5, 5, 6, 5, 6, 6}, true));
+        assertEquals(-1, batch.getMergeOp(path, PGFDevice.FILL));
+        
+        // Merging disabled
+        batch = new PathBatch(false);
+        path = polygon(new double[] {0, 0, 1, 0, 1, 1}, true);
+        assertEquals(-1, batch.getMergeOp(path, PGFDevice.FILL));
+        assertEquals(-1, batch.getMergeOp(path, PGFDevice.STROKE));
+    }
+    
+    /**
+     * Creates a polygon path: a moveto and linetos, optionally followed by
+     * a closepath and a moveto, like newpath ... closepath does.
+     * 
+     * @param pts The coordinates of the vertices: x1, y1, x2, y2, ...
+     * @param close Indicates whether the polygon is closed with closepath.
+     * 
+     * @return The sections of the path.
+     */
+    private static List<PathSection> polygon(final double[] pts,
+            final boolean close) {
+        List<PathSection> path = new ArrayList<PathSection>();
+        path.add(new Moveto(pts[0], pts[1]));
+        for (int i = 2; i < pts.length; i += 2) {
+            path.add(new Lineto(pts[i], pts[i + 1]));
+        }
+        if (close) {
+            path.add(new Closepath());
+            path.add(new Moveto(pts[0], pts[1]));
+        }
+        return path;
+    }
+    
+    /**
+     * Checks the sections of merged fills: a moveto, linetos and a
+     * closepath for each polygon.
+     * 
+     * @param pts The coordinates of the vertices of all polygons, in the
+     * order in which they should be written.
+     * @param sections The sections.
+     */
+    private static void assertSections(final double[] pts,
+            final List<PathSection> sections) {
+        int n = 0;
+        for (PathSection section : sections) {
+            if (section instanceof Closepath) {
+                continue;
+            }
+            assertEquals(pts[2 * n], section.getParam(0), 0.0);
+            assertEquals(pts[2 * n + 1], section.getParam(1), 0.0);
+            n++;
+        }
+        assertEquals(pts.length / 2, n);
+        assertTrue(sections.get(sections.size() - 1) instanceof Closepath);
+    }
+}
@@ -0,0 +1,363 @@
+/*
+ * This file is part of Eps2pgf.
+ *
+ * Copyright 2007-2009 Paul Wagenaars
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sf.eps2pgf.testsuite.unittests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import net.sf.eps2pgf.Options;
+import net.sf.eps2pgf.ps.Closepath;
+import net.sf.eps2pgf.ps.Lineto;
+import net.sf.eps2pgf.ps.Moveto;
+import net.sf.eps2pgf.ps.PathSection;
+import net.sf.eps2pgf.ps.resources.outputdevices.PGFDevice;
+
+/**
+ * Tests the PGF code of paths that are drawn with path macros.
+ */
+public class PathMacrosTest {
+    
+    /** Definition of the macro for the triangle. */
+    private static final String TRIANGLE_MACRO = "\\gdef\\epspgfpatha{"
+        + "\\pgfpathmoveto{\\pgfqpoint{0cm}{0cm}}\n"
+        + "\\pgfpathlineto{\\pgfqpoint{0.1cm}{0cm}}\n"
+        + "\\pgfpathlineto{\\pgfqpoint{0cm}{0.1cm}}\n"
+        + "\\pgfpathclose\n"
+        + "}\n";
+    
+    /** Output of the device. */
+    private StringWriter out = null;
+    
+    /** The device. */
+    private PGFDevice device = null;
+    
+    /**
+     * Sets up the class.
+     * 
+     * @throws Exception the exception
+     */
+    @BeforeClass
+    public static void setUpClass() throws Exception {
+        Logger.getLogger("net.sourceforge.eps2pgf").setLevel(Level.OFF);
+    }
+    
+    /**
+     * Set up a single test.
+     * 
+     * @throws Exception An exception occurred.
+     */
+    @Before
+    public void setUp() throws Exception {
+        device = createDevice(2);
+    }
+    
+    /** Test. @throws Exception the exception */
+    @Test
+    public void macroDefinitionAndUses() throws Exception {
+        // Each triangle is followed by a line of another length, such that
+        // the triangles don't form a marker run.
+        for (int i = 0; i < 4; i++) {
+            device.fill(triangle(10000 * i, 0));
+            device.stroke(line(1000 * (i + 1)));
+        }
+        String output = finish();
+        
+        // The first two triangles are written as usual.
+        assertEquals(2, count(output, "\\pgfpathclose\n\\pgfusepath{fill}"));
+        assertEquals(1, count(output,
+                "\\pgfpathlineto{\\pgfqpoint{1.1cm}{0cm}}\n"));
+        
+        // The macro is defined once, right before its first use, with
+        // coordinates relative to the first point.
+        assertEquals(1, count(output, "\\gdef"));
+        assertEquals(1, count(output, TRIANGLE_MACRO
+                + "{\\pgftransformshift{\\pgfqpoint{2cm}{0cm}}\\epspgfpatha}\n"
+                + "\\pgfusepath{fill}\n"));
+        assertEquals(1, count(output,
+                "{\\pgftransformshift{\\pgfqpoint{3cm}{0cm}}\\epspgfpatha}\n"
+                + "\\pgfusepath{fill}\n"));
+        assertEquals(0, count(output, "\\epspgfmarkers"));
+        assertEquals(4, count(output, "\\pgfusepath{stroke}"));
+    }
+    
+    /** Test. @throws Exception the exception */
+    @Test
+    public void markerRun() throws Exception {
+        // The first two triangles are written as usual, the other ten are
+        // drawn with the marker loop.
+        for (int i = 0; i < 12; i++) {
+            device.fill(triangle(1000 * i, 5000));
+        }
+        String output = finish();
+        
+        // Definition of the macro, the loop, the marker and how it is used
+        assertEquals(1, count(output, TRIANGLE_MACRO
+                + "\\gdef\\epspgfmarkers#1,#2;{"
+                + "\\ifx\\relax#1\\else"
+                + "{\\pgftransformshift{\\pgfqpoint{#1cm}{#2cm}}"
+                + "\\epspgfmarker}"
+                + "\\epspgfmarkeruse\\expandafter\\epspgfmarkers\\fi}\n"
+                + "\\def\\epspgfmarker{\\epspgfpatha}"
+                + "\\def\\epspgfmarkeruse{\\pgfusepath{fill}}%\n"
+                + "\\epspgfmarkers"));
+        assertEquals(2, count(output, "\\pgfpathclose\n\\pgfusepath"));
+        assertEquals(0, count(output, "\\pgftransformshift{\\pgfqpoint{0."));
+        
+        // Every line of the list, except the last one, ends with a comment
+        // such that no spaces end up in the positions.
+        String list = markerList(output);
+        String[] lines = list.split("\n");
+        assertEquals(2, lines.length);
+        assertTrue(lines[0].endsWith(";%"));
+        assertTrue(lines[1].endsWith(";"));
+        
+        String[] x = {"0.2", "0.3", "0.4", "0.5", "0.6", "0.7", "0.8", "0.9",
+            "1", "1.1"};
+        List<String> expected = new ArrayList<String>();
+        for (int i = 0; i < x.length; i++) {
+            expected.add(x[i]);
+            expected.add("0.5");
+        }
+        assertEquals(expected, expandMarkers(list));
+    }
+    
+    /** Test. @throws Exception the exception */
+    @Test
+    public void markerLines() throws Exception {
+        for (int i = 0; i < 19; i++) {
+            device.fill(triangle(10000 * i, 0));
+        }
+        String list = markerList(finish());
+        String[] lines = list.split("\n");
+        assertEquals(3, lines.length);
+        assertEquals(8, count(lines[0], ";"));
+        assertEquals(8, count(lines[1], ";"));
+        assertEquals(2, count(lines[2], ";"));
+        assertEquals(2 * 17, expandMarkers(list).size());
+    }
+    
+    /** Test. @throws Exception the exception */
+    @Test
+    public void shortRun() throws Exception {
+        // Three markers are written as separate uses of the macro
+        for (int i = 0; i < 3; i++) {
+            device.fill(triangle(10000 * i, 0));
+        }
+        for (int i = 0; i < 3; i++) {
+            device.stroke(triangle(10000 * i, 0));
+        }
+        String output = finish();
+        assertEquals(0, count(output, "\\epspgfmarkers"));
+        assertEquals(1, count(output, TRIANGLE_MACRO
+                + "{\\pgftransformshift{\\pgfqpoint{2cm}{0cm}}\\epspgfpatha}\n"
+                + "\\pgfusepath{fill}\n"));
+        assertEquals(3, count(output, "\\epspgfpatha}\n\\pgfusepath{stroke}"));
+    }
+    
+    /** Test. @throws Exception the exception */
+    @Test
+    public void separateRuns() throws Exception {
+        // The loop is defined once and used for both runs, the second run
+        // uses the same macro with another operator.
+        for (int i = 0; i < 7; i++) {
+            device.fill(triangle(10000 * i, 0));
+        }
+        for (int i = 0; i < 5; i++) {
+            device.stroke(triangle(10000 * i, 0));
+        }
+        String output = finish();
+        assertEquals(2, count(output, "\\gdef"));
+        assertEquals(1, count(output, "\\gdef\\epspgfmarkers"));
+        assertEquals(1, count(output, "\\gdef\\epspgfpatha"));
+        assertEquals(1, count(output,
+                "\\def\\epspgfmarkeruse{\\pgfusepath{stroke}}%"));
+        assertEquals(2, count(output, "\\relax,\\relax;"));
+    }
+    
+    /** Test. @throws Exception the exception */
+    @Test
+    public void minimumSize() throws Exception {
+        // Paths with fewer sections than the minimum are always written as
+        // usual.
+        device = createDevice(6);
+        for (int i = 0; i < 4; i++) {
+            device.fill(triangle(10000 * i, 0));
+        }
+        String output = finish();
+        assertEquals(0, count(output, "\\gdef"));
+        assertEquals(4, count(output, "\\pgfpathclose"));
+    }
+    
+    /** Test. @throws Exception the exception */
+    @Test
+    public void disabled() throws Exception {
+        device = createDevice(0);
+        for (int i = 0; i < 8; i++) {
+            device.fill(triangle(10000 * i, 0));
+        }
+        String output = finish();
+        assertEquals(0, count(output, "\\gdef"));
+        assertEquals(8, count(output, "\\pgfpathclose"));
+    }
+    
+    /**
+     * Creates a PGF device with path macros.
+     * 
+     * @param minSections Minimum number of sections of a path that is drawn
+     * with a macro, zero disables macros.
+     * 
+     * @return The device.
+     * 
+     * @throws Exception the exception
+     */
+    private PGFDevice createDevice(final int minSections) throws Exception {
+        Options opts = new Options();
+        opts.parse(new String[0]);
+        opts.setPathMacroSize(minSections);
+        out = new StringWriter();
+        PGFDevice dev = new PGFDevice(out, opts);
+        dev.init();
+        dev.setColor("DeviceGray", new double[] {0}, "Gray",
+                new double[] {0});
+        return dev;
+    }
+    
+    /**
+     * Finishes the output.
+     * 
+     * @return The output.
+     * 
+     * @throws Exception the exception
+     */
+    private String finish() throws Exception {
+        device.finish();
+        return out.toString();
+    }
+    
+    /**
+     * Creates a closed triangle path.
+     * 
+     * @param x X-coordinate (in micrometer) of the first point.
+     * @param y Y-coordinate (in micrometer) of the first point.
+     * 
+     * @return The sections of the path.
+     */
+    private static List<PathSection> triangle(final double x,
+            final double y) {
+        List<PathSection> path = new ArrayList<PathSection>();
+        path.add(new Moveto(x, y));
+        path.add(new Lineto(x + 1000, y));
+        path.add(new Lineto(x, y + 1000));
+        path.add(new Closepath());
+        path.add(new Moveto(x, y));
+        return path;
+    }
+    
+    /**
+     * Creates a horizontal line from the origin.
+     * 
+     * @param length Length (in micrometer) of the line.
+     * 
+     * @return The sections of the path.
+     */
+    private static List<PathSection> line(final double length) {
+        List<PathSection> path = new ArrayList<PathSection>();
+        path.add(new Moveto(0, 0));
+        path.add(new Lineto(length, 0));
+        return path;
+    }
+    
+    /**
+     * Returns the argument list of the only use of the marker loop.
+     * 
+     * @param output The output.
+     * 
+     * @return The text after the loop command, up to and including the
+     * terminating positions.
+     */
+    private static String markerList(final String output) {
+        String use = "}}%\n\\epspgfmarkers";
+        String end = "\\relax,\\relax;";
+        assertEquals(1, count(output, use));
+        int start = output.indexOf(use) + use.length();
+        int stop = output.indexOf(end, start);
+        assertTrue(stop > 0);
+        return output.substring(start, stop + end.length());
+    }
+    
+    /**
+     * Expands the marker loop the way TeX does: each iteration takes the
+     * delimited arguments "#1,#2;" and the loop stops when #1 is \relax.
+     * The terminator must be the last thing in the list.
+     * 
+     * @param list The argument list of the loop.
+     * 
+     * @return The positions, as pairs of coordinates.
+     */
+    private static List<String> expandMarkers(final String list) {
+        // A comment removes the line break after it
+        String tokens = list.replace("%\n", "");
+        List<String> positions = new ArrayList<String>();
+        int i = 0;
+        while (true) {
+            int comma = tokens.indexOf(',', i);
+            int semicolon = tokens.indexOf(';', comma);
+            assertTrue(comma >= 0 && semicolon >= 0);
+            String x = tokens.substring(i, comma);
+            String y = tokens.substring(comma + 1, semicolon);
+            i = semicolon + 1;
+            if (x.equals("\\relax")) {
+                break;
+            }
+            assertTrue(x.matches("-?[0-9.]+") && y.matches("-?[0-9.]+"));
+            positions.add(x);
+            positions.add(y);
+        }
+        assertEquals(tokens.length(), i);
+        return positions;
+    }
+    
+    /**
+     * Counts the number of times a string occurs in the output.
+     * 
+     * @param output The output.
+     * @param str The string to look for.
+     * 
+     * @return The number of occurrences.
+     */
+    private static int count(final String output, final String str) {
+        int n = 0;
+        int i = output.indexOf(str);
+        while (i >= 0) {
+            n++;
+            i = output.indexOf(str, i + str.length());
+        }
+        return n;
+    }
+}
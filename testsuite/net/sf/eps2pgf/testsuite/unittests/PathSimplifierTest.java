@@ -0,0 +1,251 @@
+/*
+ * This file is part of Eps2pgf.
+ *
+ * Copyright 2007-2009 Paul Wagenaars
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sf.eps2pgf.testsuite.unittests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import net.sf.eps2pgf.Options;
+import net.sf.eps2pgf.Options.PathSimplification;
+import net.sf.eps2pgf.ps.Closepath;
+import net.sf.eps2pgf.ps.Curveto;
+import net.sf.eps2pgf.ps.Lineto;
+import net.sf.eps2pgf.ps.Moveto;
+import net.sf.eps2pgf.ps.PathSection;
+import net.sf.eps2pgf.ps.resources.outputdevices.PGFDevice;
+import net.sf.eps2pgf.ps.resources.outputdevices.PathSimplifier;
+
+/**
+ * Tests which points of polylines are removed by path simplification.
+ */
+public class PathSimplifierTest {
+    
+    /** Output resolution (in micrometer) used by the tests. */
+    private static final double RESOLUTION = 10.0;
+    
+    /**
+     * Sets up the class.
+     * 
+     * @throws Exception the exception
+     */
+    @BeforeClass
+    public static void setUpClass() throws Exception {
+        Logger.getLogger("net.sourceforge.eps2pgf").setLevel(Level.OFF);
+    }
+    
+    /** Test. @throws Exception the exception */
+    @Test
+    public void collinearPoints() throws Exception {
+        PathSimplifier simplifier = new PathSimplifier(
+                PathSimplification.COLLINEAR, 1.0, RESOLUTION);
+        double[] pts = {1000, 0, 2000, 0, 3000, 0, 3000, 1000, 3000, 2000};
+        assertKeep(simplifier, pts, "--+-+");
+        assertEquals(5, simplifier.getNrPoints());
+        assertEquals(3, simplifier.getNrRemoved());
+    }
+    
+    /** Test. @throws Exception the exception */
+    @Test
+    public void collinearTolerance() throws Exception {
+        double[] pts = {1000, 5, 2000, 0};
+        assertKeep(new PathSimplifier(PathSimplification.COLLINEAR, 5.0,
+                RESOLUTION), pts, "-+");
+        assertKeep(new PathSimplifier(PathSimplification.COLLINEAR, 4.9,
+                RESOLUTION), pts, "++");
+        
+        // The second point is removed, because it is within the tolerance
+        // of the segment to the third point. The third point is within the
+        // tolerance of the segment to the last point, but it is kept because
+        // the second point is not.
+        pts = new double[] {1000, 0, 2000, 12, 3000, 4, 4000, 0};
+        assertKeep(new PathSimplifier(PathSimplification.COLLINEAR, 10.0,
+                RESOLUTION), pts, "--++");
+    }
+    
+    /** Test. @throws Exception the exception */
+    @Test
+    public void rdpTolerance() throws Exception {
+        double[] pts = {500, 10, 1000, 0, 1500, -30, 2000, 0};
+        assertKeep(new PathSimplifier(PathSimplification.RDP, 30.0,
+                RESOLUTION), pts, "---+");
+        assertKeep(new PathSimplifier(PathSimplification.RDP, 29.9,
+                RESOLUTION), pts, "--++");
+        assertKeep(new PathSimplifier(PathSimplification.RDP, 9.9,
+                RESOLUTION), pts, "++++");
+    }
+    
+    /** Test. @throws Exception the exception */
+    @Test
+    public void endPoints() throws Exception {
+        PathSimplifier simplifier = new PathSimplifier(PathSimplification.RDP,
+                100.0, RESOLUTION);
+        
+        // The end point is kept, even if it is on a straight line, or if it
+        // is the same as the previous point after rounding.
+        assertKeep(simplifier, new double[] {1000, 0, 2000, 0}, "-+");
+        simplifier = new PathSimplifier(PathSimplification.RDP, 0.0,
+                RESOLUTION);
+        assertKeep(simplifier, new double[] {1000, 0, 1000, 1000, 1001, 1000},
+                "+-+");
+        
+        // A single segment is never changed, not even if it has zero length.
+        assertKeep(simplifier, new double[] {0, 0}, "+");
+        
+        // The start point is not part of the polyline. Points that are the
+        // same as the start point, or on a straight line from it, are
+        // removed.
+        simplifier = new PathSimplifier(PathSimplification.COLLINEAR, 1.0,
+                RESOLUTION);
+        assertKeep(simplifier, new double[] {0, 0, 0, 1000, 0, 2000}, "--+");
+        
+        // No simplification
+        simplifier = new PathSimplifier(PathSimplification.NONE, 100.0,
+                RESOLUTION);
+        assertKeep(simplifier, new double[] {1000, 0, 2000, 0}, "++");
+        assertEquals(0, simplifier.getNrRemoved());
+    }
+    
+    /** Test. @throws Exception the exception */
+    @Test
+    public void curveSegments() throws Exception {
+        // Polylines end at curves, the points around them are kept.
+        List<PathSection> path = new ArrayList<PathSection>();
+        path.add(new Moveto(0, 0));
+        path.add(new Lineto(1000, 0));
+        path.add(new Lineto(2000, 0));
+        path.add(new Curveto(new double[] {3000, 0}, new double[] {3000, 0},
+                new double[] {4000, 0}));
+        path.add(new Lineto(5000, 0));
+        path.add(new Lineto(6000, 0));
+        String output = write(path);
+        assertEquals("\\pgfpathmoveto{\\pgfqpoint{0cm}{0cm}}\n"
+                + "\\pgfpathlineto{\\pgfqpoint{0.2cm}{0cm}}\n"
+                + "\\pgfpathcurveto{\\pgfqpoint{0.3cm}{0cm}}"
+                + "{\\pgfqpoint{0.3cm}{0cm}}{\\pgfqpoint{0.4cm}{0cm}}\n"
+                + "\\pgfpathlineto{\\pgfqpoint{0.6cm}{0cm}}\n", output);
+    }
+    
+    /** Test. @throws Exception the exception */
+    @Test
+    public void closedSubpaths() throws Exception {
+        // Points halfway the edges of two squares are removed, the corners
+        // and the closepath are kept. The last point before the closepath is
+        // the end point of the polyline, so it is kept as well. The polyline
+        // of the second subpath starts at its own moveto. The moveto after
+        // the first closepath is replaced by it, like PostScript does.
+        List<PathSection> path = new ArrayList<PathSection>();
+        double[][] squares = {{0, 0}, {5000, 5000}};
+        for (double[] ll : squares) {
+            if (!path.isEmpty()) {
+                path.remove(path.size() - 1);
+            }
+            double x = ll[0];
+            double y = ll[1];
+            path.add(new Moveto(x, y));
+            path.add(new Lineto(x + 500, y));
+            path.add(new Lineto(x + 1000, y));
+            path.add(new Lineto(x + 1000, y + 500));
+            path.add(new Lineto(x + 1000, y + 1000));
+            path.add(new Lineto(x, y + 1000));
+            path.add(new Lineto(x, y + 500));
+            path.add(new Closepath());
+            path.add(new Moveto(x, y));
+        }
+        String output = write(path);
+        assertEquals("\\pgfpathmoveto{\\pgfqpoint{0cm}{0cm}}\n"
+                + "\\pgfpathlineto{\\pgfqpoint{0.1cm}{0cm}}\n"
+                + "\\pgfpathlineto{\\pgfqpoint{0.1cm}{0.1cm}}\n"
+                + "\\pgfpathlineto{\\pgfqpoint{0cm}{0.1cm}}\n"
+                + "\\pgfpathlineto{\\pgfqpoint{0cm}{0.05cm}}\n"
+                + "\\pgfpathclose\n"
+                + "\\pgfpathmoveto{\\pgfqpoint{0.5cm}{0.5cm}}\n"
+                + "\\pgfpathlineto{\\pgfqpoint{0.6cm}{0.5cm}}\n"
+                + "\\pgfpathlineto{\\pgfqpoint{0.6cm}{0.6cm}}\n"
+                + "\\pgfpathlineto{\\pgfqpoint{0.5cm}{0.6cm}}\n"
+                + "\\pgfpathlineto{\\pgfqpoint{0.5cm}{0.55cm}}\n"
+                + "\\pgfpathclose\n", output);
+    }
+    
+    /**
+     * Simplifies a polyline that starts at the origin, and checks which
+     * points are kept.
+     * 
+     * @param simplifier The simplifier.
+     * @param pts Points of the polyline.
+     * @param expected For each point a '+' if it is kept, or a '-' if it is
+     * removed.
+     */
+    private static void assertKeep(final PathSimplifier simplifier,
+            final double[] pts, final String expected) {
+        int nr = pts.length / 2;
+        boolean[] keep = new boolean[nr];
+        int nrKept = simplifier.simplify(new double[] {0, 0}, pts, nr, keep);
+        StringBuilder str = new StringBuilder();
+        int n = 0;
+        for (int i = 0; i < nr; i++) {
+            str.append(keep[i] ? '+' : '-');
+            if (keep[i]) {
+                n++;
+            }
+        }
+        assertEquals(Arrays.toString(pts), expected, str.toString());
+        assertEquals(n, nrKept);
+    }
+    
+    /**
+     * Fills a path with a PGF device that removes collinear points, and
+     * returns the path construction commands that are written.
+     * 
+     * @param path The path.
+     * 
+     * @return The path construction commands.
+     * 
+     * @throws Exception the exception
+     */
+    private static String write(final List<PathSection> path)
+            throws Exception {
+        Options opts = new Options();
+        opts.parse(new String[0]);
+        opts.setPathSimplification(PathSimplification.COLLINEAR);
+        opts.setPathTolerance(0.001);
+        StringWriter out = new StringWriter();
+        PGFDevice device = new PGFDevice(out, opts);
+        device.init();
+        device.fill(path);
+        device.finish();
+        StringBuilder commands = new StringBuilder();
+        for (String line : out.toString().split("\n")) {
+            if (line.startsWith("\\pgfpath")) {
+                commands.append(line).append('\n');
+            }
+        }
+        assertTrue(out.toString().contains("\\pgfusepath{fill}"));
+        return commands.toString();
+    }
+}
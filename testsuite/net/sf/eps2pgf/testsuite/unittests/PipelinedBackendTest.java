@@ -0,0 +1,184 @@
+/*
+ * This file is part of Eps2pgf.
+ *
+ * Copyright 2007-2009 Paul Wagenaars
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sf.eps2pgf.testsuite.unittests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import net.sf.eps2pgf.Options;
+import net.sf.eps2pgf.ps.Closepath;
+import net.sf.eps2pgf.ps.Lineto;
+import net.sf.eps2pgf.ps.Moveto;
+import net.sf.eps2pgf.ps.PathSection;
+import net.sf.eps2pgf.ps.errors.PSError;
+import net.sf.eps2pgf.ps.errors.PSErrorIOError;
+import net.sf.eps2pgf.ps.errors.PSErrorRangeCheck;
+import net.sf.eps2pgf.ps.resources.outputdevices.OutputBackend;
+import net.sf.eps2pgf.ps.resources.outputdevices.PGFDevice;
+import net.sf.eps2pgf.ps.resources.outputdevices.PipelinedBackend;
+
+/**
+ * Tests rendering the display list on a separate thread, and how errors in
+ * that thread are reported.
+ */
+public class PipelinedBackendTest {
+    
+    /**
+     * Number of paths that are drawn, such that the display list doesn't
+     * fit in the queue.
+     */
+    private static final int NR_PATHS = 50000;
+    
+    /** Options of the back-ends. */
+    private Options opts = null;
+    
+    /**
+     * Sets up the class.
+     * 
+     * @throws Exception the exception
+     */
+    @BeforeClass
+    public static void setUpClass() throws Exception {
+        Logger.getLogger("net.sourceforge.eps2pgf").setLevel(Level.OFF);
+    }
+    
+    /**
+     * Set up a single test.
+     * 
+     * @throws Exception An exception occurred.
+     */
+    @Before
+    public void setUp() throws Exception {
+        opts = new Options();
+        opts.parse(new String[0]);
+    }
+    
+    /** Test. @throws Exception the exception */
+    @Test
+    public void sameOutput() throws Exception {
+        StringWriter direct = new StringWriter();
+        draw(new PGFDevice(direct, opts), 1000);
+        StringWriter piped = new StringWriter();
+        draw(new PipelinedBackend(new PGFDevice(piped, opts), 0), 1000);
+        assertEquals(direct.toString(), piped.toString());
+    }
+    
+    /** Test. @throws Exception the exception */
+    @Test
+    public void errorInBackend() throws Exception {
+        // Errors that are no exceptions, e.g. when the back-end runs out of
+        // memory, must not silently truncate the output.
+        final Error error = new OutOfMemoryError("test");
+        PipelinedBackend backend = new PipelinedBackend(
+                new PGFDevice(new StringWriter(), opts) {
+                    @Override
+                    public void fill(final List<PathSection> path) {
+                        throw error;
+                    }
+                }, 0);
+        try {
+            draw(backend, NR_PATHS);
+            fail("the error in the back-end is not reported");
+        } catch (PSErrorIOError e) {
+            assertTrue(e.getCause() == error);
+        }
+        
+        // The error is reported again when the back-end is finished.
+        try {
+            backend.finish();
+            fail("the error in the back-end is not reported by finish()");
+        } catch (PSErrorIOError e) {
+            assertTrue(e.getCause() == error);
+        }
+    }
+    
+    /** Test. @throws Exception the exception */
+    @Test
+    public void exceptionInBackend() throws Exception {
+        final RuntimeException exception = new IllegalStateException("test");
+        PipelinedBackend backend = new PipelinedBackend(
+                new PGFDevice(new StringWriter(), opts) {
+                    @Override
+                    public void fill(final List<PathSection> path) {
+                        throw exception;
+                    }
+                }, 0);
+        try {
+            draw(backend, NR_PATHS);
+            fail("the exception in the back-end is not reported");
+        } catch (IllegalStateException e) {
+            assertTrue(e == exception);
+        }
+    }
+    
+    /** Test. @throws Exception the exception */
+    @Test
+    public void psErrorInBackend() throws Exception {
+        PipelinedBackend backend = new PipelinedBackend(
+                new PGFDevice(new StringWriter(), opts) {
+                    @Override
+                    public void fill(final List<PathSection> path)
+                            throws PSError {
+                        throw new PSErrorRangeCheck();
+                    }
+                }, 0);
+        try {
+            draw(backend, NR_PATHS);
+            fail("the error in the back-end is not reported");
+        } catch (PSErrorRangeCheck e) {
+            // expected
+        }
+    }
+    
+    /**
+     * Draws a number of filled squares, and finishes the output.
+     * 
+     * @param backend The back-end.
+     * @param nrPaths Number of squares.
+     * 
+     * @throws Exception the exception
+     */
+    private static void draw(final OutputBackend backend, final int nrPaths)
+            throws Exception {
+        backend.init();
+        backend.setColor("DeviceGray", new double[] {0}, "Gray",
+                new double[] {0});
+        for (int i = 0; i < nrPaths; i++) {
+            List<PathSection> path = new ArrayList<PathSection>();
+            path.add(new Moveto(10 * i, 0));
+            path.add(new Lineto(10 * i + 5, 0));
+            path.add(new Lineto(10 * i + 5, 5));
+            path.add(new Lineto(10 * i, 5));
+            path.add(new Closepath());
+            backend.fill(path);
+        }
+        backend.finish();
+    }
+}
@@ -0,0 +1,341 @@
+/*
+ * This file is part of Eps2pgf.
+ *
+ * Copyright 2007-2009 Paul Wagenaars
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sf.eps2pgf.testsuite.unittests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.Raster;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Random;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.imageio.ImageIO;
+
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import net.sf.eps2pgf.Options;
+import net.sf.eps2pgf.io.StringInputStream;
+import net.sf.eps2pgf.io.images.PngImageCreator;
+import net.sf.eps2pgf.ps.Image;
+import net.sf.eps2pgf.ps.Interpreter;
+import net.sf.eps2pgf.ps.objects.PSObjectDict;
+import net.sf.eps2pgf.ps.objects.PSObjectFile;
+import net.sf.eps2pgf.ps.resources.colors.DeviceGray;
+import net.sf.eps2pgf.ps.resources.colors.DeviceRGB;
+import net.sf.eps2pgf.ps.resources.colors.PSColor;
+
+/**
+ * Writes bitmap images as PNG files, reads them back with ImageIO, and
+ * compares the pixels with the samples of the image.
+ */
+public class PngImageCreatorTest {
+    
+    /** PNG color type: grayscale. */
+    private static final int GRAY = 0;
+    
+    /** PNG color type: RGB. */
+    private static final int RGB = 2;
+    
+    /** PNG color type: palette. */
+    private static final int PALETTE = 3;
+    
+    /** The PostScript interpreter. */
+    private Interpreter interp;
+    
+    /** Options with the compression settings. */
+    private Options opts;
+    
+    /**
+     * Sets up the class.
+     * 
+     * @throws Exception the exception
+     */
+    @BeforeClass
+    public static void setUpClass() throws Exception {
+        Logger.getLogger("net.sourceforge.eps2pgf").setLevel(Level.OFF);
+    }
+    
+    /**
+     * Set up a single test.
+     * 
+     * @throws Exception An exception occurred.
+     */
+    @Before
+    public void setUp() throws Exception {
+        interp = new Interpreter();
+        opts = new Options();
+        opts.parse(new String[0]);
+    }
+    
+    /** Test. @throws Exception the exception */
+    @Test
+    public void grayLowDepths() throws Exception {
+        // Widths that don't fill the last byte of a row
+        for (int bits = 1; bits <= 4; bits *= 2) {
+            int[] samples = randomSamples(13 * 6, bits, bits);
+            Raster raster = writeAndRead(13, 6, 1, bits, samples, "[0 1]",
+                    new DeviceGray(), GRAY, bits);
+            assertSamples(samples, raster, 1);
+        }
+    }
+    
+    /** Test. @throws Exception the exception */
+    @Test
+    public void gray8And16() throws Exception {
+        for (int bits = 8; bits <= 16; bits *= 2) {
+            // Gradients, such that the rows are filtered
+            int max = (1 << bits) - 1;
+            int[] samples = new int[37 * 11];
+            for (int y = 0; y < 11; y++) {
+                for (int x = 0; x < 37; x++) {
+                    samples[y * 37 + x] = (x * 997 + y * 1999 + x * y * 13)
+                            & max;
+                }
+            }
+            Raster raster = writeAndRead(37, 11, 1, bits, samples, "[0 1]",
+                    new DeviceGray(), GRAY, bits);
+            assertSamples(samples, raster, 1);
+            
+            samples = randomSamples(37 * 11, bits, bits + 1);
+            raster = writeAndRead(37, 11, 1, bits, samples, "[0 1]",
+                    new DeviceGray(), GRAY, bits);
+            assertSamples(samples, raster, 1);
+        }
+    }
+    
+    /** Test. @throws Exception the exception */
+    @Test
+    public void rgb8And16() throws Exception {
+        for (int bits = 8; bits <= 16; bits *= 2) {
+            int max = (1 << bits) - 1;
+            int[] samples = new int[3 * 19 * 7];
+            for (int i = 0; i < samples.length; i++) {
+                samples[i] = (i * 331 + (i % 3) * 7777 + (i / 57) * 4099)
+                        & max;
+            }
+            Raster raster = writeAndRead(19, 7, 3, bits, samples,
+                    "[0 1 0 1 0 1]", new DeviceRGB(), RGB, bits);
+            assertSamples(samples, raster, 3);
+        }
+    }
+    
+    /** Test. @throws Exception the exception */
+    @Test
+    public void multipleBlocks() throws Exception {
+        // More than one block of the parallel deflater, with several threads
+        opts.setDeflateThreads(3);
+        int width = 211;
+        int height = 157;
+        int[] samples = new int[3 * width * height];
+        Random random = new Random(5);
+        for (int i = 0; i < samples.length; i++) {
+            samples[i] = ((i % (3 * width)) * 300 + random.nextInt(64))
+                    & 0xFFFF;
+        }
+        Raster raster = writeAndRead(width, height, 3, 16, samples,
+                "[0 1 0 1 0 1]", new DeviceRGB(), RGB, 16);
+        assertSamples(samples, raster, 3);
+    }
+    
+    /** Test. @throws Exception the exception */
+    @Test
+    public void convertedToRgb() throws Exception {
+        // An inverted decode array can't be written as gray samples.
+        int[] samples = randomSamples(9 * 4, 8, 3);
+        Raster raster = writeAndRead(9, 4, 1, 8, samples, "[1 0]",
+                new DeviceGray(), RGB, 8);
+        int[] expected = new int[3 * samples.length];
+        for (int i = 0; i < samples.length; i++) {
+            for (int c = 0; c < 3; c++) {
+                expected[3 * i + c] = 255 - samples[i];
+            }
+        }
+        assertSamples(expected, raster, 3);
+    }
+    
+    /** Test. @throws Exception the exception */
+    @Test
+    public void masks() throws Exception {
+        PSColor red = new DeviceRGB();
+        red.setColor(new double[] {1.0, 0.0, 0.0});
+        int[] samples = randomSamples(11 * 5, 1, 17);
+        for (int polarity = 0; polarity <= 1; polarity++) {
+            String decode = (polarity == 0) ? "[0 1]" : "[1 0]";
+            BufferedImage img = write(11, 5, 1, 1, samples, decode, red, true,
+                    PALETTE, 1);
+            for (int y = 0; y < 5; y++) {
+                for (int x = 0; x < 11; x++) {
+                    // Samples that decode to zero are painted.
+                    boolean painted = (samples[y * 11 + x] == polarity);
+                    int argb = img.getRGB(x, y);
+                    String pixel = "pixel " + x + "," + y;
+                    if (painted) {
+                        assertEquals(pixel, Integer.valueOf(0xFFFF0000),
+                                Integer.valueOf(argb));
+                    } else {
+                        assertEquals(pixel, Integer.valueOf(0),
+                                Integer.valueOf(argb >>> 24));
+                    }
+                }
+            }
+        }
+    }
+    
+    /**
+     * Writes an image as PNG and reads it back.
+     * 
+     * @param width Width of the image.
+     * @param height Height of the image.
+     * @param nrComponents Number of components per pixel.
+     * @param bits Bits per component.
+     * @param samples The samples, row by row from top to bottom.
+     * @param decode The decode array.
+     * @param colorSpace The color space.
+     * @param colorType Expected PNG color type.
+     * @param bitDepth Expected PNG bit depth.
+     * 
+     * @return The raster of the PNG image.
+     * 
+     * @throws Exception the exception
+     */
+    private Raster writeAndRead(final int width, final int height,
+            final int nrComponents, final int bits, final int[] samples,
+            final String decode, final PSColor colorSpace, final int colorType,
+            final int bitDepth) throws Exception {
+        return write(width, height, nrComponents, bits, samples, decode,
+                colorSpace, false, colorType, bitDepth).getRaster();
+    }
+    
+    /**
+     * Writes an image or stencil mask as PNG and reads it back.
+     * 
+     * @param width Width of the image.
+     * @param height Height of the image.
+     * @param nrComponents Number of components per pixel.
+     * @param bits Bits per component.
+     * @param samples The samples, row by row from top to bottom.
+     * @param decode The decode array.
+     * @param colorSpace The color space, or the color of a mask.
+     * @param mask Indicates whether the image is a stencil mask.
+     * @param colorType Expected PNG color type.
+     * @param bitDepth Expected PNG bit depth.
+     * 
+     * @return The PNG image.
+     * 
+     * @throws Exception the exception
+     */
+    private BufferedImage write(final int width, final int height,
+            final int nrComponents, final int bits, final int[] samples,
+            final String decode, final PSColor colorSpace, final boolean mask,
+            final int colorType, final int bitDepth) throws Exception {
+        
+        // The data source is a procedure that returns all packed samples.
+        StringBuilder hex = new StringBuilder();
+        int rowBits = width * nrComponents * bits;
+        int rowBytes = (rowBits + 7) / 8;
+        int perRow = width * nrComponents;
+        for (int y = 0; y < height; y++) {
+            byte[] row = new byte[rowBytes];
+            for (int i = 0; i < perRow; i++) {
+                int sample = samples[y * perRow + i];
+                int pos = i * bits;
+                for (int b = bits - 1; b >= 0; b--) {
+                    if (((sample >> b) & 1) != 0) {
+                        row[pos / 8] |= 0x80 >> (pos % 8);
+                    }
+                    pos++;
+                }
+            }
+            for (int i = 0; i < rowBytes; i++) {
+                hex.append(Integer.toHexString(0x100 | (row[i] & 0xFF))
+                        .substring(1));
+            }
+        }
+        
+        // The image matrix puts the first row at the top.
+        String cmd = "<< /ImageType 1 /Width " + width + " /Height " + height
+            + " /BitsPerComponent " + bits + " /Decode " + decode
+            + " /ImageMatrix [" + width + " 0 0 -" + height + " 0 " + height
+            + "] /DataSource {<" + hex + ">} >>";
+        interp.getExecStack().push(new PSObjectFile(
+                new StringInputStream(cmd), interp));
+        interp.start();
+        PSObjectDict dict = interp.getOpStack().pop().toDict();
+        Image img = new Image(dict, interp, colorSpace, mask);
+        
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PngImageCreator.writeImage(out, img, opts);
+        byte[] png = out.toByteArray();
+        assertEquals(bitDepth, png[24]);
+        assertEquals(colorType, png[25]);
+        
+        BufferedImage decoded = ImageIO.read(new ByteArrayInputStream(png));
+        assertEquals(width, decoded.getWidth());
+        assertEquals(height, decoded.getHeight());
+        return decoded;
+    }
+    
+    /**
+     * Creates random samples.
+     * 
+     * @param n Number of samples.
+     * @param bits Bits per sample.
+     * @param seed Seed of the random number generator.
+     * 
+     * @return The samples.
+     */
+    private static int[] randomSamples(final int n, final int bits,
+            final long seed) {
+        Random random = new Random(seed);
+        int[] samples = new int[n];
+        for (int i = 0; i < n; i++) {
+            samples[i] = random.nextInt(1 << bits);
+        }
+        return samples;
+    }
+    
+    /**
+     * Checks the samples of a decoded PNG image.
+     * 
+     * @param samples Expected samples, row by row from top to bottom.
+     * @param raster The raster of the decoded image.
+     * @param nrBands Number of samples per pixel.
+     */
+    private static void assertSamples(final int[] samples,
+            final Raster raster, final int nrBands) {
+        assertEquals(nrBands, raster.getNumBands());
+        int i = 0;
+        for (int y = 0; y < raster.getHeight(); y++) {
+            for (int x = 0; x < raster.getWidth(); x++) {
+                for (int b = 0; b < nrBands; b++) {
+                    assertEquals("sample " + x + "," + y + "," + b,
+                            Integer.valueOf(samples[i++]),
+                            Integer.valueOf(raster.getSample(x, y, b)));
+                }
+            }
+        }
+        assertTrue(i == samples.length);
+    }
+}
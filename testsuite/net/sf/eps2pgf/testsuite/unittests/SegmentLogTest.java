@@ -0,0 +1,292 @@
+/*
+ * This file is part of Eps2pgf.
+ *
+ * Copyright 2007-2009 Paul Wagenaars
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sf.eps2pgf.testsuite.unittests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import net.sf.eps2pgf.ps.Closepath;
+import net.sf.eps2pgf.ps.Curveto;
+import net.sf.eps2pgf.ps.Lineto;
+import net.sf.eps2pgf.ps.Moveto;
+import net.sf.eps2pgf.ps.PathSection;
+import net.sf.eps2pgf.ps.PathSpillFile;
+import net.sf.eps2pgf.ps.SegmentLog;
+
+/**
+ * Tests the list with path sections, on the heap and spilled to a temporary
+ * file.
+ */
+public class SegmentLogTest {
+    
+    /** Number of sections of a long path, spanning several chunks. */
+    private static final int LONG_PATH = 20000;
+    
+    /** Spill threshold used for spilled lists. */
+    private static final int THRESHOLD = 16;
+    
+    /** The spill file. */
+    private PathSpillFile spillFile;
+    
+    /** Random number generator. */
+    private Random random;
+    
+    /**
+     * Set up a single test.
+     * 
+     * @throws Exception An exception occurred.
+     */
+    @Before
+    public void setUp() throws Exception {
+        spillFile = SegmentLog.createSpillFile();
+        random = new Random(1);
+    }
+    
+    /**
+     * Clean up after a single test.
+     * 
+     * @throws Exception An exception occurred.
+     */
+    @After
+    public void tearDown() throws Exception {
+        spillFile.close();
+    }
+    
+    /** Test. @throws Exception the exception */
+    @Test
+    public void appendAndGet() throws Exception {
+        List<PathSection> expected = randomSections(LONG_PATH);
+        SegmentLog log = new SegmentLog(0, null);
+        log.addAll(expected);
+        assertSameSections(expected, log);
+        assertFalse(log.isSpilled());
+    }
+    
+    /** Test. @throws Exception the exception */
+    @Test
+    public void appendAndGetSpilled() throws Exception {
+        List<PathSection> expected = randomSections(LONG_PATH);
+        SegmentLog log = new SegmentLog(THRESHOLD, spillFile);
+        log.addAll(expected);
+        assertSameSections(expected, log);
+        assertTrue(log.isSpilled());
+    }
+    
+    /** Test. @throws Exception the exception */
+    @Test
+    public void modify() throws Exception {
+        checkModify(new SegmentLog(0, null));
+    }
+    
+    /** Test. @throws Exception the exception */
+    @Test
+    public void modifySpilled() throws Exception {
+        checkModify(new SegmentLog(THRESHOLD, spillFile));
+    }
+    
+    /** Test. @throws Exception the exception */
+    @Test
+    public void cloneIsIndependent() throws Exception {
+        List<PathSection> expected = randomSections(LONG_PATH);
+        SegmentLog log = new SegmentLog(THRESHOLD, spillFile);
+        log.addAll(expected);
+        SegmentLog copy = log.clone();
+        
+        log.set(5, new Lineto(-1, -1));
+        log.remove(LONG_PATH / 2);
+        log.add(new Lineto(-2, -2));
+        copy.add(3, new Moveto(-3, -3));
+        copy.clear();
+        
+        List<PathSection> expectedLog = new ArrayList<PathSection>(expected);
+        expectedLog.set(5, new Lineto(-1, -1));
+        expectedLog.remove(LONG_PATH / 2);
+        expectedLog.add(new Lineto(-2, -2));
+        assertSameSections(expectedLog, log);
+        assertEquals(0, copy.size());
+    }
+    
+    /** Test. @throws Exception the exception */
+    @Test
+    public void removeLast() throws Exception {
+        List<PathSection> expected = randomSections(2 * 8192 + 1);
+        SegmentLog log = new SegmentLog(THRESHOLD, spillFile);
+        log.addAll(expected);
+        SegmentLog copy = log.clone();
+        List<PathSection> expectedCopy = new ArrayList<PathSection>(expected);
+        
+        // Remove across a chunk boundary, then append to a shared chunk.
+        for (int i = 0; i < 2; i++) {
+            log.remove(log.size() - 1);
+            expected.remove(expected.size() - 1);
+        }
+        log.add(new Lineto(-1, -1));
+        expected.add(new Lineto(-1, -1));
+        assertSameSections(expected, log);
+        assertSameSections(expectedCopy, copy);
+    }
+    
+    /** Test. @throws Exception the exception */
+    @Test
+    public void invalidIndex() throws Exception {
+        SegmentLog log = new SegmentLog(0, null);
+        log.add(new Moveto(0, 0));
+        int thrown = 0;
+        try {
+            log.set(1, new Lineto(1, 1));
+        } catch (IndexOutOfBoundsException e) {
+            thrown++;
+        }
+        try {
+            log.remove(-1);
+        } catch (IndexOutOfBoundsException e) {
+            thrown++;
+        }
+        try {
+            log.add(2, new Lineto(1, 1));
+        } catch (IndexOutOfBoundsException e) {
+            thrown++;
+        }
+        assertEquals(3, thrown);
+        assertEquals(1, log.size());
+    }
+    
+    /** Test. @throws Exception the exception */
+    @Test
+    public void spillFileIsReused() throws Exception {
+        SegmentLog log = new SegmentLog(THRESHOLD, spillFile);
+        List<PathSection> sections = randomSections(LONG_PATH);
+        for (int i = 0; i < 20; i++) {
+            log.addAll(sections);
+            log.clear();
+        }
+        log.addAll(sections);
+        assertSameSections(sections, log);
+        
+        // A path of 20000 sections needs three regions.
+        assertTrue(spillFile.getSize() <= 3 * spillFile.getRegionSize());
+    }
+    
+    /**
+     * Applies random changes to a list, and checks it against an ArrayList
+     * with the same changes.
+     * 
+     * @param log The list to test.
+     */
+    private void checkModify(final SegmentLog log) {
+        List<PathSection> expected = randomSections(LONG_PATH);
+        log.addAll(expected);
+        for (int i = 0; i < 50; i++) {
+            int index = random.nextInt(expected.size());
+            PathSection section = randomSection();
+            switch (i % 3) {
+                case 0:
+                    assertSameSections(expected.set(index, section),
+                            log.set(index, section));
+                    break;
+                case 1:
+                    assertSameSections(expected.remove(index),
+                            log.remove(index));
+                    break;
+                default:
+                    expected.add(index, section);
+                    log.add(index, section);
+                    break;
+            }
+        }
+        assertSameSections(expected, log);
+    }
+    
+    /**
+     * Creates a list with random sections.
+     * 
+     * @param n Number of sections.
+     * 
+     * @return The sections.
+     */
+    private List<PathSection> randomSections(final int n) {
+        List<PathSection> sections = new ArrayList<PathSection>(n);
+        for (int i = 0; i < n; i++) {
+            sections.add(randomSection());
+        }
+        return sections;
+    }
+    
+    /**
+     * Creates a random section.
+     * 
+     * @return The section.
+     */
+    private PathSection randomSection() {
+        double[] c = new double[6];
+        for (int i = 0; i < c.length; i++) {
+            c[i] = random.nextInt(1000) / 8.0;
+        }
+        switch (random.nextInt(4)) {
+            case 0:
+                return new Moveto(c[0], c[1]);
+            case 1:
+                return new Lineto(c[0], c[1]);
+            case 2:
+                double[] c1 = {c[0], c[1]};
+                double[] c2 = {c[2], c[3]};
+                double[] end = {c[4], c[5]};
+                return new Curveto(c1, c2, end);
+            default:
+                return new Closepath();
+        }
+    }
+    
+    /**
+     * Checks that two lists contain the same sections.
+     * 
+     * @param expected The expected sections.
+     * @param actual The actual sections.
+     */
+    private static void assertSameSections(final List<PathSection> expected,
+            final List<PathSection> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertSameSections(expected.get(i), actual.get(i));
+        }
+    }
+    
+    /**
+     * Checks that two sections have the same type and parameters.
+     * 
+     * @param expected The expected section.
+     * @param actual The actual section.
+     */
+    private static void assertSameSections(final PathSection expected,
+            final PathSection actual) {
+        assertEquals(expected.getClass(), actual.getClass());
+        for (int i = 0; i < 6; i++) {
+            assertEquals(expected.getParam(i), actual.getParam(i), 0.0);
+        }
+    }
+}